@@ -23,5 +23,5 @@
 
 # Keep the logTun2Socks method in VpnManager, as it is called from native code
 -keep class com.psiphon3.VpnManager {
-    public static void logTun2Socks(java.lang.String, java.lang.String, java.lang.String);
+    public static void logTun2Socks(java.lang.String[]);
 }
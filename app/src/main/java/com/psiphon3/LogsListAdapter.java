@@ -35,9 +35,8 @@ import com.psiphon3.log.LogEntry;
 import com.psiphon3.log.MyLog;
 import com.psiphon3.psiphonlibrary.Utils;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.util.Arrays;
 import java.util.Date;
 
 public class LogsListAdapter extends PagedListAdapter<LogEntry, LogsListAdapter.LogEntryViewHolder> {
@@ -62,17 +61,11 @@ public class LogsListAdapter extends PagedListAdapter<LogEntry, LogsListAdapter.
             return;
         }
         if (item.isDiagnostic()) {
-            try {
-                JSONObject jsonObj = new JSONObject(item.getLogJson());
-                Date timestamp = new Date(item.getTimestamp());
-                String msg = jsonObj.getString("msg");
-                JSONObject data = jsonObj.optJSONObject("data");
-                String msgStr = data == null ? msg : msg + ":" + data.toString();
-                holder.bind(timestamp, msgStr);
-            } catch (JSONException ignored) {
-            }
+            Date timestamp = new Date(item.getTimestamp());
+            String msgStr = MyLog.getDiagnosticLogMessageForDisplay(item);
+            holder.bind(timestamp, msgStr);
         } else {
-                String msg = MyLog.getStatusLogMessageForDisplay(item.getLogJson(), context);
+                String msg = MyLog.getStatusLogMessageForDisplay(item, context);
                 holder.bind(new Date(item.getTimestamp()), msg);
         }
     }
@@ -111,7 +104,8 @@ public class LogsListAdapter extends PagedListAdapter<LogEntry, LogsListAdapter.
         @Override
         public boolean areContentsTheSame(@NonNull LogEntry oldItem,
                                           @NonNull LogEntry newItem) {
-            return oldItem.getLogJson().equals(newItem.getLogJson()) &&
+            return oldItem.getMessage().equals(newItem.getMessage()) &&
+                    Arrays.equals(oldItem.getArgs(), newItem.getArgs()) &&
                     (oldItem.getTimestamp() == newItem.getTimestamp());
         }
     }
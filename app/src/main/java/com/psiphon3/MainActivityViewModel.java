@@ -69,7 +69,8 @@ public class MainActivityViewModel extends AndroidViewModel implements DefaultLi
         PagedList.Config pagedListConfig = new PagedList.Config.Builder()
                 .setPageSize(60)
                 .setPrefetchDistance(20)
-                .setEnablePlaceholders(true)
+                // Logs are paged by key, without a total count to size placeholders
+                .setEnablePlaceholders(false)
                 .setInitialLoadSizeHint(60)
                 .setMaxSize(100)
                 .build();
@@ -164,6 +165,6 @@ public class MainActivityViewModel extends AndroidViewModel implements DefaultLi
 
     public Flowable<String> lastLogEntryFlowable() {
         return lastLogEntryFlowable
-                .map(logEntry -> MyLog.getStatusLogMessageForDisplay(logEntry.getLogJson(), getApplication()));
+                .map(logEntry -> MyLog.getStatusLogMessageForDisplay(logEntry, getApplication()));
     }
 }
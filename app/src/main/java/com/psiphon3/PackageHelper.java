@@ -60,6 +60,8 @@ public class PackageHelper {
     private static final String LOCK_FILE = "trusted_signatures.lock";
     private static final String TEMP_FILE = "trusted_signatures_temp.json";
     private static final String SIGNATURES_FILE = "trusted_signatures.json";
+    private static final String VERIFICATION_CACHE_FILE = "verified_signatures.json";
+    private static final String VERIFICATION_CACHE_TEMP_FILE = "verified_signatures_temp.json";
 
     // Unmodifiable map of trusted packages with their corresponding sets of SHA-256 signature hashes
     private static final Map<String, Set<String>> TRUSTED_PACKAGES;
@@ -84,23 +86,81 @@ public class PackageHelper {
 
     private static final ConcurrentHashMap<String, Set<String>> RUNTIME_TRUSTED_PACKAGES = new ConcurrentHashMap<>();
 
+    // Merged TRUSTED_PACKAGES and RUNTIME_TRUSTED_PACKAGES, recomputed when the runtime signatures
+    // are configured so lookups don't allocate
+    private static volatile Map<String, Set<String>> expectedSignatures = mergeExpectedSignatures();
+
+    // SHA-256 signature hashes of verified packages by package name, valid as long as the version
+    // code and last update time of the installed package match. Shared with the other processes
+    // through VERIFICATION_CACHE_FILE.
+    private static final ConcurrentHashMap<String, PackageSignature> PACKAGE_SIGNATURES = new ConcurrentHashMap<>();
+    private static volatile boolean packageSignaturesLoaded = false;
+    // Serializes the file operations of this process, the file lock doesn't as it is held by the JVM
+    private static final Object FILE_LOCK = new Object();
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static class PackageSignature {
+        final long versionCode;
+        final long lastUpdateTime;
+        final String signature;
+
+        PackageSignature(long versionCode, long lastUpdateTime, String signature) {
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+            this.signature = signature;
+        }
+
+        boolean isValidFor(PackageInfo packageInfo) {
+            return versionCode == getVersionCode(packageInfo) && lastUpdateTime == packageInfo.lastUpdateTime;
+        }
+    }
+
+    private interface LockedFileOperation {
+        void run() throws IOException, JSONException;
+    }
+
     // Get the expected signature for a package
     @NonNull
     public static Set<String> getExpectedSignaturesForPackage(String packageName) {
-        Set<String> signatures = new HashSet<>();
-        Set<String> trustedSigs = TRUSTED_PACKAGES.get(packageName);
-        if (trustedSigs != null) {
-            signatures.addAll(trustedSigs);
-        }
-        Set<String> runtimeSigs = RUNTIME_TRUSTED_PACKAGES.get(packageName);
-        if (runtimeSigs != null) {
-            signatures.addAll(runtimeSigs);
+        Set<String> signatures = expectedSignatures.get(packageName);
+        return signatures != null ? signatures : Collections.<String>emptySet();
+    }
+
+    private static Map<String, Set<String>> mergeExpectedSignatures() {
+        Map<String, Set<String>> merged = new HashMap<>();
+        Set<String> packageNames = new HashSet<>(TRUSTED_PACKAGES.keySet());
+        packageNames.addAll(RUNTIME_TRUSTED_PACKAGES.keySet());
+        for (String packageName : packageNames) {
+            Set<String> signatures = new HashSet<>();
+            Set<String> trustedSigs = TRUSTED_PACKAGES.get(packageName);
+            if (trustedSigs != null) {
+                signatures.addAll(trustedSigs);
+            }
+            Set<String> runtimeSigs = RUNTIME_TRUSTED_PACKAGES.get(packageName);
+            if (runtimeSigs != null) {
+                signatures.addAll(runtimeSigs);
+            }
+            merged.put(packageName, Collections.unmodifiableSet(signatures));
         }
-        return Collections.unmodifiableSet(signatures);
+        return Collections.unmodifiableMap(merged);
     }
 
     // Verify if a package is trusted
     public static boolean verifyTrustedPackage(PackageManager packageManager, String packageName) {
+        return verifyTrustedPackage(packageManager, packageName, null);
+    }
+
+    // Verify if a package is trusted, sharing the verified signatures with the other processes
+    public static boolean verifyTrustedPackage(Context context, String packageName) {
+        if (!packageSignaturesLoaded) {
+            readPackageSignaturesFromFile(context);
+        }
+        return verifyTrustedPackage(context.getPackageManager(), packageName, context);
+    }
+
+    private static boolean verifyTrustedPackage(PackageManager packageManager, String packageName,
+                                                @Nullable Context context) {
         Set<String> expectedSignatures = getExpectedSignaturesForPackage(packageName);
         if (expectedSignatures.isEmpty()) {
             MyLog.w("PackageHelper: no trusted signatures found for package " + packageName);
@@ -108,14 +168,29 @@ public class PackageHelper {
         }
 
         try {
-            PackageInfo packageInfo;
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.P) {
-                packageInfo = packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNING_CERTIFICATES);
+            // Getting the package version is much cheaper than getting and hashing the signing
+            // certificates, only do the latter if the package has changed since the last check
+            PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
+            PackageSignature cached = PACKAGE_SIGNATURES.get(packageName);
+            String actualSignature;
+            if (cached != null && cached.isValidFor(packageInfo)) {
+                actualSignature = cached.signature;
             } else {
-                packageInfo = packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.P) {
+                    packageInfo = packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNING_CERTIFICATES);
+                } else {
+                    packageInfo = packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+                }
+                actualSignature = getPackageSignature(packageInfo);
+                if (actualSignature != null) {
+                    PACKAGE_SIGNATURES.put(packageName, new PackageSignature(
+                            getVersionCode(packageInfo), packageInfo.lastUpdateTime, actualSignature));
+                    if (context != null) {
+                        savePackageSignaturesToFile(context);
+                    }
+                }
             }
 
-            String actualSignature = getPackageSignature(packageInfo);
             if (actualSignature != null && expectedSignatures.contains(actualSignature)) {
                 return true;
             } else {
@@ -128,6 +203,14 @@ public class PackageHelper {
         }
     }
 
+    @SuppressWarnings("deprecation")
+    private static long getVersionCode(PackageInfo packageInfo) {
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.P) {
+            return packageInfo.getLongVersionCode();
+        }
+        return packageInfo.versionCode;
+    }
+
     // Get the SHA-256 signature hash of a package
     @Nullable
     private static String getPackageSignature(PackageInfo packageInfo) {
@@ -141,18 +224,22 @@ public class PackageHelper {
 
             byte[] cert = signatures[0].toByteArray();
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] digest = md.digest(cert);
-
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < digest.length; i++) {
-                sb.append(String.format("%02X", digest[i]));
-            }
-            return sb.toString();
+            return toHex(md.digest(cert));
         } catch (NoSuchAlgorithmException e) {
             return null;
         }
     }
 
+    // Uppercase hex encoding, continuous (no separator)
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
     // Check if a package is installed
     public static boolean isPackageInstalled(PackageManager packageManager, String packageName) {
         try {
@@ -166,163 +253,181 @@ public class PackageHelper {
     // Saves the map of package signatures to a file in process-safe manner
     // Uses file locking to ensure only one process can write at a time.
     // Uses a temporary file and atomic rename to ensure data consistency.
-    @SuppressWarnings("resource") // Pre-API 19: manual resource handling required instead of try-with-resources
     public static void saveTrustedSignaturesToFile(Context context, Map<String, Set<String>> signatures) {
-        File tempFile = new File(context.getFilesDir(), TEMP_FILE);
-        File finalFile = new File(context.getFilesDir(), SIGNATURES_FILE);
-        File lockFile = new File(context.getFilesDir(), LOCK_FILE);
-
-        RandomAccessFile randomAccessFile = null;
-        FileChannel channel = null;
-        FileLock lock = null;
-
-        try {
-            randomAccessFile = new RandomAccessFile(lockFile, "rw");
-            channel = randomAccessFile.getChannel();
+        withFileLock(context, false, () -> {
+            // Convert signatures map to JSON
+            JSONObject jsonObject = new JSONObject();
+            for (Map.Entry<String, Set<String>> entry : signatures.entrySet()) {
+                jsonObject.put(entry.getKey(), new JSONArray(entry.getValue()));
+            }
+            writeJsonFile(context, SIGNATURES_FILE, TEMP_FILE, jsonObject);
+        });
+    }
 
-            // Block until we can acquire the lock
-            // This ensures we don't miss writing important trusted signatures data
-            try {
-                lock = channel.lock();
-            } catch (OverlappingFileLockException e) {
-                // Lock is already held by another channel in this JVM
-                MyLog.e("PackageHelper: Lock already held by this JVM: " + e);
+    // Reads package signatures from file in a process-safe manner.
+    // Uses shared file locking to allow multiple readers but prevent reading during writes.
+    // Returns empty map if file doesn't exist or on any error.
+    public static Map<String, Set<String>> readTrustedSignaturesFromFile(Context context) {
+        Map<String, Set<String>> signatures = new HashMap<>();
+        withFileLock(context, true, () -> {
+            JSONObject jsonObject = readJsonFile(context, SIGNATURES_FILE);
+            if (jsonObject == null) {
                 return;
             }
-
-            try {
-                // Write to temporary file first to ensure atomic update
-                try (FileOutputStream fos = new FileOutputStream(tempFile);
-                     OutputStreamWriter writer = new OutputStreamWriter(fos, "UTF-8")) {
-
-                    // Convert signatures map to JSON
-                    JSONObject jsonObject = new JSONObject();
-                    for (Map.Entry<String, Set<String>> entry : signatures.entrySet()) {
-                        jsonObject.put(entry.getKey(), new JSONArray(entry.getValue()));
-                    }
-
-                    // Write and flush to ensure all data is written
-                    writer.write(jsonObject.toString());
-                    writer.flush();
-                    // Force system to sync file to disk
-                    fos.getFD().sync();
-                }
-
-                // Atomic rename operation - either completely succeeds or fails
-                if (!tempFile.renameTo(finalFile)) {
-                    MyLog.e("PackageHelper: Failed to rename temp file to final file.");
-                }
-            } finally {
-                // Always try to clean up temp file if it exists
-                if (tempFile.exists()) {
-                    tempFile.delete();
+            // Parse JSON and convert to signatures map
+            Iterator<String> keys = jsonObject.keys();
+            while (keys.hasNext()) {
+                String packageName = keys.next();
+                JSONArray signatureArray = jsonObject.getJSONArray(packageName);
+                Set<String> signatureSet = new HashSet<>();
+                for (int i = 0; i < signatureArray.length(); i++) {
+                    signatureSet.add(signatureArray.getString(i));
                 }
+                signatures.put(packageName, signatureSet);
             }
+        });
+        return signatures;
+    }
 
-        } catch (IOException | JSONException e) {
-            MyLog.e("PackageHelper: failed to save trusted signatures: " + e);
-        } finally {
-            // Always release the lock if we acquired it
-            if (lock != null) {
-                try {
-                    lock.release();
-                } catch (IOException e) {
-                    MyLog.e("PackageHelper: failed to release lock: " + e);
-                }
-            }
-            if (channel != null) {
-                try {
-                    channel.close();
-                } catch (IOException e) {
-                    MyLog.e("PackageHelper: failed to close channel: " + e);
-                }
-            }
-            if (randomAccessFile != null) {
-                try {
-                    randomAccessFile.close();
-                } catch (IOException e) {
-                    MyLog.e("PackageHelper: failed to close random access file: " + e);
-                }
+    // Merges the signatures verified by other processes into PACKAGE_SIGNATURES, entries of this
+    // process take precedence.
+    private static void readPackageSignaturesFromFile(Context context) {
+        withFileLock(context, true, () -> mergePackageSignatures(readJsonFile(context, VERIFICATION_CACHE_FILE)));
+        packageSignaturesLoaded = true;
+    }
+
+    // Saves PACKAGE_SIGNATURES merged with the signatures saved by other processes since they were
+    // read. Only trusted packages are verified so the number of entries stays small.
+    private static void savePackageSignaturesToFile(Context context) {
+        withFileLock(context, false, () -> {
+            mergePackageSignatures(readJsonFile(context, VERIFICATION_CACHE_FILE));
+            JSONObject jsonObject = new JSONObject();
+            for (Map.Entry<String, PackageSignature> entry : PACKAGE_SIGNATURES.entrySet()) {
+                PackageSignature packageSignature = entry.getValue();
+                JSONObject jsonSignature = new JSONObject();
+                jsonSignature.put("versionCode", packageSignature.versionCode);
+                jsonSignature.put("lastUpdateTime", packageSignature.lastUpdateTime);
+                jsonSignature.put("signature", packageSignature.signature);
+                jsonObject.put(entry.getKey(), jsonSignature);
             }
+            writeJsonFile(context, VERIFICATION_CACHE_FILE, VERIFICATION_CACHE_TEMP_FILE, jsonObject);
+        });
+    }
+
+    private static void mergePackageSignatures(@Nullable JSONObject jsonObject) throws JSONException {
+        if (jsonObject == null) {
+            return;
+        }
+        Iterator<String> keys = jsonObject.keys();
+        while (keys.hasNext()) {
+            String packageName = keys.next();
+            JSONObject jsonSignature = jsonObject.getJSONObject(packageName);
+            PACKAGE_SIGNATURES.putIfAbsent(packageName, new PackageSignature(
+                    jsonSignature.getLong("versionCode"),
+                    jsonSignature.getLong("lastUpdateTime"),
+                    jsonSignature.getString("signature")));
         }
     }
 
-    // Reads package signatures from file in a process-safe manner.
-    // Uses shared file locking to allow multiple readers but prevent reading during writes.
-    // Returns empty map if file doesn't exist or on any error.
+    // Runs the operation holding the lock of the signature files, either shared to allow multiple
+    // readers or exclusive for writing. Blocks until the lock can be acquired.
     @SuppressWarnings("resource") // Pre-API 19: manual resource handling required instead of try-with-resources
-    public static Map<String, Set<String>> readTrustedSignaturesFromFile(Context context) {
-        File file = new File(context.getFilesDir(), SIGNATURES_FILE);
+    private static void withFileLock(Context context, boolean shared, LockedFileOperation operation) {
         File lockFile = new File(context.getFilesDir(), LOCK_FILE);
-        Map<String, Set<String>> signatures = new HashMap<>();
 
         RandomAccessFile randomAccessFile = null;
         FileChannel channel = null;
         FileLock lock = null;
 
-        try {
-            randomAccessFile = new RandomAccessFile(lockFile, "rw");
-            channel = randomAccessFile.getChannel();
-
-            // Get shared lock - allows multiple readers but not during writes
+        synchronized (FILE_LOCK) {
             try {
-                lock = channel.lock(0L, Long.MAX_VALUE, true);  // true = shared lock
-            } catch (OverlappingFileLockException e) {
-                MyLog.e("PackageHelper: Read lock already held by this JVM: " + e);
-                return signatures;
-            }
+                randomAccessFile = new RandomAccessFile(lockFile, "rw");
+                channel = randomAccessFile.getChannel();
 
-            if (file.exists()) {
-                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                    // Read entire file into StringBuilder
-                    StringBuilder builder = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        builder.append(line);
-                    }
+                try {
+                    lock = channel.lock(0L, Long.MAX_VALUE, shared);
+                } catch (OverlappingFileLockException e) {
+                    // Lock is already held by another channel in this JVM
+                    MyLog.e("PackageHelper: Lock already held by this JVM: " + e);
+                    return;
+                }
+
+                operation.run();
 
-                    // Parse JSON and convert to signatures map
-                    JSONObject jsonObject = new JSONObject(builder.toString());
-                    Iterator<String> keys = jsonObject.keys();
-                    while (keys.hasNext()) {
-                        String packageName = keys.next();
-                        JSONArray signatureArray = jsonObject.getJSONArray(packageName);
-                        Set<String> signatureSet = new HashSet<>();
-                        for (int i = 0; i < signatureArray.length(); i++) {
-                            signatureSet.add(signatureArray.getString(i));
-                        }
-                        signatures.put(packageName, signatureSet);
+            } catch (IOException | JSONException e) {
+                MyLog.e("PackageHelper: failed to " + (shared ? "read" : "save") + " signatures: " + e);
+            } finally {
+                // Always release the lock if we acquired it
+                if (lock != null) {
+                    try {
+                        lock.release();
+                    } catch (IOException e) {
+                        MyLog.e("PackageHelper: failed to release lock: " + e);
                     }
                 }
-            }
-
-        } catch (IOException | JSONException e) {
-            MyLog.e("PackageHelper: failed to read trusted signatures: " + e);
-        } finally {
-            if (lock != null) {
-                try {
-                    lock.release();
-                } catch (IOException e) {
-                    MyLog.e("PackageHelper: failed to release lock: " + e);
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        MyLog.e("PackageHelper: failed to close channel: " + e);
+                    }
                 }
-            }
-            if (channel != null) {
-                try {
-                    channel.close();
-                } catch (IOException e) {
-                    MyLog.e("PackageHelper: failed to close channel: " + e);
+                if (randomAccessFile != null) {
+                    try {
+                        randomAccessFile.close();
+                    } catch (IOException e) {
+                        MyLog.e("PackageHelper: failed to close random access file: " + e);
+                    }
                 }
             }
-            if (randomAccessFile != null) {
-                try {
-                    randomAccessFile.close();
-                } catch (IOException e) {
-                    MyLog.e("PackageHelper: failed to close random access file: " + e);
-                }
+        }
+    }
+
+    // Must be called holding the file lock. Returns null if the file doesn't exist.
+    @Nullable
+    private static JSONObject readJsonFile(Context context, String fileName) throws IOException, JSONException {
+        File file = new File(context.getFilesDir(), fileName);
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            // Read entire file into StringBuilder
+            StringBuilder builder = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                builder.append(line);
             }
+            return new JSONObject(builder.toString());
         }
+    }
 
-        return signatures;
+    // Must be called holding the exclusive file lock.
+    // Uses a temporary file and atomic rename to ensure data consistency.
+    private static void writeJsonFile(Context context, String fileName, String tempFileName,
+                                      JSONObject jsonObject) throws IOException {
+        File tempFile = new File(context.getFilesDir(), tempFileName);
+        File finalFile = new File(context.getFilesDir(), fileName);
+        try {
+            // Write to temporary file first to ensure atomic update
+            try (FileOutputStream fos = new FileOutputStream(tempFile);
+                 OutputStreamWriter writer = new OutputStreamWriter(fos, "UTF-8")) {
+                // Write and flush to ensure all data is written
+                writer.write(jsonObject.toString());
+                writer.flush();
+                // Force system to sync file to disk
+                fos.getFD().sync();
+            }
+
+            // Atomic rename operation - either completely succeeds or fails
+            if (!tempFile.renameTo(finalFile)) {
+                MyLog.e("PackageHelper: Failed to rename temp file to final file.");
+            }
+        } finally {
+            // Always try to clean up temp file if it exists
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
     }
 
     // Load runtime trusted signatures configuration
@@ -335,6 +440,7 @@ public class PackageHelper {
                     Collections.unmodifiableSet(new HashSet<>(entry.getValue()))
             );
         }
+        expectedSignatures = mergeExpectedSignatures();
         MyLog.i("PackageHelper: loaded runtime signatures for " + signatures.size() + " packages");
     }
 }
@@ -1,5 +1,6 @@
 package com.psiphon3;
 
+import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.view.LayoutInflater;
@@ -23,12 +24,16 @@ import org.achartengine.model.XYSeries;
 import org.achartengine.renderer.XYMultipleSeriesRenderer;
 import org.achartengine.renderer.XYSeriesRenderer;
 
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
 
 public class StatisticsTabFragment extends Fragment {
+    private static final int MAX_APP_TOTALS_ROWS = 10;
+
     private CompositeDisposable compositeDisposable = new CompositeDisposable();
 
     private TextView elapsedConnectionTimeView;
@@ -38,6 +43,9 @@ public class StatisticsTabFragment extends Fragment {
     private DataTransferGraph slowReceivedGraph;
     private DataTransferGraph fastSentGraph;
     private DataTransferGraph fastReceivedGraph;
+    private View appTotalsSection;
+    private LinearLayout appTotalsView;
+    private final Map<Integer, String> appLabels = new HashMap<>();
 
     private void updateStatisticsUICallback(boolean isConnected) {
         DataTransferStats.DataTransferStatsForUI dataTransferStats = DataTransferStats.getDataTransferStatsForUI();
@@ -49,6 +57,59 @@ public class StatisticsTabFragment extends Fragment {
         slowReceivedGraph.update(dataTransferStats.getSlowReceivedSeries());
         fastSentGraph.update(dataTransferStats.getFastSentSeries());
         fastReceivedGraph.update(dataTransferStats.getFastReceivedSeries());
+        updateAppTotals(dataTransferStats.getAppTotals());
+    }
+
+    private void updateAppTotals(List<DataTransferStats.AppBytes> appTotals) {
+        if (appTotals.isEmpty()) {
+            appTotalsSection.setVisibility(View.GONE);
+            appTotalsView.removeAllViews();
+            return;
+        }
+        appTotalsSection.setVisibility(View.VISIBLE);
+        int numRows = Math.min(appTotals.size(), MAX_APP_TOTALS_ROWS);
+        while (appTotalsView.getChildCount() > numRows) {
+            appTotalsView.removeViewAt(appTotalsView.getChildCount() - 1);
+        }
+        while (appTotalsView.getChildCount() < numRows) {
+            appTotalsView.addView(getLayoutInflater().inflate(R.layout.statistics_app_row, appTotalsView, false));
+        }
+        for (int i = 0; i < numRows; i++) {
+            DataTransferStats.AppBytes appBytes = appTotals.get(i);
+            View row = appTotalsView.getChildAt(i);
+            ((TextView) row.findViewById(R.id.appLabel)).setText(getAppLabel(appBytes.uid));
+            ((TextView) row.findViewById(R.id.appBytes)).setText(getString(R.string.app_data_sent_received,
+                    Utils.byteCountToDisplaySize(appBytes.bytesSent, false),
+                    Utils.byteCountToDisplaySize(appBytes.bytesReceived, false)));
+        }
+    }
+
+    // Apps sharing a UID are shown by the label of the first package
+    private String getAppLabel(int uid) {
+        String label = appLabels.get(uid);
+        if (label != null) {
+            return label;
+        }
+        if (uid == DataTransferStats.UNKNOWN_APP_UID) {
+            label = getString(R.string.label_unknown_app);
+        } else {
+            PackageManager packageManager = requireContext().getPackageManager();
+            String[] packages = packageManager.getPackagesForUid(uid);
+            if (packages != null && packages.length > 0) {
+                try {
+                    label = packageManager.getApplicationInfo(packages[0], 0).loadLabel(packageManager).toString();
+                } catch (PackageManager.NameNotFoundException ignored) {
+                }
+            }
+            if (label == null) {
+                label = packageManager.getNameForUid(uid);
+            }
+            if (label == null) {
+                label = String.valueOf(uid);
+            }
+        }
+        appLabels.put(uid, label);
+        return label;
     }
 
     @Override
@@ -69,6 +130,8 @@ public class StatisticsTabFragment extends Fragment {
         slowReceivedGraph = new DataTransferGraph(fragmentView, R.id.slowReceivedGraph);
         fastSentGraph = new DataTransferGraph(fragmentView, R.id.fastSentGraph);
         fastReceivedGraph = new DataTransferGraph(fragmentView, R.id.fastReceivedGraph);
+        appTotalsSection = fragmentView.findViewById(R.id.appTotalsSection);
+        appTotalsView = fragmentView.findViewById(R.id.appTotals);
 
         compositeDisposable.add(((LocalizedActivities.AppCompatActivity) requireActivity())
                 .getTunnelServiceInteractor().dataStatsFlowable()
@@ -118,10 +181,10 @@ public class StatisticsTabFragment extends Fragment {
             m_chartRenderer.addSeriesRenderer(m_chartCurrentRenderer);
         }
 
-        public void update(ArrayList<Long> data) {
+        public void update(long[] data) {
             m_chartCurrentSeries.clear();
-            for (int i = 0; i < data.size(); i++) {
-                m_chartCurrentSeries.add(i, data.get(i));
+            for (int i = 0; i < data.length; i++) {
+                m_chartCurrentSeries.add(i, data[i]);
             }
             if (m_chart == null) {
                 m_chart = ChartFactory.getLineChartView(StatisticsTabFragment.this.requireActivity(), m_chartDataset, m_chartRenderer);
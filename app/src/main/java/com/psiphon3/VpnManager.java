@@ -19,7 +19,10 @@
 
 package com.psiphon3;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.net.VpnService;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
 
 import com.psiphon3.log.MyLog;
@@ -50,6 +53,10 @@ public class VpnManager {
     private static final int VPN_INTERFACE_MTU = 1500;
     private static final String VPN_INTERFACE_IPV4_NETMASK = "255.255.255.0";
     private static final int UDPGW_SERVER_PORT = 7300;
+    private static final int DNS_CACHE_SIZE = 512;
+    // Minimum level of tun2socks log lines, lines below it are dropped natively
+    // 1 = ERROR, 2 = WARNING, 3 = NOTICE, 4 = INFO, 5 = DEBUG
+    private static final int TUN2SOCKS_LOG_LEVEL = 2;
 
     // The underlying tun2socks library has global state, so we need to ensure that only one
     // instance of VpnManager is created and used at a time
@@ -60,12 +67,59 @@ public class VpnManager {
     private final AtomicBoolean isRoutingThroughTunnel;
     private Thread mTun2SocksThread;
     private WeakReference<VpnServiceBuilderProvider> vpnServiceBuilderProviderRef;
+    private volatile boolean dnsCacheEnabled = true;
+    private volatile TcpBufferProfile tcpBufferProfile = TcpBufferProfile.DEFAULT;
+
+    // lwIP TCP buffer sizes and connection limit of tun2socks. Each connection holds up to a
+    // receive window of data waiting for the SOCKS proxy and a send buffer of data waiting for
+    // the app, so the worst case native memory use is maxTcpClients * (window + send buffer).
+    // A maxTcpClients of 0 doesn't limit the number of connections.
+    public enum TcpBufferProfile {
+        // Full 64 KiB window and send buffer, up to 1024 connections
+        THROUGHPUT(65535, 65535, 1024),
+        // The sizes lwIP was built with before the profiles, no connection limit
+        DEFAULT(4 * 1460, 16384, 0),
+        // The default window, a smaller send buffer, up to 512 connections
+        LOW_MEMORY(4 * 1460, 8192, 512);
+
+        // Smallest app memory class, in MB, of devices that get the throughput profile
+        private static final int THROUGHPUT_MIN_MEMORY_CLASS = 192;
+        // Largest app memory class, in MB, of devices that get the low memory profile
+        private static final int LOW_MEMORY_MAX_MEMORY_CLASS = 64;
+
+        final int tcpWindowSize;
+        final int tcpSendBufferSize;
+        final int maxTcpClients;
+
+        TcpBufferProfile(int tcpWindowSize, int tcpSendBufferSize, int maxTcpClients) {
+            this.tcpWindowSize = tcpWindowSize;
+            this.tcpSendBufferSize = tcpSendBufferSize;
+            this.maxTcpClients = maxTcpClients;
+        }
+
+        // Pick the profile for this device from its memory class and low RAM flag
+        public static TcpBufferProfile forDevice(Context context) {
+            ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            if (activityManager == null) {
+                return DEFAULT;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && activityManager.isLowRamDevice()) {
+                return LOW_MEMORY;
+            }
+            int memoryClass = activityManager.getMemoryClass();
+            if (memoryClass >= THROUGHPUT_MIN_MEMORY_CLASS) {
+                return THROUGHPUT;
+            }
+            return memoryClass <= LOW_MEMORY_MAX_MEMORY_CLASS ? LOW_MEMORY : DEFAULT;
+        }
+    }
 
     // Initialize the tun2socks logger with the class name and method name
     // This is called once when the class is loaded
-    // The logTun2Socks method is called from the native tun2socks code to log messages
+    // The logTun2Socks method is called from the native tun2socks code with batches of log lines
     static {
         Tun2SocksJniLoader.initializeLogger(VpnManager.class.getName(), "logTun2Socks");
+        Tun2SocksJniLoader.setLogLevel(TUN2SOCKS_LOG_LEVEL);
     }
 
     private VpnManager() {
@@ -102,6 +156,38 @@ public class VpnManager {
         }
     }
 
+    // Enable or disable the tun2socks DNS response cache, takes effect the next time tun2socks starts
+    public void setDnsCacheEnabled(boolean enabled) {
+        dnsCacheEnabled = enabled;
+    }
+
+    // Returns the DNS cache counters of the running or last tun2socks run:
+    // hits, misses, insertions, evictions, oversized
+    public long[] getDnsCacheStats() {
+        return Tun2SocksJniLoader.getDnsCacheStats();
+    }
+
+    // Set the tun2socks TCP buffer profile, takes effect the next time tun2socks starts
+    public void setTcpBufferProfile(TcpBufferProfile profile) {
+        tcpBufferProfile = profile;
+    }
+
+    // Returns the TCP buffer settings and lwIP high-water marks of the running or last tun2socks
+    // run, see Tun2SocksJniLoader.getLwipStats()
+    public long[] getLwipStats() {
+        return Tun2SocksJniLoader.getLwipStats();
+    }
+
+    // Returns the tun2socks log counters, see Tun2SocksJniLoader.getLogStats()
+    public long[] getLogStats() {
+        return Tun2SocksJniLoader.getLogStats();
+    }
+
+    // Takes the tun2socks per-connection byte counts, see Tun2SocksJniLoader.getTrafficRecords()
+    public long[] getTrafficRecords() {
+        return Tun2SocksJniLoader.getTrafficRecords();
+    }
+
     // Helper class to pick and store a private address for the VPN interface
     private static class PrivateAddress {
         final String mIpAddress;
@@ -273,6 +359,7 @@ public class VpnManager {
         if (mTun2SocksThread != null) {
             return;
         }
+        final TcpBufferProfile profile = tcpBufferProfile;
         mTun2SocksThread = new Thread(() -> Tun2SocksJniLoader.runTun2Socks(
                 vpnInterfaceFileDescriptor.detachFd(),
                 vpnInterfaceMTU,
@@ -281,9 +368,13 @@ public class VpnManager {
                 null, // IPv4 only routing
                 socksServerAddress,
                 udpgwServerAddress,
-                udpgwTransparentDNS ? 1 : 0));
+                udpgwTransparentDNS ? 1 : 0,
+                dnsCacheEnabled ? DNS_CACHE_SIZE : 0,
+                profile.tcpWindowSize,
+                profile.tcpSendBufferSize,
+                profile.maxTcpClients));
         mTun2SocksThread.start();
-        MyLog.i("tun2socks started");
+        MyLog.i("tun2socks started", "tcpBufferProfile", profile);
     }
 
     private void stopTun2Socks() {
@@ -296,12 +387,37 @@ public class VpnManager {
             }
             mTun2SocksThread = null;
             MyLog.i("tun2socks stopped");
+            if (dnsCacheEnabled) {
+                long[] stats = getDnsCacheStats();
+                MyLog.i("tun2socks DNS cache", "hits", stats[0], "misses", stats[1],
+                        "insertions", stats[2], "evictions", stats[3], "oversized", stats[4]);
+            }
+            long[] lwipStats = getLwipStats();
+            MyLog.i("tun2socks TCP", "maxClients", lwipStats[2], "clientsHighWater", lwipStats[3],
+                    "refusedClients", lwipStats[4], "pcbsHighWater", lwipStats[5],
+                    "segmentsHighWater", lwipStats[6], "pbufsHighWater", lwipStats[7],
+                    "allocFailures", lwipStats[8]);
+            long[] logStats = getLogStats();
+            MyLog.i("tun2socks log", "suppressed", logStats[0], "dropped", logStats[1],
+                    "lines", logStats[2], "batches", logStats[3]);
+        }
+    }
+
+    // Log messages from tun2socks, called from native tun2socks code on its log flusher thread
+    // Each line is formatted as "LEVEL(channel): message"
+    public static void logTun2Socks(String[] lines) {
+        for (String line : lines) {
+            if (line != null) {
+                logTun2SocksLine(line);
+            }
         }
     }
 
-    // Log messages from tun2socks, called from native tun2socks code
-    public static void logTun2Socks(String level, String channel, String msg) {
-        String logMsg = "tun2socks: " + level + "(" + channel + "): " + msg;
+    private static void logTun2SocksLine(String line) {
+        String logMsg = "tun2socks: " + line;
+
+        int levelEnd = line.indexOf('(');
+        String level = levelEnd > 0 ? line.substring(0, levelEnd) : "";
 
         // These are the levels as defined in the native code
         // static char *level_names[] = { NULL, "ERROR", "WARNING", "NOTICE", "INFO", "DEBUG" };
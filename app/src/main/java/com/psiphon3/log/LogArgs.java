@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.log;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+// Compact binary encoding of the log arguments stored in the "args" column of the log table,
+// which are the format args of a status log or the flattened name/value pairs of a diagnostic
+// log.
+// The encoding is a value count followed by the values, each value being a type tag followed
+// by the value bytes. Integer and long values are stored as is, strings are stored as
+// length-prefixed UTF-8 and any other object is stored as its string representation.
+public class LogArgs {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Object[] EMPTY = new Object[0];
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+
+    // Returns null if there are no values to encode.
+    @Nullable
+    public static byte[] encode(@Nullable Object[] values) {
+        if (values == null || values.length == 0) {
+            return null;
+        }
+        // First pass to size the buffer, converting strings to bytes only once
+        Object[] encodedValues = new Object[values.length];
+        int size = 4;
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            size += 1;
+            if (value == null) {
+                encodedValues[i] = null;
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                encodedValues[i] = ((Number) value).intValue();
+                size += 4;
+            } else if (value instanceof Long) {
+                encodedValues[i] = value;
+                size += 8;
+            } else if (value instanceof Double || value instanceof Float) {
+                encodedValues[i] = ((Number) value).doubleValue();
+                size += 8;
+            } else if (value instanceof Boolean) {
+                encodedValues[i] = value;
+                size += 1;
+            } else {
+                byte[] bytes = value.toString().getBytes(UTF_8);
+                encodedValues[i] = bytes;
+                size += 4 + bytes.length;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(values.length);
+        for (Object value : encodedValues) {
+            if (value == null) {
+                buffer.put(TYPE_NULL);
+            } else if (value instanceof Integer) {
+                buffer.put(TYPE_INT);
+                buffer.putInt((Integer) value);
+            } else if (value instanceof Long) {
+                buffer.put(TYPE_LONG);
+                buffer.putLong((Long) value);
+            } else if (value instanceof Double) {
+                buffer.put(TYPE_DOUBLE);
+                buffer.putDouble((Double) value);
+            } else if (value instanceof Boolean) {
+                buffer.put(TYPE_BOOLEAN);
+                buffer.put((byte) ((Boolean) value ? 1 : 0));
+            } else {
+                byte[] bytes = (byte[]) value;
+                buffer.put(TYPE_STRING);
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+        return buffer.array();
+    }
+
+    // Returns an empty array if there are no encoded values or the encoding is not valid.
+    public static Object[] decode(@Nullable byte[] encoded) {
+        if (encoded == null || encoded.length < 4) {
+            return EMPTY;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(encoded);
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining()) {
+                return EMPTY;
+            }
+            Object[] values = new Object[count];
+            for (int i = 0; i < count; i++) {
+                byte type = buffer.get();
+                switch (type) {
+                    case TYPE_NULL:
+                        values[i] = null;
+                        break;
+                    case TYPE_STRING:
+                        int length = buffer.getInt();
+                        values[i] = new String(encoded, buffer.position(), length, UTF_8);
+                        buffer.position(buffer.position() + length);
+                        break;
+                    case TYPE_INT:
+                        values[i] = buffer.getInt();
+                        break;
+                    case TYPE_LONG:
+                        values[i] = buffer.getLong();
+                        break;
+                    case TYPE_DOUBLE:
+                        values[i] = buffer.getDouble();
+                        break;
+                    case TYPE_BOOLEAN:
+                        values[i] = buffer.get() != 0;
+                        break;
+                    default:
+                        return EMPTY;
+                }
+            }
+            return values;
+        } catch (RuntimeException e) {
+            // Truncated or otherwise malformed encoding
+            return EMPTY;
+        }
+    }
+
+    // Builds a JSON object from decoded diagnostic log name/value pairs.
+    public static JSONObject toJsonObject(Object[] nameValuePairs) {
+        JSONObject jsonObject = new JSONObject();
+        for (int i = 0; i + 1 < nameValuePairs.length; i += 2) {
+            try {
+                jsonObject.put(String.valueOf(nameValuePairs[i]),
+                        nameValuePairs[i + 1] == null ? JSONObject.NULL : nameValuePairs[i + 1]);
+            } catch (JSONException ignored) {
+                // Non-finite double value, skip the pair
+            }
+        }
+        return jsonObject;
+    }
+}
@@ -21,21 +21,33 @@ package com.psiphon3.log;
 
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
-@Entity(tableName = "log", indices = {@Index("timestamp")})
+import java.util.Arrays;
+
+@Entity(tableName = "log", indices = {@Index("timestamp"), @Index({"is_diagnostic", "timestamp"})})
 public class LogEntry {
     @PrimaryKey(autoGenerate = true)
     @ColumnInfo(name = "_ID")
     @NonNull
     private int id;
 
-    @ColumnInfo(name = "logjson")
+    // String resource name of a status log or message of a diagnostic log
+    @ColumnInfo(name = "message")
     @NonNull
-    private String logJson;
+    private String message;
+
+    // Format args of a status log or name/value pairs of a diagnostic log, encoded with LogArgs
+    @ColumnInfo(name = "args", typeAffinity = ColumnInfo.BLOB)
+    @Nullable
+    private byte[] args;
+
+    @ColumnInfo(name = "sensitivity")
+    private int sensitivity;
 
     @ColumnInfo(name = "is_diagnostic")
     private boolean isDiagnostic;
@@ -47,8 +59,10 @@ public class LogEntry {
     @ColumnInfo(name = "timestamp")
     private long timestamp;
 
-    public LogEntry(@NonNull String logJson, boolean isDiagnostic, int priority, long timestamp) {
-        this.logJson = logJson;
+    public LogEntry(@NonNull String message, @Nullable byte[] args, int sensitivity, boolean isDiagnostic, int priority, long timestamp) {
+        this.message = message;
+        this.args = args;
+        this.sensitivity = sensitivity;
         this.isDiagnostic = isDiagnostic;
         this.priority = priority;
         this.timestamp = timestamp;
@@ -63,12 +77,34 @@ public class LogEntry {
     }
 
     @NonNull
-    public String getLogJson() {
-        return logJson;
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(@NonNull String message) {
+        this.message = message;
+    }
+
+    @Nullable
+    public byte[] getArgs() {
+        return args;
+    }
+
+    public void setArgs(@Nullable byte[] args) {
+        this.args = args;
+    }
+
+    // Decoded format args of a status log or name/value pairs of a diagnostic log
+    public Object[] getDecodedArgs() {
+        return LogArgs.decode(args);
+    }
+
+    public int getSensitivity() {
+        return sensitivity;
     }
 
-    public void setLogJson(@NonNull String logJson) {
-        this.logJson = logJson;
+    public void setSensitivity(int sensitivity) {
+        this.sensitivity = sensitivity;
     }
 
     public int getPriority() {
@@ -99,7 +135,9 @@ public class LogEntry {
     public String toString() {
         return "LogEntry{" +
                 "id=" + id +
-                ", logJson='" + logJson + '\'' +
+                ", message='" + message + '\'' +
+                ", args=" + Arrays.toString(getDecodedArgs()) +
+                ", sensitivity=" + sensitivity +
                 ", isDiagnostic=" + isDiagnostic +
                 ", priority=" + priority +
                 ", timestamp=" + timestamp +
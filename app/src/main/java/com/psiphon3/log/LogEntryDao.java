@@ -29,9 +29,6 @@ import io.reactivex.Flowable;
 
 @Dao
 public abstract class LogEntryDao {
-    @Query("SELECT COUNT(*) FROM log WHERE is_diagnostic = 0")
-    abstract Cursor getStatusLogsCount();
-
     @Query("SELECT * FROM log WHERE timestamp < :beforeDateMillis ORDER BY timestamp DESC")
     abstract Cursor getLogsBeforeDate(long beforeDateMillis);
 
@@ -41,6 +38,26 @@ public abstract class LogEntryDao {
     @Query("SELECT * FROM log WHERE is_diagnostic = 0 ORDER BY timestamp DESC LIMIT 1")
     public abstract Cursor getLastStatusLogEntry();
 
-    @Query("SELECT * FROM log WHERE is_diagnostic = 0 ORDER BY timestamp DESC LIMIT :limit OFFSET :offset")
-    public abstract Cursor getStatusLogs(int offset, int limit);
+    // Status logs are paged by (timestamp, _ID) keys, newest first, so that each page is a seek on
+    // the (is_diagnostic, timestamp) index regardless of how deep the page is. The timestamp bound
+    // is repeated outside of the OR so that the index range is bounded whether or not the SQLite
+    // version of the device derives it from the OR. The queries are constants for LogEntryDaoTest.
+    static final String NEWEST_STATUS_LOGS_QUERY = "SELECT * FROM log WHERE is_diagnostic = 0 " +
+            "ORDER BY timestamp DESC, _ID DESC LIMIT :limit";
+    static final String STATUS_LOGS_OLDER_THAN_QUERY = "SELECT * FROM log WHERE is_diagnostic = 0 AND " +
+            "timestamp <= :timestamp AND (timestamp < :timestamp OR _ID < :id) " +
+            "ORDER BY timestamp DESC, _ID DESC LIMIT :limit";
+    static final String STATUS_LOGS_NEWER_THAN_QUERY = "SELECT * FROM log WHERE is_diagnostic = 0 AND " +
+            "timestamp >= :timestamp AND (timestamp > :timestamp OR _ID > :id) " +
+            "ORDER BY timestamp ASC, _ID ASC LIMIT :limit";
+
+    @Query(NEWEST_STATUS_LOGS_QUERY)
+    public abstract Cursor getNewestStatusLogs(int limit);
+
+    @Query(STATUS_LOGS_OLDER_THAN_QUERY)
+    public abstract Cursor getStatusLogsOlderThan(long timestamp, int id, int limit);
+
+    // Returns the logs in ascending order, the closest newer log first.
+    @Query(STATUS_LOGS_NEWER_THAN_QUERY)
+    public abstract Cursor getStatusLogsNewerThan(long timestamp, int id, int limit);
 }
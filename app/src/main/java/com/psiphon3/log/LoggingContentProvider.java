@@ -24,6 +24,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.util.Log;
@@ -33,27 +34,39 @@ import androidx.annotation.Nullable;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.psiphon3.BuildConfig;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.Executors;
 
 public class LoggingContentProvider extends ContentProvider {
+    private static final String TAG = LoggingContentProvider.class.getSimpleName();
 
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + "." + LoggingContentProvider.class.getSimpleName();
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
-    private static final int STATUS_LOGS = 1;
-    private static final int STATUS_LOGS_COUNT = 2;
+    private static final int STATUS_LOGS_NEWEST = 1;
+    private static final int STATUS_LOGS_OLDER = 2;
     private static final int DELETE_LOGS_BEFORE = 3;
     private static final int STATUS_LOG_LAST = 4;
     private static final int ALL_LOGS_BEFORE = 5;
+    private static final int STATUS_LOGS_NEWER = 6;
 
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
-        sUriMatcher.addURI(AUTHORITY, "status/offset/#/limit/#", STATUS_LOGS);
-        sUriMatcher.addURI(AUTHORITY, "status/count", STATUS_LOGS_COUNT);
+        sUriMatcher.addURI(AUTHORITY, "status/limit/#", STATUS_LOGS_NEWEST);
+        sUriMatcher.addURI(AUTHORITY, "status/older/#/#/limit/#", STATUS_LOGS_OLDER);
+        sUriMatcher.addURI(AUTHORITY, "status/newer/#/#/limit/#", STATUS_LOGS_NEWER);
         sUriMatcher.addURI(AUTHORITY, "delete/#", DELETE_LOGS_BEFORE);
         sUriMatcher.addURI(AUTHORITY, "status/last", STATUS_LOG_LAST);
         sUriMatcher.addURI(AUTHORITY, "all/#", ALL_LOGS_BEFORE);
@@ -61,17 +74,21 @@ public class LoggingContentProvider extends ContentProvider {
 
     public static LogEntry convertRows(Cursor cursor) {
         final int cursorIndexOfId = cursor.getColumnIndexOrThrow("_ID");
-        final int cursorIndexOfLogJson = cursor.getColumnIndexOrThrow("logjson");
+        final int cursorIndexOfMessage = cursor.getColumnIndexOrThrow("message");
+        final int cursorIndexOfArgs = cursor.getColumnIndexOrThrow("args");
+        final int cursorIndexOfSensitivity = cursor.getColumnIndexOrThrow("sensitivity");
         final int cursorIndexOfIsDiagnostic = cursor.getColumnIndexOrThrow("is_diagnostic");
         final int cursorIndexOfPriority = cursor.getColumnIndexOrThrow("priority");
         final int cursorIndexOfTimestamp = cursor.getColumnIndexOrThrow("timestamp");
 
-        final String tmpLogJson = cursor.getString(cursorIndexOfLogJson);
+        final String tmpMessage = cursor.getString(cursorIndexOfMessage);
+        final byte[] tmpArgs = cursor.isNull(cursorIndexOfArgs) ? null : cursor.getBlob(cursorIndexOfArgs);
+        final int tmpSensitivity = cursor.getInt(cursorIndexOfSensitivity);
         final boolean tmpIsDiagnostic = cursor.getInt(cursorIndexOfIsDiagnostic) != 0;
         final int tmpPriority = cursor.getInt(cursorIndexOfPriority);
         final long tmpTimestamp = cursor.getLong(cursorIndexOfTimestamp);
 
-        final LogEntry logEntry = new LogEntry(tmpLogJson, tmpIsDiagnostic, tmpPriority, tmpTimestamp);
+        final LogEntry logEntry = new LogEntry(tmpMessage, tmpArgs, tmpSensitivity, tmpIsDiagnostic, tmpPriority, tmpTimestamp);
 
         final int tmpId = cursor.getInt(cursorIndexOfId);
         logEntry.setId(tmpId);
@@ -90,14 +107,20 @@ public class LoggingContentProvider extends ContentProvider {
                         @Nullable String[] selectionArgs, @Nullable String sortOrder) {
         int match = sUriMatcher.match(uri);
 
+        List<String> pathSegments = uri.getPathSegments();
         switch (match) {
-            case STATUS_LOGS_COUNT:
-                return getCount();
+            case STATUS_LOGS_NEWEST:
+                return getNewestStatusLogs(Integer.parseInt(pathSegments.get(2)));
+
+            case STATUS_LOGS_OLDER:
+                return getStatusLogsOlderThan(Long.parseLong(pathSegments.get(2)),
+                        Integer.parseInt(pathSegments.get(3)),
+                        Integer.parseInt(pathSegments.get(5)));
 
-            case STATUS_LOGS:
-                int offset = Integer.parseInt(uri.getPathSegments().get(2));
-                int limit = Integer.parseInt(uri.getPathSegments().get(4));
-                return getStatusLogs(offset, limit);
+            case STATUS_LOGS_NEWER:
+                return getStatusLogsNewerThan(Long.parseLong(pathSegments.get(2)),
+                        Integer.parseInt(pathSegments.get(3)),
+                        Integer.parseInt(pathSegments.get(5)));
 
             case STATUS_LOG_LAST:
                 return getLastStatusLogEntry();
@@ -134,6 +157,45 @@ public class LoggingContentProvider extends ContentProvider {
         return uri;
     }
 
+    // Inserts all rows in a single transaction and sends a single change notification if any of
+    // the rows is a status log. Runs on the calling thread so that the returned count is the real
+    // result, MyLog calls it from its executor and retries a batch that wasn't inserted. Either
+    // all rows are inserted or none, so a retried batch can't add duplicates.
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final Context context = getContext();
+        if (context == null) {
+            throw new IllegalArgumentException("Invalid arguments for bulk insert");
+        }
+        LoggingRoomDatabase db = LoggingRoomDatabase.getDatabase(context.getApplicationContext());
+        boolean hasStatusLogs = false;
+        try {
+            SupportSQLiteDatabase writableDatabase = db.getOpenHelper().getWritableDatabase();
+            writableDatabase.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    if (writableDatabase.insert("log", SQLiteDatabase.CONFLICT_NONE, value) == -1) {
+                        throw new SQLException("Failed to insert log row");
+                    }
+                    if (!value.getAsBoolean("is_diagnostic")) {
+                        hasStatusLogs = true;
+                    }
+                }
+                writableDatabase.setTransactionSuccessful();
+            } finally {
+                writableDatabase.endTransaction();
+            }
+        } catch (SQLException e) {
+            // Not passed on, a binder call can't carry it to another process
+            Log.e(TAG, "bulkInsert failed: " + e);
+            return 0;
+        }
+        if (hasStatusLogs) {
+            context.getContentResolver().notifyChange(uri, null);
+        }
+        return values.length;
+    }
+
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
         final Context context = getContext();
@@ -161,24 +223,34 @@ public class LoggingContentProvider extends ContentProvider {
         throw new UnsupportedOperationException();
     }
 
-    private Cursor getStatusLogs(int offset, int limit) {
+    private Cursor getNewestStatusLogs(int limit) {
         final Context context = getContext();
         if (context == null) {
             return null;
         }
         LoggingRoomDatabase db =
                 LoggingRoomDatabase.getDatabase(context.getApplicationContext());
-        return db.getStatusLogs(offset, limit);
+        return db.getNewestStatusLogs(limit);
     }
 
-    private Cursor getCount() {
+    private Cursor getStatusLogsOlderThan(long timestamp, int id, int limit) {
         final Context context = getContext();
         if (context == null) {
             return null;
         }
         LoggingRoomDatabase db =
                 LoggingRoomDatabase.getDatabase(context.getApplicationContext());
-        return db.getStatusLogsCount();
+        return db.getStatusLogsOlderThan(timestamp, id, limit);
+    }
+
+    private Cursor getStatusLogsNewerThan(long timestamp, int id, int limit) {
+        final Context context = getContext();
+        if (context == null) {
+            return null;
+        }
+        LoggingRoomDatabase db =
+                LoggingRoomDatabase.getDatabase(context.getApplicationContext());
+        return db.getStatusLogsNewerThan(timestamp, id, limit);
     }
 
     private Cursor getLastStatusLogEntry() {
@@ -201,16 +273,86 @@ public class LoggingContentProvider extends ContentProvider {
         return db.getLogsBeforeDate(beforeMillis);
     }
 
-    @Database(entities = {LogEntry.class,}, version = 3, exportSchema = false)
+    @Database(entities = {LogEntry.class,}, version = 5, exportSchema = false)
     public abstract static class LoggingRoomDatabase extends RoomDatabase {
         private static volatile LoggingRoomDatabase INSTANCE;
 
+        // Version 4 replaces the per-row JSON "logjson" column with typed "message",
+        // "sensitivity" and binary "args" columns. Existing rows are converted once here.
+        static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+            @Override
+            public void migrate(@NonNull SupportSQLiteDatabase database) {
+                database.execSQL("CREATE TABLE IF NOT EXISTS `log_new` (" +
+                        "`_ID` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                        "`message` TEXT NOT NULL, " +
+                        "`args` BLOB, " +
+                        "`sensitivity` INTEGER NOT NULL, " +
+                        "`is_diagnostic` INTEGER NOT NULL, " +
+                        "`priority` INTEGER NOT NULL, " +
+                        "`timestamp` INTEGER NOT NULL)");
+                try (Cursor cursor = database.query("SELECT `_ID`, `logjson`, `is_diagnostic`, `priority`, `timestamp` FROM `log`")) {
+                    ContentValues values = new ContentValues();
+                    while (cursor.moveToNext()) {
+                        boolean isDiagnostic = cursor.getInt(2) != 0;
+                        values.clear();
+                        values.put("_ID", cursor.getInt(0));
+                        values.put("is_diagnostic", isDiagnostic);
+                        values.put("priority", cursor.getInt(3));
+                        values.put("timestamp", cursor.getLong(4));
+                        try {
+                            JSONObject logJson = new JSONObject(cursor.getString(1));
+                            if (isDiagnostic) {
+                                List<Object> nameValuePairs = new ArrayList<>();
+                                JSONObject data = logJson.optJSONObject("data");
+                                if (data != null) {
+                                    Iterator<String> keys = data.keys();
+                                    while (keys.hasNext()) {
+                                        String key = keys.next();
+                                        nameValuePairs.add(key);
+                                        nameValuePairs.add(data.isNull(key) ? null : data.get(key));
+                                    }
+                                }
+                                values.put("message", logJson.optString("msg"));
+                                values.put("args", LogArgs.encode(nameValuePairs.toArray()));
+                                values.put("sensitivity", 0);
+                            } else {
+                                JSONArray formatArgsJsonArray = logJson.optJSONArray("formatArgs");
+                                Object[] formatArgs = new Object[formatArgsJsonArray == null ? 0 : formatArgsJsonArray.length()];
+                                for (int i = 0; i < formatArgs.length; i++) {
+                                    formatArgs[i] = formatArgsJsonArray.get(i);
+                                }
+                                values.put("message", logJson.getString("stringResourceName"));
+                                values.put("args", LogArgs.encode(formatArgs));
+                                values.put("sensitivity", logJson.optInt("sensitivity", 0));
+                            }
+                        } catch (JSONException e) {
+                            // Skip malformed rows
+                            continue;
+                        }
+                        database.insert("log_new", SQLiteDatabase.CONFLICT_NONE, values);
+                    }
+                }
+                database.execSQL("DROP TABLE `log`");
+                database.execSQL("ALTER TABLE `log_new` RENAME TO `log`");
+                database.execSQL("CREATE INDEX IF NOT EXISTS `index_log_timestamp` ON `log` (`timestamp`)");
+            }
+        };
+
+        // Version 5 adds the (is_diagnostic, timestamp) index used for status logs paging.
+        static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+            @Override
+            public void migrate(@NonNull SupportSQLiteDatabase database) {
+                database.execSQL("CREATE INDEX IF NOT EXISTS `index_log_is_diagnostic_timestamp` ON `log` (`is_diagnostic`, `timestamp`)");
+            }
+        };
+
         private static LoggingRoomDatabase getDatabase(final Context context) {
             if (INSTANCE == null) {
                 synchronized (LoggingRoomDatabase.class) {
                     if (INSTANCE == null) {
                         INSTANCE = Room.databaseBuilder(context.getApplicationContext(),
                                 LoggingRoomDatabase.class, "loggingprovider.db")
+                                .addMigrations(MIGRATION_3_4, MIGRATION_4_5)
                                 // Here we are migrating from plain SQLiteOpenHelper to Room; we are
                                 // not providing migration strategy, because in the previous
                                 // version(#2) the logs table is fully truncated every time the app
@@ -238,12 +380,16 @@ public class LoggingContentProvider extends ContentProvider {
             return logEntryDao().getLogsBeforeDate(beforeDateMills);
         }
 
-        public Cursor getStatusLogsCount() {
-            return logEntryDao().getStatusLogsCount();
+        public Cursor getNewestStatusLogs(int limit) {
+            return logEntryDao().getNewestStatusLogs(limit);
+        }
+
+        public Cursor getStatusLogsOlderThan(long timestamp, int id, int limit) {
+            return logEntryDao().getStatusLogsOlderThan(timestamp, id, limit);
         }
 
-        public Cursor getStatusLogs(int offset, int limit) {
-            return logEntryDao().getStatusLogs(offset, limit);
+        public Cursor getStatusLogsNewerThan(long timestamp, int id, int limit) {
+            return logEntryDao().getStatusLogsNewerThan(timestamp, id, limit);
         }
     }
 }
@@ -25,13 +25,13 @@ import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.paging.DataSource;
-import androidx.paging.PositionalDataSource;
+import androidx.paging.ItemKeyedDataSource;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry> {
+public class LogsDataSourceFactory extends DataSource.Factory<LogsDataSourceFactory.Key, LogEntry> {
     private final ContentResolver contentResolver;
     private LogsDataSource dataSource;
 
@@ -41,7 +41,7 @@ public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry>
 
     @NonNull
     @Override
-    public DataSource<Integer, LogEntry> create() {
+    public DataSource<Key, LogEntry> create() {
         dataSource = new LogsDataSource(contentResolver);
         return dataSource;
     }
@@ -52,7 +52,22 @@ public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry>
         }
     }
 
-    private static class LogsDataSource extends PositionalDataSource<LogEntry> {
+    // Status logs are ordered newest first by timestamp and then by row ID, which breaks ties
+    // between logs with the same timestamp.
+    public static class Key {
+        final long timestamp;
+        final int id;
+
+        Key(long timestamp, int id) {
+            this.timestamp = timestamp;
+            this.id = id;
+        }
+    }
+
+    // Loads pages relative to the key of an already loaded log instead of by position, so a page
+    // deep in the list costs the same as the first one. When the source is invalidated by a new
+    // log the list reloads from the last key and only the newer logs are loaded before it.
+    private static class LogsDataSource extends ItemKeyedDataSource<Key, LogEntry> {
         private final ContentResolver contentResolver;
 
         public LogsDataSource(ContentResolver contentResolver) {
@@ -60,46 +75,51 @@ public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry>
         }
 
         @Override
-        public void loadInitial(@NonNull LoadInitialParams params, @NonNull LoadInitialCallback<LogEntry> callback) {
-            int firstLoadPosition = 0;
-            int firstLoadSize = 0;
-            int totalCount = getStatusLogsCount();
-
-            if (totalCount != 0) {
-                firstLoadPosition = computeInitialLoadPosition(params, totalCount);
-                firstLoadSize = computeInitialLoadSize(params, firstLoadPosition, totalCount);
+        public void loadInitial(@NonNull LoadInitialParams<Key> params, @NonNull LoadInitialCallback<LogEntry> callback) {
+            Key key = params.requestedInitialKey;
+            Uri uri;
+            if (key == null) {
+                uri = LoggingContentProvider.CONTENT_URI.buildUpon()
+                        .appendPath("status")
+                        .appendPath("limit")
+                        .appendPath(String.valueOf(params.requestedLoadSize))
+                        .build();
+            } else {
+                // Start at the requested key, inclusive
+                uri = buildStatusLogsUri("older", new Key(key.timestamp, key.id + 1), params.requestedLoadSize);
             }
-            callback.onResult(getStatusLogs(firstLoadPosition, firstLoadSize), firstLoadPosition, totalCount);
+            callback.onResult(getStatusLogs(uri, false));
         }
 
-        private int getStatusLogsCount() {
-            int count = 0;
-            Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
-                    .appendPath("status")
-                    .appendPath("count")
-                    .build();
+        @Override
+        public void loadAfter(@NonNull LoadParams<Key> params, @NonNull LoadCallback<LogEntry> callback) {
+            callback.onResult(getStatusLogs(buildStatusLogsUri("older", params.key, params.requestedLoadSize), false));
+        }
 
-            try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
-                if (cursor != null && cursor.moveToFirst()) {
-                    count = cursor.getInt(0);
-                }
-            }
-            return count;
+        @Override
+        public void loadBefore(@NonNull LoadParams<Key> params, @NonNull LoadCallback<LogEntry> callback) {
+            // Newer logs are returned closest first, reverse them to keep the list order
+            callback.onResult(getStatusLogs(buildStatusLogsUri("newer", params.key, params.requestedLoadSize), true));
         }
 
+        @NonNull
         @Override
-        public void loadRange(@NonNull LoadRangeParams params, @NonNull LoadRangeCallback<LogEntry> callback) {
-            callback.onResult(getStatusLogs(params.startPosition, params.loadSize));
+        public Key getKey(@NonNull LogEntry item) {
+            return new Key(item.getTimestamp(), item.getId());
         }
 
-        private List<LogEntry> getStatusLogs(int offset, int limit) {
-            Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
+        private static Uri buildStatusLogsUri(String direction, Key key, int limit) {
+            return LoggingContentProvider.CONTENT_URI.buildUpon()
                     .appendPath("status")
-                    .appendPath("offset")
-                    .appendPath(String.valueOf(offset))
+                    .appendPath(direction)
+                    .appendPath(String.valueOf(key.timestamp))
+                    .appendPath(String.valueOf(key.id))
                     .appendPath("limit")
                     .appendPath(String.valueOf(limit))
                     .build();
+        }
+
+        private List<LogEntry> getStatusLogs(Uri uri, boolean reverse) {
             try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
                 if (cursor == null) {
                     return Collections.emptyList();
@@ -109,6 +129,9 @@ public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry>
                     final LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
                     logEntryList.add(logEntry);
                 }
+                if (reverse) {
+                    Collections.reverse(logEntryList);
+                }
                 return logEntryList;
             }
         }
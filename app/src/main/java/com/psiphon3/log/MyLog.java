@@ -28,23 +28,27 @@ import androidx.annotation.StringRes;
 
 import com.psiphon3.BuildConfig;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MyLog {
     private static final String TAG = MyLog.class.getSimpleName();
     private static volatile Context applicationContext;
     private static final AtomicBoolean isShutdown = new AtomicBoolean(false);
-    private static final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private static final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
     private static final AtomicBoolean isInitialized = new AtomicBoolean(false);
     private static final Object initLock = new Object();
 
@@ -58,6 +62,35 @@ public class MyLog {
     private static final int FAILURE_THRESHOLD = 10;
     private static final long RESET_INTERVAL_MS = 30000; // 30 seconds
 
+    // Batching config
+    // Log rows are queued and written to the provider in batches, each batch in a single
+    // transaction with a single change notification.
+    // Only ERROR logs may use the queue beyond QUEUE_CAPACITY, up to ERROR_HEADROOM more rows.
+    // When the queue is full, a new non-ERROR log replaces the oldest queued non-ERROR
+    // diagnostic log, so status logs shown to the user are kept over diagnostics. It is dropped
+    // if there is no such diagnostic log.
+    private static final int QUEUE_CAPACITY = 2000;
+    private static final int ERROR_HEADROOM = 500;
+    private static final int BATCH_SIZE = 100;
+    private static final long BATCH_DELAY_MS = 250;
+    private static final BlockingQueue<ContentValues> pendingLogs = new LinkedBlockingQueue<>(QUEUE_CAPACITY + ERROR_HEADROOM);
+    private static final AtomicBoolean isFlushScheduled = new AtomicBoolean(false);
+    // Set while a flush of a full batch is queued on the executor but has not started yet
+    private static final AtomicBoolean isBatchFlushQueued = new AtomicBoolean(false);
+
+    // Queue stats, reported as a diagnostic log when logs were dropped or retried
+    private static final long STATS_REPORT_INTERVAL_MS = 60000;
+    private static final AtomicLong enqueuedCount = new AtomicLong();
+    private static final AtomicLong droppedCount = new AtomicLong();
+    private static final AtomicLong retriedCount = new AtomicLong();
+    private static final AtomicLong insertedCount = new AtomicLong();
+    private static final AtomicLong totalLatencyMs = new AtomicLong();
+    private static final AtomicLong maxLatencyMs = new AtomicLong();
+    // Only accessed on the executor thread
+    private static long lastReportedDroppedCount;
+    private static long lastReportedRetriedCount;
+    private static long lastStatsReportTime;
+
     /**
      * Used to indicate the sensitivity level of the log. This will affect
      * log handling in some situations (like sending as diagnostic info).
@@ -112,6 +145,21 @@ public class MyLog {
         }
     }
 
+    // Returns the queue counters of this process as name value pairs for diagnostic logs,
+    // latencies are measured from the log timestamp to the end of the insert
+    public static Object[] getQueueStats() {
+        long inserted = insertedCount.get();
+        return new Object[]{
+                "enqueued", enqueuedCount.get(),
+                "dropped", droppedCount.get(),
+                "retried", retriedCount.get(),
+                "inserted", inserted,
+                "queued", pendingLogs.size(),
+                "avgLatencyMs", inserted == 0 ? 0 : totalLatencyMs.get() / inserted,
+                "maxLatencyMs", maxLatencyMs.get(),
+        };
+    }
+
     // Status log with priority Log.VERBOSE
     // Displayed to the user and included in feedback if the user consents
     public static void v(@StringRes int resId, int sensitivity, Object... formatArgs) {
@@ -177,48 +225,18 @@ public class MyLog {
             }
         }
 
-        try {
-            JSONObject logJsonObject = new JSONObject();
-
-            String stringResourceName = context.getResources().getResourceName(resId);
-            logJsonObject.put("stringResourceName", stringResourceName);
-
-            logJsonObject.put("sensitivity", sensitivity);
-
-            JSONArray formatArgsJsonArray = new JSONArray();
-            for (Object arg : formatArgs) {
-                formatArgsJsonArray.put(arg);
-            }
-
-            logJsonObject.put("formatArgs", formatArgsJsonArray.length() == 0 ?
-                    JSONObject.NULL : formatArgsJsonArray);
-
-            storeLog(logJsonObject.toString(), false, priority, timestamp.getTime());
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to create JSON log object: " + e.getMessage());
-        }
+        String stringResourceName = context.getResources().getResourceName(resId);
+        storeLog(stringResourceName, LogArgs.encode(formatArgs), sensitivity, false, priority, timestamp.getTime());
     }
 
     private static void storeDiagnosticLog(String msg, Object[] nameValuePairs, int priority, Date timestamp) {
         if (nameValuePairs.length % 2 != 0) {
             throw new IllegalArgumentException("Number of arguments in nameValuePairs must divide by 2.");
         }
-        JSONObject logJsonObject = new JSONObject();
-        JSONObject data = new JSONObject();
-        try {
-            for (int i = 0; i < nameValuePairs.length / 2; i++) {
-                data.put(nameValuePairs[i * 2].toString(), nameValuePairs[i * 2 + 1]);
-            }
-            logJsonObject.put("msg", msg);
-            logJsonObject.put("data", data);
-
-            storeLog(logJsonObject.toString(), true, priority, timestamp.getTime());
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to create diagnostic JSON log object: " + e.getMessage());
-        }
+        storeLog(msg, LogArgs.encode(nameValuePairs), 0, true, priority, timestamp.getTime());
     }
 
-    private static void storeLog(String logjson, boolean isDiagnostic, int priority, long timestamp) {
+    private static void storeLog(String message, byte[] args, int sensitivity, boolean isDiagnostic, int priority, long timestamp) {
         // Capture context and check initialization state
         final Context context;
         synchronized (initLock) {
@@ -232,40 +250,141 @@ public class MyLog {
         }
 
         ContentValues values = new ContentValues();
-        values.put("logjson", logjson);
+        values.put("message", message);
+        values.put("args", args);
+        values.put("sensitivity", sensitivity);
         values.put("is_diagnostic", isDiagnostic);
         values.put("priority", priority);
         values.put("timestamp", timestamp);
 
-        executorService.execute(() -> insertWithRetry(context, LoggingContentProvider.CONTENT_URI, values, priority, 0));
+        enqueueLog(context, values);
 
         if (BuildConfig.DEBUG) {
             if (isDiagnostic) {
-                Log.println(priority, TAG, logjson.replaceAll("\\\\", ""));
+                Log.println(priority, TAG, getDiagnosticLogMessageForDisplay(message, LogArgs.decode(args)));
             } else {
-                Log.println(priority, TAG, getStatusLogMessageForDisplay(logjson, context));
+                Log.println(priority, TAG, getStatusLogMessageForDisplay(message, LogArgs.decode(args), context));
             }
         }
     }
 
-    private static void insertWithRetry(Context context, Uri uri, ContentValues values, int priority, int attempt) {
+    private static void enqueueLog(Context context, ContentValues values) {
+        if (!offerLog(values)) {
+            // The queue is full, drop the log but make sure ERROR logs still get to logcat
+            droppedCount.incrementAndGet();
+            logErrorsToLogcat(new ContentValues[]{values});
+            return;
+        }
+        enqueuedCount.incrementAndGet();
+        try {
+            if (pendingLogs.size() >= BATCH_SIZE) {
+                // Enough rows for a full batch, write them now. One queued flush drains
+                // everything, so don't queue another until it has started.
+                if (isBatchFlushQueued.compareAndSet(false, true)) {
+                    executorService.execute(() -> {
+                        isBatchFlushQueued.set(false);
+                        flushPendingLogs(context);
+                    });
+                }
+            } else if (isFlushScheduled.compareAndSet(false, true)) {
+                executorService.schedule(() -> flushPendingLogs(context), BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException ignored) {
+            // Logger has been shut down
+        }
+    }
+
+    private static boolean offerLog(ContentValues values) {
+        if (isError(values)) {
+            // May use the headroom
+            return pendingLogs.offer(values);
+        }
+        // Check and offer under the lock so concurrent producers can't both see room below
+        // QUEUE_CAPACITY and push past it into the ERROR headroom
+        synchronized (pendingLogs) {
+            if (pendingLogs.size() >= QUEUE_CAPACITY) {
+                if (!removeOldestDiagnostic()) {
+                    return false;
+                }
+                droppedCount.incrementAndGet();
+            }
+            return pendingLogs.offer(values);
+        }
+    }
+
+    // The oldest diagnostics are near the head, so this rarely walks far
+    private static boolean removeOldestDiagnostic() {
+        for (Iterator<ContentValues> it = pendingLogs.iterator(); it.hasNext(); ) {
+            ContentValues queued = it.next();
+            if (!isError(queued) && Boolean.TRUE.equals(queued.getAsBoolean("is_diagnostic"))) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isError(ContentValues values) {
+        Integer priority = values.getAsInteger("priority");
+        return priority != null && priority >= Log.ERROR;
+    }
+
+    // Drains the pending logs queue and writes the rows in batches of up to BATCH_SIZE.
+    // Always runs on the executor thread.
+    private static void flushPendingLogs(Context context) {
+        // Clear the flag before draining so that a log enqueued after the last poll
+        // schedules another flush.
+        isFlushScheduled.set(false);
+        List<ContentValues> batch = new ArrayList<>(BATCH_SIZE);
+        while (pendingLogs.drainTo(batch, BATCH_SIZE) > 0) {
+            insertWithRetry(context, LoggingContentProvider.CONTENT_URI,
+                    batch.toArray(new ContentValues[0]), 0);
+            batch.clear();
+        }
+        reportQueueStats();
+    }
+
+    // Logs the queue stats if logs were dropped or retried since the last report, at most once
+    // per STATS_REPORT_INTERVAL_MS so the report can't feed a log storm.
+    // Always runs on the executor thread.
+    private static void reportQueueStats() {
+        long dropped = droppedCount.get();
+        long retried = retriedCount.get();
+        if (dropped == lastReportedDroppedCount && retried == lastReportedRetriedCount) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastStatsReportTime < STATS_REPORT_INTERVAL_MS) {
+            return;
+        }
+        lastReportedDroppedCount = dropped;
+        lastReportedRetriedCount = retried;
+        lastStatsReportTime = now;
+        try {
+            storeDiagnosticLog("MyLog queue stats", getQueueStats(), Log.WARN, new Date(now));
+        } catch (IllegalStateException ignored) {
+            // Logger has been shut down
+        }
+    }
+
+    private static void insertWithRetry(Context context, Uri uri, ContentValues[] values, int attempt) {
         // If the circuit is currently open, log to logcat and return
         if (circuitOpen.get()) {
-            if (priority >= Log.ERROR) {
-                Log.e(TAG, values.getAsString("logjson"));
-            }
+            logErrorsToLogcat(values);
             return;
         }
 
         try {
-            // Will return uri on success or throw on failure
-            Uri result = context.getContentResolver().insert(uri, values);
+            // Returns the number of inserted rows, 0 if the insert failed, or throws if the
+            // provider is unavailable
+            int result = context.getContentResolver().bulkInsert(uri, values);
 
-            if (result == null) {
-                throw new IllegalStateException("Insert returned null result");
+            if (result != values.length) {
+                throw new IllegalStateException("Bulk insert returned " + result + " rows, expected " + values.length);
             }
             // Reset failure count if successful
             failureCount.set(0);
+            recordLatency(values);
         } catch (SecurityException | IllegalArgumentException | IllegalStateException e) {
             Log.e(TAG, String.format(Locale.US, "Insert failed (attempt %d): %s",
                     attempt + 1, e.getMessage()));
@@ -275,72 +394,94 @@ public class MyLog {
             if (failureCount.incrementAndGet() >= FAILURE_THRESHOLD) {
                 circuitOpen.set(true);
                 scheduleCircuitReset();
-                if (priority >= Log.ERROR) {
-                    Log.e(TAG, values.getAsString("logjson"));
-                }
+                logErrorsToLogcat(values);
                 return;
             }
 
             // Retry if we haven't reached the max number of retries,
             // otherwise log ERROR logs to logcat
             if (attempt < MAX_RETRIES) {
-                scheduleRetry(context, uri, values, priority, attempt + 1);
-            } else if (priority >= Log.ERROR) {
-                Log.e(TAG, values.getAsString("logjson"));
+                scheduleRetry(context, uri, values, attempt + 1);
+            } else {
+                logErrorsToLogcat(values);
+            }
+        }
+    }
+
+    private static void recordLatency(ContentValues[] values) {
+        long now = System.currentTimeMillis();
+        long total = 0;
+        long max = 0;
+        for (ContentValues value : values) {
+            Long timestamp = value.getAsLong("timestamp");
+            if (timestamp != null) {
+                long latency = Math.max(0, now - timestamp);
+                total += latency;
+                max = Math.max(max, latency);
+            }
+        }
+        insertedCount.addAndGet(values.length);
+        totalLatencyMs.addAndGet(total);
+        if (max > maxLatencyMs.get()) {
+            maxLatencyMs.set(max);
+        }
+    }
+
+    private static void logErrorsToLogcat(ContentValues[] values) {
+        for (ContentValues value : values) {
+            if (isError(value)) {
+                Log.e(TAG, value.getAsString("message"));
             }
         }
     }
 
+    // The executor keeps writing other batches while the circuit is open, they go to logcat
     private static void scheduleCircuitReset() {
-        executorService.execute(() -> {
-            try {
-                Thread.sleep(RESET_INTERVAL_MS);
+        try {
+            executorService.schedule(() -> {
                 circuitOpen.set(false);
                 failureCount.set(0);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        });
+            }, RESET_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // Logger has been shut down
+        }
     }
 
-    private static void scheduleRetry(Context context, Uri uri, ContentValues values, int priority, int nextAttempt) {
+    // The executor keeps writing other batches until the retry is due
+    private static void scheduleRetry(Context context, Uri uri, ContentValues[] values, int nextAttempt) {
         long delay = RETRY_DELAYS_MS[nextAttempt - 1];
-
-        executorService.execute(() -> {
-            try {
-                Thread.sleep(delay);
-                insertWithRetry(context, uri, values, priority, nextAttempt);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                // If interrupted, make sure ERROR logs still get to logcat
-                if (priority >= Log.ERROR) {
-                    Log.e(TAG, values.getAsString("logjson"));
-                }
-            }
-        });
+        retriedCount.incrementAndGet();
+        try {
+            executorService.schedule(() -> insertWithRetry(context, uri, values, nextAttempt),
+                    delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Logger has been shut down, make sure ERROR logs still get to logcat
+            logErrorsToLogcat(values);
+        }
     }
 
-    public static String getStatusLogMessageForDisplay(String logjson, Context context) {
-        try {
-            JSONObject jsonObject = new JSONObject(logjson);
-            JSONArray formatArgsJSONArray = jsonObject.optJSONArray("formatArgs");
-            Object[] formatArgs = null;
-            if (formatArgsJSONArray != null) {
-                formatArgs = new Object[formatArgsJSONArray.length()];
-                for (int i = 0; i < formatArgsJSONArray.length(); i++) {
-                    formatArgs[i] = formatArgsJSONArray.get(i);
-                }
-            }
+    public static String getStatusLogMessageForDisplay(LogEntry logEntry, Context context) {
+        return getStatusLogMessageForDisplay(logEntry.getMessage(), logEntry.getDecodedArgs(), context);
+    }
 
-            int resourceID = context.getResources().getIdentifier(jsonObject.getString("stringResourceName"), null, null);
-            if (resourceID == 0) {
-                // Failed to convert from resource name to ID. This can happen if a
-                // string resource has been renamed since the log entry was created.
-                return "";
-            }
-            return context.getString(resourceID, formatArgs);
-        } catch (JSONException e) {
+    public static String getStatusLogMessageForDisplay(String stringResourceName, Object[] formatArgs, Context context) {
+        int resourceID = context.getResources().getIdentifier(stringResourceName, null, null);
+        if (resourceID == 0) {
+            // Failed to convert from resource name to ID. This can happen if a
+            // string resource has been renamed since the log entry was created.
             return "";
         }
+        return context.getString(resourceID, formatArgs);
+    }
+
+    public static String getDiagnosticLogMessageForDisplay(LogEntry logEntry) {
+        return getDiagnosticLogMessageForDisplay(logEntry.getMessage(), logEntry.getDecodedArgs());
+    }
+
+    public static String getDiagnosticLogMessageForDisplay(String msg, Object[] nameValuePairs) {
+        if (nameValuePairs.length == 0) {
+            return msg;
+        }
+        return msg + ":" + LogArgs.toJsonObject(nameValuePairs).toString();
     }
 }
\ No newline at end of file
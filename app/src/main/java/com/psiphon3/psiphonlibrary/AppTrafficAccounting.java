@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Build;
+
+import com.psiphon3.VpnManager;
+import com.psiphon3.log.MyLog;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+// Attributes the traffic of the VPN interface to apps. tun2socks reports the bytes each of its
+// connections moved about once a second, identified by the app side socket address. This class
+// takes those reports on its own thread, resolves the socket to the UID of the app that owns it
+// and adds the bytes to the per-app totals of DataTransferStats.
+// Resolutions are cached per connection until tun2socks reports it closed, so the work per tick
+// is proportional to the number of connections that moved data, not to the number of packets.
+// On API 29+ sockets are resolved with ConnectivityManager.getConnectionOwnerUid, older versions
+// don't have it but still allow reading the socket tables in /proc/net.
+// Both only find sockets that are still open. A connection that opens and closes between two
+// ticks, e.g. a single DNS query over UDP, is gone by the time its record is taken, so its bytes
+// are counted under DataTransferStats.UNKNOWN_APP_UID.
+class AppTrafficAccounting {
+    private static final long INTERVAL_MS = 1000;
+    // Lets a resolution of a long lived connection be refreshed, in case the app socket was
+    // closed and its port reused by another app while tun2socks kept the connection, e.g. UDP
+    private static final long RESOLUTION_TTL_MS = 60 * 1000;
+
+    // Layout of the records returned by Tun2SocksJniLoader.getTrafficRecords()
+    private static final int RECORDS_HEADER_LENGTH = 1;
+    private static final int RECORD_LENGTH = 10;
+    private static final int RECORD_PROTOCOL = 0;
+    private static final int RECORD_FLAGS = 1;
+    private static final int RECORD_APP_PORT = 2;
+    private static final int RECORD_DEST_PORT = 3;
+    private static final int RECORD_APP_ADDRESS = 4;
+    private static final int RECORD_DEST_ADDRESS = 6;
+    private static final int RECORD_BYTES_UP = 8;
+    private static final int RECORD_BYTES_DOWN = 9;
+    private static final long FLAG_CLOSED = 1;
+    private static final long FLAG_IPV6 = 2;
+
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+
+    private static class Resolution {
+        final int uid;
+        final long time;
+
+        Resolution(int uid, long time) {
+            this.uid = uid;
+            this.time = time;
+        }
+    }
+
+    // Identifies a connection by the app side socket, an app may use the same port on
+    // different addresses, e.g. IPv4 and IPv6
+    private static class ConnectionKey {
+        final int protocol;
+        final boolean isIpv6;
+        final long addressHigh;
+        final long addressLow;
+        final int port;
+
+        ConnectionKey(long[] records, int offset) {
+            this((int) records[offset + RECORD_PROTOCOL],
+                    (records[offset + RECORD_FLAGS] & FLAG_IPV6) != 0,
+                    records[offset + RECORD_APP_ADDRESS],
+                    records[offset + RECORD_APP_ADDRESS + 1],
+                    (int) records[offset + RECORD_APP_PORT]);
+        }
+
+        ConnectionKey(int protocol, boolean isIpv6, long addressHigh, long addressLow, int port) {
+            this.protocol = protocol;
+            this.isIpv6 = isIpv6;
+            this.addressHigh = addressHigh;
+            this.addressLow = addressLow;
+            this.port = port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ConnectionKey)) {
+                return false;
+            }
+            ConnectionKey other = (ConnectionKey) o;
+            return protocol == other.protocol &&
+                    isIpv6 == other.isIpv6 &&
+                    addressHigh == other.addressHigh &&
+                    addressLow == other.addressLow &&
+                    port == other.port;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = protocol;
+            result = 31 * result + (isIpv6 ? 1 : 0);
+            result = 31 * result + (int) (addressHigh ^ (addressHigh >>> 32));
+            result = 31 * result + (int) (addressLow ^ (addressLow >>> 32));
+            result = 31 * result + port;
+            return result;
+        }
+    }
+
+    private final Context context;
+    private final VpnManager vpnManager;
+
+    private Worker worker;
+
+    AppTrafficAccounting(Context context, VpnManager vpnManager) {
+        this.context = context.getApplicationContext();
+        this.vpnManager = vpnManager;
+    }
+
+    synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Worker();
+        Thread thread = new Thread(worker, "AppTrafficAccounting");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Does not wait for the thread, which is called from the service main thread. The thread
+    // takes the records still queued once tun2socks has stopped, then ends on its own.
+    synchronized void stop() {
+        if (worker != null) {
+            worker.stop();
+            worker = null;
+        }
+    }
+
+    // State of one run of the accounting thread, so that a run still taking its last records
+    // doesn't share anything with the run of a restarted tunnel
+    private class Worker implements Runnable {
+        private final Map<ConnectionKey, Resolution> resolutions = new HashMap<>();
+        private long lastDroppedRecords;
+        private boolean stopped;
+
+        synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            // Records of a previous run belong to connections that are gone
+            vpnManager.getTrafficRecords();
+
+            while (true) {
+                boolean isLastTick;
+                synchronized (this) {
+                    if (!stopped) {
+                        try {
+                            wait(INTERVAL_MS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    isLastTick = stopped;
+                }
+                tick();
+                if (isLastTick) {
+                    return;
+                }
+            }
+        }
+
+        private void tick() {
+            long[] records = vpnManager.getTrafficRecords();
+            if (records == null || records.length < RECORDS_HEADER_LENGTH) {
+                return;
+            }
+
+            long droppedRecords = records[0];
+            if (droppedRecords > lastDroppedRecords) {
+                MyLog.w("AppTrafficAccounting: traffic records dropped", "count", droppedRecords - lastDroppedRecords);
+                lastDroppedRecords = droppedRecords;
+            }
+
+            int numRecords = (records.length - RECORDS_HEADER_LENGTH) / RECORD_LENGTH;
+            if (numRecords == 0) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            ProcNetSockets procNetSockets = null;
+            DataTransferStats.DataTransferStatsForService stats = DataTransferStats.getDataTransferStatsForService();
+
+            for (int i = 0; i < numRecords; i++) {
+                int offset = RECORDS_HEADER_LENGTH + i * RECORD_LENGTH;
+                ConnectionKey key = new ConnectionKey(records, offset);
+
+                Resolution resolution = resolutions.get(key);
+                if (resolution == null || now - resolution.time > RESOLUTION_TTL_MS) {
+                    int uid;
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                        uid = getConnectionOwnerUid(records, offset);
+                    } else {
+                        if (procNetSockets == null) {
+                            procNetSockets = new ProcNetSockets();
+                        }
+                        uid = procNetSockets.getUid(key);
+                    }
+                    resolution = new Resolution(uid, now);
+                    resolutions.put(key, resolution);
+                }
+
+                stats.addAppBytesTransferred(resolution.uid,
+                        records[offset + RECORD_BYTES_UP], records[offset + RECORD_BYTES_DOWN]);
+
+                if ((records[offset + RECORD_FLAGS] & FLAG_CLOSED) != 0) {
+                    resolutions.remove(key);
+                }
+            }
+        }
+    }
+
+    private int getConnectionOwnerUid(long[] records, int offset) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return DataTransferStats.UNKNOWN_APP_UID;
+        }
+        boolean isIpv6 = (records[offset + RECORD_FLAGS] & FLAG_IPV6) != 0;
+        int protocol = (int) records[offset + RECORD_PROTOCOL];
+        try {
+            InetSocketAddress appAddress = new InetSocketAddress(
+                    toInetAddress(records, offset + RECORD_APP_ADDRESS, isIpv6),
+                    (int) records[offset + RECORD_APP_PORT]);
+            InetSocketAddress destAddress = new InetSocketAddress(
+                    toInetAddress(records, offset + RECORD_DEST_ADDRESS, isIpv6),
+                    (int) records[offset + RECORD_DEST_PORT]);
+            int uid = connectivityManager.getConnectionOwnerUid(protocol, appAddress, destAddress);
+            if (uid == DataTransferStats.UNKNOWN_APP_UID && protocol == PROTOCOL_UDP) {
+                // Unconnected UDP sockets are only found by their local address
+                uid = connectivityManager.getConnectionOwnerUid(protocol, appAddress, new InetSocketAddress(0));
+            }
+            return uid;
+        } catch (UnknownHostException | SecurityException | IllegalArgumentException e) {
+            return DataTransferStats.UNKNOWN_APP_UID;
+        }
+    }
+
+    // Addresses are stored as a 128 bit big-endian number in two longs, IPv4 in the second one
+    private static InetAddress toInetAddress(long[] records, int offset, boolean isIpv6) throws UnknownHostException {
+        byte[] address = new byte[isIpv6 ? 16 : 4];
+        for (int i = 0; i < address.length; i++) {
+            int bit = (address.length - 1 - i) * 8;
+            long word = isIpv6 && bit >= 64 ? records[offset] : records[offset + 1];
+            address[i] = (byte) (word >>> (bit % 64));
+        }
+        return InetAddress.getByAddress(address);
+    }
+
+    // Owners of the sockets of the device by protocol, family, local address and port, read from
+    // /proc/net on first use and kept for one tick
+    private static class ProcNetSockets {
+        // ::ffff:0:0/96, IPv4 addresses as seen by dual stack IPv6 sockets
+        private static final long IPV4_MAPPED_PREFIX = 0xffffL << 32;
+        private static final String TCP_TIME_WAIT = "06";
+
+        private Map<ConnectionKey, Integer> tcpUids;
+        private Map<ConnectionKey, Integer> udpUids;
+
+        int getUid(ConnectionKey key) {
+            Map<ConnectionKey, Integer> uids;
+            if (key.protocol == PROTOCOL_TCP) {
+                if (tcpUids == null) {
+                    tcpUids = read(PROTOCOL_TCP, "/proc/net/tcp", "/proc/net/tcp6");
+                }
+                uids = tcpUids;
+            } else {
+                if (udpUids == null) {
+                    udpUids = read(PROTOCOL_UDP, "/proc/net/udp", "/proc/net/udp6");
+                }
+                uids = udpUids;
+            }
+            Integer uid = uids.get(key);
+            if (uid == null) {
+                // Bound to the wildcard address, e.g. an unconnected UDP socket
+                uid = uids.get(new ConnectionKey(key.protocol, key.isIpv6, 0, 0, key.port));
+            }
+            if (uid == null && !key.isIpv6) {
+                // IPv4 traffic of a dual stack IPv6 socket
+                uid = uids.get(new ConnectionKey(key.protocol, true, 0, IPV4_MAPPED_PREFIX | key.addressLow, key.port));
+                if (uid == null) {
+                    uid = uids.get(new ConnectionKey(key.protocol, true, 0, 0, key.port));
+                }
+            }
+            return uid != null ? uid : DataTransferStats.UNKNOWN_APP_UID;
+        }
+
+        private static Map<ConnectionKey, Integer> read(int protocol, String ipv4Path, String ipv6Path) {
+            Map<ConnectionKey, Integer> uids = new HashMap<>();
+            read(uids, protocol, false, ipv4Path);
+            read(uids, protocol, true, ipv6Path);
+            return uids;
+        }
+
+        // Lines look like
+        //   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode
+        //    0: 0200000A:A1B2 22D8B85D:01BB 01 00000000:00000000 00:00000000 00000000 10123        0 12345 ...
+        // IPv6 addresses are 32 hex digits in the same format.
+        private static void read(Map<ConnectionKey, Integer> uids, int protocol, boolean isIpv6, String path) {
+            int addressLength = isIpv6 ? 32 : 8;
+            try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+                // Skip the header
+                String line = reader.readLine();
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length < 8) {
+                        continue;
+                    }
+                    // Sockets in TIME_WAIT don't have an owner anymore
+                    if (protocol == PROTOCOL_TCP && TCP_TIME_WAIT.equals(fields[3])) {
+                        continue;
+                    }
+                    int portStart = fields[1].lastIndexOf(':');
+                    if (portStart != addressLength) {
+                        continue;
+                    }
+                    try {
+                        long addressHigh = isIpv6 ? parseAddressWords(fields[1], 0) : 0;
+                        long addressLow = isIpv6 ? parseAddressWords(fields[1], 16) : parseAddressWord(fields[1], 0);
+                        int port = Integer.parseInt(fields[1].substring(portStart + 1), 16);
+                        int uid = Integer.parseInt(fields[7]);
+                        uids.put(new ConnectionKey(protocol, isIpv6, addressHigh, addressLow, port), uid);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            } catch (IOException ignored) {
+                // The table is missing, e.g. no IPv6
+            }
+        }
+
+        // Two 32 bit words of an IPv6 address as the big-endian number used by the records
+        private static long parseAddressWords(String field, int start) {
+            return parseAddressWord(field, start) << 32 | parseAddressWord(field, start + 8);
+        }
+
+        // The kernel prints each 32 bit word of an address as a number in host byte order
+        private static long parseAddressWord(String field, int start) {
+            int word = (int) Long.parseLong(field.substring(start, start + 8), 16);
+            if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+                word = Integer.reverseBytes(word);
+            }
+            return word & 0xffffffffL;
+        }
+    }
+}
@@ -21,6 +21,7 @@ package com.psiphon3.psiphonlibrary;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -37,7 +38,6 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 
 import android.util.Base64;
-import android.util.Base64OutputStream;
 
 import com.fasterxml.jackson.core.Base64Variants;
 import com.fasterxml.jackson.core.JsonFactory;
@@ -137,24 +137,12 @@ public class AuthenticatedDataPackage
             }
         };
         
-        private boolean dataIsBase64;
         private OutputStream verifyOutputStream;
 
-        public VerifyingOutputStream(boolean dataIsBase64, OutputStream out, Signature signature)
+        public VerifyingOutputStream(OutputStream out, Signature signature)
         {
             super(out);
-            this.dataIsBase64 = dataIsBase64;
             this.verifyOutputStream = new SignatureOutputStream(signature);
-
-            if (this.dataIsBase64)
-            {
-                // We re-encode the data as Base64, since the signature is on Base64-encoded
-                // data (a pre-existing design). The Jackson API forces a decode before we can
-                // stream the encoded data to the signature stream, hence the re-encode.
-                // TODO: Avoid this redundant computation.
-                
-                this.verifyOutputStream = new Base64OutputStream(this.verifyOutputStream, Base64.NO_WRAP);
-            }
         }
 
         public void write(byte[] b) throws IOException
@@ -183,43 +171,294 @@ public class AuthenticatedDataPackage
         }
     }
 
-    static public void extractAndVerifyData(
-            String signaturePublicKey,
+    // Feeds the raw Base64 characters of the top level "data" string values of a JSON package
+    // to a signature verifier as the JSON parser reads the package, so the signature, which is
+    // on the Base64-encoded data, can be verified while the parser decodes the values without
+    // re-encoding the decoded data.
+    // The stream finds the values itself with a minimal scan of the JSON structure, since the
+    // parser reads ahead and doesn't report byte offsets. Only keys written as plain "data" are
+    // matched, keys with escapes are left to the caller to reject, by comparing the number of
+    // values the parser read with getSignedValueCount(). Only Base64 alphabet characters are
+    // signed: line breaks and other whitespace, which the decoder skips as well, are dropped and
+    // JSON escapes are resolved. Scanning stops at the end of the top level object.
+    static class SigningInputStream extends FilterInputStream
+    {
+        private static final int CHUNK_SIZE = 16 * 1024;
+        private static final byte[] DATA_KEY = {'d', 'a', 't', 'a'};
+
+        // Between tokens
+        private static final int STATE_TOKEN = 0;
+        // In a string that is not signed
+        private static final int STATE_STRING = 1;
+        private static final int STATE_STRING_ESCAPE = 2;
+        // In a "data" value
+        private static final int STATE_VALUE = 3;
+        private static final int STATE_VALUE_ESCAPE = 4;
+        private static final int STATE_VALUE_UNICODE_ESCAPE = 5;
+        // After the end of the top level value
+        private static final int STATE_END = 6;
+
+        private final Signature signature;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private int chunkLength = 0;
+        private int state = STATE_TOKEN;
+        private int depth = 0;
+        // The last '{', ',' or ':' at the top level, tells keys from values
+        private byte lastSeparator = 0;
+        private boolean isKey;
+        // Number of key characters read so far and whether they match DATA_KEY
+        private int keyLength;
+        private boolean keyMatches;
+        private boolean lastKeyIsData = false;
+        private int unicodeEscapeDigits;
+        private int unicodeEscapeValue;
+        private int signedValueCount = 0;
+
+        public SigningInputStream(InputStream in, Signature signature)
+        {
+            super(in);
+            this.signature = signature;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = this.in.read();
+            if (b >= 0)
+            {
+                scan((byte) b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int count = this.in.read(b, off, len);
+            for (int i = off; i < off + count; i++)
+            {
+                scan(b[i]);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            // Skipped bytes would not be signed
+            throw new IOException("skip not supported");
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        // Completes signing the values read so far. Returns false if a value was not read to
+        // its end.
+        public boolean finishSigning() throws IOException
+        {
+            flushChunk();
+            return this.state != STATE_VALUE && this.state != STATE_VALUE_ESCAPE
+                    && this.state != STATE_VALUE_UNICODE_ESCAPE;
+        }
+
+        public int getSignedValueCount()
+        {
+            return this.signedValueCount;
+        }
+
+        private void scan(byte b) throws IOException
+        {
+            switch (this.state)
+            {
+            case STATE_TOKEN:
+                scanToken(b);
+                break;
+            case STATE_STRING:
+                if (b == '"')
+                {
+                    if (this.isKey)
+                    {
+                        this.lastKeyIsData = this.keyMatches && this.keyLength == DATA_KEY.length;
+                    }
+                    this.state = STATE_TOKEN;
+                }
+                else if (b == '\\')
+                {
+                    this.keyMatches = false;
+                    this.state = STATE_STRING_ESCAPE;
+                }
+                else if (this.isKey)
+                {
+                    this.keyMatches = this.keyMatches && this.keyLength < DATA_KEY.length
+                            && b == DATA_KEY[this.keyLength];
+                    this.keyLength++;
+                }
+                break;
+            case STATE_STRING_ESCAPE:
+                // The rest of a \\u escape can't contain a quote or a backslash
+                this.state = STATE_STRING;
+                break;
+            case STATE_VALUE:
+                if (b == '"')
+                {
+                    this.state = STATE_TOKEN;
+                }
+                else if (b == '\\')
+                {
+                    this.state = STATE_VALUE_ESCAPE;
+                }
+                else
+                {
+                    signBase64Char(b);
+                }
+                break;
+            case STATE_VALUE_ESCAPE:
+                if (b == 'u')
+                {
+                    this.unicodeEscapeDigits = 0;
+                    this.unicodeEscapeValue = 0;
+                    this.state = STATE_VALUE_UNICODE_ESCAPE;
+                }
+                else
+                {
+                    // \/ is the only escape which may stand for a Base64 character, the others
+                    // are whitespace or invalid in Base64 data
+                    signBase64Char(b == '/' ? b : (byte) ' ');
+                    this.state = STATE_VALUE;
+                }
+                break;
+            case STATE_VALUE_UNICODE_ESCAPE:
+                this.unicodeEscapeValue = (this.unicodeEscapeValue << 4) + Character.digit(b, 16);
+                if (++this.unicodeEscapeDigits == 4)
+                {
+                    signBase64Char(this.unicodeEscapeValue < 0x80 ? (byte) this.unicodeEscapeValue : (byte) ' ');
+                    this.state = STATE_VALUE;
+                }
+                break;
+            default:
+                break;
+            }
+        }
+
+        private void scanToken(byte b)
+        {
+            switch (b)
+            {
+            case '"':
+                if (this.depth == 1 && this.lastSeparator == ':' && this.lastKeyIsData)
+                {
+                    this.signedValueCount++;
+                    this.state = STATE_VALUE;
+                }
+                else
+                {
+                    this.isKey = this.depth == 1 && (this.lastSeparator == '{' || this.lastSeparator == ',');
+                    this.keyLength = 0;
+                    this.keyMatches = true;
+                    this.state = STATE_STRING;
+                }
+                break;
+            case '{':
+            case '[':
+                if (++this.depth == 1)
+                {
+                    this.lastSeparator = b;
+                }
+                break;
+            case '}':
+            case ']':
+                if (--this.depth <= 0)
+                {
+                    this.state = STATE_END;
+                }
+                break;
+            case ',':
+            case ':':
+                if (this.depth == 1)
+                {
+                    this.lastSeparator = b;
+                    if (b == ',')
+                    {
+                        this.lastKeyIsData = false;
+                    }
+                }
+                break;
+            default:
+                // Whitespace, numbers and literals
+                break;
+            }
+        }
+
+        private void signBase64Char(byte b) throws IOException
+        {
+            if ((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9')
+                    || b == '+' || b == '/' || b == '=')
+            {
+                this.chunk[this.chunkLength++] = b;
+                if (this.chunkLength == CHUNK_SIZE)
+                {
+                    flushChunk();
+                }
+            }
+        }
+
+        private void flushChunk() throws IOException
+        {
+            if (this.chunkLength > 0)
+            {
+                try
+                {
+                    this.signature.update(this.chunk, 0, this.chunkLength);
+                }
+                catch (SignatureException e)
+                {
+                    throw new IOException(e);
+                }
+                this.chunkLength = 0;
+            }
+        }
+    }
+
+    // The values of a package read by readPackage()
+    static class PackageValues
+    {
+        boolean dataValueRead = false;
+        String signature = null;
+        String signingPublicKeyDigest = null;
+    }
+
+    // Reads the package, writing the "data" value to dataDestination and feeding the signed
+    // data to verifier. Closes both streams.
+    static PackageValues readPackage(
             InputStream dataPackage,
             boolean dataIsBase64,
+            Signature verifier,
             OutputStream dataDestination)
-        throws AuthenticatedDataPackageException
+        throws IOException, AuthenticatedDataPackageException
     {
-        // Authenticate remote server list as per scheme described in
-        // Psiphon/Automation/psi_ops_server_entry_auth.py
-        
-        // NOTE: this function always closes the dataPackage input stream
-        // and dataDestination output stream.
-
+        PackageValues values = new PackageValues();
+        VerifyingOutputStream verifyingOutputStream = new VerifyingOutputStream(dataDestination, verifier);
+        SigningInputStream signingInputStream = null;
         JsonParser parser = null;
-        VerifyingOutputStream verifyingOutputStream = null;
-        
+        int dataValueCount = 0;
+
         try
         {
-            boolean dataValueRead = false;
-            String signature = null;
-            String signingPublicKeyDigest = null;
-
-            // Initialize a verifier using the expected public key; this will
-            // be used while streaming the "data" value when parsing the JSON.
-            
-            byte[] publicKeyBytes = Base64.decode(signaturePublicKey, Base64.NO_WRAP);
-            java.security.spec.X509EncodedKeySpec spec = new X509EncodedKeySpec(publicKeyBytes);
-            java.security.KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            PublicKey publicKey = keyFactory.generatePublic(spec);
+            if (dataIsBase64)
+            {
+                // The raw Base64 characters are fed to the verifier by the signingInputStream
+                // as the parser reads them, so the decoded data doesn't need to be re-encoded
+                // for the verifier.
+                signingInputStream = new SigningInputStream(dataPackage, verifier);
+                dataPackage = signingInputStream;
+            }
 
-            Signature verifier = java.security.Signature.getInstance("SHA256withRSA");
-            verifier.initVerify(publicKey);
-            verifyingOutputStream = new VerifyingOutputStream(dataIsBase64, dataDestination, verifier);
-            
             // JSON parsing - using a streaming API as the "data" value is too large
             // to be loaded into memory.
-            
+
             parser = new JsonFactory().createParser(dataPackage);
 
             if (parser.nextToken() != JsonToken.START_OBJECT)
@@ -230,19 +469,19 @@ public class AuthenticatedDataPackage
             while (true)
             {
                 JsonToken token = parser.nextToken();
-                
+
                 if (token == JsonToken.END_OBJECT)
                 {
                     break;
                 }
-                else if (token != JsonToken.FIELD_NAME)                    
+                else if (token != JsonToken.FIELD_NAME)
                 {
                     throw new AuthenticatedDataPackageException();
                 }
-                
+
                 String fieldName = parser.getCurrentName();
 
-                if (parser.nextToken() != JsonToken.VALUE_STRING)                    
+                if (parser.nextToken() != JsonToken.VALUE_STRING)
                 {
                     // Forward compatibility: ignore unexpected objects and arrays
                     parser.skipChildren();
@@ -255,59 +494,105 @@ public class AuthenticatedDataPackage
                     {
                         // This value is too large to load into memory as a string. The value is
                         // decoded from base64 and written to the output stream; at the same
-                        // time, the bytes is fed into a signature verifier.
-    
-                        // NOTE: The verification is not finished here, as we require the 
+                        // time, the raw bytes are fed into a signature verifier.
+
+                        // NOTE: The verification is not finished here, as we require the
                         // "signingPublicKeyDigest" value to check which public key was used
                         // and we require the "signature" value to complete the verification.
-    
+
                         // IMPORTANT NOTE: Complete data is written to the "dataDestination"
                         // output stream *before* the signature is verified. If the caller is
                         // writing to disk, for example, it should perform a two-phase process
                         // whereby it writes to a temp file name, then renames (commits) the file
                         // after validateAndExtractData returns true.
-                        
+
                         try
                         {
-                            parser.readBinaryValue(Base64Variants.MIME, verifyingOutputStream);
+                            parser.readBinaryValue(Base64Variants.MIME, dataDestination);
                         }
                         catch (IllegalArgumentException e)
                         {
                             // Jackson throws this unchecked exception for malformed Base64
                             throw new AuthenticatedDataPackageException(e);
                         }
+                        dataValueCount++;
                     }
                     else
                     {
                         // NOTE: Jackson can only stream Base64 values
-                        
+
                         verifyingOutputStream.write(parser.getValueAsString().getBytes());
                     }
-                    
-                    // This explicit close() ensures that the Base64OutputStream in 
-                    // Base64OutputStream has flushed and output final padding *before*
-                    // the verifier.verify() call.
-                    verifyingOutputStream.close();
 
-                    dataValueRead = true;
+                    values.dataValueRead = true;
                 }
                 else if (fieldName.equals("signature"))
                 {
-                    signature = parser.getValueAsString();
+                    values.signature = parser.getValueAsString();
                 }
                 else if (fieldName.equals("signingPublicKeyDigest"))
                 {
-                    signingPublicKeyDigest = parser.getValueAsString();
+                    values.signingPublicKeyDigest = parser.getValueAsString();
                 }
                 else
                 {
                     // Forward compatibility: ignore unexpected values
                 }
             }
+
+            // The parser has read the whole top level object, so the signingInputStream has
+            // seen every value the parser read. The values must be the same ones, otherwise the
+            // signature doesn't cover the data that was written.
+            if (signingInputStream != null
+                    && (!signingInputStream.finishSigning()
+                        || signingInputStream.getSignedValueCount() != dataValueCount))
+            {
+                throw new AuthenticatedDataPackageException("Unexpected data value in authenticated data package");
+            }
+
+            return values;
+        }
+        finally
+        {
+            if (parser != null)
+            {
+                try { parser.close(); } catch (IOException e) {}
+            }
+            try { verifyingOutputStream.close(); } catch (IOException e) {}
+        }
+    }
+
+    static public void extractAndVerifyData(
+            String signaturePublicKey,
+            InputStream dataPackage,
+            boolean dataIsBase64,
+            OutputStream dataDestination)
+        throws AuthenticatedDataPackageException
+    {
+        // Authenticate remote server list as per scheme described in
+        // Psiphon/Automation/psi_ops_server_entry_auth.py
+        
+        // NOTE: this function always closes the dataPackage input stream
+        // and dataDestination output stream.
+
+        try
+        {
+            // Initialize a verifier using the expected public key; this will
+            // be used while streaming the "data" value when parsing the JSON.
+            
+            byte[] publicKeyBytes = Base64.decode(signaturePublicKey, Base64.NO_WRAP);
+            java.security.spec.X509EncodedKeySpec spec = new X509EncodedKeySpec(publicKeyBytes);
+            java.security.KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            PublicKey publicKey = keyFactory.generatePublic(spec);
+
+            Signature verifier = java.security.Signature.getInstance("SHA256withRSA");
+            verifier.initVerify(publicKey);
+
+            PackageValues values = readPackage(dataPackage, dataIsBase64, verifier, dataDestination);
             
             // Check if expected values are missing.
             
-            if (!dataValueRead || signature == null || signingPublicKeyDigest == null)
+            if (!values.dataValueRead || values.signature == null || values.signingPublicKeyDigest == null)
             {
                 MyLog.e("Missing value in authenticated data package");
                 throw new AuthenticatedDataPackageException();
@@ -318,7 +603,7 @@ public class AuthenticatedDataPackage
             MessageDigest sha2;
             sha2 = MessageDigest.getInstance("SHA256");
             String publicKeyDigest = Base64.encodeToString(sha2.digest(signaturePublicKey.getBytes()), Base64.NO_WRAP);
-            if (0 != publicKeyDigest.compareTo(signingPublicKeyDigest))
+            if (0 != publicKeyDigest.compareTo(values.signingPublicKeyDigest))
             {
                 MyLog.e("Authenticated data package signed with different public key");
                 throw new AuthenticatedDataPackageException();
@@ -327,7 +612,7 @@ public class AuthenticatedDataPackage
             // Now that we've checked the signing public key and have read the signature,
             // we can complete the verification process.
 
-            if (!verifier.verify(Base64.decode(signature, Base64.NO_WRAP)))
+            if (!verifier.verify(Base64.decode(values.signature, Base64.NO_WRAP)))
             {
                 MyLog.e("Invalid signature on authenticated data package");
                 throw new AuthenticatedDataPackageException();
@@ -359,14 +644,8 @@ public class AuthenticatedDataPackage
         }
         finally
         {
-            if (parser != null)
-            {
-                try { parser.close(); } catch (IOException e) {}
-            }            
-            if (verifyingOutputStream != null)
-            {
-                try { verifyingOutputStream.close(); } catch (IOException e) {}
-            }            
+            try { dataPackage.close(); } catch (IOException e) {}
+            try { dataDestination.close(); } catch (IOException e) {}
         }
     }
 }
@@ -19,12 +19,22 @@
 
 package com.psiphon3.psiphonlibrary;
 
-import android.os.Parcel;
-import android.os.Parcelable;
 import android.os.SystemClock;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class DataTransferStats {
+    // UID of the per-app totals of traffic that could not be attributed to an app
+    public static final int UNKNOWN_APP_UID = -1;
+
     // Singleton pattern
 
     private static DataTransferStatsForService m_dataTransferStatsForService;
@@ -49,170 +59,399 @@ public class DataTransferStats {
     }
 
     public static abstract class DataTransferStatsBase {
-        private static final long SLOW_BUCKET_PERIOD_MILLISECONDS = 5 * 60 * 1000;
-        private static final long FAST_BUCKET_PERIOD_MILLISECONDS = 1000;
-        private static final int MAX_BUCKETS = 24 * 60 / 5;
-
-        protected static class Bucket implements Parcelable {
-            public long m_bytesSent = 0;
-            public long m_bytesReceived = 0;
+        static final long SLOW_BUCKET_PERIOD_MILLISECONDS = 5 * 60 * 1000;
+        static final long FAST_BUCKET_PERIOD_MILLISECONDS = 1000;
+        static final int MAX_BUCKETS = 24 * 60 / 5;
+
+        // Layout of the stats messages sent from the service to its clients. A message is a
+        // long[] made of the header below, followed by the changed slow buckets and then the
+        // changed fast buckets. Each list of changes is a count followed by that many
+        // (position, bytes sent, bytes received) triples.
+        // A delta message applies on top of the message with the previous sequence number after
+        // shifting the series left by the header shift values. A full message replaces whatever
+        // the client had and only carries the non-empty buckets.
+        // Sequence numbers only compare within one epoch. The epoch is picked when the service
+        // process creates its stats, so a restarted service is never mistaken for a stale one.
+        static final int MESSAGE_EPOCH = 0;
+        static final int MESSAGE_SEQUENCE = 1;
+        static final int MESSAGE_IS_FULL = 2;
+        static final int MESSAGE_CONNECTED_TIME = 3;
+        static final int MESSAGE_TOTAL_BYTES_SENT = 4;
+        static final int MESSAGE_TOTAL_BYTES_RECEIVED = 5;
+        static final int MESSAGE_SLOW_SHIFT = 6;
+        static final int MESSAGE_FAST_SHIFT = 7;
+        static final int MESSAGE_HEADER_LENGTH = 8;
+        static final int MESSAGE_MAX_LENGTH = MESSAGE_HEADER_LENGTH + 2 * (1 + 3 * MAX_BUCKETS);
+
+        // The per-app totals are sent next to the stats messages as a long[] of
+        // (UID, bytes sent, bytes received) triples, always in full since there are few apps.
+        static final int APP_TOTALS_UID = 0;
+        static final int APP_TOTALS_BYTES_SENT = 1;
+        static final int APP_TOTALS_BYTES_RECEIVED = 2;
+        static final int APP_TOTALS_LENGTH = 3;
+
+        protected volatile long m_connectedTime;
 
-            protected Bucket() {
-
-            }
+        private DataTransferStatsBase() {
+        }
+    }
 
-            protected Bucket(Parcel in) {
-                m_bytesSent = in.readLong();
-                m_bytesReceived = in.readLong();
-            }
+    // Fixed size ring of byte count buckets, one bucket per period. Each slot is stamped with
+    // the absolute period index it currently counts for, so advancing time never shifts or
+    // allocates anything: a slot holding a stale stamp is simply recycled by the first writer
+    // that lands on it, and treated as empty by readers.
+    static class BucketRing {
+        // Stamp of a slot that is being recycled by a writer
+        private static final long STAMP_RECYCLING = -1;
+        // Stamp of a slot that does not hold data for any period
+        private static final long STAMP_EMPTY = -2;
+
+        private final long m_period;
+        private final AtomicLongArray m_stamps;
+        private final AtomicLongArray m_bytesSent;
+        private final AtomicLongArray m_bytesReceived;
+
+        BucketRing(long period, int size) {
+            m_period = period;
+            m_stamps = new AtomicLongArray(size);
+            m_bytesSent = new AtomicLongArray(size);
+            m_bytesReceived = new AtomicLongArray(size);
+            reset();
+        }
 
-            @Override
-            public int describeContents() {
-                return 0;
+        void reset() {
+            for (int i = 0; i < m_stamps.length(); i++) {
+                m_stamps.set(i, STAMP_EMPTY);
             }
+        }
 
-            @Override
-            public void writeToParcel(Parcel dest, int flags) {
-                dest.writeLong(m_bytesSent);
-                dest.writeLong(m_bytesReceived);
-            }
+        private int slotOf(long index) {
+            int size = m_stamps.length();
+            return (int) (((index % size) + size) % size);
+        }
 
-            public static final Creator<Bucket> CREATOR = new Creator<Bucket>() {
-                @Override
-                public Bucket createFromParcel(Parcel in) {
-                    return new Bucket(in);
+        void add(long now, long bytesSent, long bytesReceived) {
+            long index = now / m_period;
+            int slot = slotOf(index);
+            while (true) {
+                long stamp = m_stamps.get(slot);
+                if (stamp == index) {
+                    if (bytesSent != 0) {
+                        m_bytesSent.addAndGet(slot, bytesSent);
+                    }
+                    if (bytesReceived != 0) {
+                        m_bytesReceived.addAndGet(slot, bytesReceived);
+                    }
+                    return;
                 }
-
-                @Override
-                public Bucket[] newArray(int size) {
-                    return new Bucket[size];
+                if (stamp == STAMP_RECYCLING) {
+                    // Another writer is claiming this slot for the current period, retry.
+                    continue;
+                }
+                if (stamp > index) {
+                    // The slot has already moved on to a later period, drop the late update.
+                    return;
                 }
-            };
+                if (m_stamps.compareAndSet(slot, stamp, STAMP_RECYCLING)) {
+                    m_bytesSent.set(slot, 0);
+                    m_bytesReceived.set(slot, 0);
+                    m_stamps.set(slot, index);
+                }
+            }
         }
 
-        protected long m_connectedTime;
-        protected long m_totalBytesSent;
-        protected long m_totalBytesReceived;
-        protected ArrayList<Bucket> m_slowBuckets;
-        protected long m_slowBucketsLastStartTime;
-        protected ArrayList<Bucket> m_fastBuckets;
-        protected long m_fastBucketsLastStartTime;
+        // Copies the ring into the series arrays, oldest bucket first and the bucket for the
+        // current period last. Slots that are stale or are being recycled read as zero.
+        void snapshot(long now, long[] sentSeries, long[] receivedSeries) {
+            int size = m_stamps.length();
+            long newestIndex = now / m_period;
+            for (int i = 0; i < size; i++) {
+                long index = newestIndex - (size - 1) + i;
+                int slot = slotOf(index);
+                long sent = 0;
+                long received = 0;
+                if (m_stamps.get(slot) == index) {
+                    sent = m_bytesSent.get(slot);
+                    received = m_bytesReceived.get(slot);
+                    // Discard the values if the slot was recycled while we were reading it
+                    if (m_stamps.get(slot) != index) {
+                        sent = 0;
+                        received = 0;
+                    }
+                }
+                sentSeries[i] = sent;
+                receivedSeries[i] = received;
+            }
+        }
+    }
 
-        private DataTransferStatsBase() {
-            m_totalBytesSent = 0;
-            m_totalBytesReceived = 0;
+    public static class DataTransferStatsForService extends DataTransferStatsBase {
+        private final AtomicLong m_totalBytesSent = new AtomicLong();
+        private final AtomicLong m_totalBytesReceived = new AtomicLong();
+        private final BucketRing m_slowBuckets = new BucketRing(SLOW_BUCKET_PERIOD_MILLISECONDS, MAX_BUCKETS);
+        private final BucketRing m_fastBuckets = new BucketRing(FAST_BUCKET_PERIOD_MILLISECONDS, MAX_BUCKETS);
+        // Bytes sent and received by UID, guarded by itself
+        private final Map<Integer, long[]> m_appBytes = new HashMap<>();
 
+        private DataTransferStatsForService() {
             stop();
         }
 
-        public synchronized void stop() {
+        public void stop() {
             m_connectedTime = 0;
             resetBytesTransferred();
         }
 
-        protected void resetBytesTransferred() {
-            long now = SystemClock.elapsedRealtime();
-            m_slowBucketsLastStartTime = bucketStartTime(now, SLOW_BUCKET_PERIOD_MILLISECONDS);
-            m_slowBuckets = newBuckets();
-            m_fastBucketsLastStartTime = bucketStartTime(now, FAST_BUCKET_PERIOD_MILLISECONDS);
-            m_fastBuckets = newBuckets();
+        public void startSession() {
+            resetBytesTransferred();
         }
 
-        private long bucketStartTime(long now, long period) {
-            return period * (now / period);
+        public void startConnected() {
+            m_connectedTime = SystemClock.elapsedRealtime();
         }
 
-        private ArrayList<Bucket> newBuckets() {
-            ArrayList<Bucket> buckets = new ArrayList<>();
-            for (int i = 0; i < MAX_BUCKETS; i++) {
-                buckets.add(new Bucket());
+        private void resetBytesTransferred() {
+            m_slowBuckets.reset();
+            m_fastBuckets.reset();
+            synchronized (m_appBytes) {
+                m_appBytes.clear();
             }
-            return buckets;
         }
 
-        private void shiftBuckets(long diff, long period, ArrayList<Bucket> buckets) {
-            for (int i = 0; i < diff / period + 1; i++) {
-                buckets.add(buckets.size(), new Bucket());
-                if (buckets.size() >= MAX_BUCKETS) {
-                    buckets.remove(0);
-                }
-            }
-        }
+        public void addBytesTransferred(long bytesSent, long bytesReceived) {
+            m_totalBytesSent.addAndGet(bytesSent);
+            m_totalBytesReceived.addAndGet(bytesReceived);
 
-        protected void manageBuckets() {
             long now = SystemClock.elapsedRealtime();
+            m_slowBuckets.add(now, bytesSent, bytesReceived);
+            m_fastBuckets.add(now, bytesSent, bytesReceived);
+        }
 
-            long diff = now - m_slowBucketsLastStartTime;
-            if (diff >= SLOW_BUCKET_PERIOD_MILLISECONDS) {
-                shiftBuckets(diff, SLOW_BUCKET_PERIOD_MILLISECONDS, m_slowBuckets);
-                m_slowBucketsLastStartTime = bucketStartTime(now, SLOW_BUCKET_PERIOD_MILLISECONDS);
+        // Adds traffic of the VPN interface attributed to an app, see AppTrafficAccounting
+        void addAppBytesTransferred(int uid, long bytesSent, long bytesReceived) {
+            synchronized (m_appBytes) {
+                long[] bytes = m_appBytes.get(uid);
+                if (bytes == null) {
+                    bytes = new long[2];
+                    m_appBytes.put(uid, bytes);
+                }
+                bytes[0] += bytesSent;
+                bytes[1] += bytesReceived;
             }
+        }
 
-            diff = now - m_fastBucketsLastStartTime;
-            if (diff >= FAST_BUCKET_PERIOD_MILLISECONDS) {
-                shiftBuckets(diff, FAST_BUCKET_PERIOD_MILLISECONDS, m_fastBuckets);
-                m_fastBucketsLastStartTime = bucketStartTime(now, FAST_BUCKET_PERIOD_MILLISECONDS);
+        // Returns the per-app totals of the session as (UID, bytes sent, bytes received) triples
+        long[] appTotalsMessage() {
+            synchronized (m_appBytes) {
+                long[] message = new long[APP_TOTALS_LENGTH * m_appBytes.size()];
+                int offset = 0;
+                for (Map.Entry<Integer, long[]> entry : m_appBytes.entrySet()) {
+                    message[offset + APP_TOTALS_UID] = entry.getKey();
+                    message[offset + APP_TOTALS_BYTES_SENT] = entry.getValue()[0];
+                    message[offset + APP_TOTALS_BYTES_RECEIVED] = entry.getValue()[1];
+                    offset += APP_TOTALS_LENGTH;
+                }
+                return message;
             }
         }
-    }
-
-    public static class DataTransferStatsForService extends DataTransferStatsBase {
-        private DataTransferStatsForService() {
 
+        // State of the last published stats message. Only accessed from the thread sending the
+        // stats messages to the clients.
+        private final long m_messageEpoch = new Random().nextLong();
+        private long m_messageSequence = 0;
+        private long m_messageConnectedTime;
+        private long m_messageTotalBytesSent;
+        private long m_messageTotalBytesReceived;
+        private long m_messageSlowIndex;
+        private long m_messageFastIndex;
+        private long[] m_messageSlowSentSeries = new long[MAX_BUCKETS];
+        private long[] m_messageSlowReceivedSeries = new long[MAX_BUCKETS];
+        private long[] m_messageFastSentSeries = new long[MAX_BUCKETS];
+        private long[] m_messageFastReceivedSeries = new long[MAX_BUCKETS];
+        private long[] m_nextSlowSentSeries = new long[MAX_BUCKETS];
+        private long[] m_nextSlowReceivedSeries = new long[MAX_BUCKETS];
+        private long[] m_nextFastSentSeries = new long[MAX_BUCKETS];
+        private long[] m_nextFastReceivedSeries = new long[MAX_BUCKETS];
+        private final long[] m_messageBuffer = new long[MESSAGE_MAX_LENGTH];
+
+        // Takes a new snapshot and returns the delta message from the last published one, which
+        // is then replaced by the new snapshot.
+        long[] nextDeltaMessage() {
+            long now = SystemClock.elapsedRealtime();
+            long slowIndex = now / SLOW_BUCKET_PERIOD_MILLISECONDS;
+            long fastIndex = now / FAST_BUCKET_PERIOD_MILLISECONDS;
+            m_slowBuckets.snapshot(now, m_nextSlowSentSeries, m_nextSlowReceivedSeries);
+            m_fastBuckets.snapshot(now, m_nextFastSentSeries, m_nextFastReceivedSeries);
+
+            long slowShift = Math.min(slowIndex - m_messageSlowIndex, MAX_BUCKETS);
+            long fastShift = Math.min(fastIndex - m_messageFastIndex, MAX_BUCKETS);
+
+            m_messageSequence++;
+            m_messageConnectedTime = m_connectedTime;
+            m_messageTotalBytesSent = m_totalBytesSent.get();
+            m_messageTotalBytesReceived = m_totalBytesReceived.get();
+            m_messageSlowIndex = slowIndex;
+            m_messageFastIndex = fastIndex;
+
+            int length = putMessageHeader(false, slowShift, fastShift);
+            length = putChangedBuckets(length, (int) slowShift,
+                    m_messageSlowSentSeries, m_messageSlowReceivedSeries,
+                    m_nextSlowSentSeries, m_nextSlowReceivedSeries);
+            length = putChangedBuckets(length, (int) fastShift,
+                    m_messageFastSentSeries, m_messageFastReceivedSeries,
+                    m_nextFastSentSeries, m_nextFastReceivedSeries);
+
+            long[] swap;
+            swap = m_messageSlowSentSeries;
+            m_messageSlowSentSeries = m_nextSlowSentSeries;
+            m_nextSlowSentSeries = swap;
+            swap = m_messageSlowReceivedSeries;
+            m_messageSlowReceivedSeries = m_nextSlowReceivedSeries;
+            m_nextSlowReceivedSeries = swap;
+            swap = m_messageFastSentSeries;
+            m_messageFastSentSeries = m_nextFastSentSeries;
+            m_nextFastSentSeries = swap;
+            swap = m_messageFastReceivedSeries;
+            m_messageFastReceivedSeries = m_nextFastReceivedSeries;
+            m_nextFastReceivedSeries = swap;
+
+            return Arrays.copyOf(m_messageBuffer, length);
         }
 
-        public synchronized void startSession() {
-            resetBytesTransferred();
+        // Returns the last published snapshot as a full message, so that a client which starts
+        // from it can apply the following delta messages.
+        long[] lastFullMessage() {
+            int length = putMessageHeader(true, MAX_BUCKETS, MAX_BUCKETS);
+            length = putChangedBuckets(length, MAX_BUCKETS,
+                    null, null,
+                    m_messageSlowSentSeries, m_messageSlowReceivedSeries);
+            length = putChangedBuckets(length, MAX_BUCKETS,
+                    null, null,
+                    m_messageFastSentSeries, m_messageFastReceivedSeries);
+            return Arrays.copyOf(m_messageBuffer, length);
         }
 
-        public synchronized void startConnected() {
-            m_connectedTime = SystemClock.elapsedRealtime();
+        private int putMessageHeader(boolean isFull, long slowShift, long fastShift) {
+            m_messageBuffer[MESSAGE_EPOCH] = m_messageEpoch;
+            m_messageBuffer[MESSAGE_SEQUENCE] = m_messageSequence;
+            m_messageBuffer[MESSAGE_IS_FULL] = isFull ? 1 : 0;
+            m_messageBuffer[MESSAGE_CONNECTED_TIME] = m_messageConnectedTime;
+            m_messageBuffer[MESSAGE_TOTAL_BYTES_SENT] = m_messageTotalBytesSent;
+            m_messageBuffer[MESSAGE_TOTAL_BYTES_RECEIVED] = m_messageTotalBytesReceived;
+            m_messageBuffer[MESSAGE_SLOW_SHIFT] = slowShift;
+            m_messageBuffer[MESSAGE_FAST_SHIFT] = fastShift;
+            return MESSAGE_HEADER_LENGTH;
         }
 
-        public synchronized void addBytesSent(long bytes) {
-            m_totalBytesSent += bytes;
-
-            manageBuckets();
-            addSentToBuckets(bytes);
+        private int putChangedBuckets(int offset, int shift,
+                                      long[] previousSentSeries, long[] previousReceivedSeries,
+                                      long[] sentSeries, long[] receivedSeries) {
+            int countOffset = offset++;
+            int count = 0;
+            for (int i = 0; i < MAX_BUCKETS; i++) {
+                long previousSent = 0;
+                long previousReceived = 0;
+                if (i < MAX_BUCKETS - shift) {
+                    previousSent = previousSentSeries[i + shift];
+                    previousReceived = previousReceivedSeries[i + shift];
+                }
+                if (sentSeries[i] != previousSent || receivedSeries[i] != previousReceived) {
+                    m_messageBuffer[offset++] = i;
+                    m_messageBuffer[offset++] = sentSeries[i];
+                    m_messageBuffer[offset++] = receivedSeries[i];
+                    count++;
+                }
+            }
+            m_messageBuffer[countOffset] = count;
+            return offset;
         }
+    }
 
-        public synchronized void addBytesReceived(long bytes) {
-            m_totalBytesReceived += bytes;
-
-            manageBuckets();
-            addReceivedToBuckets(bytes);
-        }
+    public static class DataTransferStatsForUI extends DataTransferStatsBase {
+        private long m_totalBytesSent;
+        private long m_totalBytesReceived;
+        private final long[] m_slowSentSeries = new long[MAX_BUCKETS];
+        private final long[] m_slowReceivedSeries = new long[MAX_BUCKETS];
+        private final long[] m_fastSentSeries = new long[MAX_BUCKETS];
+        private final long[] m_fastReceivedSeries = new long[MAX_BUCKETS];
+        private boolean m_hasMessage = false;
+        private long m_messageEpoch;
+        private long m_messageSequence;
+        private List<AppBytes> m_appTotals = Collections.emptyList();
 
-        private void addSentToBuckets(long bytes) {
-            m_slowBuckets.get(m_slowBuckets.size() - 1).m_bytesSent += bytes;
-            m_fastBuckets.get(m_fastBuckets.size() - 1).m_bytesSent += bytes;
-        }
+        private DataTransferStatsForUI() {
 
-        private void addReceivedToBuckets(long bytes) {
-            m_slowBuckets.get(m_slowBuckets.size() - 1).m_bytesReceived += bytes;
-            m_fastBuckets.get(m_fastBuckets.size() - 1).m_bytesReceived += bytes;
         }
-    }
 
-    public static class DataTransferStatsForUI extends DataTransferStatsBase {
-        private DataTransferStatsForUI() {
+        // Applies a stats message from the service in place. Returns false if the message is a
+        // delta that does not follow the last applied message, in which case the client should
+        // ask the service for a full message.
+        synchronized boolean applyMessage(long[] message) {
+            long epoch = message[MESSAGE_EPOCH];
+            long sequence = message[MESSAGE_SEQUENCE];
+            boolean isFull = message[MESSAGE_IS_FULL] != 0;
+            // Messages from another epoch come from a restarted service, whose sequence numbers
+            // start over, so only a full message from it can be applied
+            boolean isSameEpoch = m_hasMessage && epoch == m_messageEpoch;
+            if (isSameEpoch && sequence == m_messageSequence) {
+                // Already applied, possibly via another client in this process
+                return true;
+            }
+            if (isFull) {
+                if (isSameEpoch && sequence < m_messageSequence) {
+                    return true;
+                }
+            } else if (!isSameEpoch || sequence != m_messageSequence + 1) {
+                return false;
+            }
 
+            m_hasMessage = true;
+            m_messageEpoch = epoch;
+            m_messageSequence = sequence;
+            m_connectedTime = message[MESSAGE_CONNECTED_TIME];
+            m_totalBytesSent = message[MESSAGE_TOTAL_BYTES_SENT];
+            m_totalBytesReceived = message[MESSAGE_TOTAL_BYTES_RECEIVED];
+
+            int offset = MESSAGE_HEADER_LENGTH;
+            offset = applyChangedBuckets(message, offset, message[MESSAGE_SLOW_SHIFT],
+                    m_slowSentSeries, m_slowReceivedSeries);
+            applyChangedBuckets(message, offset, message[MESSAGE_FAST_SHIFT],
+                    m_fastSentSeries, m_fastReceivedSeries);
+            return true;
         }
 
-        private ArrayList<Long> getSentSeries(ArrayList<Bucket> buckets) {
-            ArrayList<Long> series = new ArrayList<>();
-            for (int i = 0; i < buckets.size(); i++) {
-                series.add(buckets.get(i).m_bytesSent);
+        // Replaces the per-app totals with the ones from the service
+        synchronized void applyAppTotalsMessage(long[] message) {
+            List<AppBytes> appTotals = new ArrayList<>(message.length / APP_TOTALS_LENGTH);
+            for (int offset = 0; offset + APP_TOTALS_LENGTH <= message.length; offset += APP_TOTALS_LENGTH) {
+                appTotals.add(new AppBytes((int) message[offset + APP_TOTALS_UID],
+                        message[offset + APP_TOTALS_BYTES_SENT],
+                        message[offset + APP_TOTALS_BYTES_RECEIVED]));
             }
-            return series;
+            Collections.sort(appTotals, (a, b) -> Long.compare(
+                    b.bytesSent + b.bytesReceived, a.bytesSent + a.bytesReceived));
+            m_appTotals = Collections.unmodifiableList(appTotals);
         }
 
-        private ArrayList<Long> getReceivedSeries(ArrayList<Bucket> buckets) {
-            ArrayList<Long> series = new ArrayList<>();
-            for (int i = 0; i < buckets.size(); i++) {
-                series.add(buckets.get(i).m_bytesReceived);
+        private static int applyChangedBuckets(long[] message, int offset, long shift,
+                                               long[] sentSeries, long[] receivedSeries) {
+            if (shift >= MAX_BUCKETS) {
+                Arrays.fill(sentSeries, 0);
+                Arrays.fill(receivedSeries, 0);
+            } else if (shift > 0) {
+                int kept = MAX_BUCKETS - (int) shift;
+                System.arraycopy(sentSeries, (int) shift, sentSeries, 0, kept);
+                System.arraycopy(receivedSeries, (int) shift, receivedSeries, 0, kept);
+                Arrays.fill(sentSeries, kept, MAX_BUCKETS, 0);
+                Arrays.fill(receivedSeries, kept, MAX_BUCKETS, 0);
             }
-            return series;
+            long count = message[offset++];
+            for (long i = 0; i < count; i++) {
+                int position = (int) message[offset++];
+                sentSeries[position] = message[offset++];
+                receivedSeries[position] = message[offset++];
+            }
+            return offset;
         }
 
         public synchronized long getElapsedTime() {
@@ -229,24 +468,39 @@ public class DataTransferStats {
             return this.m_totalBytesReceived;
         }
 
-        public synchronized ArrayList<Long> getSlowSentSeries() {
-            manageBuckets();
-            return getSentSeries(this.m_slowBuckets);
+        public synchronized long[] getSlowSentSeries() {
+            return this.m_slowSentSeries;
+        }
+
+        public synchronized long[] getSlowReceivedSeries() {
+            return this.m_slowReceivedSeries;
+        }
+
+        public synchronized long[] getFastSentSeries() {
+            return this.m_fastSentSeries;
         }
 
-        public synchronized ArrayList<Long> getSlowReceivedSeries() {
-            manageBuckets();
-            return getReceivedSeries(this.m_slowBuckets);
+        public synchronized long[] getFastReceivedSeries() {
+            return this.m_fastReceivedSeries;
         }
 
-        public synchronized ArrayList<Long> getFastSentSeries() {
-            manageBuckets();
-            return getSentSeries(this.m_fastBuckets);
+        // Per-app totals of the session, most traffic first
+        public synchronized List<AppBytes> getAppTotals() {
+            return this.m_appTotals;
         }
+    }
 
-        public synchronized ArrayList<Long> getFastReceivedSeries() {
-            manageBuckets();
-            return getReceivedSeries(this.m_fastBuckets);
+    // Bytes sent and received through the VPN interface by one app, uid is UNKNOWN_APP_UID for
+    // traffic that could not be attributed
+    public static class AppBytes {
+        public final int uid;
+        public final long bytesSent;
+        public final long bytesReceived;
+
+        AppBytes(int uid, long bytesSent, long bytesReceived) {
+            this.uid = uid;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
         }
     }
 }
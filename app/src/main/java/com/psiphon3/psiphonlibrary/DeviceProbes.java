@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.Settings;
+
+// Facts about the device which are costly to probe, e.g. checking for root scans every PATH
+// directory. The probes run once per boot, OS build and app version and their results are
+// persisted, so other processes and later app starts only read them.
+class DeviceProbes {
+    private static final String PREFERENCES_NAME = "device_probes";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_IS_ROOTED = "isRooted";
+
+    // The boot time is derived from two clocks, ignore small differences between calls
+    private static final long BOOT_TIME_GRANULARITY_MILLIS = 60 * 1000;
+
+    private static DeviceProbes instance;
+
+    private final boolean isRooted;
+
+    private DeviceProbes(boolean isRooted) {
+        this.isRooted = isRooted;
+    }
+
+    static synchronized DeviceProbes getInstance(Context context) {
+        if (instance != null) {
+            return instance;
+        }
+        SharedPreferences preferences = context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        String fingerprint = getFingerprint(context);
+        if (fingerprint.equals(preferences.getString(KEY_FINGERPRINT, null))
+                && preferences.contains(KEY_IS_ROOTED)) {
+            instance = new DeviceProbes(preferences.getBoolean(KEY_IS_ROOTED, false));
+        } else {
+            instance = new DeviceProbes(Utils.isRooted());
+            preferences.edit()
+                    .putString(KEY_FINGERPRINT, fingerprint)
+                    .putBoolean(KEY_IS_ROOTED, instance.isRooted)
+                    .apply();
+        }
+        return instance;
+    }
+
+    boolean isRooted() {
+        return isRooted;
+    }
+
+    String getClientPlatformSuffix() {
+        String suffix = "";
+
+        // Detect if device is rooted and append to the client_platform string
+        if (isRooted) {
+            suffix += PsiphonConstants.ROOTED;
+        }
+
+        // Detect if this is a Play Store build
+        if (EmbeddedValues.IS_PLAY_STORE_BUILD) {
+            suffix += PsiphonConstants.PLAY_STORE_BUILD;
+        }
+
+        return suffix;
+    }
+
+    // Changes with every boot, OS update and app version
+    private static String getFingerprint(Context context) {
+        String boot;
+        int bootCount = -1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            bootCount = Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+        }
+        if (bootCount != -1) {
+            boot = "count:" + bootCount;
+        } else {
+            long bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+            boot = "time:" + Math.round((double) bootTime / BOOT_TIME_GRANULARITY_MILLIS);
+        }
+        return boot + "|" + Build.FINGERPRINT + "|" + EmbeddedValues.CLIENT_VERSION;
+    }
+}
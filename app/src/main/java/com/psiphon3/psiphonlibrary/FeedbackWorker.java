@@ -30,6 +30,8 @@ import androidx.work.Data;
 import androidx.work.RxWorker;
 import androidx.work.WorkerParameters;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.psiphon3.PsiphonCrashService;
 import com.psiphon3.R;
 import com.psiphon3.log.LogEntry;
@@ -38,18 +40,18 @@ import com.psiphon3.log.MyLog;
 
 import net.grandcentrix.tray.AppPreferences;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import ca.psiphon.PsiphonTunnel;
 import ca.psiphon.PsiphonTunnel.PsiphonTunnelFeedback;
@@ -70,6 +72,8 @@ public class FeedbackWorker extends RxWorker {
     // log JSON max size to read from logs DB
     private final static int MAX_LOG_SOURCE_JSON_SIZE_BYTES = 1 << 20; // 1MB
 
+    private final static JsonFactory JSON_FACTORY = new JsonFactory();
+
     private final TunnelServiceInteractor tunnelServiceInteractor;
     private final boolean sendDiagnosticInfo;
     private final String email;
@@ -323,7 +327,7 @@ public class FeedbackWorker extends RxWorker {
                         // used for all upload attempts, which provides visibility into these
                         // occurrences and allows for mitigation.
                         return startSendFeedback(context, tunnelCoreConfig, feedbackJsonString,
-                                "", "", Utils.getClientPlatformSuffix())
+                                "", "", Utils.getClientPlatformSuffix(context))
                                 .andThen(Flowable.just(Result.success()));
                     }
 
@@ -338,155 +342,225 @@ public class FeedbackWorker extends RxWorker {
                 });
     }
 
+    // Writes the feedback document with a streaming generator rather than building JSONObject
+    // trees of the up to MAX_LOG_SOURCE_JSON_SIZE_BYTES of logs first. The document itself is
+    // still returned as a string as required by PsiphonTunnelFeedback.startSendFeedback.
     private static @NonNull String createFeedbackData(Context context,
                               boolean shouldIncludeDiagnostics,
                               String email,
                               String feedbackText,
                               String surveyResponsesJson,
                               String feedbackId,
-                              long beforeTimeMillis) throws JSONException {
-        // Top level json object
-        JSONObject feedbackJsonObject = new JSONObject();
-
-        // Add metadata
-        JSONObject metadata = new JSONObject();
-
-        metadata.put("platform", "android");
-        metadata.put("version", 4);
-        metadata.put("id", feedbackId);
-
-        feedbackJsonObject.put("Metadata", metadata);
-
-
-        // Add feedback text and / or surveyResponses
-        if (feedbackText.length() > 0 || surveyResponsesJson.length() > 0) {
-            JSONObject feedbackInfo = new JSONObject();
-            feedbackInfo.put("email", email);
-
-            JSONObject feedbackMessageInfo = new JSONObject();
-            feedbackMessageInfo.put("text", feedbackText);
-            feedbackInfo.put("Message", feedbackMessageInfo);
+                              long beforeTimeMillis) throws IOException {
+        StringWriter stringWriter = new StringWriter();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(stringWriter)) {
+            // Top level json object
+            generator.writeStartObject();
+
+            // Add metadata
+            generator.writeObjectFieldStart("Metadata");
+            generator.writeStringField("platform", "android");
+            generator.writeNumberField("version", 4);
+            generator.writeStringField("id", feedbackId);
+            generator.writeEndObject();
+
+            // Add feedback text and / or surveyResponses
+            if (feedbackText.length() > 0 || surveyResponsesJson.length() > 0) {
+                generator.writeObjectFieldStart("Feedback");
+                generator.writeStringField("email", email);
+
+                generator.writeObjectFieldStart("Message");
+                generator.writeStringField("text", feedbackText);
+                generator.writeEndObject();
+
+                generator.writeObjectFieldStart("Survey");
+                generator.writeStringField("json", surveyResponsesJson);
+                generator.writeEndObject();
+
+                generator.writeEndObject();
+            }
 
-            JSONObject feedbackSurveyInfo = new JSONObject();
-            feedbackSurveyInfo.put("json", surveyResponsesJson);
-            feedbackInfo.put("Survey", feedbackSurveyInfo);
+            if (shouldIncludeDiagnostics) {
+                generator.writeObjectFieldStart("DiagnosticInfo");
+                writeSystemInformation(context, generator);
+                writeLogHistory(context, generator, beforeTimeMillis);
+                writeCrashHistory(context, generator);
+                generator.writeEndObject();
+            }
 
-            feedbackJsonObject.put("Feedback", feedbackInfo);
+            generator.writeEndObject();
         }
+        return stringWriter.toString();
+    }
 
-        if (shouldIncludeDiagnostics) {
-            JSONObject diagnosticInfo = new JSONObject();
-
-            JSONObject sysInfo = new JSONObject();
-            sysInfo.put("isRooted", Utils.isRooted());
-            sysInfo.put("isPlayStoreBuild", EmbeddedValues.IS_PLAY_STORE_BUILD);
-            sysInfo.put("language", Locale.getDefault().getLanguage());
-            sysInfo.put("networkTypeName", Utils.getNetworkTypeName(context));
-
-            JSONObject sysInfo_Build = new JSONObject();
-            sysInfo_Build.put("BRAND", Build.BRAND);
-            sysInfo_Build.put("CPU_ABI", Build.CPU_ABI);
-            sysInfo_Build.put("MANUFACTURER", Build.MANUFACTURER);
-            sysInfo_Build.put("MODEL", Build.MODEL);
-            sysInfo_Build.put("DISPLAY", Build.DISPLAY);
-            sysInfo_Build.put("TAGS", Build.TAGS);
-            sysInfo_Build.put("VERSION__CODENAME", Build.VERSION.CODENAME);
-            sysInfo_Build.put("VERSION__RELEASE", Build.VERSION.RELEASE);
-            sysInfo_Build.put("VERSION__SDK_INT", Build.VERSION.SDK_INT);
+    private static void writeSystemInformation(Context context, JsonGenerator generator) throws IOException {
+        generator.writeObjectFieldStart("SystemInformation");
+        generator.writeBooleanField("isRooted", DeviceProbes.getInstance(context).isRooted());
+        generator.writeBooleanField("isPlayStoreBuild", EmbeddedValues.IS_PLAY_STORE_BUILD);
+        generator.writeStringField("language", Locale.getDefault().getLanguage());
+        generator.writeStringField("networkTypeName", Utils.getNetworkTypeName(context));
+
+        generator.writeObjectFieldStart("Build");
+        generator.writeStringField("BRAND", Build.BRAND);
+        generator.writeStringField("CPU_ABI", Build.CPU_ABI);
+        generator.writeStringField("MANUFACTURER", Build.MANUFACTURER);
+        generator.writeStringField("MODEL", Build.MODEL);
+        generator.writeStringField("DISPLAY", Build.DISPLAY);
+        generator.writeStringField("TAGS", Build.TAGS);
+        generator.writeStringField("VERSION__CODENAME", Build.VERSION.CODENAME);
+        generator.writeStringField("VERSION__RELEASE", Build.VERSION.RELEASE);
+        generator.writeNumberField("VERSION__SDK_INT", Build.VERSION.SDK_INT);
+        generator.writeEndObject();
+
+        generator.writeObjectFieldStart("PsiphonInfo");
+        generator.writeStringField("PROPAGATION_CHANNEL_ID", EmbeddedValues.PROPAGATION_CHANNEL_ID);
+        generator.writeStringField("SPONSOR_ID", EmbeddedValues.SPONSOR_ID);
+        generator.writeStringField("CLIENT_VERSION", EmbeddedValues.CLIENT_VERSION);
+        generator.writeEndObject();
+
+        generator.writeEndObject();
+    }
 
-            sysInfo.put("Build", sysInfo_Build);
+    // Writes the DiagnosticHistory and StatusHistory arrays from up to
+    // MAX_LOG_SOURCE_JSON_SIZE_BYTES of the logs database. The arrays are written one after the
+    // other, so the cursor is iterated twice: the first pass writes the diagnostic entries and
+    // finds the last row within the size limit, the second pass writes the status entries up to
+    // that row.
+    private static void writeLogHistory(Context context, JsonGenerator generator, long beforeTimeMillis)
+            throws IOException {
+        Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
+                .appendPath("all")
+                .appendPath(String.valueOf(beforeTimeMillis))
+                .build();
+        ContentResolver contentResolver = context.getContentResolver();
+        try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
+            int rowCount = 0;
+            int totalBytesRead = 0;
 
-            JSONObject sysInfo_psiphonEmbeddedValues = new JSONObject();
-            sysInfo_psiphonEmbeddedValues.put("PROPAGATION_CHANNEL_ID", EmbeddedValues.PROPAGATION_CHANNEL_ID);
-            sysInfo_psiphonEmbeddedValues.put("SPONSOR_ID", EmbeddedValues.SPONSOR_ID);
-            sysInfo_psiphonEmbeddedValues.put("CLIENT_VERSION", EmbeddedValues.CLIENT_VERSION);
+            generator.writeArrayFieldStart("DiagnosticHistory");
+            while (totalBytesRead < MAX_LOG_SOURCE_JSON_SIZE_BYTES && cursor.moveToNext()) {
+                rowCount++;
+                final LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
+                totalBytesRead += logEntry.getMessage().length();
+                if (logEntry.getArgs() != null) {
+                    totalBytesRead += logEntry.getArgs().length;
+                }
+                if (!logEntry.isDiagnostic()) {
+                    continue;
+                }
 
-            sysInfo.put("PsiphonInfo", sysInfo_psiphonEmbeddedValues);
+                generator.writeStartObject();
+                generator.writeStringField("timestamp!!timestamp", Utils.getISO8601String(new Date(logEntry.getTimestamp())));
+                generator.writeStringField("msg", logEntry.getMessage());
+                generator.writeObjectFieldStart("data");
+                Object[] nameValuePairs = logEntry.getDecodedArgs();
+                for (int i = 0; i + 1 < nameValuePairs.length; i += 2) {
+                    Object value = nameValuePairs[i + 1];
+                    if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) {
+                        // Not valid in JSON, skip the pair
+                        continue;
+                    }
+                    generator.writeFieldName(String.valueOf(nameValuePairs[i]));
+                    writeValue(generator, value);
+                }
+                generator.writeEndObject();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
 
-            diagnosticInfo.put("SystemInformation", sysInfo);
+            // Resource names by message, status logs mostly repeat the same few messages
+            Map<String, String> resourceNames = new HashMap<>();
 
+            generator.writeArrayFieldStart("StatusHistory");
+            cursor.moveToPosition(-1);
+            for (int row = 0; row < rowCount && cursor.moveToNext(); row++) {
+                final LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
+                if (logEntry.isDiagnostic()) {
+                    continue;
+                }
+                int sensitivity = logEntry.getSensitivity();
+                if (sensitivity == MyLog.Sensitivity.SENSITIVE_LOG) {
+                    // Skip sensitive logs
+                    continue;
+                }
 
-            JSONArray diagnosticHistory = new JSONArray();
-            JSONArray statusHistory = new JSONArray();
+                generator.writeStartObject();
+                generator.writeStringField("timestamp!!timestamp", Utils.getISO8601String(new Date(logEntry.getTimestamp())));
 
-            int totalBytesRead = 0;
+                String resourceName = resourceNames.get(logEntry.getMessage());
+                if (resourceName == null) {
+                    int resourceID = context.getResources().getIdentifier(logEntry.getMessage(), null, null);
+                    resourceName = resourceID == 0 ?
+                            "" : context.getResources().getResourceEntryName(resourceID);
+                    resourceNames.put(logEntry.getMessage(), resourceName);
+                }
+                generator.writeStringField("id", resourceName);
 
-            // Read up to MAX_LOG_SOURCE_JSON_SIZE_BYTES from the logs database
-            // and add to diagnostic / status info
-            Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
-                    .appendPath("all")
-                    .appendPath(String.valueOf(beforeTimeMillis))
-                    .build();
-            ContentResolver contentResolver = context.getContentResolver();
-            try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
-                while (totalBytesRead < MAX_LOG_SOURCE_JSON_SIZE_BYTES && cursor.moveToNext()) {
-                    final LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
-                    totalBytesRead += logEntry.getLogJson().length();
-
-                    JSONObject entry = new JSONObject();
-                    entry.put("timestamp!!timestamp", Utils.getISO8601String(new Date(logEntry.getTimestamp())));
-
-                    JSONObject logJsonObject = new JSONObject(logEntry.getLogJson());
-
-                    if (logEntry.isDiagnostic()) {
-                        Object msg = logJsonObject.opt("msg");
-                        Object data = logJsonObject.opt("data");
-                        entry.put("msg", msg == null ? JSONObject.NULL : msg);
-                        entry.put("data", data == null ? JSONObject.NULL : data);
-
-                        diagnosticHistory.put(entry);
-                    } else {
-                        int sensitivity = logJsonObject.optInt("sensitivity", 0);
-                        if (sensitivity == MyLog.Sensitivity.SENSITIVE_LOG) {
-                            // Skip sensitive logs
-                            continue;
-                        }
-                        int resourceID = context.getResources().getIdentifier(logJsonObject
-                                .getString("stringResourceName"), null, null);
-                        entry.put("id", resourceID == 0 ?
-                                "" : context.getResources().getResourceEntryName(resourceID));
-
-                        entry.put("priority", logEntry.getPriority());
-                        entry.put("formatArgs", JSONObject.NULL);
-                        entry.put("throwable", JSONObject.NULL);
-
-                        if (sensitivity != MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS) {
-                            JSONArray formatArgsJsonArray = logJsonObject.optJSONArray("formatArgs");
-                            if (formatArgsJsonArray != null && formatArgsJsonArray.length() > 0) {
-                                entry.put("formatArgs", formatArgsJsonArray);
-                            }
-                        }
+                generator.writeNumberField("priority", logEntry.getPriority());
 
-                        statusHistory.put(entry);
+                generator.writeFieldName("formatArgs");
+                Object[] formatArgs = sensitivity != MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS ?
+                        logEntry.getDecodedArgs() : null;
+                if (formatArgs != null && formatArgs.length > 0) {
+                    generator.writeStartArray();
+                    for (Object formatArg : formatArgs) {
+                        writeValue(generator, formatArg);
                     }
+                    generator.writeEndArray();
+                } else {
+                    generator.writeNull();
                 }
-                diagnosticInfo.put("DiagnosticHistory", diagnosticHistory);
-                diagnosticInfo.put("StatusHistory", statusHistory);
+
+                generator.writeNullField("throwable");
+                generator.writeEndObject();
             }
-            // Check if we have native crash data to include
-            File crashReportFile = new File(PsiphonCrashService.getFinalCrashReportPath(context));
-            if (crashReportFile.exists()) {
-                JSONArray crashHistory = new JSONArray();
-                try {
-                    BufferedReader in;
-                    String str;
-                    in = new BufferedReader(new FileReader(crashReportFile));
-                    while ((str = in.readLine()) != null) {
-                        crashHistory.put(str);
-                    }
-                    in.close();
+            generator.writeEndArray();
+        }
+    }
 
-                } catch (IOException ignored) {
-                }
+    // Check if we have native crash data to include
+    private static void writeCrashHistory(Context context, JsonGenerator generator) throws IOException {
+        File crashReportFile = new File(PsiphonCrashService.getFinalCrashReportPath(context));
+        if (!crashReportFile.exists()) {
+            return;
+        }
+        List<String> crashHistory = new ArrayList<>();
+        try {
+            BufferedReader in;
+            String str;
+            in = new BufferedReader(new FileReader(crashReportFile));
+            while ((str = in.readLine()) != null) {
+                crashHistory.add(str);
+            }
+            in.close();
 
-                crashReportFile.delete();
-                if (crashHistory.length() > 0) {
-                    diagnosticInfo.put("CrashHistory", crashHistory);
-                }
+        } catch (IOException ignored) {
+        }
+
+        crashReportFile.delete();
+        if (crashHistory.size() > 0) {
+            generator.writeArrayFieldStart("CrashHistory");
+            for (String line : crashHistory) {
+                generator.writeString(line);
             }
-            feedbackJsonObject.put("DiagnosticInfo", diagnosticInfo);
+            generator.writeEndArray();
         }
+    }
 
-        return feedbackJsonObject.toString();
+    // Writes a decoded log argument, see LogArgs for the possible types
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof Integer) {
+            generator.writeNumber((Integer) value);
+        } else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if (value instanceof Double) {
+            generator.writeNumber((Double) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else {
+            generator.writeString(value.toString());
+        }
     }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import com.psiphon3.R;
+import com.psiphon3.log.MyLog;
+
+import java.util.Date;
+
+// Background lane for the high frequency PsiphonTunnel host callbacks: diagnostic notices,
+// untunneled address notices and byte counts. These don't touch any state owned by the main
+// thread, so they are handled on a dedicated thread instead of competing with notification,
+// messenger and Rx work on the service main looper.
+// Events are stored in a preallocated ring of parallel arrays so posting an event allocates
+// nothing. Consecutive byte counts still waiting in the ring are merged into one event. When
+// the ring is full the posting tunnel-core thread waits, diagnostics are never dropped.
+class HostEventDispatcher {
+    private static final int CAPACITY = 1024;
+
+    private static final int TYPE_DIAGNOSTIC = 0;
+    private static final int TYPE_UNTUNNELED_ADDRESS = 1;
+    private static final int TYPE_BYTES_TRANSFERRED = 2;
+
+    // The ring, guarded by this
+    private final int[] types = new int[CAPACITY];
+    // Timestamp of diagnostics, bytes sent of byte counts
+    private final long[] firstValues = new long[CAPACITY];
+    // Bytes received of byte counts
+    private final long[] secondValues = new long[CAPACITY];
+    private final String[] messages = new String[CAPACITY];
+    private int head;
+    private int count;
+    // The slot of the last posted event, as long as it has not been taken by the dispatcher
+    private int lastPostedSlot = -1;
+    private boolean stopped;
+
+    private Thread thread;
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        stopped = false;
+        thread = new Thread(this::run, "HostEventDispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Events already posted are still dispatched, new events are ignored
+    synchronized void stop() {
+        stopped = true;
+        thread = null;
+        notifyAll();
+    }
+
+    void postDiagnosticMessage(long timestamp, String message) {
+        post(TYPE_DIAGNOSTIC, timestamp, 0, message);
+    }
+
+    void postUntunneledAddress(String address) {
+        post(TYPE_UNTUNNELED_ADDRESS, 0, 0, address);
+    }
+
+    void postBytesTransferred(long sent, long received) {
+        synchronized (this) {
+            if (lastPostedSlot != -1 && types[lastPostedSlot] == TYPE_BYTES_TRANSFERRED) {
+                firstValues[lastPostedSlot] += sent;
+                secondValues[lastPostedSlot] += received;
+                return;
+            }
+        }
+        post(TYPE_BYTES_TRANSFERRED, sent, received, null);
+    }
+
+    private synchronized void post(int type, long firstValue, long secondValue, String message) {
+        while (count == CAPACITY && !stopped) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (stopped) {
+            return;
+        }
+        int slot = (head + count) % CAPACITY;
+        types[slot] = type;
+        firstValues[slot] = firstValue;
+        secondValues[slot] = secondValue;
+        messages[slot] = message;
+        lastPostedSlot = slot;
+        if (count++ == 0) {
+            notifyAll();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            int type;
+            long firstValue;
+            long secondValue;
+            String message;
+            synchronized (this) {
+                while (count == 0) {
+                    if (stopped) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                type = types[head];
+                firstValue = firstValues[head];
+                secondValue = secondValues[head];
+                message = messages[head];
+                messages[head] = null;
+                if (lastPostedSlot == head) {
+                    lastPostedSlot = -1;
+                }
+                head = (head + 1) % CAPACITY;
+                if (count-- == CAPACITY) {
+                    notifyAll();
+                }
+            }
+            dispatch(type, firstValue, secondValue, message);
+        }
+    }
+
+    private static void dispatch(int type, long firstValue, long secondValue, String message) {
+        switch (type) {
+            case TYPE_DIAGNOSTIC:
+                MyLog.i(new Date(firstValue), message);
+                break;
+            case TYPE_UNTUNNELED_ADDRESS:
+                MyLog.i(R.string.untunneled_address, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS, message);
+                break;
+            case TYPE_BYTES_TRANSFERRED:
+                DataTransferStats.getDataTransferStatsForService().addBytesTransferred(firstValue, secondValue);
+                break;
+        }
+    }
+}
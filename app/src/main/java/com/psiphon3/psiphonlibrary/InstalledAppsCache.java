@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import com.psiphon3.log.MyLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.schedulers.Schedulers;
+
+// Caches the metadata of the installed packages shown in the VPN include/exclude apps lists.
+// Labels and the INTERNET permission are persisted by (package name, last update time) so only
+// new or updated packages are loaded from the package manager when the list is opened. Package
+// change broadcasts received while the process is running mark the changed packages, whose
+// entries are dropped on the next load. Icons are kept in a bounded in-memory LRU cache of bitmaps.
+class InstalledAppsCache {
+    private static final String CACHE_FILE = "installed_apps_cache.json";
+    private static final String TEMP_FILE = "installed_apps_cache.json.tmp";
+    private static final String KEY_LOCALE = "locale";
+    private static final String KEY_PACKAGES = "packages";
+    private static final String KEY_PACKAGE_NAME = "packageName";
+    private static final String KEY_LAST_UPDATE_TIME = "lastUpdateTime";
+    private static final String KEY_LABEL = "label";
+    private static final String KEY_INTERNET_PERMISSION = "internetPermission";
+
+    // Matches the size of the icon view in preference_widget_applist_row
+    private static final int ICON_SIZE_DP = 48;
+    private static final int ICON_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+
+    private static InstalledAppsCache instance;
+
+    private final Context appContext;
+    private final int iconSizePx;
+    private final LruCache<String, Bitmap> iconCache;
+
+    // Guarded by this, loaded from disk on first use
+    private Map<String, PackageMetadata> packages;
+    private String packagesLocale;
+    // Packages changed since the last load. Not guarded by this so that the broadcast receiver on
+    // the main thread never waits for a load in progress.
+    private final Set<String> changedPackages =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static class PackageMetadata {
+        final long lastUpdateTime;
+        // Only loaded for packages with INTERNET permission which are shown in the list
+        final String label;
+        final boolean internetPermission;
+
+        PackageMetadata(long lastUpdateTime, String label, boolean internetPermission) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.label = label;
+            this.internetPermission = internetPermission;
+        }
+    }
+
+    static synchronized InstalledAppsCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new InstalledAppsCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private InstalledAppsCache(Context appContext) {
+        this.appContext = appContext;
+        this.iconSizePx = Math.round(ICON_SIZE_DP * appContext.getResources().getDisplayMetrics().density);
+        int maxBytes = (int) Math.min(ICON_CACHE_MAX_BYTES, Runtime.getRuntime().maxMemory() / 16);
+        this.iconCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        appContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data != null) {
+                    onPackageChanged(data.getSchemeSpecificPart());
+                }
+            }
+        }, filter);
+    }
+
+    // Returns the apps with INTERNET permission not in excludeApps, sorted by name.
+    // Must not be called on the main thread.
+    synchronized List<AppEntry> getInstalledApps(Set<String> excludeApps) {
+        PackageManager pm = appContext.getPackageManager();
+
+        if (packages == null) {
+            readFromFile();
+        }
+        // A package changed during this load stays marked and is reloaded again next time
+        for (Iterator<String> it = changedPackages.iterator(); it.hasNext(); ) {
+            String packageName = it.next();
+            it.remove();
+            packages.remove(packageName);
+        }
+        // Labels are localized, reload all of them when the locale has changed
+        String locale = Locale.getDefault().toString();
+        if (!locale.equals(packagesLocale)) {
+            packages.clear();
+            packagesLocale = locale;
+        }
+
+        Map<String, PackageMetadata> installedPackages = new HashMap<>();
+        boolean changed = false;
+        // Permissions are only needed for new or updated packages, don't request them for all
+        for (PackageInfo p : pm.getInstalledPackages(0)) {
+            PackageMetadata metadata = packages.get(p.packageName);
+            if (metadata == null || metadata.lastUpdateTime != p.lastUpdateTime) {
+                metadata = loadMetadata(pm, p.packageName);
+                iconCache.remove(p.packageName);
+                changed = true;
+            }
+            if (metadata != null) {
+                installedPackages.put(p.packageName, metadata);
+            }
+        }
+        // Uninstalled packages
+        if (installedPackages.size() != packages.size()) {
+            changed = true;
+        }
+        packages = installedPackages;
+        if (changed) {
+            saveToFile();
+        }
+
+        List<AppEntry> apps = new ArrayList<>();
+        for (Map.Entry<String, PackageMetadata> entry : packages.entrySet()) {
+            String packageId = entry.getKey();
+            PackageMetadata metadata = entry.getValue();
+            if (!metadata.internetPermission || excludeApps.contains(packageId)) {
+                continue;
+            }
+            apps.add(new AppEntry(metadata.label, packageId, getIconLoader(packageId)));
+        }
+        Collections.sort(apps);
+        return apps;
+    }
+
+    @Nullable
+    Drawable getCachedIcon(String packageId) {
+        Bitmap bitmap = iconCache.get(packageId);
+        return bitmap == null ? null : new BitmapDrawable(appContext.getResources(), bitmap);
+    }
+
+    private Single<Drawable> getIconLoader(final String packageId) {
+        return Single.fromCallable(() -> {
+            Bitmap bitmap = iconCache.get(packageId);
+            if (bitmap == null) {
+                Drawable icon = appContext.getPackageManager().getApplicationIcon(packageId);
+                bitmap = toBitmap(icon);
+                iconCache.put(packageId, bitmap);
+            }
+            return (Drawable) new BitmapDrawable(appContext.getResources(), bitmap);
+        })
+                // the package may have been removed since the list was loaded
+                .doOnError(e -> MyLog.w("failed to load icon for " + packageId + ": " + e))
+                // run on io as we're reading off disk
+                .subscribeOn(Schedulers.io())
+                // observe on ui
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    // Scales the icon to the size of the icon view so the cached bitmaps stay small
+    private Bitmap toBitmap(Drawable icon) {
+        Bitmap bitmap = Bitmap.createBitmap(iconSizePx, iconSizePx, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, iconSizePx, iconSizePx);
+        icon.draw(canvas);
+        return bitmap;
+    }
+
+    // Called on the main thread, must not wait for getInstalledApps()
+    private void onPackageChanged(String packageName) {
+        // Icons and labels may change without a new last update time, e.g. when a component
+        // gets enabled, reload the package next time the list is opened.
+        changedPackages.add(packageName);
+        iconCache.remove(packageName);
+    }
+
+    @Nullable
+    private static PackageMetadata loadMetadata(PackageManager pm, String packageName) {
+        PackageInfo p;
+        try {
+            p = pm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+        } catch (PackageManager.NameNotFoundException e) {
+            // Removed in the meantime
+            return null;
+        }
+        boolean internetPermission = isInternetPermissionRequested(p);
+        String label = internetPermission ? p.applicationInfo.loadLabel(pm).toString() : null;
+        return new PackageMetadata(p.lastUpdateTime, label, internetPermission);
+    }
+
+    private static boolean isInternetPermissionRequested(PackageInfo pkgInfo) {
+        if (pkgInfo.requestedPermissions != null) {
+            for (String permission : pkgInfo.requestedPermissions) {
+                if (Manifest.permission.INTERNET.equals(permission)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void readFromFile() {
+        packages = new HashMap<>();
+        packagesLocale = null;
+
+        File file = new File(appContext.getCacheDir(), CACHE_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8")) {
+            StringBuilder json = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                json.append(buffer, 0, read);
+            }
+            JSONObject jsonObject = new JSONObject(json.toString());
+            JSONArray jsonPackages = jsonObject.getJSONArray(KEY_PACKAGES);
+            for (int i = 0; i < jsonPackages.length(); i++) {
+                JSONObject jsonPackage = jsonPackages.getJSONObject(i);
+                packages.put(jsonPackage.getString(KEY_PACKAGE_NAME), new PackageMetadata(
+                        jsonPackage.getLong(KEY_LAST_UPDATE_TIME),
+                        jsonPackage.optString(KEY_LABEL, null),
+                        jsonPackage.getBoolean(KEY_INTERNET_PERMISSION)));
+            }
+            packagesLocale = jsonObject.getString(KEY_LOCALE);
+        } catch (IOException | JSONException e) {
+            MyLog.w("InstalledAppsCache: failed to read cache file: " + e);
+            packages.clear();
+        }
+    }
+
+    // Writes to a temporary file first and renames it so a partially written cache is never read
+    private void saveToFile() {
+        File tempFile = new File(appContext.getCacheDir(), TEMP_FILE);
+        File finalFile = new File(appContext.getCacheDir(), CACHE_FILE);
+        try {
+            JSONArray jsonPackages = new JSONArray();
+            for (Map.Entry<String, PackageMetadata> entry : packages.entrySet()) {
+                PackageMetadata metadata = entry.getValue();
+                JSONObject jsonPackage = new JSONObject();
+                jsonPackage.put(KEY_PACKAGE_NAME, entry.getKey());
+                jsonPackage.put(KEY_LAST_UPDATE_TIME, metadata.lastUpdateTime);
+                if (metadata.label != null) {
+                    jsonPackage.put(KEY_LABEL, metadata.label);
+                }
+                jsonPackage.put(KEY_INTERNET_PERMISSION, metadata.internetPermission);
+                jsonPackages.put(jsonPackage);
+            }
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(KEY_LOCALE, packagesLocale);
+            jsonObject.put(KEY_PACKAGES, jsonPackages);
+
+            try (OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8")) {
+                writer.write(jsonObject.toString());
+            }
+            if (!tempFile.renameTo(finalFile)) {
+                MyLog.w("InstalledAppsCache: failed to rename temp file to cache file.");
+            }
+        } catch (IOException | JSONException e) {
+            MyLog.w("InstalledAppsCache: failed to save cache file: " + e);
+        } finally {
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+}
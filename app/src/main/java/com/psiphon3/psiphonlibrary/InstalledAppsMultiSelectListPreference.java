@@ -19,12 +19,7 @@
 
 package com.psiphon3.psiphonlibrary;
 
-import android.Manifest;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.graphics.drawable.Drawable;
 import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -36,10 +31,7 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.psiphon3.R;
-import com.psiphon3.log.MyLog;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
@@ -139,31 +131,11 @@ class InstalledAppsMultiSelectListPreference extends AlertDialog.Builder impleme
     }
 
     private List<AppEntry> getInstalledApps(Context context) {
-        PackageManager pm = context.getPackageManager();
-
-        List<AppEntry> apps = new ArrayList<>();
-        List<PackageInfo> packages = pm.getInstalledPackages(PackageManager.GET_PERMISSIONS);
-
         // Get the set of apps that should not be shown in the list
         Set <String> excludeApps = getExcludeApps(context);
 
-        for (PackageInfo p : packages) {
-            if (excludeApps.contains(p.packageName)) {
-                continue;
-            }
-
-            if (isInternetPermissionGranted(p)) {
-                // This takes a bit of time, but since we want the apps sorted by displayed name
-                // its best to do synchronously
-                String appName = p.applicationInfo.loadLabel(pm).toString();
-                String packageId = p.packageName;
-                Single<Drawable> iconLoader = getIconLoader(p.applicationInfo, pm);
-                apps.add(new AppEntry(appName, packageId, iconLoader));
-            }
-        }
-
-        Collections.sort(apps);
-        return apps;
+        // Labels are only loaded for new or updated packages, the rest comes from the cache
+        return InstalledAppsCache.getInstance(context).getInstalledApps(excludeApps);
     }
 
     // Apps that should be excluded or included from VPN routing by default should not be shown in the list
@@ -176,36 +148,6 @@ class InstalledAppsMultiSelectListPreference extends AlertDialog.Builder impleme
         return excludedAndIncludedApps;
     }
 
-    private boolean isSystemPackage(PackageInfo pkgInfo) {
-        return ((pkgInfo.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0);
-    }
-
-    private boolean isInternetPermissionGranted(PackageInfo pkgInfo) {
-        if (pkgInfo.requestedPermissions != null) {
-            for (String permission : pkgInfo.requestedPermissions) {
-                if (Manifest.permission.INTERNET.equals(permission)) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
-    private Single<Drawable> getIconLoader(final ApplicationInfo applicationInfo, final PackageManager packageManager) {
-        return Single.<Drawable>create(emitter -> {
-            Drawable icon = applicationInfo.loadIcon(packageManager);
-            if (!emitter.isDisposed()) {
-                emitter.onSuccess(icon);
-            }
-        })
-                // shouldn't ever get an error but handle it just in case
-                .doOnError(e -> MyLog.w("failed to load icon for " + applicationInfo.packageName + ": " + e))
-                // run on io as we're reading off disk
-                .subscribeOn(Schedulers.io())
-                // observe on ui
-                .observeOn(AndroidSchedulers.mainThread());
-    }
-
     public boolean isLoaded() {
         return adapter != null;
     }
@@ -20,6 +20,7 @@
 package com.psiphon3.psiphonlibrary;
 
 import android.content.Context;
+import android.graphics.drawable.Drawable;
 import androidx.recyclerview.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -39,6 +40,7 @@ import java.util.Set;
 public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<InstalledAppsRecyclerViewAdapter.ViewHolder>
         implements Filterable {
     private final LayoutInflater inflater;
+    private final InstalledAppsCache installedAppsCache;
     private final List<AppEntry> data;
     private List<AppEntry> dataFiltered;
 
@@ -56,6 +58,7 @@ public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<Insta
 
     InstalledAppsRecyclerViewAdapter(Context context, List<AppEntry> data, Set<String> selectedApps) {
         this.inflater = LayoutInflater.from(context);
+        this.installedAppsCache = InstalledAppsCache.getInstance(context);
         this.data = data;
         this.dataFiltered = data;
         this.selectedApps = selectedApps;
@@ -71,15 +74,21 @@ public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<Insta
     public void onBindViewHolder(final ViewHolder holder, final int position) {
         final AppEntry appEntry = dataFiltered.get(position);
 
-        appEntry.getIconLoader()
-                .doOnSuccess(icon -> {
-                    // check to see if the adapter position matches the position of the holder
-                    // if it does then set the picture
-                    if (position == holder.getAdapterPosition()) {
-                        holder.appIcon.setImageDrawable(icon);
-                    }
-                })
-                .subscribe();
+        // Set the cached icon right away, this also clears the icon of a recycled holder
+        Drawable cachedIcon = installedAppsCache.getCachedIcon(appEntry.getPackageId());
+        holder.appIcon.setImageDrawable(cachedIcon);
+        if (cachedIcon == null) {
+            appEntry.getIconLoader()
+                    .subscribe(icon -> {
+                        // check to see if the adapter position matches the position of the holder
+                        // if it does then set the picture
+                        if (position == holder.getAdapterPosition()) {
+                            holder.appIcon.setImageDrawable(icon);
+                        }
+                    }, e -> {
+                        // already logged by the icon loader
+                    });
+        }
         holder.appName.setText(appEntry.getName());
         holder.isSelected.setChecked(selectedApps.contains(appEntry.getPackageId()));
     }
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.core.app.NotificationCompat;
+
+import com.psiphon3.R;
+import com.psiphon3.TunnelState.ConnectionData.NetworkConnectionState;
+
+import net.grandcentrix.tray.AppPreferences;
+
+// Builds and posts the notifications of the tunnel service.
+// The builder, pending intents and strings of the service notification are created once per
+// locale and reused. Status updates are coalesced: updates posted within
+// MIN_UPDATE_INTERVAL_MILLIS of the last notify() are merged into a single notify() with the
+// latest state, and nothing is posted if the state flipped back to what is already shown. On
+// flaky networks this keeps CONNECTING/CONNECTED/WAITING_FOR_NETWORK flapping from turning into
+// a stream of NotificationManager calls.
+class ServiceNotificationRenderer {
+    private static final long MIN_UPDATE_INTERVAL_MILLIS = 250;
+
+    private final NotificationManager notificationManager;
+    private final PendingIntent contentPendingIntent;
+    private final PendingIntent stopTunnelPendingIntent;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable renderStatusRunnable = this::renderStatus;
+
+    // Resources of the current locale, recreated when the context changes
+    private volatile Context context;
+    private volatile Localized localized;
+
+    // Latest status not yet rendered, guarded by this
+    private NetworkConnectionState pendingState;
+    private VpnAppsUtils.VpnAppsExclusionSetting pendingExclusionSetting;
+    private int pendingExclusionCount;
+    private boolean pendingAlert;
+    private boolean renderScheduled;
+
+    // Status shown by the last notify(), only accessed on the main thread
+    private NetworkConnectionState shownState;
+    private VpnAppsUtils.VpnAppsExclusionSetting shownExclusionSetting;
+    private int shownExclusionCount;
+    private volatile long lastNotifyElapsedMillis;
+
+    private class Localized {
+        final Context context;
+        final AppPreferences preferences;
+        final String soundPreferenceKey;
+        final String vibratePreferenceKey;
+        final CharSequence appName;
+        final String statusGroup;
+        final String alertGroup;
+        final String allApps;
+        final String connecting;
+        final String waitingForNetwork;
+        final NotificationCompat.Builder statusBuilder;
+        final NotificationCompat.BigTextStyle statusStyle = new NotificationCompat.BigTextStyle();
+
+        Localized(Context context) {
+            this.context = context;
+            preferences = new AppPreferences(context);
+            soundPreferenceKey = context.getString(R.string.preferenceNotificationsWithSound);
+            vibratePreferenceKey = context.getString(R.string.preferenceNotificationsWithVibrate);
+            appName = context.getText(R.string.app_name);
+            statusGroup = context.getString(R.string.status_notification_group);
+            alertGroup = context.getString(R.string.alert_notification_group);
+            allApps = context.getString(R.string.psiphon_service_notification_message_vpn_all_apps);
+            connecting = context.getString(R.string.psiphon_service_notification_message_connecting);
+            waitingForNetwork = context.getString(R.string.waiting_for_network_connectivity);
+
+            NotificationCompat.Action stopAction = new NotificationCompat.Action.Builder(
+                    R.drawable.ic_btn_stop,
+                    context.getString(R.string.stop),
+                    stopTunnelPendingIntent)
+                    .build();
+            statusBuilder = new NotificationCompat.Builder(context, TunnelManager.NOTIFICATION_CHANNEL_ID)
+                    .setGroup(statusGroup)
+                    .setContentTitle(appName)
+                    .setContentIntent(contentPendingIntent)
+                    .addAction(stopAction)
+                    .setOngoing(true);
+        }
+    }
+
+    ServiceNotificationRenderer(Service service, NotificationManager notificationManager,
+                                PendingIntent contentPendingIntent) {
+        this.notificationManager = notificationManager;
+        this.contentPendingIntent = contentPendingIntent;
+        this.context = service;
+
+        Intent stopTunnelIntent = new Intent(service, service.getClass());
+        stopTunnelIntent.setAction(TunnelManager.INTENT_ACTION_STOP_TUNNEL);
+        this.stopTunnelPendingIntent = PendingIntent.getService(
+                service,
+                0,
+                stopTunnelIntent,
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ?
+                        PendingIntent.FLAG_IMMUTABLE : 0);
+    }
+
+    // Called when the locale changes, the next status update is rendered even if unchanged
+    void setContext(Context context) {
+        this.context = context;
+        this.localized = null;
+        handler.post(() -> shownState = null);
+    }
+
+    private Localized getLocalized() {
+        Localized l = localized;
+        if (l == null || l.context != context) {
+            l = new Localized(context);
+            localized = l;
+        }
+        return l;
+    }
+
+    // May be called from any thread, the notification is posted on the main thread
+    void postStatus(boolean alert, NetworkConnectionState networkConnectionState,
+                    VpnAppsUtils.VpnAppsExclusionSetting exclusionSetting, int exclusionCount) {
+        synchronized (this) {
+            pendingState = networkConnectionState;
+            pendingExclusionSetting = exclusionSetting;
+            pendingExclusionCount = exclusionCount;
+            // Keep the sound and vibration of a coalesced alert
+            pendingAlert |= alert;
+            if (renderScheduled) {
+                return;
+            }
+            renderScheduled = true;
+        }
+        long delay = lastNotifyElapsedMillis + MIN_UPDATE_INTERVAL_MILLIS - SystemClock.elapsedRealtime();
+        handler.postDelayed(renderStatusRunnable, Math.max(0, delay));
+    }
+
+    private void renderStatus() {
+        NetworkConnectionState state;
+        VpnAppsUtils.VpnAppsExclusionSetting exclusionSetting;
+        int exclusionCount;
+        boolean alert;
+        synchronized (this) {
+            state = pendingState;
+            exclusionSetting = pendingExclusionSetting;
+            exclusionCount = pendingExclusionCount;
+            alert = pendingAlert;
+            pendingAlert = false;
+            renderScheduled = false;
+        }
+        if (!alert && state == shownState && exclusionSetting == shownExclusionSetting
+                && exclusionCount == shownExclusionCount) {
+            return;
+        }
+        notificationManager.notify(R.string.psiphon_service_notification_id,
+                buildStatus(alert, state, exclusionSetting, exclusionCount));
+        shownState = state;
+        shownExclusionSetting = exclusionSetting;
+        shownExclusionCount = exclusionCount;
+        lastNotifyElapsedMillis = SystemClock.elapsedRealtime();
+    }
+
+    // Also used for the foreground notification, must be called on the main thread
+    Notification buildStatus(boolean alert, NetworkConnectionState networkConnectionState,
+                             VpnAppsUtils.VpnAppsExclusionSetting exclusionSetting, int exclusionCount) {
+        Localized l = getLocalized();
+        int iconID;
+        CharSequence contentText;
+        CharSequence ticker = null;
+        int defaults = 0;
+
+        if (networkConnectionState == NetworkConnectionState.CONNECTED) {
+            iconID = R.drawable.notification_icon_connected;
+            switch (exclusionSetting) {
+                case INCLUDE_APPS:
+                    contentText = l.context.getResources()
+                            .getQuantityString(R.plurals.psiphon_service_notification_message_vpn_include_apps,
+                                    exclusionCount, exclusionCount);
+                    break;
+                case EXCLUDE_APPS:
+                    contentText = l.context.getResources()
+                            .getQuantityString(R.plurals.psiphon_service_notification_message_vpn_exclude_apps,
+                                    exclusionCount, exclusionCount);
+                    break;
+                case ALL_APPS:
+                default:
+                    contentText = l.allApps;
+                    break;
+            }
+        } else if (networkConnectionState == NetworkConnectionState.WAITING_FOR_NETWORK) {
+            iconID = R.drawable.notification_icon_waiting;
+            contentText = l.waitingForNetwork;
+            ticker = l.waitingForNetwork;
+        } else {
+            iconID = R.drawable.notification_icon_connecting_animation;
+            contentText = l.connecting;
+            ticker = l.connecting;
+        }
+
+        // Only add notification vibration and sound defaults from preferences
+        // when user has access to Sound and Vibration in the app's settings.
+        if (alert && Utils.supportsNotificationSound()) {
+            if (l.preferences.getBoolean(l.soundPreferenceKey, false)) {
+                defaults |= Notification.DEFAULT_SOUND;
+            }
+            if (l.preferences.getBoolean(l.vibratePreferenceKey, false)) {
+                defaults |= Notification.DEFAULT_VIBRATE;
+            }
+        }
+
+        return l.statusBuilder
+                .setSmallIcon(iconID)
+                .setContentText(contentText)
+                .setStyle(l.statusStyle.bigText(contentText))
+                .setTicker(ticker)
+                .setDefaults(defaults)
+                .build();
+    }
+
+    void showUpstreamProxyError(PendingIntent upstreamProxyErrorPendingIntent) {
+        Localized l = getLocalized();
+        String text = l.context.getString(R.string.notification_text_upstream_proxy_error);
+        Notification notification = new NotificationCompat.Builder(l.context, TunnelManager.NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_psiphon_alert_notification)
+                .setGroup(l.alertGroup)
+                .setContentTitle(l.context.getString(R.string.notification_title_upstream_proxy_error))
+                .setContentText(text)
+                .setStyle(new NotificationCompat.BigTextStyle().bigText(text))
+                .setPriority(NotificationCompat.PRIORITY_DEFAULT)
+                .setAutoCancel(true)
+                .setContentIntent(upstreamProxyErrorPendingIntent)
+                .build();
+        notificationManager.notify(R.id.notification_id_upstream_proxy_error, notification);
+    }
+
+    void showUnsafeTrafficAlert(PendingIntent unsafeTrafficPendingIntent) {
+        Localized l = getLocalized();
+        // TODO: use a different notification icon for unsafe traffic alerts?
+        String text = l.context.getString(R.string.unsafe_traffic_alert_notification_message);
+        Notification notification = new NotificationCompat.Builder(l.context, TunnelManager.NOTIFICATION_SERVER_ALERT_CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_psiphon_alert_notification)
+                .setGroup(l.alertGroup)
+                .setContentTitle(l.context.getString(R.string.unsafe_traffic_alert_notification_title))
+                .setContentText(text)
+                .setStyle(new NotificationCompat.BigTextStyle().bigText(text))
+                .setPriority(NotificationCompat.PRIORITY_MAX)
+                .setContentIntent(unsafeTrafficPendingIntent)
+                .setAutoCancel(true)
+                .build();
+        notificationManager.notify(R.id.notification_id_unsafe_traffic_alert, notification);
+    }
+
+    // Drops a pending status update, e.g. when the service is stopping
+    synchronized void cancelPendingStatus() {
+        handler.removeCallbacks(renderStatusRunnable);
+        pendingAlert = false;
+        renderScheduled = false;
+    }
+}
@@ -53,7 +53,6 @@ import com.jakewharton.rxrelay2.PublishRelay;
 import com.psiphon3.Location;
 import com.psiphon3.PsiphonCrashService;
 import com.psiphon3.R;
-import com.psiphon3.PackageHelper;
 import com.psiphon3.TunnelState;
 import com.psiphon3.VpnManager;
 import com.psiphon3.log.MyLog;
@@ -67,12 +66,10 @@ import org.json.JSONObject;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -98,6 +95,7 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         CHANGED_LOCALE,
         NFC_CONNECTION_INFO_EXCHANGE_IMPORT,
         NFC_CONNECTION_INFO_EXCHANGE_EXPORT,
+        RESEND_DATA_TRANSFER_STATS,
     }
 
     // Service -> Client
@@ -125,13 +123,8 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
     static final String DATA_TUNNEL_STATE_CLIENT_REGION = "clientRegion";
     static final String DATA_TUNNEL_STATE_SPONSOR_ID = "sponsorId";
     public static final String DATA_TUNNEL_STATE_HOME_PAGES = "homePages";
-    static final String DATA_TRANSFER_STATS_CONNECTED_TIME = "dataTransferStatsConnectedTime";
-    static final String DATA_TRANSFER_STATS_TOTAL_BYTES_SENT = "dataTransferStatsTotalBytesSent";
-    static final String DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED = "dataTransferStatsTotalBytesReceived";
-    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS = "dataTransferStatsSlowBuckets";
-    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME = "dataTransferStatsSlowBucketsLastStartTime";
-    static final String DATA_TRANSFER_STATS_FAST_BUCKETS = "dataTransferStatsFastBuckets";
-    static final String DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME = "dataTransferStatsFastBucketsLastStartTime";
+    static final String DATA_TRANSFER_STATS_MESSAGE = "dataTransferStatsMessage";
+    static final String DATA_TRANSFER_STATS_APP_TOTALS = "dataTransferStatsAppTotals";
     public static final String DATA_UNSAFE_TRAFFIC_SUBJECTS_LIST = "dataUnsafeTrafficSubjects";
     public static final String DATA_UNSAFE_TRAFFIC_ACTION_URLS_LIST = "dataUnsafeTrafficActionUrls";
     public static final String DATA_NFC_CONNECTION_INFO_EXCHANGE = "dataNfcConnectionInfoExchange";
@@ -174,9 +167,9 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
     private State m_tunnelState = new State();
 
     private NotificationManager mNotificationManager = null;
-    private final static String NOTIFICATION_CHANNEL_ID = "psiphon_notification_channel";
+    final static String NOTIFICATION_CHANNEL_ID = "psiphon_notification_channel";
     private final static String NOTIFICATION_SERVER_ALERT_CHANNEL_ID_OLD = "psiphon_server_alert_notification_channel";
-    private final static String NOTIFICATION_SERVER_ALERT_CHANNEL_ID = "psiphon_server_alert_new_notification_channel";
+    final static String NOTIFICATION_SERVER_ALERT_CHANNEL_ID = "psiphon_server_alert_new_notification_channel";
     private Service m_parentService;
 
     private Context m_context;
@@ -186,10 +179,15 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
     private final AtomicBoolean m_isStopping;
     private PsiphonTunnel m_tunnel;
     private VpnManager m_vpnManager = VpnManager.getInstance();
+    private AppTrafficAccounting m_appTrafficAccounting;
     private String m_lastUpstreamProxyErrorMessage;
     private Handler m_Handler = new Handler();
+    // Diagnostics and byte counts, everything else is handled on m_Handler
+    private final HostEventDispatcher m_hostEventDispatcher = new HostEventDispatcher();
 
     private PendingIntent m_notificationPendingIntent;
+    private PendingIntent m_upstreamProxyErrorPendingIntent;
+    private ServiceNotificationRenderer m_notificationRenderer;
 
     private PublishRelay<TunnelState.ConnectionData.NetworkConnectionState> m_networkConnectionStatePublishRelay = PublishRelay.create();
     private final PublishRelay<Boolean> m_isRoutingThroughTunnelPublishRelay = PublishRelay.create();
@@ -212,9 +210,12 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         // passed via hostService is available for potential Context-dependent operations that the
         // PsiphonTunnel may perform internally at any time.
         m_tunnel = PsiphonTunnel.newPsiphonTunnel(this);
+        m_hostEventDispatcher.start();
 
         // Register self as a host service for the VPN manager
         m_vpnManager.registerHostService(this);
+        m_vpnManager.setTcpBufferProfile(VpnManager.TcpBufferProfile.forDevice(getContext()));
+        m_appTrafficAccounting = new AppTrafficAccounting(getContext(), m_vpnManager);
 
         m_notificationPendingIntent = getPendingIntent(m_parentService, INTENT_ACTION_VIEW);
 
@@ -238,14 +239,19 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                 mNotificationManager.createNotificationChannel(notificationChannel);
             }
         }
+        m_notificationRenderer = new ServiceNotificationRenderer(m_parentService, mNotificationManager, m_notificationPendingIntent);
+        m_notificationRenderer.setContext(getContext());
 
+        Notification foregroundNotification = m_notificationRenderer.buildStatus(false,
+                TunnelState.ConnectionData.NetworkConnectionState.CONNECTING,
+                vpnAppsExclusionSetting, vpnAppsExclusionCount);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
             m_parentService.startForeground(R.string.psiphon_service_notification_id,
-                    createNotification(false, TunnelState.ConnectionData.NetworkConnectionState.CONNECTING),
+                    foregroundNotification,
                     ServiceInfo.FOREGROUND_SERVICE_TYPE_SPECIAL_USE);
         } else {
             m_parentService.startForeground(R.string.psiphon_service_notification_id,
-                    createNotification(false, TunnelState.ConnectionData.NetworkConnectionState.CONNECTING));
+                    foregroundNotification);
         }
 
         m_tunnelState.isRunning = true;
@@ -385,6 +391,10 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
 
     // Implementation of android.app.Service.onDestroy
     void onDestroy() {
+        if (m_notificationRenderer != null) {
+            // Don't post a coalesced status update after the notification is cancelled
+            m_notificationRenderer.cancelPendingStatus();
+        }
         if (mNotificationManager != null) {
             // Cancel main service notification
             mNotificationManager.cancel(R.string.psiphon_service_notification_id);
@@ -393,6 +403,8 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         }
 
         stopAndWaitForTunnel();
+        // Events posted by the stopped tunnel are still dispatched
+        m_hostEventDispatcher.stop();
         m_compositeDisposable.dispose();
         // Unregister host service for the VPN manager
         m_vpnManager.unregisterHostService();
@@ -528,86 +540,6 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         return Single.zip(configSingle, geoHashSingle, zipper);
     }
 
-    private Notification createNotification(
-            boolean alert,
-            TunnelState.ConnectionData.NetworkConnectionState networkConnectionState) {
-        int iconID;
-        CharSequence contentText;
-        CharSequence ticker = null;
-        int defaults = 0;
-
-        if (networkConnectionState == TunnelState.ConnectionData.NetworkConnectionState.CONNECTED) {
-            iconID = R.drawable.notification_icon_connected;
-            switch (vpnAppsExclusionSetting) {
-                case INCLUDE_APPS:
-                    contentText = getContext().getResources()
-                            .getQuantityString(R.plurals.psiphon_service_notification_message_vpn_include_apps,
-                                    vpnAppsExclusionCount, vpnAppsExclusionCount);
-                    break;
-                case EXCLUDE_APPS:
-                    contentText = getContext().getResources()
-                            .getQuantityString(R.plurals.psiphon_service_notification_message_vpn_exclude_apps,
-                                    vpnAppsExclusionCount, vpnAppsExclusionCount);
-                    break;
-                case ALL_APPS:
-                default:
-                    contentText = getContext().getString(R.string.psiphon_service_notification_message_vpn_all_apps);
-                    break;
-            }
-        } else if (networkConnectionState == TunnelState.ConnectionData.NetworkConnectionState.WAITING_FOR_NETWORK) {
-            iconID = R.drawable.notification_icon_waiting;
-            contentText = getContext().getString(R.string.waiting_for_network_connectivity);
-            ticker = getContext().getText(R.string.waiting_for_network_connectivity);
-        } else {
-            iconID = R.drawable.notification_icon_connecting_animation;
-            contentText = getContext().getString(R.string.psiphon_service_notification_message_connecting);
-            ticker = getContext().getText(R.string.psiphon_service_notification_message_connecting);
-        }
-
-        // Only add notification vibration and sound defaults from preferences
-        // when user has access to Sound and Vibration in the app's settings.
-        if (alert && Utils.supportsNotificationSound()) {
-            final AppPreferences multiProcessPreferences = new AppPreferences(getContext());
-
-            if (multiProcessPreferences.getBoolean(
-                    getContext().getString(R.string.preferenceNotificationsWithSound), false)) {
-                defaults |= Notification.DEFAULT_SOUND;
-            }
-            if (multiProcessPreferences.getBoolean(
-                    getContext().getString(R.string.preferenceNotificationsWithVibrate), false)) {
-                defaults |= Notification.DEFAULT_VIBRATE;
-            }
-        }
-
-        Intent stopTunnelIntent = new Intent(getContext(), m_parentService.getClass());
-        stopTunnelIntent.setAction(INTENT_ACTION_STOP_TUNNEL);
-        PendingIntent stopTunnelPendingIntent = PendingIntent.getService(
-                getContext(),
-                0,
-                stopTunnelIntent,
-                Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ?
-                        PendingIntent.FLAG_IMMUTABLE : 0);
-        NotificationCompat.Action notificationAction = new NotificationCompat.Action.Builder(
-                R.drawable.ic_btn_stop,
-                getContext().getString(R.string.stop),
-                stopTunnelPendingIntent)
-                .build();
-
-        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(getContext(), NOTIFICATION_CHANNEL_ID);
-        return notificationBuilder
-                .setSmallIcon(iconID)
-                .setGroup(getContext().getString(R.string.status_notification_group))
-                .setContentTitle(getContext().getText(R.string.app_name))
-                .setContentText(contentText)
-                .setStyle(new NotificationCompat.BigTextStyle().bigText(contentText))
-                .setTicker(ticker)
-                .setDefaults(defaults)
-                .setContentIntent(m_notificationPendingIntent)
-                .addAction(notificationAction)
-                .setOngoing(true)
-                .build();
-    }
-
     /**
      * Update the context used to get resources with the passed context
      *
@@ -615,21 +547,17 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
      */
     void updateContext(Context context) {
         m_context = context;
+        if (m_notificationRenderer != null) {
+            m_notificationRenderer.setContext(context);
+        }
     }
 
-    private synchronized void postServiceNotification(
+    private void postServiceNotification(
             boolean alert,
             TunnelState.ConnectionData.NetworkConnectionState networkConnectionState) {
-        if (mNotificationManager != null) {
-            m_Handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    Notification notification = createNotification(alert, networkConnectionState);
-                    mNotificationManager.notify(
-                            R.string.psiphon_service_notification_id,
-                            notification);
-                }
-            });
+        if (m_notificationRenderer != null) {
+            m_notificationRenderer.postStatus(alert, networkConnectionState,
+                    vpnAppsExclusionSetting, vpnAppsExclusionCount);
         }
     }
 
@@ -696,7 +624,7 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                         messageList.add(manager.composeClientMessage(ServiceToClientMessage.TUNNEL_CONNECTION_STATE.ordinal(),
                                 manager.getTunnelStateBundle()));
                         messageList.add(manager.composeClientMessage(ServiceToClientMessage.DATA_TRANSFER_STATS.ordinal(),
-                                manager.getDataTransferStatsBundle()));
+                                getDataTransferStatsBundle(DataTransferStats.getDataTransferStatsForService().lastFullMessage())));
                         for (Message message : messageList) {
                             try {
                                 client.send(message);
@@ -788,6 +716,22 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                         }
                         break;
 
+                case RESEND_DATA_TRANSFER_STATS:
+                    if (manager != null) {
+                        // Client could not apply a data stats delta, send it the full stats
+                        MessengerWrapper client = manager.mClients.get(msg.replyTo.hashCode());
+                        if (client != null) {
+                            Message message = manager.composeClientMessage(
+                                    ServiceToClientMessage.DATA_TRANSFER_STATS.ordinal(),
+                                    getDataTransferStatsBundle(DataTransferStats.getDataTransferStatsForService().lastFullMessage()));
+                            try {
+                                client.send(message);
+                            } catch (RemoteException ignored) {
+                            }
+                        }
+                    }
+                    break;
+
                 default:
                     super.handleMessage(msg);
             }
@@ -798,9 +742,9 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         LocaleManager localeManager = LocaleManager.getInstance(manager.m_parentService);
         String languageCode = localeManager.getLanguage();
         if (localeManager.isSystemLocale(languageCode)) {
-            manager.m_context = localeManager.resetToSystemLocale(manager.m_parentService);
+            manager.updateContext(localeManager.resetToSystemLocale(manager.m_parentService));
         } else {
-            manager.m_context = localeManager.setNewLocale(manager.m_parentService, languageCode);
+            manager.updateContext(localeManager.setNewLocale(manager.m_parentService, languageCode));
         }
         manager.updateNotifications();
         // Also update upgrade notifications
@@ -868,15 +812,11 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         return data;
     }
 
-    private Bundle getDataTransferStatsBundle() {
+    private static Bundle getDataTransferStatsBundle(long[] message) {
         Bundle data = new Bundle();
-        data.putLong(DATA_TRANSFER_STATS_CONNECTED_TIME, DataTransferStats.getDataTransferStatsForService().m_connectedTime);
-        data.putLong(DATA_TRANSFER_STATS_TOTAL_BYTES_SENT, DataTransferStats.getDataTransferStatsForService().m_totalBytesSent);
-        data.putLong(DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED, DataTransferStats.getDataTransferStatsForService().m_totalBytesReceived);
-        data.putParcelableArrayList(DATA_TRANSFER_STATS_SLOW_BUCKETS, DataTransferStats.getDataTransferStatsForService().m_slowBuckets);
-        data.putLong(DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME, DataTransferStats.getDataTransferStatsForService().m_slowBucketsLastStartTime);
-        data.putParcelableArrayList(DATA_TRANSFER_STATS_FAST_BUCKETS, DataTransferStats.getDataTransferStatsForService().m_fastBuckets);
-        data.putLong(DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME, DataTransferStats.getDataTransferStatsForService().m_fastBucketsLastStartTime);
+        data.putLongArray(DATA_TRANSFER_STATS_MESSAGE, message);
+        data.putLongArray(DATA_TRANSFER_STATS_APP_TOTALS,
+                DataTransferStats.getDataTransferStatsForService().appTotalsMessage());
         return data;
     }
 
@@ -901,7 +841,8 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
     private Runnable sendDataTransferStats = new Runnable() {
         @Override
         public void run() {
-            sendClientMessage(ServiceToClientMessage.DATA_TRANSFER_STATS.ordinal(), getDataTransferStatsBundle());
+            sendClientMessage(ServiceToClientMessage.DATA_TRANSFER_STATS.ordinal(),
+                    getDataTransferStatsBundle(DataTransferStats.getDataTransferStatsForService().nextDeltaMessage()));
             sendDataTransferStatsHandler.postDelayed(this, sendDataTransferStatsIntervalMs);
         }
     };
@@ -930,6 +871,7 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
 
         try {
             m_vpnManager.vpnEstablish();
+            m_appTrafficAccounting.start();
             MyLog.i(R.string.vpn_service_running, MyLog.Sensitivity.NOT_SENSITIVE);
 
             m_tunnel.setVpnMode(true);
@@ -957,6 +899,8 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
             m_isRoutingThroughTunnelPublishRelay.accept(false);
             m_vpnManager.vpnTeardown();
             m_tunnel.stop();
+            // Accounts the connections tun2socks closed on teardown
+            m_appTrafficAccounting.stop();
 
             sendDataTransferStatsHandler.removeCallbacks(sendDataTransferStats);
             DataTransferStats.getDataTransferStatsForService().stop();
@@ -1018,185 +962,34 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         }
 
         Context context = getContext();
-        PackageManager pm = context.getPackageManager();
-
-        switch (VpnAppsUtils.getVpnAppsExclusionMode(context)) {
-            case ALL_APPS:
-                vpnAppsExclusionSetting = VpnAppsUtils.VpnAppsExclusionSetting.ALL_APPS;
-                vpnAppsExclusionCount = 0;
-                break;
-
-            case INCLUDE_APPS:
-                Set<String> includedApps = VpnAppsUtils.getUserAppsIncludedInVpn(context);
-                int includedAppsCount = includedApps.size();
-                // allow the selected apps
-                for (Iterator<String> iterator = includedApps.iterator(); iterator.hasNext(); ) {
-                    String packageId = iterator.next();
-                    // VpnBuilder.addAllowedApplication() is supposed to throw NameNotFoundException
-                    // in case the app is no longer available but we observed this is not the case.
-                    // Therefore we will perform our own check first
-                    if (!PackageHelper.isPackageInstalled(pm, packageId)) {
-                        // If the app is no longer installed, remove it from the list
-                        iterator.remove();
-                        continue;
-                    }
-
-                    try {
-                        vpnBuilder.addAllowedApplication(packageId);
-                        MyLog.i(R.string.individual_app_included, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS, packageId);
-                    } catch (PackageManager.NameNotFoundException e) {
-                        iterator.remove();
-                        MyLog.w("TunnelManager: VpnBuilder: failed to add " + packageId + " to allowed VPN applications, package not found");
-                    }
-                }
-                // If some packages are no longer installed, updated persisted set
-                if (includedAppsCount != includedApps.size()) {
-                    VpnAppsUtils.setUserAppsToIncludeInVpn(context, includedApps);
-                    includedAppsCount = includedApps.size();
-                }
+        // Resolving the app routing requires package manager calls and signature checks for every
+        // package, the plan is cached and only rebuilt when the settings or the packages change
+        VpnAppsRoutingPlan plan = VpnAppsRoutingPlan.get(context);
+        vpnAppsExclusionSetting = plan.exclusionSetting;
+        vpnAppsExclusionCount = plan.exclusionCount;
 
-                if (includedAppsCount > 0) {
-                    // If there are included apps, set the exclusion mode to INCLUDE_APPS
-                    // and add the default included apps to the list
-                    vpnAppsExclusionSetting = VpnAppsUtils.VpnAppsExclusionSetting.INCLUDE_APPS;
-                    Set<String> defaultIncludedApps = VpnAppsUtils.getDefaultAppsIncludedInVpn();
-                    for (String packageId : defaultIncludedApps) {
-                        // Check if the app is installed before checking the signature
-                        if (!PackageHelper.isPackageInstalled(pm, packageId)) {
-                            continue;
-                        }
-
-                        if (PackageHelper.verifyTrustedPackage(pm, packageId)) {
-                            try {
-                                vpnBuilder.addAllowedApplication(packageId);
-                                // Output the package name of the app that is included by default; do not update the count
-                                MyLog.i(R.string.individual_app_included, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS,
-                                        packageId);
-                            } catch (PackageManager.NameNotFoundException e) {
-                                MyLog.w("TunnelManager: VpnBuilder: failed to add " + packageId + " to allowed VPN applications, package not found");
-                            }
-                        } else {
-                            MyLog.w("TunnelManager: VpnBuilder: failed to add " + packageId + " to allowed VPN applications, trust verification failed");
-                        }
-                    }
-
-                    // Also always include the Psiphon app itself in this mode
-                    // Note that we are not checking if the app is installed here, we trust that self is always installed
-                    // and log a warning if it is not (should never happen)
-                    try {
-                        vpnBuilder.addAllowedApplication(context.getPackageName());
-                        MyLog.i(R.string.individual_app_included, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS,
-                                context.getPackageName());
-                    } catch (PackageManager.NameNotFoundException e) {
-                        MyLog.w("TunnelManager: VpnBuilder: failed to add self to allowed VPN applications, package not found");
-                    }
-                } else {
-                    // If there are no apps to include, set the exclusion mode to ALL_APPS
-                    // Note that we will be excluding default excluded apps in this case later.
-                    vpnAppsExclusionSetting = VpnAppsUtils.VpnAppsExclusionSetting.ALL_APPS;
-                }
-
-                vpnAppsExclusionCount = includedAppsCount;
-                break;
-
-            case EXCLUDE_APPS:
-                Set<String> excludedApps = VpnAppsUtils.getUserAppsExcludedFromVpn(context);
-                int excludedAppsCount = excludedApps.size();
-                // disallow the selected apps
-                for (Iterator<String> iterator = excludedApps.iterator(); iterator.hasNext(); ) {
-                    String packageId = iterator.next();
-                    // VpnBuilder.addDisallowedApplication() is supposed to throw NameNotFoundException
-                    // in case the app is no longer available but we observed this is not the case.
-                    // Therefore we will perform our own check first.
-                    if (!PackageHelper.isPackageInstalled(pm, packageId)) {
-                        // If the app is no longer installed, remove it from the list
-                        iterator.remove();
-                        continue;
-                    }
-
-                    try {
-                        vpnBuilder.addDisallowedApplication(packageId);
-                        MyLog.i(R.string.individual_app_excluded, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS,
-                                packageId);
-                    } catch (PackageManager.NameNotFoundException e) {
-                        iterator.remove();
-                        MyLog.w("TunnelManager: VpnBuilder: failed to add " + packageId + " to disallowed VPN applications, package not found");
-                    }
-                }
-                // If some packages are no longer installed update persisted set
-                if (excludedAppsCount != excludedApps.size()) {
-                    VpnAppsUtils.setUserAppsToExcludeFromVpn(context, excludedApps);
-                    excludedAppsCount = excludedApps.size();
-                }
-
-                if (excludedAppsCount > 0) {
-                    // If there are excluded apps, set the exclusion mode to EXCLUDE_APPS
-                    // and add the default excluded apps to the list
-                    vpnAppsExclusionSetting = VpnAppsUtils.VpnAppsExclusionSetting.EXCLUDE_APPS;
-                    Set<String> defaultExcludedApps = VpnAppsUtils.getDefaultAppsExcludedFromVpn();
-
-                    for (String packageId : defaultExcludedApps) {
-                        // Check if the app is installed before checking the signature
-                        if (!PackageHelper.isPackageInstalled(pm, packageId)) {
-                            continue;
-                        }
-
-                        if (PackageHelper.verifyTrustedPackage(pm, packageId)) {
-                            try {
-                                vpnBuilder.addDisallowedApplication(packageId);
-                                // Output the package name of the app that is excluded by default; do not update the count
-                                MyLog.i(R.string.individual_app_excluded, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS,
-                                        packageId);
-                            } catch (PackageManager.NameNotFoundException e) {
-                                MyLog.w("TunnelManager: VpnBuilder: failed to add " + packageId + " to disallowed VPN applications, package not found");
-                            }
-                        } else {
-                            MyLog.w("TunnelManager: VpnBuilder: failed to add " + packageId + " to disallowed VPN applications, trust verification failed");
-                        }
-                    }
-                } else {
-                    // If there are no apps to exclude, set the exclusion mode to ALL_APPS
-                    // Note that we will be excluding default excluded apps in this case later.
-                    vpnAppsExclusionSetting = VpnAppsUtils.VpnAppsExclusionSetting.ALL_APPS;
-                }
-
-                vpnAppsExclusionCount = excludedAppsCount;
-                break;
+        for (String packageId : plan.allowedApps) {
+            try {
+                vpnBuilder.addAllowedApplication(packageId);
+                MyLog.i(R.string.individual_app_included, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS, packageId);
+            } catch (PackageManager.NameNotFoundException e) {
+                // The package was removed after the plan was built, rebuild it next time
+                VpnAppsRoutingPlan.invalidate(context);
+                MyLog.w("TunnelManager: VpnBuilder: failed to add " + packageId + " to allowed VPN applications, package not found");
+            }
         }
-
-        // If we are in ALL_APPS mode then disallow apps that should not be tunneled by default if the device supports
-        // VPN exclusions.
-        if (vpnAppsExclusionSetting == VpnAppsUtils.VpnAppsExclusionSetting.ALL_APPS) {
-            if (Utils.supportsVpnExclusions()) {
-                Set<String> defaultExcludedApps = VpnAppsUtils.getDefaultAppsExcludedFromVpn();
-                // If there are no default excluded apps, output no apps excluded message
-                if (defaultExcludedApps.isEmpty()) {
-                    MyLog.i(R.string.no_apps_excluded, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS);
-                } else {
-                    for (String packageId : defaultExcludedApps) {
-                        // Check if the app is installed before checking the signature
-                        if (!PackageHelper.isPackageInstalled(pm, packageId)) {
-                            continue;
-                        }
-                        if (PackageHelper.verifyTrustedPackage(pm, packageId)) {
-                            try {
-                                vpnBuilder.addDisallowedApplication(packageId);
-                                // Output the package name of the app that is excluded
-                                MyLog.i(R.string.individual_app_excluded, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS,
-                                        packageId);
-                            } catch (PackageManager.NameNotFoundException e) {
-                                MyLog.w("TunnelManager: VpnBuilder: failed to add " + packageId + " to disallowed VPN applications, package not found");
-                            }
-                        } else {
-                            MyLog.w("TunnelManager: VpnBuilder: failed to add " + packageId + " to disallowed VPN applications, trust verification failed");
-                        }
-                    }
-                }
-            } else {
-                // If the device does not support VPN exclusions, output no apps excluded message
-                MyLog.i(R.string.no_apps_excluded, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS);
+        for (String packageId : plan.disallowedApps) {
+            try {
+                vpnBuilder.addDisallowedApplication(packageId);
+                MyLog.i(R.string.individual_app_excluded, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS, packageId);
+            } catch (PackageManager.NameNotFoundException e) {
+                VpnAppsRoutingPlan.invalidate(context);
+                MyLog.w("TunnelManager: VpnBuilder: failed to add " + packageId + " to disallowed VPN applications, package not found");
             }
         }
+        if (plan.noAppsExcluded) {
+            MyLog.i(R.string.no_apps_excluded, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS);
+        }
 
         return vpnBuilder;
     }
@@ -1221,38 +1014,24 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
             String tempTunnelName) {
         boolean temporaryTunnel = tempTunnelName != null && !tempTunnelName.isEmpty();
 
+        // The values which only depend on the embedded values are serialized once, the JSON object
+        // built here only holds the values which may change between calls
+        String[] templates = getTunnelCoreConfigTemplates();
+        if (templates == null) {
+            return null;
+        }
+
         JSONObject json = new JSONObject();
 
         try {
 
-            json.put("ClientVersion", EmbeddedValues.CLIENT_VERSION);
-
-            if (UpgradeChecker.upgradeCheckNeeded(context)) {
-
-                json.put("UpgradeDownloadURLs", new JSONArray(EmbeddedValues.UPGRADE_URLS_JSON));
-
-                json.put("UpgradeDownloadClientVersionHeader", "x-amz-meta-psiphon-client-version");
-
-                json.put("EnableUpgradeDownload", true);
-            }
+            boolean upgradeCheckNeeded = UpgradeChecker.upgradeCheckNeeded(context);
 
             json.put("MigrateUpgradeDownloadFilename",
                     new UpgradeManager.OldDownloadedUpgradeFile(context).getFullPath());
 
-            json.put("PropagationChannelId", EmbeddedValues.PROPAGATION_CHANNEL_ID);
-
             json.put("SponsorId", tunnelConfig.sponsorId);
 
-            json.put("RemoteServerListURLs", new JSONArray(EmbeddedValues.REMOTE_SERVER_LIST_URLS_JSON));
-
-            json.put("ObfuscatedServerListRootURLs", new JSONArray(EmbeddedValues.OBFUSCATED_SERVER_LIST_ROOT_URLS_JSON));
-
-            json.put("RemoteServerListSignaturePublicKey", EmbeddedValues.REMOTE_SERVER_LIST_SIGNATURE_PUBLIC_KEY);
-
-            json.put("ServerEntrySignaturePublicKey", EmbeddedValues.SERVER_ENTRY_SIGNATURE_PUBLIC_KEY);
-
-            json.put("ExchangeObfuscationKey", EmbeddedValues.SERVER_ENTRY_EXCHANGE_OBFUSCATION_KEY);
-
             if (useUpstreamProxy) {
                 if (UpstreamProxySettings.getUseHTTPProxy(context)) {
                     if (UpstreamProxySettings.getProxySettings(context) != null) {
@@ -1261,16 +1040,6 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                 }
             }
 
-            json.put("EmitDiagnosticNotices", true);
-
-            json.put("EmitDiagnosticNetworkParameters", true);
-
-            json.put("FeedbackUploadURLs", new JSONArray(EmbeddedValues.FEEDBACK_DIAGNOSTIC_INFO_UPLOAD_URLS_JSON));
-            json.put("FeedbackEncryptionPublicKey", EmbeddedValues.FEEDBACK_ENCRYPTION_PUBLIC_KEY);
-            json.put("EnableFeedbackUpload", true);
-
-            json.put("AdditionalParameters", EmbeddedValues.ADDITIONAL_PARAMETERS);
-
             // If this is a temporary tunnel (like for UpgradeChecker) we need to override some of
             // the implicit config values.
             if (temporaryTunnel) {
@@ -1316,8 +1085,6 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                 json.put("NetworkLatencyMultiplierLambda", 0.1);
             }
 
-            json.put("EmitServerAlerts", true);
-
             JSONArray clientFeaturesJsonArray = new JSONArray();
 
             AppPreferences mp = new AppPreferences(context);
@@ -1335,15 +1102,81 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                 json.put("ClientFeatures", clientFeaturesJsonArray);
             }
 
-            json.put("DNSResolverAlternateServers", new JSONArray("[\"1.1.1.1\", \"1.0.0.1\", \"8.8.8.8\", \"8.8.4.4\"]"));
-
             if (!TextUtils.isEmpty(tunnelConfig.deviceLocation)) {
                 json.put("DeviceLocation", tunnelConfig.deviceLocation);
             }
 
+            // Merge the templates and the per call values, they have no names in common
+            String values = json.toString();
+            StringBuilder config = new StringBuilder(templates[0].length() + templates[1].length() + values.length() + 2)
+                    .append('{').append(templates[0]);
+            if (upgradeCheckNeeded) {
+                config.append(',').append(templates[1]);
+            }
+            return config.append(',').append(values, 1, values.length()).toString();
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private static String[] tunnelCoreConfigTemplates;
+
+    /**
+     * @return the members of the tunnel-core config which only depend on the embedded values,
+     * serialized without the enclosing braces: the values used by all configs and the values used
+     * when an upgrade check is needed. null on error.
+     */
+    private static synchronized String[] getTunnelCoreConfigTemplates() {
+        if (tunnelCoreConfigTemplates != null) {
+            return tunnelCoreConfigTemplates;
+        }
+        try {
+            JSONObject json = new JSONObject();
+
+            json.put("ClientVersion", EmbeddedValues.CLIENT_VERSION);
+
+            json.put("PropagationChannelId", EmbeddedValues.PROPAGATION_CHANNEL_ID);
+
+            json.put("RemoteServerListURLs", new JSONArray(EmbeddedValues.REMOTE_SERVER_LIST_URLS_JSON));
+
+            json.put("ObfuscatedServerListRootURLs", new JSONArray(EmbeddedValues.OBFUSCATED_SERVER_LIST_ROOT_URLS_JSON));
+
+            json.put("RemoteServerListSignaturePublicKey", EmbeddedValues.REMOTE_SERVER_LIST_SIGNATURE_PUBLIC_KEY);
+
+            json.put("ServerEntrySignaturePublicKey", EmbeddedValues.SERVER_ENTRY_SIGNATURE_PUBLIC_KEY);
+
+            json.put("ExchangeObfuscationKey", EmbeddedValues.SERVER_ENTRY_EXCHANGE_OBFUSCATION_KEY);
+
+            json.put("EmitDiagnosticNotices", true);
+
+            json.put("EmitDiagnosticNetworkParameters", true);
+
+            json.put("FeedbackUploadURLs", new JSONArray(EmbeddedValues.FEEDBACK_DIAGNOSTIC_INFO_UPLOAD_URLS_JSON));
+            json.put("FeedbackEncryptionPublicKey", EmbeddedValues.FEEDBACK_ENCRYPTION_PUBLIC_KEY);
+            json.put("EnableFeedbackUpload", true);
+
+            json.put("AdditionalParameters", EmbeddedValues.ADDITIONAL_PARAMETERS);
+
+            json.put("EmitServerAlerts", true);
+
+            json.put("DNSResolverAlternateServers", new JSONArray("[\"1.1.1.1\", \"1.0.0.1\", \"8.8.8.8\", \"8.8.4.4\"]"));
+
             json.put("EmitBytesTransferred", true);
 
-            return json.toString();
+            JSONObject upgradeJson = new JSONObject();
+
+            upgradeJson.put("UpgradeDownloadURLs", new JSONArray(EmbeddedValues.UPGRADE_URLS_JSON));
+
+            upgradeJson.put("UpgradeDownloadClientVersionHeader", "x-amz-meta-psiphon-client-version");
+
+            upgradeJson.put("EnableUpgradeDownload", true);
+
+            String template = json.toString();
+            String upgradeTemplate = upgradeJson.toString();
+            tunnelCoreConfigTemplates = new String[]{
+                    template.substring(1, template.length() - 1),
+                    upgradeTemplate.substring(1, upgradeTemplate.length() - 1)};
+            return tunnelCoreConfigTemplates;
         } catch (JSONException e) {
             return null;
         }
@@ -1366,24 +1199,25 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
      * Configure tunnel with appropriate client platform affixes (i.e., the main Psiphon app
      * tunnel and the UpgradeChecker temp tunnel).
      *
+     * @param context
      * @param tunnel
      * @param clientPlatformPrefix null if not applicable (i.e., for main Psiphon app); should be provided
      *                             for temp tunnels. Will be prepended to standard client platform value.
      */
-    static public void setPlatformAffixes(PsiphonTunnel tunnel, String clientPlatformPrefix) {
+    static public void setPlatformAffixes(Context context, PsiphonTunnel tunnel, String clientPlatformPrefix) {
         String prefix = "";
         if (clientPlatformPrefix != null && !clientPlatformPrefix.isEmpty()) {
             prefix = clientPlatformPrefix;
         }
 
-        String suffix = Utils.getClientPlatformSuffix();
+        String suffix = Utils.getClientPlatformSuffix(context);
 
         tunnel.setClientPlatformAffixes(prefix, suffix);
     }
 
     @Override
     public String getPsiphonConfig() {
-        setPlatformAffixes(m_tunnel, null);
+        setPlatformAffixes(getContext(), m_tunnel, null);
         String config = buildTunnelCoreConfig(getContext(), m_tunnelConfig, true, null);
         return config == null ? "" : config;
     }
@@ -1391,13 +1225,7 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
     @Override
     public void onDiagnosticMessage(final String message) {
         // Get timestamp ASAP for improved accuracy.
-        final Date now = new Date();
-        m_Handler.post(new Runnable() {
-            @Override
-            public void run() {
-                MyLog.i(now, message);
-            }
-        });
+        m_hostEventDispatcher.postDiagnosticMessage(System.currentTimeMillis(), message);
     }
 
     @Override
@@ -1515,7 +1343,10 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                     MyLog.w(R.string.upstream_proxy_error, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS, message);
                     m_lastUpstreamProxyErrorMessage = message;
 
-                    PendingIntent upstreamProxyErrorPendingIntent = getPendingIntent(m_parentService, INTENT_ACTION_UPSTREAM_PROXY_ERROR);
+                    if (m_upstreamProxyErrorPendingIntent == null) {
+                        m_upstreamProxyErrorPendingIntent = getPendingIntent(m_parentService, INTENT_ACTION_UPSTREAM_PROXY_ERROR);
+                    }
+                    PendingIntent upstreamProxyErrorPendingIntent = m_upstreamProxyErrorPendingIntent;
 
                     // If Android < 10 or there is a live activity client then send the intent right away,
                     // otherwise show a notification.
@@ -1526,22 +1357,10 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                             MyLog.w("upstreamProxyErrorPendingIntent send failed: " + e);
                         }
                     } else {
-                        if (mNotificationManager == null) {
+                        if (m_notificationRenderer == null) {
                             return;
                         }
-
-                        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(getContext(), NOTIFICATION_CHANNEL_ID);
-                        notificationBuilder
-                                .setSmallIcon(R.drawable.ic_psiphon_alert_notification)
-                                .setGroup(getContext().getString(R.string.alert_notification_group))
-                                .setContentTitle(getContext().getString(R.string.notification_title_upstream_proxy_error))
-                                .setContentText(getContext().getString(R.string.notification_text_upstream_proxy_error))
-                                .setStyle(new NotificationCompat.BigTextStyle()
-                                        .bigText(getContext().getString(R.string.notification_text_upstream_proxy_error)))
-                                .setPriority(NotificationCompat.PRIORITY_DEFAULT)
-                                .setAutoCancel(true)
-                                .setContentIntent(upstreamProxyErrorPendingIntent);
-                        mNotificationManager.notify(R.id.notification_id_upstream_proxy_error, notificationBuilder.build());
+                        m_notificationRenderer.showUpstreamProxyError(upstreamProxyErrorPendingIntent);
                     }
                 }
             }
@@ -1622,24 +1441,12 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
 
     @Override
     public void onUntunneledAddress(final String address) {
-        m_Handler.post(new Runnable() {
-            @Override
-            public void run() {
-                MyLog.i(R.string.untunneled_address, MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS, address);
-            }
-        });
+        m_hostEventDispatcher.postUntunneledAddress(address);
     }
 
     @Override
     public void onBytesTransferred(final long sent, final long received) {
-        m_Handler.post(new Runnable() {
-            @Override
-            public void run() {
-                DataTransferStats.DataTransferStatsForService stats = DataTransferStats.getDataTransferStatsForService();
-                stats.addBytesSent(sent);
-                stats.addBytesReceived(received);
-            }
-        });
+        m_hostEventDispatcher.postBytesTransferred(sent, received);
     }
 
     @Override
@@ -1689,21 +1496,9 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                     unsafeTrafficAlertExtras.putStringArrayList(DATA_UNSAFE_TRAFFIC_SUBJECTS_LIST, new ArrayList<>(unsafeTrafficSubjects));
                     unsafeTrafficAlertExtras.putStringArrayList(DATA_UNSAFE_TRAFFIC_ACTION_URLS_LIST, new ArrayList<>(actionURLs));
 
-                    // TODO: use a different notification icon for unsafe traffic alerts?
-                    String notificationMessage = context.getString(R.string.unsafe_traffic_alert_notification_message);
-                    Notification notification = new NotificationCompat.Builder(context, NOTIFICATION_SERVER_ALERT_CHANNEL_ID)
-                            .setSmallIcon(R.drawable.ic_psiphon_alert_notification)
-                            .setGroup(getContext().getString(R.string.alert_notification_group))
-                            .setContentTitle(context.getString(R.string.unsafe_traffic_alert_notification_title))
-                            .setContentText(notificationMessage)
-                            .setStyle(new NotificationCompat.BigTextStyle().bigText(notificationMessage))
-                            .setPriority(NotificationCompat.PRIORITY_MAX)
-                            .setContentIntent(getPendingIntent(m_parentService, INTENT_ACTION_UNSAFE_TRAFFIC, unsafeTrafficAlertExtras))
-                            .setAutoCancel(true)
-                            .build();
-
-                    if (mNotificationManager != null) {
-                        mNotificationManager.notify(R.id.notification_id_unsafe_traffic_alert, notification);
+                    if (m_notificationRenderer != null) {
+                        m_notificationRenderer.showUnsafeTrafficAlert(
+                                getPendingIntent(m_parentService, INTENT_ACTION_UNSAFE_TRAFFIC, unsafeTrafficAlertExtras));
                     }
                 });
             }
@@ -293,18 +293,20 @@ public class TunnelServiceInteractor {
         return tunnelState;
     }
 
-    private static void getDataTransferStatsFromBundle(Bundle data) {
+    // Returns false if the stats could not be applied and should be requested again in full
+    private static boolean getDataTransferStatsFromBundle(Bundle data) {
         if (data == null) {
-            return;
+            return true;
+        }
+        long[] message = data.getLongArray(TunnelManager.DATA_TRANSFER_STATS_MESSAGE);
+        if (message == null) {
+            return true;
         }
-        data.setClassLoader(DataTransferStats.DataTransferStatsBase.Bucket.class.getClassLoader());
-        DataTransferStats.getDataTransferStatsForUI().m_connectedTime = data.getLong(TunnelManager.DATA_TRANSFER_STATS_CONNECTED_TIME);
-        DataTransferStats.getDataTransferStatsForUI().m_totalBytesSent = data.getLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_SENT);
-        DataTransferStats.getDataTransferStatsForUI().m_totalBytesReceived = data.getLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED);
-        DataTransferStats.getDataTransferStatsForUI().m_slowBuckets = data.getParcelableArrayList(TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS);
-        DataTransferStats.getDataTransferStatsForUI().m_slowBucketsLastStartTime = data.getLong(TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME);
-        DataTransferStats.getDataTransferStatsForUI().m_fastBuckets = data.getParcelableArrayList(TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS);
-        DataTransferStats.getDataTransferStatsForUI().m_fastBucketsLastStartTime = data.getLong(TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME);
+        long[] appTotals = data.getLongArray(TunnelManager.DATA_TRANSFER_STATS_APP_TOTALS);
+        if (appTotals != null) {
+            DataTransferStats.getDataTransferStatsForUI().applyAppTotalsMessage(appTotals);
+        }
+        return DataTransferStats.getDataTransferStatsForUI().applyMessage(message);
     }
 
     private static class IncomingMessageHandler extends Handler {
@@ -350,7 +352,12 @@ public class TunnelServiceInteractor {
                     tunnelServiceInteractor.tunnelStateRelay.accept(tunnelState);
                     break;
                 case DATA_TRANSFER_STATS:
-                    getDataTransferStatsFromBundle(data);
+                    if (!getDataTransferStatsFromBundle(data)) {
+                        tunnelServiceInteractor.sendServiceMessageCompletable(
+                                TunnelManager.ClientToServiceMessage.RESEND_DATA_TRANSFER_STATS.ordinal(), null)
+                                .subscribe();
+                        break;
+                    }
                     tunnelServiceInteractor.dataStatsRelay.accept(state.isConnected());
                     break;
                 case NFC_CONNECTION_INFO_EXCHANGE_EXPORT:
@@ -333,7 +333,7 @@ public class UpgradeChecker extends BroadcastReceiver {
             tunnelManagerConfig.disableTimeouts = multiProcessPreferences.getBoolean(
                     this.getString(R.string.disableTimeoutsPreference), false);
 
-            TunnelManager.setPlatformAffixes(mTunnel, "Psiphon_UpgradeChecker_");
+            TunnelManager.setPlatformAffixes(this, mTunnel, "Psiphon_UpgradeChecker_");
 
             String tunnelCoreConfig = TunnelManager.buildTunnelCoreConfig(
                     this,                       // context
@@ -39,14 +39,19 @@ import com.psiphon3.R;
 import com.psiphon3.log.MyLog;
 import com.psiphon3.psiphonlibrary.AuthenticatedDataPackage.AuthenticatedDataPackageException;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -255,14 +260,9 @@ public interface UpgradeManager
             return this.file.delete();
         }
 
-        private InputStream openUnzipStream() throws IOException, FileNotFoundException
-        {
-            return new GZIPInputStream(new BufferedInputStream(new FileInputStream(this.file)));
-        }
-
         public boolean extractAndVerify()
         {
-            InputStream unzipStream = null;
+            PipelinedUnzipStream unzipStream = null;
 
             try
             {
@@ -271,10 +271,15 @@ public interface UpgradeManager
                 // additional signature check mitigates against a malicious MiM which supplies
                 // a malicious, unsigned, upgrade payload which our intent would start to install.
 
-                unzipStream = openUnzipStream();
+                long startTime = System.currentTimeMillis();
+
+                // Reading and inflating run on a separate thread, parsing, verifying and
+                // writing the extracted file on this one.
+                unzipStream = new PipelinedUnzipStream(this.file);
 
                 UnverifiedUpgradeFile unverifiedFile = new UnverifiedUpgradeFile(this.context);
-                OutputStream dataDestination = unverifiedFile.createForWriting();
+                OutputStream dataDestination = new BufferedOutputStream(
+                        unverifiedFile.createForWriting(), PipelinedUnzipStream.CHUNK_SIZE);
 
                 AuthenticatedDataPackage.extractAndVerifyData(
                         EmbeddedValues.UPGRADE_SIGNATURE_PUBLIC_KEY,
@@ -282,6 +287,12 @@ public interface UpgradeManager
                         true, // "data" is Base64 (and is a large value to be streamed)
                         dataDestination);
 
+                long elapsedMillis = Math.max(1, System.currentTimeMillis() - startTime);
+                long apkBytes = new File(unverifiedFile.getFullPath()).length();
+                MyLog.i("UpgradeManager: extracted and verified a " + apkBytes + " bytes APK from " +
+                        this.file.length() + " bytes in " + elapsedMillis + " ms (" +
+                        unzipStream.getInflatedBytes() * 1000 / 1024 / elapsedMillis + " KB/s inflated)");
+
                 return unverifiedFile.rename(new VerifiedUpgradeFile(this.context).getFilename());
             }
             catch (FileNotFoundException e)
@@ -309,6 +320,245 @@ public interface UpgradeManager
         }
     }
 
+    /**
+     * Inflates a gzip file on a separate thread into a bounded ring of buffers which are read
+     * by the consumer of this stream, so that reading and inflating the file overlaps with
+     * processing the inflated data.
+     */
+    class PipelinedUnzipStream extends InputStream
+    {
+        static final int CHUNK_SIZE = 256 * 1024;
+        private static final int CHUNK_COUNT = 4;
+
+        private static class Chunk
+        {
+            final byte[] data;
+            int length;
+            // Set on the last chunk, which may be empty
+            boolean endOfStream;
+            IOException error;
+
+            Chunk(byte[] data)
+            {
+                this.data = data;
+            }
+        }
+
+        /**
+         * Reads a file channel through a large direct buffer.
+         */
+        private static class ChannelInputStream extends InputStream
+        {
+            private final FileChannel channel;
+            private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+
+            ChannelInputStream(FileChannel channel)
+            {
+                this.channel = channel;
+                this.buffer.limit(0);
+            }
+
+            private boolean fill() throws IOException
+            {
+                if (this.buffer.hasRemaining())
+                {
+                    return true;
+                }
+                this.buffer.clear();
+                int count = this.channel.read(this.buffer);
+                this.buffer.flip();
+                return count > 0;
+            }
+
+            @Override
+            public int read() throws IOException
+            {
+                return fill() ? this.buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                if (len == 0)
+                {
+                    return 0;
+                }
+                if (!fill())
+                {
+                    return -1;
+                }
+                int count = Math.min(len, this.buffer.remaining());
+                this.buffer.get(b, off, count);
+                return count;
+            }
+        }
+
+        private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(CHUNK_COUNT);
+        private final BlockingQueue<Chunk> filledChunks = new ArrayBlockingQueue<>(CHUNK_COUNT);
+        private final FileInputStream fileInputStream;
+        private final Thread inflaterThread;
+        private Chunk currentChunk;
+        private int currentOffset;
+        private long inflatedBytes;
+        private volatile boolean closed = false;
+
+        PipelinedUnzipStream(File file) throws FileNotFoundException
+        {
+            for (int i = 0; i < CHUNK_COUNT; i++)
+            {
+                this.freeChunks.add(new Chunk(new byte[CHUNK_SIZE]));
+            }
+            this.fileInputStream = new FileInputStream(file);
+            final FileChannel channel = this.fileInputStream.getChannel();
+            this.inflaterThread = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    inflate(channel);
+                }
+            }, "UpgradeInflater");
+            this.inflaterThread.start();
+        }
+
+        long getInflatedBytes()
+        {
+            return this.inflatedBytes;
+        }
+
+        private void inflate(FileChannel channel)
+        {
+            Chunk chunk = null;
+            InputStream unzipStream = null;
+            try
+            {
+                unzipStream = new GZIPInputStream(new ChannelInputStream(channel), 64 * 1024);
+                while (!this.closed)
+                {
+                    chunk = this.freeChunks.take();
+                    chunk.length = 0;
+                    while (chunk.length < CHUNK_SIZE)
+                    {
+                        int count = unzipStream.read(chunk.data, chunk.length, CHUNK_SIZE - chunk.length);
+                        if (count < 0)
+                        {
+                            chunk.endOfStream = true;
+                            break;
+                        }
+                        chunk.length += count;
+                    }
+                    this.filledChunks.put(chunk);
+                    if (chunk.endOfStream)
+                    {
+                        return;
+                    }
+                    chunk = null;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Closed
+            }
+            catch (Throwable e)
+            {
+                // Anything else, including unchecked exceptions from the inflater, must end the
+                // stream with an error, otherwise the consumer would wait for a chunk forever
+                if (chunk == null)
+                {
+                    chunk = new Chunk(new byte[0]);
+                }
+                chunk.length = 0;
+                chunk.endOfStream = true;
+                chunk.error = e instanceof IOException ? (IOException) e : new IOException(e);
+                // There is always room for the failed chunk as it was taken from the free chunks
+                // or all other chunks are in use
+                this.filledChunks.offer(chunk);
+            }
+            finally
+            {
+                // Releases the native memory of the inflater. The file channel is closed by close().
+                if (unzipStream != null)
+                {
+                    try { unzipStream.close(); } catch (IOException e) {}
+                }
+            }
+        }
+
+        // Returns the next chunk with data to read, or null at the end of the stream
+        private Chunk nextChunk() throws IOException
+        {
+            if (this.currentChunk != null && this.currentOffset < this.currentChunk.length)
+            {
+                return this.currentChunk;
+            }
+            if (this.currentChunk != null)
+            {
+                if (this.currentChunk.endOfStream)
+                {
+                    return null;
+                }
+                this.freeChunks.add(this.currentChunk);
+            }
+            try
+            {
+                this.currentChunk = this.filledChunks.take();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            this.currentOffset = 0;
+            if (this.currentChunk.error != null)
+            {
+                throw this.currentChunk.error;
+            }
+            return this.currentChunk.length > 0 ? this.currentChunk : null;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            Chunk chunk = nextChunk();
+            if (chunk == null)
+            {
+                return -1;
+            }
+            this.inflatedBytes++;
+            return chunk.data[this.currentOffset++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            Chunk chunk = nextChunk();
+            if (chunk == null)
+            {
+                return -1;
+            }
+            int count = Math.min(len, chunk.length - this.currentOffset);
+            System.arraycopy(chunk.data, this.currentOffset, b, off, count);
+            this.currentOffset += count;
+            this.inflatedBytes += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (this.closed)
+            {
+                return;
+            }
+            this.closed = true;
+            this.inflaterThread.interrupt();
+            this.fileInputStream.close();
+        }
+    }
+
     /**
      * Used for checking if an upgrade has been downloaded and installing it.
      */
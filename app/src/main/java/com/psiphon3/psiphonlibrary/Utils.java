@@ -295,6 +295,7 @@ public class Utils {
         return debug;
     }
 
+    // Probes the file system, use DeviceProbes.isRooted() for the persisted result
     public static boolean isRooted() {
         //Method 1 check for presence of 'test-keys' in the build tags 
         String buildTags = android.os.Build.TAGS;
@@ -328,20 +329,8 @@ public class Utils {
         return false;
     }
 
-    public static String getClientPlatformSuffix() {
-        String suffix = "";
-
-        // Detect if device is rooted and append to the client_platform string
-        if (Utils.isRooted()) {
-            suffix += PsiphonConstants.ROOTED;
-        }
-
-        // Detect if this is a Play Store build
-        if (EmbeddedValues.IS_PLAY_STORE_BUILD) {
-            suffix += PsiphonConstants.PLAY_STORE_BUILD;
-        }
-
-        return suffix;
+    public static String getClientPlatformSuffix(Context context) {
+        return DeviceProbes.getInstance(context).getClientPlatformSuffix();
     }
 
     public static boolean supportsAlwaysOnVPN() {
@@ -362,12 +351,18 @@ public class Utils {
         return dateStr;
     }
 
+    // SimpleDateFormat is not thread safe and costly to create, keep one per thread
+    private static final ThreadLocal<SimpleDateFormat> ISO8601_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return sdf;
+        }
+    };
+
     public static String getISO8601String(Date date) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
-        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-        String dateStr = sdf.format(date);
-        dateStr += "Z";
-        return dateStr;
+        return ISO8601_FORMAT.get().format(date);
     }
 
     public static String getISO8601String() {
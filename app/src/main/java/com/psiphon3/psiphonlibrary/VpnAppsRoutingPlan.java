@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.provider.Settings;
+
+import androidx.annotation.Nullable;
+
+import com.psiphon3.PackageHelper;
+import com.psiphon3.R;
+import com.psiphon3.log.MyLog;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+// The resolved app routing of the VPN: the packages to allow or disallow in the VPN builder with
+// the user selected packages checked for being installed and the default packages verified
+// against their trusted signatures.
+// Building the plan takes a package manager call per package plus signature hashing for the
+// default packages, so the plan is cached and only rebuilt when its inputs (the VPN apps
+// preferences and the trusted signatures) change or a package gets added, removed or replaced.
+// On API 26+ the plan is also persisted and reused by a new process if the package manager
+// reports no changes of the packages in the plan since it was built.
+class VpnAppsRoutingPlan {
+    private static final String PLAN_FILE = "vpn_apps_routing_plan.json";
+    private static final String TEMP_FILE = "vpn_apps_routing_plan_temp.json";
+
+    private static VpnAppsRoutingPlan cachedPlan;
+    private static boolean isPackageReceiverRegistered = false;
+
+    final VpnAppsUtils.VpnAppsExclusionSetting exclusionSetting;
+    // Number of user selected apps, the default apps are not counted
+    final int exclusionCount;
+    final List<String> allowedApps;
+    final List<String> disallowedApps;
+    final boolean noAppsExcluded;
+
+    private final String inputs;
+    // Boot count and package manager sequence number when the plan was built, -1 if unknown
+    private final int bootCount;
+    private final int sequenceNumber;
+
+    private VpnAppsRoutingPlan(VpnAppsUtils.VpnAppsExclusionSetting exclusionSetting, int exclusionCount,
+                               List<String> allowedApps, List<String> disallowedApps, boolean noAppsExcluded,
+                               String inputs, int bootCount, int sequenceNumber) {
+        this.exclusionSetting = exclusionSetting;
+        this.exclusionCount = exclusionCount;
+        this.allowedApps = Collections.unmodifiableList(allowedApps);
+        this.disallowedApps = Collections.unmodifiableList(disallowedApps);
+        this.noAppsExcluded = noAppsExcluded;
+        this.inputs = inputs;
+        this.bootCount = bootCount;
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    static synchronized VpnAppsRoutingPlan get(Context context) {
+        context = context.getApplicationContext();
+        registerPackageReceiver(context);
+
+        String inputs = getInputs(context);
+        if (cachedPlan == null) {
+            cachedPlan = readFromFile(context);
+        }
+        if (cachedPlan != null && cachedPlan.inputs.equals(inputs)) {
+            return cachedPlan;
+        }
+
+        cachedPlan = build(context);
+        saveToFile(context, cachedPlan);
+        return cachedPlan;
+    }
+
+    // Drops the cached plan, the next call to get() builds a new one
+    static synchronized void invalidate(Context context) {
+        cachedPlan = null;
+        new File(context.getFilesDir(), PLAN_FILE).delete();
+    }
+
+    private static void registerPackageReceiver(Context context) {
+        if (isPackageReceiverRegistered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate(context);
+            }
+        }, filter);
+        isPackageReceiverRegistered = true;
+    }
+
+    // Everything the plan is built from except for the installed packages. The preferences are
+    // served from the in-process tray cache so this is cheap.
+    private static String getInputs(Context context) {
+        AppPreferences prefs = new AppPreferences(context);
+        StringBuilder inputs = new StringBuilder()
+                .append(VpnAppsUtils.getVpnAppsExclusionMode(context))
+                .append('|').append(Utils.supportsVpnExclusions())
+                .append('|').append(prefs.getString(context.getString(R.string.preferenceIncludeAppsInVpnString), ""))
+                .append('|').append(prefs.getString(context.getString(R.string.preferenceExcludeAppsFromVpnString), ""));
+        Set<String> defaultApps = new TreeSet<>(VpnAppsUtils.getDefaultAppsIncludedInVpn());
+        defaultApps.addAll(VpnAppsUtils.getDefaultAppsExcludedFromVpn());
+        for (String packageId : defaultApps) {
+            inputs.append('|').append(packageId)
+                    .append('=').append(new TreeSet<>(PackageHelper.getExpectedSignaturesForPackage(packageId)));
+        }
+        return inputs.toString();
+    }
+
+    private static VpnAppsRoutingPlan build(Context context) {
+        PackageManager pm = context.getPackageManager();
+        int bootCount = getBootCount(context);
+        int sequenceNumber = getSequenceNumber(pm);
+
+        VpnAppsUtils.VpnAppsExclusionSetting exclusionSetting = VpnAppsUtils.VpnAppsExclusionSetting.ALL_APPS;
+        int exclusionCount = 0;
+        List<String> allowedApps = new ArrayList<>();
+        List<String> disallowedApps = new ArrayList<>();
+        boolean noAppsExcluded = false;
+
+        switch (VpnAppsUtils.getVpnAppsExclusionMode(context)) {
+            case ALL_APPS:
+                break;
+
+            case INCLUDE_APPS:
+                Set<String> includedApps = VpnAppsUtils.getUserAppsIncludedInVpn(context);
+                // VpnBuilder.addAllowedApplication() is supposed to throw NameNotFoundException
+                // in case the app is no longer available but we observed this is not the case.
+                // Therefore we will perform our own check first and update the persisted set if
+                // some packages are no longer installed
+                if (removeUninstalledPackages(pm, includedApps)) {
+                    VpnAppsUtils.setUserAppsToIncludeInVpn(context, includedApps);
+                }
+                exclusionCount = includedApps.size();
+
+                if (exclusionCount > 0) {
+                    // If there are included apps, set the exclusion mode to INCLUDE_APPS
+                    // and add the default included apps to the list
+                    exclusionSetting = VpnAppsUtils.VpnAppsExclusionSetting.INCLUDE_APPS;
+                    allowedApps.addAll(includedApps);
+                    allowedApps.addAll(getTrustedInstalledPackages(context, VpnAppsUtils.getDefaultAppsIncludedInVpn(),
+                            "allowed"));
+                    // Also always include the Psiphon app itself in this mode
+                    allowedApps.add(context.getPackageName());
+                }
+                // Otherwise stay in ALL_APPS mode, default excluded apps are excluded below
+                break;
+
+            case EXCLUDE_APPS:
+                Set<String> excludedApps = VpnAppsUtils.getUserAppsExcludedFromVpn(context);
+                // See above for why we check for installed packages ourselves
+                if (removeUninstalledPackages(pm, excludedApps)) {
+                    VpnAppsUtils.setUserAppsToExcludeFromVpn(context, excludedApps);
+                }
+                exclusionCount = excludedApps.size();
+
+                if (exclusionCount > 0) {
+                    // If there are excluded apps, set the exclusion mode to EXCLUDE_APPS
+                    // and add the default excluded apps to the list
+                    exclusionSetting = VpnAppsUtils.VpnAppsExclusionSetting.EXCLUDE_APPS;
+                    disallowedApps.addAll(excludedApps);
+                    disallowedApps.addAll(getTrustedInstalledPackages(context, VpnAppsUtils.getDefaultAppsExcludedFromVpn(),
+                            "disallowed"));
+                }
+                // Otherwise stay in ALL_APPS mode, default excluded apps are excluded below
+                break;
+        }
+
+        // If we are in ALL_APPS mode then disallow apps that should not be tunneled by default if the device supports
+        // VPN exclusions.
+        if (exclusionSetting == VpnAppsUtils.VpnAppsExclusionSetting.ALL_APPS) {
+            Set<String> defaultExcludedApps = VpnAppsUtils.getDefaultAppsExcludedFromVpn();
+            if (Utils.supportsVpnExclusions() && !defaultExcludedApps.isEmpty()) {
+                disallowedApps.addAll(getTrustedInstalledPackages(context, defaultExcludedApps, "disallowed"));
+            } else {
+                noAppsExcluded = true;
+            }
+        }
+
+        // Inputs are read last as building the plan may have updated the preferences
+        return new VpnAppsRoutingPlan(exclusionSetting, exclusionCount, allowedApps, disallowedApps,
+                noAppsExcluded, getInputs(context), bootCount, sequenceNumber);
+    }
+
+    // Returns true if any package was removed
+    private static boolean removeUninstalledPackages(PackageManager pm, Set<String> packageIds) {
+        boolean removed = false;
+        for (Iterator<String> iterator = packageIds.iterator(); iterator.hasNext(); ) {
+            if (!PackageHelper.isPackageInstalled(pm, iterator.next())) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private static List<String> getTrustedInstalledPackages(Context context, Set<String> packageIds,
+                                                            String listName) {
+        PackageManager pm = context.getPackageManager();
+        List<String> trustedPackages = new ArrayList<>();
+        for (String packageId : packageIds) {
+            // Check if the app is installed before checking the signature
+            if (!PackageHelper.isPackageInstalled(pm, packageId)) {
+                continue;
+            }
+            if (PackageHelper.verifyTrustedPackage(context, packageId)) {
+                trustedPackages.add(packageId);
+            } else {
+                MyLog.w("TunnelManager: VpnBuilder: failed to add " + packageId + " to " + listName +
+                        " VPN applications, trust verification failed");
+            }
+        }
+        return trustedPackages;
+    }
+
+    private static int getBootCount(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return -1;
+        }
+        return Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+    }
+
+    private static int getSequenceNumber(PackageManager pm) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return -1;
+        }
+        ChangedPackages changedPackages = pm.getChangedPackages(0);
+        return changedPackages == null ? 0 : changedPackages.getSequenceNumber();
+    }
+
+    // A persisted plan is only valid if no package it refers to has changed since it was built.
+    // Package manager sequence numbers are reset on boot.
+    private boolean isUpToDate(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || bootCount == -1 || sequenceNumber == -1) {
+            return false;
+        }
+        if (bootCount != getBootCount(context)) {
+            return false;
+        }
+        ChangedPackages changedPackages = context.getPackageManager().getChangedPackages(sequenceNumber);
+        if (changedPackages == null) {
+            return true;
+        }
+        // The user selected apps are part of the inputs, consider the default apps too as they
+        // may have been installed since
+        Set<String> packageIds = new HashSet<>(allowedApps);
+        packageIds.addAll(disallowedApps);
+        packageIds.addAll(VpnAppsUtils.getDefaultAppsIncludedInVpn());
+        packageIds.addAll(VpnAppsUtils.getDefaultAppsExcludedFromVpn());
+        packageIds.addAll(VpnAppsUtils.getUserAppsIncludedInVpn(context));
+        packageIds.addAll(VpnAppsUtils.getUserAppsExcludedFromVpn(context));
+        for (String packageId : changedPackages.getPackageNames()) {
+            if (packageIds.contains(packageId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Nullable
+    private static VpnAppsRoutingPlan readFromFile(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return null;
+        }
+        File file = new File(context.getFilesDir(), PLAN_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            StringBuilder builder = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                builder.append(line);
+            }
+            JSONObject json = new JSONObject(builder.toString());
+            VpnAppsRoutingPlan plan = new VpnAppsRoutingPlan(
+                    VpnAppsUtils.VpnAppsExclusionSetting.valueOf(json.getString("exclusionSetting")),
+                    json.getInt("exclusionCount"),
+                    toList(json.getJSONArray("allowedApps")),
+                    toList(json.getJSONArray("disallowedApps")),
+                    json.getBoolean("noAppsExcluded"),
+                    json.getString("inputs"),
+                    json.getInt("bootCount"),
+                    json.getInt("sequenceNumber"));
+            return plan.isUpToDate(context) ? plan : null;
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            MyLog.w("VpnAppsRoutingPlan: failed to read plan: " + e);
+            return null;
+        }
+    }
+
+    private static List<String> toList(JSONArray jsonArray) throws JSONException {
+        List<String> list = new ArrayList<>(jsonArray.length());
+        for (int i = 0; i < jsonArray.length(); i++) {
+            list.add(jsonArray.getString(i));
+        }
+        return list;
+    }
+
+    // Only the VPN service process builds plans, no file locking needed.
+    // Uses a temporary file and atomic rename to ensure data consistency.
+    private static void saveToFile(Context context, VpnAppsRoutingPlan plan) {
+        if (plan.bootCount == -1 || plan.sequenceNumber == -1) {
+            return;
+        }
+        File tempFile = new File(context.getFilesDir(), TEMP_FILE);
+        File finalFile = new File(context.getFilesDir(), PLAN_FILE);
+        try {
+            JSONObject json = new JSONObject();
+            json.put("exclusionSetting", plan.exclusionSetting.name());
+            json.put("exclusionCount", plan.exclusionCount);
+            json.put("allowedApps", new JSONArray(plan.allowedApps));
+            json.put("disallowedApps", new JSONArray(plan.disallowedApps));
+            json.put("noAppsExcluded", plan.noAppsExcluded);
+            json.put("inputs", plan.inputs);
+            json.put("bootCount", plan.bootCount);
+            json.put("sequenceNumber", plan.sequenceNumber);
+
+            try (FileOutputStream fos = new FileOutputStream(tempFile);
+                 OutputStreamWriter writer = new OutputStreamWriter(fos, "UTF-8")) {
+                writer.write(json.toString());
+                writer.flush();
+                fos.getFD().sync();
+            }
+            if (!tempFile.renameTo(finalFile)) {
+                MyLog.w("VpnAppsRoutingPlan: failed to rename temp file to plan file.");
+            }
+        } catch (IOException | JSONException e) {
+            MyLog.w("VpnAppsRoutingPlan: failed to save plan: " + e);
+        } finally {
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+}
@@ -16,23 +16,36 @@
 
 package de.schildbach.wallet.util;
 
-import java.io.DataInputStream;
+import android.os.Process;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.Provider;
 import java.security.SecureRandomSpi;
 import java.security.Security;
+import java.util.Arrays;
 
 /**
  * A SecureRandom implementation that is able to override the standard JVM provided implementation, and which simply
  * serves random numbers by reading /dev/urandom. That is, it delegates to the kernel on UNIX systems and is unusable on
  * other platforms. Attempts to manually set the seed are ignored. There is no difference between seed bytes and
  * non-seed bytes, they are all from the same source.
+ * <p>
+ * Small requests are served from a per-thread buffer which is refilled from /dev/urandom in chunks of
+ * {@link #POOL_SIZE} bytes, so they don't cost a read syscall on the shared file descriptor each. Bytes are zeroed in
+ * the buffer once served. A buffer filled before a fork is discarded by the child, and requests of at least the buffer
+ * size as well as seeds are always read directly from the kernel.
+ * <p>
+ * Reads go through the stream rather than its FileChannel: the channel is closed for good when a thread reading from
+ * it is interrupted, which would break every SecureRandom in the process.
  */
 public class LinuxSecureRandom extends SecureRandomSpi
 {
+    static final int POOL_SIZE = 4096;
+
     private static final FileInputStream urandom;
 
     private static class LinuxSecureRandomProvider extends Provider
@@ -44,6 +57,25 @@ public class LinuxSecureRandom extends SecureRandomSpi
         }
     }
 
+    // Package-private for LinuxSecureRandomTest
+    static class Pool
+    {
+        final byte[] buffer = new byte[POOL_SIZE];
+        // Bytes before position have been served and zeroed, starts empty and is filled on first use
+        int position = POOL_SIZE;
+        // The process the buffer was filled in, a forked child must not reuse the bytes of its parent
+        int pid = -1;
+    }
+
+    static final ThreadLocal<Pool> pools = new ThreadLocal<Pool>()
+    {
+        @Override
+        protected Pool initialValue()
+        {
+            return new Pool();
+        }
+    };
+
     static
     {
         try
@@ -68,14 +100,6 @@ public class LinuxSecureRandom extends SecureRandomSpi
         }
     }
 
-    private final DataInputStream dis;
-
-    public LinuxSecureRandom()
-    {
-        // DataInputStream is not thread safe, so each random object has its own.
-        dis = new DataInputStream(urandom);
-    }
-
     @Override
     protected void engineSetSeed(byte[] bytes)
     {
@@ -85,21 +109,71 @@ public class LinuxSecureRandom extends SecureRandomSpi
     @Override
     protected void engineNextBytes(byte[] bytes)
     {
-        try
+        if (bytes.length >= POOL_SIZE)
         {
-            dis.readFully(bytes); // This will block until all the bytes can be read.
+            readFully(bytes, 0, bytes.length);
+            return;
         }
-        catch (IOException e)
+
+        Pool pool = pools.get();
+        int pid = Process.myPid();
+        if (pool.pid != pid)
         {
-            throw new RuntimeException(e); // Fatal error. Do not attempt to recover from this.
+            Arrays.fill(pool.buffer, (byte) 0);
+            pool.position = POOL_SIZE;
+            pool.pid = pid;
+        }
+
+        int offset = 0;
+        while (offset < bytes.length)
+        {
+            if (pool.position == POOL_SIZE)
+            {
+                readFully(pool.buffer, 0, POOL_SIZE);
+                pool.position = 0;
+            }
+            int count = Math.min(bytes.length - offset, POOL_SIZE - pool.position);
+            System.arraycopy(pool.buffer, pool.position, bytes, offset, count);
+            // Don't keep a copy of what may become key material
+            Arrays.fill(pool.buffer, pool.position, pool.position + count, (byte) 0);
+            pool.position += count;
+            offset += count;
         }
     }
 
     @Override
     protected byte[] engineGenerateSeed(int i)
     {
+        // Seeds are always read fresh from the kernel
         byte[] bits = new byte[i];
-        engineNextBytes(bits);
+        readFully(bits, 0, bits.length);
         return bits;
     }
+
+    private static void readFully(byte[] bytes, int offset, int length)
+    {
+        readFully(urandom, bytes, offset, length);
+    }
+
+    static void readFully(InputStream in, byte[] bytes, int offset, int length)
+    {
+        try
+        {
+            // This will block until all the bytes can be read.
+            while (length > 0)
+            {
+                int count = in.read(bytes, offset, length);
+                if (count < 0)
+                {
+                    throw new IOException("Unexpected end of /dev/urandom");
+                }
+                offset += count;
+                length -= count;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e); // Fatal error. Do not attempt to recover from this.
+        }
+    }
 }
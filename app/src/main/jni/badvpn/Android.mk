@@ -69,6 +69,8 @@ LOCAL_SRC_FILES := \
         base/BPending.c \
         flowextra/PacketPassInactivityMonitor.c \
         tun2socks/SocksUdpGwClient.c \
+        tun2socks/DnsCache.c \
+        tun2socks/TrafficRecords.c \
         udpgw_client/UdpGwClient.c
 
 include $(BUILD_SHARED_LIBRARY)
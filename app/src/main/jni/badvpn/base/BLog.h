@@ -79,6 +79,9 @@ struct _BLog_global {
 #endif
     char logbuf[2048];
     int logbuf_pos;
+    // PSIPHON
+    // number of log calls filtered out by the channel loglevels since BLog_Init
+    unsigned long long suppressed;
 };
 
 extern struct _BLog_channel blog_channel_list[];
@@ -155,6 +158,8 @@ void BLog_Init (_BLog_log_func log_func, _BLog_free_func free_func)
 #endif
     blog_global.logbuf_pos = 0;
     blog_global.logbuf[0] = '\0';
+    // PSIPHON
+    blog_global.suppressed = 0;
     
     ASSERT_FORCE(BMutex_Init(&blog_global.mutex))
 }
@@ -190,7 +195,13 @@ int BLog_WouldLog (int channel, int level)
     ASSERT(channel >= 0 && channel < BLOG_NUM_CHANNELS)
     ASSERT(level >= BLOG_ERROR && level <= BLOG_DEBUG)
     
-    return (level <= blog_global.channels[channel].loglevel);
+    // PSIPHON
+    if (level > blog_global.channels[channel].loglevel) {
+        blog_global.suppressed++;
+        return 0;
+    }
+    
+    return 1;
 }
 
 void BLog_Begin (void)
@@ -96,6 +96,8 @@ base/BLog.c
 base/BPending.c
 flowextra/PacketPassInactivityMonitor.c
 tun2socks/SocksUdpGwClient.c
+tun2socks/DnsCache.c
+tun2socks/TrafficRecords.c
 udpgw_client/UdpGwClient.c
 "
 
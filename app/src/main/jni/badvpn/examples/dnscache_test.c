@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) Psiphon Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <stdio.h>
+#include <stdint.h>
+#include <string.h>
+
+#include <misc/debug.h>
+#include <tun2socks/DnsCache.h>
+
+// builds a query for name with the given ID and type, returns its length
+static int make_query (uint8_t *buf, uint16_t id, const char *name, uint16_t type)
+{
+    uint8_t header[12] = {id >> 8, id & 0xff, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 0};
+    memcpy(buf, header, sizeof(header));
+    int pos = sizeof(header);
+
+    const char *label = name;
+    while (*label) {
+        const char *dot = strchr(label, '.');
+        int label_len = dot ? (int)(dot - label) : (int)strlen(label);
+        buf[pos++] = label_len;
+        memcpy(buf + pos, label, label_len);
+        pos += label_len;
+        label += label_len + (dot ? 1 : 0);
+    }
+    buf[pos++] = 0;
+
+    buf[pos++] = type >> 8;
+    buf[pos++] = type & 0xff;
+    buf[pos++] = 0;
+    buf[pos++] = 1; // class IN
+    return pos;
+}
+
+// builds the response to make_query with a single A record, returns its length
+static int make_response (uint8_t *buf, uint16_t id, const char *name, uint32_t ttl, uint8_t rcode)
+{
+    int pos = make_query(buf, id, name, 1);
+    buf[2] = 0x81;
+    buf[3] = 0x80 | rcode;
+    buf[7] = 1; // ANCOUNT
+
+    uint8_t answer[] = {
+        0xc0, 0x0c, // pointer to the question name
+        0, 1, 0, 1, // type A, class IN
+        ttl >> 24, ttl >> 16, ttl >> 8, ttl, // TTL
+        0, 4, 192, 0, 2, 1 // RDATA
+    };
+    memcpy(buf + pos, answer, sizeof(answer));
+    return pos + sizeof(answer);
+}
+
+// appends an OPT record to a query or response, returns the new length
+static int add_opt (uint8_t *buf, int len, uint16_t udp_size, int dnssec_ok)
+{
+    uint8_t opt[] = {
+        0, // root name
+        0, 41, // type OPT
+        udp_size >> 8, udp_size & 0xff, // class is the UDP payload size
+        0, 0, dnssec_ok ? 0x80 : 0, 0, // extended RCODE, version, flags
+        0, 0 // RDLENGTH
+    };
+    memcpy(buf + len, opt, sizeof(opt));
+    buf[11]++; // ARCOUNT
+    return len + sizeof(opt);
+}
+
+// appends count A records to a response from make_response, returns the new length
+static int add_answers (uint8_t *buf, int len, int count)
+{
+    for (int i = 0; i < count; i++) {
+        memcpy(buf + len, buf + len - 16, 16);
+        len += 16;
+        buf[7]++; // ANCOUNT
+    }
+    return len;
+}
+
+static uint32_t answer_ttl (const uint8_t *response, int len)
+{
+    const uint8_t *ttl = response + len - 10;
+    return ((uint32_t)ttl[0] << 24) | ((uint32_t)ttl[1] << 16) | ((uint32_t)ttl[2] << 8) | ttl[3];
+}
+
+int main ()
+{
+    DnsCache cache;
+    DnsCacheStats stats;
+    uint8_t query[512];
+    uint8_t response[DNSCACHE_MAX_RESPONSE_SIZE];
+    uint8_t out[DNSCACHE_MAX_RESPONSE_SIZE];
+
+    ASSERT_FORCE(DnsCache_Init(&cache, 2))
+
+    // miss, then hit once the response is stored
+    int query_len = make_query(query, 0x1234, "www.example.com", 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+
+    int response_len = make_response(response, 0x1234, "www.example.com", 300, 0);
+    DnsCache_Store(&cache, response, response_len, 0);
+
+    query_len = make_query(query, 0x5678, "WWW.Example.COM", 1);
+    int out_len = DnsCache_Lookup(&cache, query, query_len, 10000, out, sizeof(out));
+    ASSERT_FORCE(out_len == response_len)
+    // the query ID, question and aged TTL are returned, the question keeps the case of the query
+    ASSERT_FORCE(out[0] == 0x56 && out[1] == 0x78)
+    ASSERT_FORCE(answer_ttl(out, out_len) == 290)
+    ASSERT_FORCE(!memcmp(out + 2, response + 2, 10))
+    ASSERT_FORCE(!memcmp(out + 12, query + 12, query_len - 12))
+    ASSERT_FORCE(!memcmp(out + query_len, response + query_len, out_len - query_len - 10))
+
+    // a response that doesn't fit is not served
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 10000, out, response_len - 1) == 0)
+
+    // other types of the same name are separate entries
+    query_len = make_query(query, 1, "www.example.com", 28);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 10000, out, sizeof(out)) == 0)
+
+    // expired after the TTL
+    query_len = make_query(query, 1, "www.example.com", 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 300000, out, sizeof(out)) == 0)
+
+    // errors and zero TTLs are not cached
+    response_len = make_response(response, 1, "nx.example.com", 300, 3);
+    DnsCache_Store(&cache, response, response_len, 0);
+    query_len = make_query(query, 1, "nx.example.com", 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+
+    response_len = make_response(response, 1, "zero.example.com", 0, 0);
+    DnsCache_Store(&cache, response, response_len, 0);
+    query_len = make_query(query, 1, "zero.example.com", 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+
+    // the least recently used entry is evicted
+    response_len = make_response(response, 1, "a.example.com", 300, 0);
+    DnsCache_Store(&cache, response, response_len, 0);
+    response_len = make_response(response, 1, "b.example.com", 300, 0);
+    DnsCache_Store(&cache, response, response_len, 0);
+    query_len = make_query(query, 1, "a.example.com", 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) > 0)
+    response_len = make_response(response, 1, "c.example.com", 300, 0);
+    DnsCache_Store(&cache, response, response_len, 0);
+    query_len = make_query(query, 1, "b.example.com", 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+    query_len = make_query(query, 1, "a.example.com", 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) > 0)
+    query_len = make_query(query, 1, "c.example.com", 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) > 0)
+
+    // truncated packets are ignored
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len - 3, 0, out, sizeof(out)) == 0)
+    DnsCache_Store(&cache, response, response_len - 3, 0);
+
+    DnsCache_GetStats(&cache, &stats);
+    ASSERT_FORCE(stats.hits == 4)
+    ASSERT_FORCE(stats.misses == 6)
+    ASSERT_FORCE(stats.insertions == 4)
+    ASSERT_FORCE(stats.evictions == 1)
+    ASSERT_FORCE(stats.oversized == 1)
+
+    DnsCache_Free(&cache);
+
+    ASSERT_FORCE(DnsCache_Init(&cache, 8))
+
+    // responses with an OPT record are only served to queries with an OPT record
+    response_len = add_opt(response, make_response(response, 1, "edns.example.com", 300, 0), 1232, 0);
+    DnsCache_Store(&cache, response, response_len, 0);
+    query_len = make_query(query, 1, "edns.example.com", 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+    query_len = add_opt(query, make_query(query, 1, "edns.example.com", 1), 4096, 0);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == response_len)
+    ASSERT_FORCE(out[11] == 1)
+
+    // and the other way round
+    response_len = make_response(response, 1, "plain.example.com", 300, 0);
+    DnsCache_Store(&cache, response, response_len, 0);
+    query_len = add_opt(query, make_query(query, 1, "plain.example.com", 1), 4096, 0);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+    query_len = make_query(query, 1, "plain.example.com", 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == response_len)
+
+    // DO and CD select separate entries
+    response_len = add_opt(response, make_response(response, 1, "dnssec.example.com", 300, 0), 1232, 1);
+    DnsCache_Store(&cache, response, response_len, 0);
+    query_len = add_opt(query, make_query(query, 1, "dnssec.example.com", 1), 1232, 0);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+    query_len = add_opt(query, make_query(query, 1, "dnssec.example.com", 1), 1232, 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == response_len)
+    query[3] |= 0x10;
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+
+    // responses larger than 512 bytes are only cached with EDNS and only served within the
+    // UDP payload size of the query
+    response_len = add_answers(response, make_response(response, 1, "large.example.com", 300, 0), 40);
+    ASSERT_FORCE(response_len > 512)
+    DnsCache_Store(&cache, response, response_len, 0);
+    query_len = make_query(query, 1, "large.example.com", 1);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+    response_len = add_opt(response, response_len, 1232, 0);
+    DnsCache_Store(&cache, response, response_len, 0);
+    query_len = add_opt(query, make_query(query, 1, "large.example.com", 1), 512, 0);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+    query_len = add_opt(query, make_query(query, 1, "large.example.com", 1), 1232, 0);
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == response_len)
+
+    // queries with other additional records or EDNS versions are not answered
+    query_len = add_opt(query, make_query(query, 1, "edns.example.com", 1), 4096, 0);
+    query[query_len - 5] = 1;
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+    query[query_len - 9] = 250; // type TSIG
+    ASSERT_FORCE(DnsCache_Lookup(&cache, query, query_len, 0, out, sizeof(out)) == 0)
+
+    DnsCache_GetStats(&cache, &stats);
+    ASSERT_FORCE(stats.insertions == 4)
+    ASSERT_FORCE(stats.oversized == 1)
+
+    DnsCache_Free(&cache);
+
+    printf("ok\n");
+    return 0;
+}
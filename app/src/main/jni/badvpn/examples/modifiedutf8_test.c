@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) Psiphon Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <stdio.h>
+#include <string.h>
+
+#include <misc/debug.h>
+#include <tun2socks/ModifiedUtf8.h>
+
+static void check (const char *in, const char *expected)
+{
+    char buf[64];
+    ASSERT_FORCE(strlen(in) < sizeof(buf))
+    strcpy(buf, in);
+
+    ModifiedUtf8_Sanitize(buf);
+
+    ASSERT_FORCE(!strcmp(buf, expected))
+}
+
+int main ()
+{
+    // valid strings are untouched
+    check("", "");
+    check("plain ascii", "plain ascii");
+    check("caf\xC3\xA9 \xE2\x82\xAC", "caf\xC3\xA9 \xE2\x82\xAC");
+
+    // a sequence cut by the end of the string is dropped
+    check("ab\xC3", "ab");
+    check("ab\xE2", "ab");
+    check("ab\xE2\x82", "ab");
+
+    // stray continuation bytes and 4 byte forms are replaced
+    check("a\x80" "b", "a?b");
+    check("a\xF0\x9F\x98\x80" "b", "a????b");
+    check("a\xFF", "a?");
+
+    // a lead byte followed by a non-continuation byte is replaced
+    check("a\xC3" "b", "a?b");
+    check("a\xE2\x82" "b", "a??b");
+
+    printf("ok\n");
+    return 0;
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) Psiphon Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <stdio.h>
+#include <stdint.h>
+#include <string.h>
+
+#include <misc/debug.h>
+#include <misc/byteorder.h>
+#include <tun2socks/TrafficRecords.h>
+
+static TrafficRecord make_record (uint16_t app_port, int closed, uint64_t bytes_up, uint64_t bytes_down)
+{
+    TrafficRecord record;
+    memset(&record, 0, sizeof(record));
+    record.protocol = TRAFFICRECORDS_PROTOCOL_TCP;
+    record.closed = closed;
+    BAddr_InitIPv4(&record.app_addr, hton32(0x0a000002), hton16(app_port));
+    BAddr_InitIPv4(&record.dest_addr, hton32(0x5db8d822), hton16(443));
+    record.bytes_up = bytes_up;
+    record.bytes_down = bytes_down;
+    return record;
+}
+
+int main ()
+{
+    TrafficRecords records;
+    TrafficRecord out[4];
+
+    ASSERT_FORCE(TrafficRecords_Init(&records, 3))
+
+    // empty
+    ASSERT_FORCE(TrafficRecords_Take(&records, out, 4) == 0)
+
+    // records are taken oldest first and copied
+    TrafficRecord record = make_record(40000, 0, 100, 2000);
+    ASSERT_FORCE(TrafficRecords_Add(&records, &record))
+    record = make_record(40001, 1, 5, 6);
+    ASSERT_FORCE(TrafficRecords_Add(&records, &record))
+
+    ASSERT_FORCE(TrafficRecords_Take(&records, out, 4) == 2)
+    ASSERT_FORCE(out[0].app_addr.ipv4.port == hton16(40000) && !out[0].closed)
+    ASSERT_FORCE(out[0].bytes_up == 100 && out[0].bytes_down == 2000)
+    ASSERT_FORCE(out[1].app_addr.ipv4.port == hton16(40001) && out[1].closed)
+    ASSERT_FORCE(out[1].bytes_up == 5 && out[1].bytes_down == 6)
+    ASSERT_FORCE(TrafficRecords_Take(&records, out, 4) == 0)
+
+    // taking fewer than queued leaves the newer records in order
+    for (int i = 0; i < 3; i++) {
+        record = make_record(41000 + i, 0, i, i);
+        ASSERT_FORCE(TrafficRecords_Add(&records, &record))
+    }
+    ASSERT_FORCE(TrafficRecords_Take(&records, out, 1) == 1)
+    ASSERT_FORCE(out[0].app_addr.ipv4.port == hton16(41000))
+
+    // when full, records are refused and only closed ones are counted as dropped
+    record = make_record(41003, 0, 1, 1);
+    ASSERT_FORCE(TrafficRecords_Add(&records, &record))
+    ASSERT_FORCE(!TrafficRecords_Add(&records, &record))
+    ASSERT_FORCE(TrafficRecords_GetDropped(&records) == 0)
+    record.closed = 1;
+    ASSERT_FORCE(!TrafficRecords_Add(&records, &record))
+    ASSERT_FORCE(TrafficRecords_GetDropped(&records) == 1)
+
+    ASSERT_FORCE(TrafficRecords_Take(&records, out, 4) == 3)
+    ASSERT_FORCE(out[0].app_addr.ipv4.port == hton16(41001))
+    ASSERT_FORCE(out[1].app_addr.ipv4.port == hton16(41002))
+    ASSERT_FORCE(out[2].app_addr.ipv4.port == hton16(41003))
+
+    TrafficRecords_Free(&records);
+
+    return 0;
+}
@@ -0,0 +1,1053 @@
+/*
+ * Copyright (C) Psiphon Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Host benchmark of the tun2socks forwarding path.
+ *
+ * tun2socks runs in a thread with one end of a datagram socketpair as its tun
+ * device, and an in-process SOCKS5 server that echoes TCP streams and udpgw
+ * packets. The benchmark writes raw IPv4 TCP and UDP packets into the other end
+ * of the socketpair, checks the echoed data and reports packets/sec, MB/s,
+ * per-packet latency percentiles and CPU time.
+ *
+ * Built by compile-tun2socks-bench.sh. Needs no root, network or device.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+#include <errno.h>
+#include <unistd.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <pthread.h>
+#include <time.h>
+#include <sys/socket.h>
+#include <sys/resource.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <arpa/inet.h>
+
+#include <tun2socks/tun2socks.h>
+
+#define NETIF_ADDR "10.0.0.2"
+#define NETIF_NETMASK "255.255.255.0"
+#define APP_ADDR 0x0a000001 // 10.0.0.1
+#define REMOTE_ADDR 0xcb007101 // 203.0.113.1
+#define REMOTE_TCP_PORT 80
+#define REMOTE_UDP_PORT 9000
+#define UDPGW_PORT 7300
+#define TCP_BASE_PORT 40000
+#define UDP_BASE_PORT 50000
+#define TUN_MTU 1500
+#define TUN_SOCKET_BUFFER (4 * 1024 * 1024)
+
+#define BENCH_TCP_MSS 1460
+// echoed data outstanding per TCP flow, bounds the latency of a saturated flow
+#define TCP_MAX_UNECHOED (256 * 1024)
+#define TCP_SYN_TIMEOUT 1000000000LL
+
+// udpgw buffers 8 packets per connection, see DEFAULT_UDPGW_CONNECTION_BUFFER_SIZE
+#define UDP_WINDOW 8
+#define UDP_TIMEOUT 1000000000LL
+
+#define PHASE_TIMEOUT (60 * 1000000000LL)
+
+#define TCP_FIN 0x01
+#define TCP_SYN 0x02
+#define TCP_RST 0x04
+#define TCP_PSH 0x08
+#define TCP_ACK 0x10
+
+enum {STATE_SYN_SENT, STATE_ESTABLISHED, STATE_DONE};
+
+struct sent_mark {
+    uint64_t end;
+    int64_t time;
+};
+
+struct tcp_flow {
+    uint16_t port;
+    int state;
+    int64_t syn_time;
+    uint32_t iss;
+    uint32_t snd_nxt;
+    uint32_t snd_una;
+    uint32_t snd_wnd_edge;
+    uint32_t irs;
+    uint32_t rcv_nxt;
+    int ack_pending;
+    uint64_t bytes_total;
+    uint64_t bytes_sent;
+    uint64_t bytes_echoed;
+    // send times of segments not yet echoed, oldest first
+    struct sent_mark *marks;
+    int marks_first;
+    int marks_count;
+    int marks_size;
+};
+
+struct udp_slot {
+    int busy;
+    uint32_t seq;
+    int64_t time;
+};
+
+struct udp_flow {
+    uint16_t port;
+    uint32_t next_seq;
+    int in_flight;
+    struct udp_slot slots[UDP_WINDOW];
+};
+
+struct phase {
+    int64_t start_time;
+    uint64_t packets_out;
+    uint64_t packets_in;
+    uint64_t bytes_echoed;
+    uint64_t corrupt_bytes;
+    uint64_t lost;
+    uint64_t failed;
+    int64_t *latencies;
+    size_t num_latencies;
+    size_t latencies_size;
+};
+
+// command-line options
+static struct {
+    int tcp_flows;
+    long long tcp_bytes;
+    int udp_flows;
+    int udp_packets;
+    int udp_size;
+    int tcp_wnd;
+    int tcp_snd_buf;
+} options;
+
+static int tun_fd;
+static int tun_blocked;
+static struct phase phase;
+
+static struct tcp_flow *tcp_flows;
+static int tcp_flows_done;
+
+static struct udp_flow *udp_flows;
+
+static int socks_listen_fd;
+static uint16_t socks_port;
+
+static int64_t now_ns (void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static int64_t clock_ns (clockid_t clock)
+{
+    struct timespec ts;
+    clock_gettime(clock, &ts);
+    return (int64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static int64_t process_cpu_ns (void)
+{
+    struct rusage ru;
+    getrusage(RUSAGE_SELF, &ru);
+    return ((int64_t)ru.ru_utime.tv_sec + ru.ru_stime.tv_sec) * 1000000000LL +
+           ((int64_t)ru.ru_utime.tv_usec + ru.ru_stime.tv_usec) * 1000LL;
+}
+
+static void put16 (uint8_t *p, uint16_t v)
+{
+    p[0] = v >> 8;
+    p[1] = v;
+}
+
+static void put32 (uint8_t *p, uint32_t v)
+{
+    p[0] = v >> 24;
+    p[1] = v >> 16;
+    p[2] = v >> 8;
+    p[3] = v;
+}
+
+static uint16_t get16 (const uint8_t *p)
+{
+    return ((uint16_t)p[0] << 8) | p[1];
+}
+
+static uint32_t get32 (const uint8_t *p)
+{
+    return ((uint32_t)p[0] << 24) | ((uint32_t)p[1] << 16) | ((uint32_t)p[2] << 8) | p[3];
+}
+
+static uint32_t checksum_add (uint32_t sum, const uint8_t *data, int len)
+{
+    while (len > 1) {
+        sum += get16(data);
+        data += 2;
+        len -= 2;
+    }
+    if (len > 0) {
+        sum += (uint32_t)data[0] << 8;
+    }
+    return sum;
+}
+
+static uint16_t checksum_fold (uint32_t sum)
+{
+    while (sum >> 16) {
+        sum = (sum & 0xffff) + (sum >> 16);
+    }
+    return ~sum;
+}
+
+// writes the IPv4 header in front of a transport segment of len bytes and the transport checksum at csum_offset
+static int finish_ipv4 (uint8_t *p, uint8_t proto, int len, int csum_offset)
+{
+    static uint16_t ip_id;
+
+    int total = 20 + len;
+    p[0] = 0x45;
+    p[1] = 0;
+    put16(p + 2, total);
+    put16(p + 4, ip_id++);
+    put16(p + 6, 0x4000); // DF
+    p[8] = 64;
+    p[9] = proto;
+    put16(p + 10, 0);
+    put32(p + 12, APP_ADDR);
+    put32(p + 16, REMOTE_ADDR);
+    put16(p + 10, checksum_fold(checksum_add(0, p, 20)));
+
+    uint32_t sum = checksum_add(0, p + 12, 8);
+    sum += proto;
+    sum += len;
+    put16(p + 20 + csum_offset, checksum_fold(checksum_add(sum, p + 20, len)));
+
+    return total;
+}
+
+// returns 1 if the packet was written, 0 if the socket is full
+static int tun_send (const uint8_t *packet, int len)
+{
+    if (send(tun_fd, packet, len, 0) < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK || errno == ENOBUFS) {
+            tun_blocked = 1;
+            return 0;
+        }
+        perror("send");
+        exit(1);
+    }
+    phase.packets_out++;
+    return 1;
+}
+
+static void add_latency (int64_t latency)
+{
+    if (phase.num_latencies == phase.latencies_size) {
+        phase.latencies_size = phase.latencies_size ? 2 * phase.latencies_size : 4096;
+        phase.latencies = realloc(phase.latencies, phase.latencies_size * sizeof(phase.latencies[0]));
+        if (!phase.latencies) {
+            fprintf(stderr, "realloc failed\n");
+            exit(1);
+        }
+    }
+    phase.latencies[phase.num_latencies++] = latency;
+}
+
+static void start_phase (void)
+{
+    free(phase.latencies);
+    memset(&phase, 0, sizeof(phase));
+    phase.start_time = now_ns();
+}
+
+static int compare_int64 (const void *a, const void *b)
+{
+    int64_t x = *(const int64_t *)a;
+    int64_t y = *(const int64_t *)b;
+    return (x > y) - (x < y);
+}
+
+static double percentile_ms (double p)
+{
+    if (phase.num_latencies == 0) {
+        return 0;
+    }
+    size_t i = (size_t)(p * (phase.num_latencies - 1));
+    return phase.latencies[i] / 1e6;
+}
+
+static void report_phase (const char *name, clockid_t tun2socks_clock, int64_t tun2socks_cpu_start, int64_t process_cpu_start)
+{
+    double seconds = (now_ns() - phase.start_time) / 1e9;
+    double tun2socks_cpu = (clock_ns(tun2socks_clock) - tun2socks_cpu_start) / 1e9;
+    double process_cpu = (process_cpu_ns() - process_cpu_start) / 1e9;
+
+    qsort(phase.latencies, phase.num_latencies, sizeof(phase.latencies[0]), compare_int64);
+
+    printf("%s: %.3f s\n", name, seconds);
+    printf("  tun packets: %llu out, %llu in, %.0f packets/s\n",
+           (unsigned long long)phase.packets_out, (unsigned long long)phase.packets_in,
+           (phase.packets_out + phase.packets_in) / seconds);
+    printf("  echoed: %.2f MB, %.2f MB/s\n", phase.bytes_echoed / 1e6, phase.bytes_echoed / 1e6 / seconds);
+    printf("  latency (ms): p50 %.3f, p90 %.3f, p99 %.3f, max %.3f over %zu packets\n",
+           percentile_ms(0.5), percentile_ms(0.9), percentile_ms(0.99), percentile_ms(1), phase.num_latencies);
+    printf("  cpu (s): tun2socks thread %.3f, process %.3f\n", tun2socks_cpu, process_cpu);
+    if (phase.lost || phase.failed || phase.corrupt_bytes) {
+        printf("  errors: %llu lost, %llu failed, %llu corrupt bytes\n",
+               (unsigned long long)phase.lost, (unsigned long long)phase.failed,
+               (unsigned long long)phase.corrupt_bytes);
+    }
+}
+
+// SOCKS5 echo server
+
+static int read_full (int fd, uint8_t *buf, int len)
+{
+    while (len > 0) {
+        ssize_t n = read(fd, buf, len);
+        if (n < 0 && errno == EINTR) {
+            continue;
+        }
+        if (n <= 0) {
+            return 0;
+        }
+        buf += n;
+        len -= n;
+    }
+    return 1;
+}
+
+static int write_full (int fd, const uint8_t *buf, int len)
+{
+    while (len > 0) {
+        ssize_t n = write(fd, buf, len);
+        if (n < 0 && errno == EINTR) {
+            continue;
+        }
+        if (n <= 0) {
+            return 0;
+        }
+        buf += n;
+        len -= n;
+    }
+    return 1;
+}
+
+// returns the destination port of the CONNECT request, or -1
+static int socks_handshake (int fd)
+{
+    uint8_t buf[262];
+
+    // greeting, reply no authentication
+    if (!read_full(fd, buf, 2) || buf[0] != 5 || !read_full(fd, buf, buf[1])) {
+        return -1;
+    }
+    uint8_t method_reply[2] = {5, 0};
+    if (!write_full(fd, method_reply, sizeof(method_reply))) {
+        return -1;
+    }
+
+    // request
+    if (!read_full(fd, buf, 4) || buf[0] != 5 || buf[1] != 1) {
+        return -1;
+    }
+    int addr_len;
+    switch (buf[3]) {
+        case 1: addr_len = 4; break;
+        case 4: addr_len = 16; break;
+        case 3:
+            if (!read_full(fd, buf, 1)) {
+                return -1;
+            }
+            addr_len = buf[0];
+            break;
+        default:
+            return -1;
+    }
+    if (!read_full(fd, buf, addr_len + 2)) {
+        return -1;
+    }
+    int port = get16(buf + addr_len);
+
+    uint8_t request_reply[10] = {5, 0, 0, 1, 0, 0, 0, 0, 0, 0};
+    if (!write_full(fd, request_reply, sizeof(request_reply))) {
+        return -1;
+    }
+
+    return port;
+}
+
+// echoes udpgw packets back with the same connection ID and address, drops keepalives
+static void udpgw_echo (int fd)
+{
+    uint8_t buf[2 + UINT16_MAX];
+
+    while (read_full(fd, buf, 2)) {
+        int len = buf[0] | (buf[1] << 8);
+        if (!read_full(fd, buf + 2, len)) {
+            return;
+        }
+        if (len < 3 || (buf[2] & 1)) {
+            continue;
+        }
+        if (!write_full(fd, buf, 2 + len)) {
+            return;
+        }
+    }
+}
+
+static void stream_echo (int fd)
+{
+    uint8_t buf[65536];
+
+    while (1) {
+        ssize_t n = read(fd, buf, sizeof(buf));
+        if (n < 0 && errno == EINTR) {
+            continue;
+        }
+        if (n <= 0 || !write_full(fd, buf, n)) {
+            return;
+        }
+    }
+}
+
+static void * socks_connection_thread (void *arg)
+{
+    int fd = (int)(intptr_t)arg;
+
+    int one = 1;
+    setsockopt(fd, IPPROTO_TCP, TCP_NODELAY, &one, sizeof(one));
+
+    int port = socks_handshake(fd);
+    if (port == UDPGW_PORT) {
+        udpgw_echo(fd);
+    } else if (port >= 0) {
+        stream_echo(fd);
+    }
+
+    close(fd);
+    return NULL;
+}
+
+static void * socks_server_thread (void *unused)
+{
+    while (1) {
+        int fd = accept(socks_listen_fd, NULL, NULL);
+        if (fd < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            return NULL;
+        }
+        pthread_t thread;
+        if (pthread_create(&thread, NULL, socks_connection_thread, (void *)(intptr_t)fd) != 0) {
+            close(fd);
+            continue;
+        }
+        pthread_detach(thread);
+    }
+}
+
+static int start_socks_server (pthread_t *thread)
+{
+    socks_listen_fd = socket(AF_INET, SOCK_STREAM, 0);
+    if (socks_listen_fd < 0) {
+        perror("socket");
+        return 0;
+    }
+
+    struct sockaddr_in addr;
+    memset(&addr, 0, sizeof(addr));
+    addr.sin_family = AF_INET;
+    addr.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+    socklen_t addr_len = sizeof(addr);
+    if (bind(socks_listen_fd, (struct sockaddr *)&addr, sizeof(addr)) < 0 ||
+        listen(socks_listen_fd, 128) < 0 ||
+        getsockname(socks_listen_fd, (struct sockaddr *)&addr, &addr_len) < 0) {
+        perror("SOCKS listen");
+        return 0;
+    }
+    socks_port = ntohs(addr.sin_port);
+
+    return pthread_create(thread, NULL, socks_server_thread, NULL) == 0;
+}
+
+// TCP flows
+
+static int tcp_send (struct tcp_flow *f, uint8_t flags, int data_len)
+{
+    uint8_t p[TUN_MTU];
+    uint8_t *t = p + 20;
+    int header_len = (flags & TCP_SYN) ? 24 : 20;
+    uint32_t seq = (flags & TCP_SYN) ? f->iss : f->snd_nxt;
+
+    put16(t, f->port);
+    put16(t + 2, REMOTE_TCP_PORT);
+    put32(t + 4, seq);
+    put32(t + 8, (flags & TCP_ACK) ? f->rcv_nxt : 0);
+    t[12] = (header_len / 4) << 4;
+    t[13] = flags;
+    put16(t + 14, 65535);
+    put16(t + 16, 0);
+    put16(t + 18, 0);
+    if (flags & TCP_SYN) {
+        t[20] = 2; // MSS
+        t[21] = 4;
+        put16(t + 22, BENCH_TCP_MSS);
+    }
+
+    // the payload byte at stream offset i is (uint8_t)i
+    for (int i = 0; i < data_len; i++) {
+        t[header_len + i] = (uint8_t)(f->bytes_sent + i);
+    }
+
+    int len = finish_ipv4(p, IPPROTO_TCP, header_len + data_len, 16);
+    return tun_send(p, len);
+}
+
+static void tcp_add_mark (struct tcp_flow *f, uint64_t end, int64_t time)
+{
+    if (f->marks_count == f->marks_size) {
+        int new_size = f->marks_size ? 2 * f->marks_size : 64;
+        struct sent_mark *marks = malloc(new_size * sizeof(marks[0]));
+        if (!marks) {
+            fprintf(stderr, "malloc failed\n");
+            exit(1);
+        }
+        for (int i = 0; i < f->marks_count; i++) {
+            marks[i] = f->marks[(f->marks_first + i) % f->marks_size];
+        }
+        free(f->marks);
+        f->marks = marks;
+        f->marks_first = 0;
+        f->marks_size = new_size;
+    }
+    f->marks[(f->marks_first + f->marks_count) % f->marks_size] = (struct sent_mark){end, time};
+    f->marks_count++;
+}
+
+static void tcp_finish (struct tcp_flow *f, int failed)
+{
+    f->state = STATE_DONE;
+    tcp_flows_done++;
+    if (failed) {
+        phase.failed++;
+    }
+}
+
+static void tcp_pump (void)
+{
+    int progress;
+    do {
+        progress = 0;
+        for (int i = 0; i < options.tcp_flows && !tun_blocked; i++) {
+            struct tcp_flow *f = &tcp_flows[i];
+            int64_t now = now_ns();
+
+            switch (f->state) {
+                case STATE_SYN_SENT:
+                    if (f->syn_time == 0 || now - f->syn_time > TCP_SYN_TIMEOUT) {
+                        if (tcp_send(f, TCP_SYN, 0)) {
+                            f->syn_time = now;
+                        }
+                    }
+                    break;
+
+                case STATE_ESTABLISHED: {
+                    if (f->bytes_echoed == f->bytes_total) {
+                        // abort rather than close, the server side has nothing left to say
+                        if (tcp_send(f, TCP_RST | TCP_ACK, 0)) {
+                            tcp_finish(f, 0);
+                        }
+                        break;
+                    }
+
+                    int64_t len = (int32_t)(f->snd_wnd_edge - f->snd_nxt);
+                    if (len > BENCH_TCP_MSS) {
+                        len = BENCH_TCP_MSS;
+                    }
+                    if (len > (int64_t)(f->bytes_total - f->bytes_sent)) {
+                        len = f->bytes_total - f->bytes_sent;
+                    }
+                    if (len > TCP_MAX_UNECHOED - (int64_t)(f->bytes_sent - f->bytes_echoed)) {
+                        len = TCP_MAX_UNECHOED - (int64_t)(f->bytes_sent - f->bytes_echoed);
+                    }
+
+                    if (len > 0) {
+                        if (tcp_send(f, TCP_ACK | TCP_PSH, len)) {
+                            f->snd_nxt += len;
+                            f->bytes_sent += len;
+                            f->ack_pending = 0;
+                            tcp_add_mark(f, f->bytes_sent, now);
+                            progress = 1;
+                        }
+                    } else if (f->ack_pending) {
+                        if (tcp_send(f, TCP_ACK, 0)) {
+                            f->ack_pending = 0;
+                        }
+                    }
+                } break;
+            }
+        }
+    } while (progress);
+}
+
+static void tcp_receive (const uint8_t *t, int len)
+{
+    if (len < 20) {
+        return;
+    }
+    int index = get16(t + 2) - TCP_BASE_PORT;
+    if (index < 0 || index >= options.tcp_flows) {
+        return;
+    }
+    struct tcp_flow *f = &tcp_flows[index];
+
+    uint32_t seq = get32(t + 4);
+    uint32_t ack = get32(t + 8);
+    int header_len = (t[12] >> 4) * 4;
+    uint8_t flags = t[13];
+    uint16_t wnd = get16(t + 14);
+    if (header_len < 20 || header_len > len) {
+        return;
+    }
+    const uint8_t *data = t + header_len;
+    int data_len = len - header_len;
+
+    if (f->state == STATE_DONE) {
+        return;
+    }
+    if (flags & TCP_RST) {
+        tcp_finish(f, 1);
+        return;
+    }
+
+    if (f->state == STATE_SYN_SENT) {
+        if ((flags & (TCP_SYN | TCP_ACK)) == (TCP_SYN | TCP_ACK) && ack == f->iss + 1) {
+            f->irs = seq;
+            f->rcv_nxt = seq + 1;
+            f->snd_nxt = ack;
+            f->snd_una = ack;
+            f->snd_wnd_edge = ack + wnd;
+            f->state = STATE_ESTABLISHED;
+            f->ack_pending = 1;
+        }
+        return;
+    }
+
+    if ((flags & TCP_ACK) && (int32_t)(ack - f->snd_una) >= 0 && (int32_t)(ack - f->snd_nxt) <= 0) {
+        f->snd_una = ack;
+        f->snd_wnd_edge = ack + wnd;
+    }
+
+    if (data_len > 0 || (flags & TCP_FIN)) {
+        f->ack_pending = 1;
+    }
+    if (data_len == 0 || seq != f->rcv_nxt) {
+        return;
+    }
+
+    for (int i = 0; i < data_len; i++) {
+        if (data[i] != (uint8_t)(f->bytes_echoed + i)) {
+            phase.corrupt_bytes++;
+        }
+    }
+    f->rcv_nxt += data_len;
+    f->bytes_echoed += data_len;
+    phase.bytes_echoed += data_len;
+
+    int64_t now = now_ns();
+    while (f->marks_count > 0 && f->marks[f->marks_first].end <= f->bytes_echoed) {
+        add_latency(now - f->marks[f->marks_first].time);
+        f->marks_first = (f->marks_first + 1) % f->marks_size;
+        f->marks_count--;
+    }
+}
+
+// UDP flows
+
+static int udp_send (struct udp_flow *f, uint32_t seq)
+{
+    uint8_t p[TUN_MTU];
+    uint8_t *u = p + 20;
+    int len = 8 + options.udp_size;
+
+    put16(u, f->port);
+    put16(u + 2, REMOTE_UDP_PORT);
+    put16(u + 4, len);
+    put16(u + 6, 0);
+    put32(u + 8, seq);
+    for (int i = 4; i < options.udp_size; i++) {
+        u[8 + i] = (uint8_t)(seq + i);
+    }
+
+    return tun_send(p, finish_ipv4(p, IPPROTO_UDP, len, 6));
+}
+
+static void udp_pump (void)
+{
+    int progress;
+    do {
+        progress = 0;
+        for (int i = 0; i < options.udp_flows && !tun_blocked; i++) {
+            struct udp_flow *f = &udp_flows[i];
+            if (f->next_seq == (uint32_t)options.udp_packets) {
+                continue;
+            }
+            struct udp_slot *slot = &f->slots[f->next_seq % UDP_WINDOW];
+            if (slot->busy) {
+                continue;
+            }
+            if (udp_send(f, f->next_seq)) {
+                slot->busy = 1;
+                slot->seq = f->next_seq;
+                slot->time = now_ns();
+                f->next_seq++;
+                f->in_flight++;
+                progress = 1;
+            }
+        }
+    } while (progress);
+}
+
+static void udp_receive (const uint8_t *u, int len)
+{
+    if (len < 12) {
+        return;
+    }
+    int index = get16(u + 2) - UDP_BASE_PORT;
+    if (index < 0 || index >= options.udp_flows) {
+        return;
+    }
+    struct udp_flow *f = &udp_flows[index];
+
+    uint32_t seq = get32(u + 8);
+    struct udp_slot *slot = &f->slots[seq % UDP_WINDOW];
+    if (!slot->busy || slot->seq != seq) {
+        return;
+    }
+
+    for (int i = 4; i < len - 8; i++) {
+        if (u[8 + i] != (uint8_t)(seq + i)) {
+            phase.corrupt_bytes++;
+        }
+    }
+    phase.bytes_echoed += len - 8;
+    add_latency(now_ns() - slot->time);
+    slot->busy = 0;
+    f->in_flight--;
+}
+
+static void udp_check_timeouts (void)
+{
+    int64_t now = now_ns();
+    for (int i = 0; i < options.udp_flows; i++) {
+        struct udp_flow *f = &udp_flows[i];
+        for (int j = 0; j < UDP_WINDOW; j++) {
+            if (f->slots[j].busy && now - f->slots[j].time > UDP_TIMEOUT) {
+                f->slots[j].busy = 0;
+                f->in_flight--;
+                phase.lost++;
+            }
+        }
+    }
+}
+
+static int udp_done (void)
+{
+    for (int i = 0; i < options.udp_flows; i++) {
+        if (udp_flows[i].next_seq != (uint32_t)options.udp_packets || udp_flows[i].in_flight > 0) {
+            return 0;
+        }
+    }
+    return 1;
+}
+
+// tun device
+
+static void tun_receive (void)
+{
+    struct pollfd pfd;
+    pfd.fd = tun_fd;
+    pfd.events = POLLIN | (tun_blocked ? POLLOUT : 0);
+    poll(&pfd, 1, 10);
+    tun_blocked = 0;
+
+    uint8_t p[TUN_MTU + 64];
+    ssize_t n;
+    while ((n = recv(tun_fd, p, sizeof(p), 0)) > 0) {
+        phase.packets_in++;
+        if (n < 20 || (p[0] >> 4) != 4) {
+            continue;
+        }
+        int header_len = (p[0] & 0xf) * 4;
+        int total = get16(p + 2);
+        if (header_len < 20 || total < header_len || total > n) {
+            continue;
+        }
+        if (p[9] == IPPROTO_TCP) {
+            tcp_receive(p + header_len, total - header_len);
+        } else if (p[9] == IPPROTO_UDP) {
+            udp_receive(p + header_len, total - header_len);
+        }
+    }
+}
+
+// each flow sends tcp_bytes, which the server echoes back, returns 1 on errors
+static int run_tcp (clockid_t t2s_clock)
+{
+    tcp_flows = calloc(options.tcp_flows, sizeof(tcp_flows[0]));
+    if (!tcp_flows) {
+        fprintf(stderr, "calloc failed\n");
+        exit(1);
+    }
+    for (int i = 0; i < options.tcp_flows; i++) {
+        tcp_flows[i].port = TCP_BASE_PORT + i;
+        tcp_flows[i].state = STATE_SYN_SENT;
+        tcp_flows[i].iss = 1000 + i * 1000000;
+        tcp_flows[i].bytes_total = options.tcp_bytes;
+    }
+
+    start_phase();
+    int64_t t2s_cpu_start = clock_ns(t2s_clock);
+    int64_t process_cpu_start = process_cpu_ns();
+    while (tcp_flows_done < options.tcp_flows && now_ns() - phase.start_time < PHASE_TIMEOUT) {
+        tcp_pump();
+        tun_receive();
+    }
+
+    char name[64];
+    snprintf(name, sizeof(name), "tcp, %d flows x %lld bytes", options.tcp_flows, options.tcp_bytes);
+    report_phase(name, t2s_clock, t2s_cpu_start, process_cpu_start);
+
+    int errors = phase.failed > 0 || phase.corrupt_bytes > 0;
+    if (tcp_flows_done < options.tcp_flows) {
+        printf("  timed out\n");
+        errors = 1;
+    }
+
+    for (int i = 0; i < options.tcp_flows; i++) {
+        free(tcp_flows[i].marks);
+    }
+    free(tcp_flows);
+
+    return errors;
+}
+
+// each flow keeps up to UDP_WINDOW packets in flight through udpgw, returns 1 on errors
+static int run_udp (clockid_t t2s_clock)
+{
+    udp_flows = calloc(options.udp_flows, sizeof(udp_flows[0]));
+    if (!udp_flows) {
+        fprintf(stderr, "calloc failed\n");
+        exit(1);
+    }
+    for (int i = 0; i < options.udp_flows; i++) {
+        udp_flows[i].port = UDP_BASE_PORT + i;
+    }
+
+    start_phase();
+    int64_t t2s_cpu_start = clock_ns(t2s_clock);
+    int64_t process_cpu_start = process_cpu_ns();
+    while (!udp_done() && now_ns() - phase.start_time < PHASE_TIMEOUT) {
+        udp_pump();
+        tun_receive();
+        udp_check_timeouts();
+    }
+
+    char name[64];
+    snprintf(name, sizeof(name), "udp, %d flows x %d packets of %d bytes", options.udp_flows, options.udp_packets, options.udp_size);
+    report_phase(name, t2s_clock, t2s_cpu_start, process_cpu_start);
+
+    int errors = phase.corrupt_bytes > 0;
+    if (!udp_done()) {
+        printf("  timed out\n");
+        errors = 1;
+    }
+
+    free(udp_flows);
+
+    return errors;
+}
+
+static void * tun2socks_thread (void *arg)
+{
+    tun2socks_run((const struct tun2socks_params *)arg);
+    return NULL;
+}
+
+static void usage (char *name)
+{
+    printf(
+        "Usage: %s\n"
+        "    [--tcp-flows <num>] (default 4)\n"
+        "    [--tcp-bytes <bytes per flow>] (default 8388608)\n"
+        "    [--udp-flows <num>] (default 4)\n"
+        "    [--udp-packets <packets per flow>] (default 20000)\n"
+        "    [--udp-size <payload bytes>] (default 1400)\n"
+        "    [--tcp-wnd <bytes>] (default 65535)\n"
+        "    [--tcp-snd-buf <bytes>] (default 65535)\n",
+        name
+    );
+
+    exit(1);
+}
+
+int main (int argc, char **argv)
+{
+    if (argc <= 0) {
+        return 1;
+    }
+
+    setvbuf(stdout, NULL, _IOLBF, 0);
+
+    options.tcp_flows = 4;
+    options.tcp_bytes = 8 * 1024 * 1024;
+    options.udp_flows = 4;
+    options.udp_packets = 20000;
+    options.udp_size = 1400;
+    options.tcp_wnd = 65535;
+    options.tcp_snd_buf = 65535;
+
+    for (int i = 1; i < argc; i += 2) {
+        if (i + 1 >= argc) {
+            usage(argv[0]);
+        }
+        char *arg = argv[i];
+        long long value = atoll(argv[i + 1]);
+        if (value < 0) {
+            usage(argv[0]);
+        }
+        if (!strcmp(arg, "--tcp-flows")) {
+            options.tcp_flows = value;
+        }
+        else if (!strcmp(arg, "--tcp-bytes")) {
+            options.tcp_bytes = value;
+        }
+        else if (!strcmp(arg, "--udp-flows")) {
+            options.udp_flows = value;
+        }
+        else if (!strcmp(arg, "--udp-packets")) {
+            options.udp_packets = value;
+        }
+        else if (!strcmp(arg, "--udp-size")) {
+            options.udp_size = value;
+        }
+        else if (!strcmp(arg, "--tcp-wnd")) {
+            options.tcp_wnd = value;
+        }
+        else if (!strcmp(arg, "--tcp-snd-buf")) {
+            options.tcp_snd_buf = value;
+        }
+        else {
+            usage(argv[0]);
+        }
+    }
+    if (options.udp_size < 4 || options.udp_size > TUN_MTU - 28) {
+        usage(argv[0]);
+    }
+
+    pthread_t socks_thread;
+    if (!start_socks_server(&socks_thread)) {
+        return 1;
+    }
+
+    // datagram socketpair keeps the packet boundaries of a tun device
+    int fds[2];
+    if (socketpair(AF_UNIX, SOCK_DGRAM, 0, fds) < 0) {
+        perror("socketpair");
+        return 1;
+    }
+    int buffer_size = TUN_SOCKET_BUFFER;
+    for (int i = 0; i < 2; i++) {
+        setsockopt(fds[i], SOL_SOCKET, SO_SNDBUF, &buffer_size, sizeof(buffer_size));
+        setsockopt(fds[i], SOL_SOCKET, SO_RCVBUF, &buffer_size, sizeof(buffer_size));
+    }
+    // both ends non-blocking, like the fd of VpnService.Builder.establish()
+    for (int i = 0; i < 2; i++) {
+        fcntl(fds[i], F_SETFL, fcntl(fds[i], F_GETFL) | O_NONBLOCK);
+    }
+    tun_fd = fds[1];
+
+    char socks_addr[32];
+    char udpgw_addr[32];
+    snprintf(socks_addr, sizeof(socks_addr), "127.0.0.1:%d", socks_port);
+    snprintf(udpgw_addr, sizeof(udpgw_addr), "127.0.0.1:%d", UDPGW_PORT);
+
+    struct tun2socks_params params;
+    memset(&params, 0, sizeof(params));
+    params.tun_fd = fds[0]; // closed by tun2socks
+    params.tun_mtu = TUN_MTU;
+    params.netif_ipaddr = NETIF_ADDR;
+    params.netif_netmask = NETIF_NETMASK;
+    params.netif_ip6addr = NULL;
+    params.socks_server_addr = socks_addr;
+    params.udpgw_remote_server_addr = udpgw_addr;
+    params.udpgw_transparent_dns = 0;
+    params.dns_cache_size = 0;
+    params.tcp_wnd = options.tcp_wnd;
+    params.tcp_snd_buf = options.tcp_snd_buf;
+    params.max_tcp_clients = options.tcp_flows + 16;
+    params.loglevel = 2; // BLOG_WARNING, the app default
+
+    pthread_t t2s_thread;
+    if (pthread_create(&t2s_thread, NULL, tun2socks_thread, &params) != 0) {
+        fprintf(stderr, "pthread_create failed\n");
+        return 1;
+    }
+    clockid_t t2s_clock;
+    if (pthread_getcpuclockid(t2s_thread, &t2s_clock) != 0) {
+        fprintf(stderr, "pthread_getcpuclockid failed\n");
+        return 1;
+    }
+
+    printf("tcp window %d, send buffer %d\n", options.tcp_wnd, options.tcp_snd_buf);
+
+    int errors = 0;
+    if (options.tcp_flows > 0) {
+        errors |= run_tcp(t2s_clock);
+    }
+    if (options.udp_flows > 0) {
+        errors |= run_udp(t2s_clock);
+    }
+
+    tun2socks_terminate();
+    pthread_join(t2s_thread, NULL);
+
+    shutdown(socks_listen_fd, SHUT_RDWR);
+    close(socks_listen_fd);
+    pthread_join(socks_thread, NULL);
+
+    close(tun_fd);
+    free(phase.latencies);
+
+    return errors;
+}
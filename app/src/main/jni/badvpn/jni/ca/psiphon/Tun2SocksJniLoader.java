@@ -29,8 +29,14 @@ public class Tun2SocksJniLoader {
         initTun2socksLogger(formattedClassName, methodName);
     }
 
+    // The log method must be static and take a String[], native code passes queued log lines
+    // in batches of "LEVEL(channel): message"
     private native static void initTun2socksLogger(String className, String logMethodName);
 
+    // Sets the minimum level of tun2socks log lines passed to the logger, from 1 (ERROR) to
+    // 5 (DEBUG), 0 disables logging. Takes effect on the next runTun2Socks call.
+    public native static void setLogLevel(int level);
+
     // Starts tun2socks
     public native static void runTun2Socks(
             int vpnInterfaceFileDescriptor,
@@ -41,9 +47,39 @@ public class Tun2SocksJniLoader {
             String vpnIpv6Address,
             String socksServerAddress,
             String udpgwServerAddress,
-            int udpgwTransparentDNS);
+            int udpgwTransparentDNS,
+            // Maximum number of cached DNS responses, 0 disables the cache
+            int dnsCacheSize,
+            // lwIP TCP receive window and send buffer in bytes, clamped to 1460..65535
+            // and 2920..65535
+            int tcpWindowSize,
+            int tcpSendBufferSize,
+            // Maximum number of concurrent TCP connections, 0 for no limit
+            int maxTcpClients);
 
 
     // Stops tun2socks
     public native static void terminateTun2Socks();
+
+    // Returns the DNS cache counters of the running or last tun2socks run:
+    // hits, misses, insertions, evictions, oversized
+    public native static long[] getDnsCacheStats();
+
+    // Returns the TCP buffer settings and lwIP high-water marks of the running or last tun2socks run:
+    // TCP window, TCP send buffer, max TCP clients, most TCP clients at once, refused TCP clients,
+    // most TCP PCBs, most TCP segments, most pbufs, pool allocation failures
+    public native static long[] getLwipStats();
+
+    // Returns the log counters: lines suppressed by the log level in the running or last
+    // tun2socks run, and since the library was loaded, lines dropped because the native queue
+    // was full, lines passed to the logger and batches passed to the logger
+    public native static long[] getLogStats();
+
+    // Takes the per-connection byte counts reported by tun2socks since the previous call.
+    // The first value is the number of final records dropped because nobody took them in time,
+    // followed by 10 values per record: protocol (6 TCP, 17 UDP), flags (1 closed, 2 IPv6),
+    // app port, destination port, app address (2 values), destination address (2 values),
+    // bytes from the app, bytes to the app. Addresses are 128 bit big-endian numbers, IPv4
+    // addresses are in the second value.
+    public native static long[] getTrafficRecords();
 }
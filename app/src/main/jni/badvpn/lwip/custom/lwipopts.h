@@ -61,10 +61,25 @@
 #define MEMP_NUM_TCP_PCB_LISTEN 16
 #define MEMP_NUM_TCP_PCB 1024
 #define TCP_MSS 1460
-#define TCP_SND_BUF 16384
+
+// ==== PSIPHON ====
+// The receive window and send buffer are chosen by tun2socks before lwip_init,
+// see custom/sys.c. The preprocessor checks of init.c can't evaluate them, so
+// they are disabled and tun2socks clamps the values to the same bounds instead.
+#define LWIP_TCP_RUNTIME_BUFFERS 1
+#define LWIP_DISABLE_TCP_SANITY_CHECKS 1
+extern int lwip_tcp_wnd;
+extern int lwip_tcp_snd_buf;
+#define TCP_WND lwip_tcp_wnd
+#define TCP_SND_BUF lwip_tcp_snd_buf
+// ==== PSIPHON ====
+
 #define TCP_SND_QUEUELEN (4 * (TCP_SND_BUF)/(TCP_MSS))
 
 #define MEM_LIBC_MALLOC 1
 #define MEMP_MEM_MALLOC 1
 
+// PSIPHON: count pool allocations so tun2socks can report high-water marks
+#define MEMP_STATS 1
+
 #endif
@@ -31,6 +31,10 @@
 
 #include <lwip/sys.h>
 
+// PSIPHON: TCP buffer sizes, see lwipopts.h. Set by tun2socks before lwip_init.
+int lwip_tcp_wnd = 4 * TCP_MSS;
+int lwip_tcp_snd_buf = 16384;
+
 u32_t sys_now (void)
 {
     return btime_gettime();
@@ -483,3 +483,67 @@ memp_free(memp_t type, void *mem)
 }
 
 #endif /* MEMP_MEM_MALLOC */
+
+#if MEMP_MEM_MALLOC && MEMP_STATS
+/* PSIPHON: with MEMP_MEM_MALLOC each pool element is a plain mem_malloc, these
+ * only keep the counters of the pools. There is no pool size, so "avail" is not set.
+ */
+
+/**
+ * Reset the counters of all pools.
+ */
+void
+memp_init(void)
+{
+  u16_t i;
+
+  for (i = 0; i < MEMP_MAX; ++i) {
+    MEMP_STATS_AVAIL(used, i, 0);
+    MEMP_STATS_AVAIL(max, i, 0);
+    MEMP_STATS_AVAIL(err, i, 0);
+  }
+}
+
+/**
+ * Get an element from a specific pool.
+ *
+ * @param type the pool to get an element from
+ *
+ * @return a pointer to the allocated memory or a NULL pointer on error
+ */
+void *
+memp_malloc(memp_t type)
+{
+  void *mem;
+
+  LWIP_ERROR("memp_malloc: type < MEMP_MAX", (type < MEMP_MAX), return NULL;);
+
+  mem = mem_malloc(memp_sizes[type]);
+  if (mem != NULL) {
+    MEMP_STATS_INC_USED(used, type);
+  } else {
+    LWIP_DEBUGF(MEMP_DEBUG | LWIP_DBG_LEVEL_SERIOUS, ("memp_malloc: out of memory in pool %"U16_F"\n", (u16_t)type));
+    MEMP_STATS_INC(err, type);
+  }
+
+  return mem;
+}
+
+/**
+ * Put an element back into its pool.
+ *
+ * @param type the pool where to put mem
+ * @param mem the memp element to free
+ */
+void
+memp_free(memp_t type, void *mem)
+{
+  if (mem == NULL) {
+    return;
+  }
+
+  MEMP_STATS_DEC(used, type);
+
+  mem_free(mem);
+}
+#endif /* MEMP_MEM_MALLOC && MEMP_STATS */
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) Psiphon Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <string.h>
+
+#include <misc/balloc.h>
+
+#include <tun2socks/DnsCache.h>
+
+#define DNS_HEADER_SIZE 12
+#define DNS_TYPE_OPT 41
+#define DNS_FLAG_QR 0x80
+#define DNS_FLAG_TC 0x02
+#define DNS_FLAG_CD 0x10
+#define DNS_OPCODE_MASK 0x78
+#define DNS_RCODE_MASK 0x0f
+#define DNS_EDNS_FLAG_DO 0x80
+// largest response a client without EDNS accepts over UDP (RFC 1035)
+#define DNS_MAX_UDP_SIZE 512
+
+// flags of the query at the end of the key, a response is only served to queries with the same
+// flags. The answer records depend on DO and CD, the OPT record and the size on EDNS.
+#define KEY_FLAG_EDNS 0x01
+#define KEY_FLAG_DO 0x02
+#define KEY_FLAG_CD 0x04
+
+static uint16_t read16 (const uint8_t *p)
+{
+    return ((uint16_t)p[0] << 8) | p[1];
+}
+
+static uint32_t read32 (const uint8_t *p)
+{
+    return ((uint32_t)p[0] << 24) | ((uint32_t)p[1] << 16) | ((uint32_t)p[2] << 8) | p[3];
+}
+
+static void write32 (uint8_t *p, uint32_t v)
+{
+    p[0] = v >> 24;
+    p[1] = v >> 16;
+    p[2] = v >> 8;
+    p[3] = v;
+}
+
+// Returns the position after the name at pos, or -1 if the name is malformed.
+static int skip_name (const uint8_t *msg, int len, int pos)
+{
+    while (pos < len) {
+        uint8_t label_len = msg[pos];
+        if (label_len == 0) {
+            return pos + 1;
+        }
+        if ((label_len & 0xc0) == 0xc0) {
+            // a compression pointer ends the name
+            return (pos + 2 <= len) ? pos + 2 : -1;
+        }
+        if ((label_len & 0xc0) != 0) {
+            return -1;
+        }
+        pos += 1 + label_len;
+    }
+    return -1;
+}
+
+// Builds the key of the question at pos: the lowercased name followed by type and class.
+// Returns the position after the question, or -1 if the question can't be used as a key.
+static int read_question_key (const uint8_t *msg, int len, int pos, uint8_t *key, int *out_key_len)
+{
+    int key_len = 0;
+    while (1) {
+        if (pos >= len) {
+            return -1;
+        }
+        uint8_t label_len = msg[pos];
+        // questions are normally not compressed, don't follow pointers
+        if ((label_len & 0xc0) != 0 || pos + 1 + label_len > len || key_len + 1 + label_len > 255) {
+            return -1;
+        }
+        key[key_len++] = label_len;
+        pos++;
+        for (int i = 0; i < label_len; i++) {
+            uint8_t c = msg[pos + i];
+            key[key_len++] = (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+        }
+        pos += label_len;
+        if (label_len == 0) {
+            break;
+        }
+    }
+    if (pos + 4 > len) {
+        return -1;
+    }
+    memcpy(key + key_len, msg + pos, 4);
+    *out_key_len = key_len + 4;
+    return pos + 4;
+}
+
+// Calls func for every resource record of the message with rr pointing to its type, which is
+// followed by class, TTL, RDLENGTH and RDATA.
+// Returns 1 if all records could be parsed, 0 otherwise.
+static int for_each_record (uint8_t *msg, int len, void (*func) (uint8_t *rr, void *user), void *user)
+{
+    int qdcount = read16(msg + 4);
+    int rrcount = read16(msg + 6) + read16(msg + 8) + read16(msg + 10);
+    int pos = DNS_HEADER_SIZE;
+    for (int i = 0; i < qdcount; i++) {
+        if ((pos = skip_name(msg, len, pos)) < 0 || pos + 4 > len) {
+            return 0;
+        }
+        pos += 4;
+    }
+    for (int i = 0; i < rrcount; i++) {
+        if ((pos = skip_name(msg, len, pos)) < 0 || pos + 10 > len) {
+            return 0;
+        }
+        uint16_t rdlength = read16(msg + pos + 8);
+        if (pos + 10 + rdlength > len) {
+            return 0;
+        }
+        func(msg + pos, user);
+        pos += 10 + rdlength;
+    }
+    return 1;
+}
+
+// the TTL field of OPT records holds the EDNS flags, it is not aged
+static void min_ttl_func (uint8_t *rr, void *user)
+{
+    uint32_t *min_ttl = user;
+    uint32_t v = read32(rr + 4);
+    if (read16(rr) != DNS_TYPE_OPT && v < *min_ttl) {
+        *min_ttl = v;
+    }
+}
+
+static void age_ttl_func (uint8_t *rr, void *user)
+{
+    uint32_t elapsed = *(uint32_t *)user;
+    uint32_t v = read32(rr + 4);
+    if (read16(rr) != DNS_TYPE_OPT) {
+        write32(rr + 4, v > elapsed ? v - elapsed : 0);
+    }
+}
+
+struct opt_state {
+    int count;
+    const uint8_t *rr;
+};
+
+static void opt_func (uint8_t *rr, void *user)
+{
+    struct opt_state *state = user;
+    if (read16(rr) == DNS_TYPE_OPT) {
+        state->count++;
+        state->rr = rr;
+    }
+}
+
+// Reads the key flags of the message from its header and OPT record and the largest UDP
+// response its sender accepts.
+// Returns 1 on success, 0 if the records can't be parsed, there is more than one OPT record or
+// the OPT record has a version other than 0 or an extended RCODE.
+static int read_key_flags (const uint8_t *msg, int len, uint8_t *out_flags, int *out_udp_size)
+{
+    struct opt_state state = {0, NULL};
+    if (!for_each_record((uint8_t *)msg, len, opt_func, &state) || state.count > 1) {
+        return 0;
+    }
+
+    uint8_t flags = (msg[3] & DNS_FLAG_CD) ? KEY_FLAG_CD : 0;
+    int udp_size = DNS_MAX_UDP_SIZE;
+    if (state.rr) {
+        // the class is the UDP payload size, the TTL the extended RCODE, version and flags
+        if (state.rr[4] != 0 || state.rr[5] != 0) {
+            return 0;
+        }
+        flags |= KEY_FLAG_EDNS | ((state.rr[6] & DNS_EDNS_FLAG_DO) ? KEY_FLAG_DO : 0);
+        if (read16(state.rr + 2) > udp_size) {
+            udp_size = read16(state.rr + 2);
+        }
+    }
+
+    *out_flags = flags;
+    *out_udp_size = udp_size;
+    return 1;
+}
+
+static uint32_t hash_key (const uint8_t *key, int key_len)
+{
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    for (int i = 0; i < key_len; i++) {
+        h ^= key[i];
+        h *= 16777619u;
+    }
+    return h;
+}
+
+static void lru_remove (DnsCache *o, int i)
+{
+    DnsCacheEntry *e = &o->entries[i];
+    if (e->lru_prev >= 0) {
+        o->entries[e->lru_prev].lru_next = e->lru_next;
+    } else {
+        o->lru_first = e->lru_next;
+    }
+    if (e->lru_next >= 0) {
+        o->entries[e->lru_next].lru_prev = e->lru_prev;
+    } else {
+        o->lru_last = e->lru_prev;
+    }
+}
+
+static void lru_push_front (DnsCache *o, int i)
+{
+    DnsCacheEntry *e = &o->entries[i];
+    e->lru_prev = -1;
+    e->lru_next = o->lru_first;
+    if (o->lru_first >= 0) {
+        o->entries[o->lru_first].lru_prev = i;
+    } else {
+        o->lru_last = i;
+    }
+    o->lru_first = i;
+}
+
+static int find_entry (DnsCache *o, const uint8_t *key, int key_len, uint32_t hash)
+{
+    int i = o->buckets[hash & (o->num_buckets - 1)];
+    while (i >= 0) {
+        DnsCacheEntry *e = &o->entries[i];
+        if (e->hash == hash && e->key_len == key_len && !memcmp(e->data, key, key_len)) {
+            return i;
+        }
+        i = e->hash_next;
+    }
+    return -1;
+}
+
+static void remove_entry (DnsCache *o, int i)
+{
+    DnsCacheEntry *e = &o->entries[i];
+
+    // unlink from the hash chain
+    int *link = &o->buckets[e->hash & (o->num_buckets - 1)];
+    while (*link != i) {
+        link = &o->entries[*link].hash_next;
+    }
+    *link = e->hash_next;
+
+    lru_remove(o, i);
+
+    BFree(e->data);
+    e->data = NULL;
+    e->hash_next = o->free_first;
+    o->free_first = i;
+    o->num_entries--;
+}
+
+int DnsCache_Init (DnsCache *o, int max_entries)
+{
+    ASSERT(max_entries > 0)
+
+    o->max_entries = max_entries;
+    o->num_entries = 0;
+    memset(&o->stats, 0, sizeof(o->stats));
+
+    o->num_buckets = 1;
+    while (o->num_buckets < max_entries) {
+        o->num_buckets <<= 1;
+    }
+
+    if (!(o->entries = (DnsCacheEntry *)BAllocArray(max_entries, sizeof(o->entries[0])))) {
+        goto fail0;
+    }
+    if (!(o->buckets = (int *)BAllocArray(o->num_buckets, sizeof(o->buckets[0])))) {
+        goto fail1;
+    }
+
+    for (int i = 0; i < o->num_buckets; i++) {
+        o->buckets[i] = -1;
+    }
+    for (int i = 0; i < max_entries; i++) {
+        o->entries[i].data = NULL;
+        o->entries[i].hash_next = (i + 1 < max_entries) ? i + 1 : -1;
+    }
+    o->free_first = 0;
+    o->lru_first = -1;
+    o->lru_last = -1;
+
+    return 1;
+
+fail1:
+    BFree(o->entries);
+fail0:
+    return 0;
+}
+
+void DnsCache_Free (DnsCache *o)
+{
+    for (int i = 0; i < o->max_entries; i++) {
+        BFree(o->entries[i].data);
+    }
+    BFree(o->buckets);
+    BFree(o->entries);
+}
+
+int DnsCache_Lookup (DnsCache *o, const uint8_t *query, int query_len, int64_t now, uint8_t *out, int out_size)
+{
+    // only standard queries with a single question, possibly with an OPT record
+    if (query_len < DNS_HEADER_SIZE || (query[2] & (DNS_FLAG_QR | DNS_OPCODE_MASK)) ||
+        read16(query + 4) != 1 || read16(query + 6) != 0 || read16(query + 8) != 0 || read16(query + 10) > 1
+    ) {
+        return 0;
+    }
+
+    uint8_t key[DNSCACHE_MAX_KEY_SIZE];
+    int key_len;
+    uint8_t flags;
+    int udp_size;
+    if (read_question_key(query, query_len, DNS_HEADER_SIZE, key, &key_len) < 0 ||
+        !read_key_flags(query, query_len, &flags, &udp_size) ||
+        // an additional record other than OPT, e.g. TSIG
+        (read16(query + 10) == 1 && !(flags & KEY_FLAG_EDNS))
+    ) {
+        return 0;
+    }
+    key[key_len++] = flags;
+
+    uint32_t hash = hash_key(key, key_len);
+    int i = find_entry(o, key, key_len, hash);
+    if (i >= 0 && o->entries[i].expire_time <= now) {
+        remove_entry(o, i);
+        i = -1;
+    }
+    if (i < 0) {
+        __sync_fetch_and_add(&o->stats.misses, 1);
+        return 0;
+    }
+
+    // responses to queries with the same flags were sent to a client accepting the same
+    // records, but possibly a larger UDP response
+    DnsCacheEntry *e = &o->entries[i];
+    if (e->response_len > out_size || e->response_len > udp_size) {
+        __sync_fetch_and_add(&o->stats.oversized, 1);
+        return 0;
+    }
+
+    memcpy(out, e->data + e->key_len, e->response_len);
+    // answer with the ID of the query
+    out[0] = query[0];
+    out[1] = query[1];
+    // and its question, which only differs in case; neither question is compressed, so the
+    // question sections are as long as the key without the flags
+    memcpy(out + DNS_HEADER_SIZE, query + DNS_HEADER_SIZE, e->key_len - 1);
+    uint32_t elapsed = (uint32_t)((now - e->stored_time) / 1000);
+    for_each_record(out, e->response_len, age_ttl_func, &elapsed);
+
+    lru_remove(o, i);
+    lru_push_front(o, i);
+
+    __sync_fetch_and_add(&o->stats.hits, 1);
+    return e->response_len;
+}
+
+void DnsCache_Store (DnsCache *o, const uint8_t *response, int response_len, int64_t now)
+{
+    if (response_len < DNS_HEADER_SIZE || response_len > DNSCACHE_MAX_RESPONSE_SIZE ||
+        !(response[2] & DNS_FLAG_QR) || (response[2] & (DNS_OPCODE_MASK | DNS_FLAG_TC)) ||
+        (response[3] & DNS_RCODE_MASK) != 0 ||
+        read16(response + 4) != 1 || read16(response + 6) == 0
+    ) {
+        return;
+    }
+
+    // servers copy CD and DO from the query and only send an OPT record if the query had one
+    // (RFC 4035, RFC 3225, RFC 6891), so the response has the key flags of its query
+    uint8_t key[DNSCACHE_MAX_KEY_SIZE];
+    int key_len;
+    uint8_t flags;
+    int udp_size;
+    if (read_question_key(response, response_len, DNS_HEADER_SIZE, key, &key_len) < 0 ||
+        !read_key_flags(response, response_len, &flags, &udp_size) ||
+        // e.g. received over TCP, a client without EDNS may not accept it over UDP
+        (!(flags & KEY_FLAG_EDNS) && response_len > DNS_MAX_UDP_SIZE)
+    ) {
+        return;
+    }
+    key[key_len++] = flags;
+
+    uint32_t min_ttl = DNSCACHE_MAX_TTL;
+    if (!for_each_record((uint8_t *)response, response_len, min_ttl_func, &min_ttl) || min_ttl == 0) {
+        return;
+    }
+
+    uint8_t *data = (uint8_t *)BAlloc(key_len + response_len);
+    if (!data) {
+        return;
+    }
+    memcpy(data, key, key_len);
+    memcpy(data + key_len, response, response_len);
+
+    uint32_t hash = hash_key(key, key_len);
+    int i = find_entry(o, key, key_len, hash);
+    if (i >= 0) {
+        remove_entry(o, i);
+    } else if (o->num_entries == o->max_entries) {
+        remove_entry(o, o->lru_last);
+        __sync_fetch_and_add(&o->stats.evictions, 1);
+    }
+
+    i = o->free_first;
+    DnsCacheEntry *e = &o->entries[i];
+    o->free_first = e->hash_next;
+
+    e->data = data;
+    e->key_len = key_len;
+    e->response_len = response_len;
+    e->hash = hash;
+    e->stored_time = now;
+    e->expire_time = now + (int64_t)min_ttl * 1000;
+
+    int *bucket = &o->buckets[hash & (o->num_buckets - 1)];
+    e->hash_next = *bucket;
+    *bucket = i;
+    lru_push_front(o, i);
+    o->num_entries++;
+
+    __sync_fetch_and_add(&o->stats.insertions, 1);
+}
+
+void DnsCache_GetStats (DnsCache *o, DnsCacheStats *out)
+{
+    out->hits = __sync_fetch_and_add(&o->stats.hits, 0);
+    out->misses = __sync_fetch_and_add(&o->stats.misses, 0);
+    out->insertions = __sync_fetch_and_add(&o->stats.insertions, 0);
+    out->evictions = __sync_fetch_and_add(&o->stats.evictions, 0);
+    out->oversized = __sync_fetch_and_add(&o->stats.oversized, 0);
+}
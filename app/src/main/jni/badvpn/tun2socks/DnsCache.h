@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) Psiphon Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Bounded cache of DNS responses for the transparent DNS path of tun2socks.
+ *
+ * Responses are keyed by the (lowercased name, type, class) of their single
+ * question and the EDNS, DO and CD flags of the query, and kept until the smallest TTL of their records expires, capped at
+ * DNSCACHE_MAX_TTL. Responses served from the cache get the ID and the question
+ * of the query, which may differ in case (0x20 randomization), and their TTLs
+ * reduced by the time they spent in the cache. When the cache is full,
+ * the least recently used response is evicted.
+ *
+ * Only NOERROR responses with at least one answer and without the TC bit are
+ * cached, without EDNS only up to 512 bytes. A response is only served if it
+ * fits in the UDP payload size of the query. The cache does no I/O and takes the current time as an argument, so it
+ * can be tested with canned packets.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_DNSCACHE_H
+#define BADVPN_TUN2SOCKS_DNSCACHE_H
+
+#include <stdint.h>
+
+#include <misc/debug.h>
+
+// largest DNS response that is cached
+#define DNSCACHE_MAX_RESPONSE_SIZE 1232
+
+// longest time a response is cached, in seconds
+#define DNSCACHE_MAX_TTL 3600
+
+// largest key: encoded name of up to 255 bytes, type, class and flags
+#define DNSCACHE_MAX_KEY_SIZE (255 + 4 + 1)
+
+typedef struct {
+    uint64_t hits;
+    uint64_t misses;
+    uint64_t insertions;
+    uint64_t evictions;
+    // cached responses not served because they didn't fit in the output buffer or
+    // the UDP payload size of the query
+    uint64_t oversized;
+} DnsCacheStats;
+
+typedef struct {
+    uint8_t *data; // key followed by the response
+    int key_len;
+    int response_len;
+    uint32_t hash;
+    int64_t stored_time;
+    int64_t expire_time;
+    int hash_next;
+    int lru_prev;
+    int lru_next;
+} DnsCacheEntry;
+
+typedef struct {
+    int max_entries;
+    int num_entries;
+    DnsCacheEntry *entries;
+    int num_buckets;
+    int *buckets;
+    int free_first;
+    int lru_first; // most recently used
+    int lru_last;
+    // updated by the tun2socks thread, may be read from any thread with DnsCache_GetStats
+    DnsCacheStats stats;
+} DnsCache;
+
+/**
+ * Initializes the cache.
+ *
+ * @param o the object
+ * @param max_entries maximum number of cached responses. Must be >0.
+ * @return 1 on success, 0 on failure
+ */
+int DnsCache_Init (DnsCache *o, int max_entries) WARN_UNUSED;
+
+/**
+ * Frees the cache. The stats can still be read with {@link DnsCache_GetStats}.
+ *
+ * @param o the object
+ */
+void DnsCache_Free (DnsCache *o);
+
+/**
+ * Looks up the response to a query.
+ *
+ * @param o the object
+ * @param query UDP payload of the query
+ * @param query_len length of the query
+ * @param now current time in milliseconds
+ * @param out buffer receiving the response
+ * @param out_size size of the buffer
+ * @return length of the response written to out, or 0 if the query is not answered from the cache
+ */
+int DnsCache_Lookup (DnsCache *o, const uint8_t *query, int query_len, int64_t now, uint8_t *out, int out_size);
+
+/**
+ * Stores a response if it is cacheable, replacing a cached response to the same question.
+ *
+ * @param o the object
+ * @param response UDP payload of the response
+ * @param response_len length of the response
+ * @param now current time in milliseconds
+ */
+void DnsCache_Store (DnsCache *o, const uint8_t *response, int response_len, int64_t now);
+
+/**
+ * Reads the counters of the cache. May be called from any thread.
+ *
+ * @param o the object
+ * @param out receives the counters
+ */
+void DnsCache_GetStats (DnsCache *o, DnsCacheStats *out);
+
+#endif
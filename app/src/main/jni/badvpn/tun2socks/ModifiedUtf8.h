@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) Psiphon Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Fixing up C strings so that JNI NewStringUTF accepts them.
+ *
+ * NewStringUTF takes modified UTF-8: 1, 2 and 3 byte sequences only, with no
+ * 4 byte forms. Log lines are cut to a fixed size and may carry bytes from the
+ * network, so they can end inside a sequence or hold bytes that are not UTF-8
+ * at all, and CheckJNI aborts the process on such a string.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_MODIFIEDUTF8_H
+#define BADVPN_TUN2SOCKS_MODIFIEDUTF8_H
+
+#include <stddef.h>
+
+/**
+ * Makes a NUL-terminated string valid modified UTF-8, in place.
+ * A sequence cut short by the end of the string is removed, so the string
+ * ends at a character boundary. Any other byte that does not start a
+ * well-formed 1, 2 or 3 byte sequence is replaced with '?'.
+ *
+ * @param str string to fix up
+ */
+static void ModifiedUtf8_Sanitize (char *str)
+{
+    unsigned char *s = (unsigned char *)str;
+    size_t i = 0;
+
+    while (s[i]) {
+        unsigned char c = s[i];
+
+        size_t seq_len;
+        if (c < 0x80) {
+            seq_len = 1;
+        } else if (c >= 0xC0 && c < 0xE0) {
+            seq_len = 2;
+        } else if (c >= 0xE0 && c < 0xF0) {
+            seq_len = 3;
+        } else {
+            // continuation byte without a lead byte, or a 4 byte form
+            s[i++] = '?';
+            continue;
+        }
+
+        size_t j = 1;
+        while (j < seq_len && (s[i + j] & 0xC0) == 0x80) {
+            j++;
+        }
+
+        if (j == seq_len) {
+            i += seq_len;
+        } else if (!s[i + j]) {
+            // cut short by the end of the string
+            s[i] = '\0';
+            return;
+        } else {
+            s[i++] = '?';
+        }
+    }
+}
+
+#endif
@@ -226,3 +226,18 @@ void SocksUdpGwClient_SubmitPacket (SocksUdpGwClient *o, BAddr local_addr, BAddr
     UdpGwClient_SubmitPacket(&o->udpgw_client, local_addr, remote_addr, is_dns, data, data_len);
 }
 
+// PSIPHON
+void SocksUdpGwClient_SetTrafficHandler (SocksUdpGwClient *o, UdpGwClient_handler_traffic handler_traffic, void *user)
+{
+    DebugObject_Access(&o->d_obj);
+    
+    UdpGwClient_SetTrafficHandler(&o->udpgw_client, handler_traffic, user);
+}
+
+// PSIPHON
+void SocksUdpGwClient_ReportTraffic (SocksUdpGwClient *o)
+{
+    DebugObject_Access(&o->d_obj);
+    
+    UdpGwClient_ReportTraffic(&o->udpgw_client);
+}
@@ -61,4 +61,9 @@ int SocksUdpGwClient_Init (SocksUdpGwClient *o, int udp_mtu, int max_connections
 void SocksUdpGwClient_Free (SocksUdpGwClient *o);
 void SocksUdpGwClient_SubmitPacket (SocksUdpGwClient *o, BAddr local_addr, BAddr remote_addr, int is_dns, const uint8_t *data, int data_len);
 
+// PSIPHON
+// per-connection byte counts, see UdpGwClient_SetTrafficHandler and UdpGwClient_ReportTraffic
+void SocksUdpGwClient_SetTrafficHandler (SocksUdpGwClient *o, UdpGwClient_handler_traffic handler_traffic, void *user);
+void SocksUdpGwClient_ReportTraffic (SocksUdpGwClient *o);
+
 #endif
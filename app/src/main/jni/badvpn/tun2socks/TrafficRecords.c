@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) Psiphon Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+
+#include <tun2socks/TrafficRecords.h>
+
+int TrafficRecords_Init (TrafficRecords *o, int capacity)
+{
+    ASSERT(capacity > 0)
+
+    o->records = (TrafficRecord *)malloc(capacity * sizeof(o->records[0]));
+    if (!o->records) {
+        return 0;
+    }
+
+    if (pthread_mutex_init(&o->mutex, NULL) != 0) {
+        free(o->records);
+        return 0;
+    }
+
+    o->capacity = capacity;
+    o->count = 0;
+    o->dropped = 0;
+
+    return 1;
+}
+
+void TrafficRecords_Free (TrafficRecords *o)
+{
+    pthread_mutex_destroy(&o->mutex);
+    free(o->records);
+}
+
+int TrafficRecords_Add (TrafficRecords *o, const TrafficRecord *record)
+{
+    pthread_mutex_lock(&o->mutex);
+
+    if (o->count == o->capacity) {
+        if (record->closed) {
+            o->dropped++;
+        }
+        pthread_mutex_unlock(&o->mutex);
+        return 0;
+    }
+
+    o->records[o->count++] = *record;
+
+    pthread_mutex_unlock(&o->mutex);
+    return 1;
+}
+
+int TrafficRecords_Take (TrafficRecords *o, TrafficRecord *out, int max_records)
+{
+    ASSERT(max_records >= 0)
+
+    pthread_mutex_lock(&o->mutex);
+
+    int num_records = (o->count < max_records) ? o->count : max_records;
+    memcpy(out, o->records, num_records * sizeof(o->records[0]));
+    memmove(o->records, o->records + num_records, (o->count - num_records) * sizeof(o->records[0]));
+    o->count -= num_records;
+
+    pthread_mutex_unlock(&o->mutex);
+    return num_records;
+}
+
+uint64_t TrafficRecords_GetDropped (TrafficRecords *o)
+{
+    pthread_mutex_lock(&o->mutex);
+    uint64_t dropped = o->dropped;
+    pthread_mutex_unlock(&o->mutex);
+    return dropped;
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) Psiphon Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the author nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @section DESCRIPTION
+ *
+ * Bounded, thread-safe queue of per-connection traffic records, used to hand the
+ * byte counts of tun2socks connections to Java.
+ *
+ * The tun2socks thread keeps unreported byte counts on each connection and
+ * periodically adds a record per connection that moved data, plus a final record
+ * when a connection closes. Another thread takes the records. When the queue is
+ * full, adding fails and the caller keeps its counts for the next period, so only
+ * final records of closed connections are lost, and those are counted.
+ */
+
+#ifndef BADVPN_TUN2SOCKS_TRAFFICRECORDS_H
+#define BADVPN_TUN2SOCKS_TRAFFICRECORDS_H
+
+#include <stdint.h>
+#include <pthread.h>
+
+#include <misc/debug.h>
+#include <system/BAddr.h>
+
+#define TRAFFICRECORDS_PROTOCOL_TCP 6
+#define TRAFFICRECORDS_PROTOCOL_UDP 17
+
+typedef struct {
+    int protocol; // TRAFFICRECORDS_PROTOCOL_TCP or TRAFFICRECORDS_PROTOCOL_UDP
+    int closed; // last record of the connection
+    BAddr app_addr; // address of the socket of the app on the device
+    BAddr dest_addr; // address the app is talking to
+    uint64_t bytes_up; // from the app, since the previous record of the connection
+    uint64_t bytes_down; // to the app, since the previous record of the connection
+} TrafficRecord;
+
+typedef struct {
+    pthread_mutex_t mutex;
+    TrafficRecord *records;
+    int capacity;
+    int count;
+    uint64_t dropped;
+} TrafficRecords;
+
+/**
+ * Initializes the queue.
+ *
+ * @param o the object
+ * @param capacity maximum number of queued records. Must be >0.
+ * @return 1 on success, 0 on failure
+ */
+int TrafficRecords_Init (TrafficRecords *o, int capacity) WARN_UNUSED;
+
+/**
+ * Frees the queue.
+ *
+ * @param o the object
+ */
+void TrafficRecords_Free (TrafficRecords *o);
+
+/**
+ * Queues a record. May be called from any thread.
+ *
+ * @param o the object
+ * @param record the record, copied
+ * @return 1 if the record was queued, 0 if the queue is full. A closed record that
+ *         doesn't fit is counted as dropped.
+ */
+int TrafficRecords_Add (TrafficRecords *o, const TrafficRecord *record);
+
+/**
+ * Takes the oldest queued records. May be called from any thread.
+ *
+ * @param o the object
+ * @param out buffer receiving the records
+ * @param max_records size of the buffer in records. Must be >=0.
+ * @return number of records written to out
+ */
+int TrafficRecords_Take (TrafficRecords *o, TrafficRecord *out, int max_records);
+
+/**
+ * Returns the number of closed records dropped because the queue was full.
+ * May be called from any thread.
+ *
+ * @param o the object
+ */
+uint64_t TrafficRecords_GetDropped (TrafficRecords *o);
+
+#endif
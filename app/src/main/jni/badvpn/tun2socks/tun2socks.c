@@ -67,7 +67,12 @@
 #include <lwip/tcp_impl.h>
 #include <lwip/netif.h>
 #include <lwip/tcp.h>
+#include <lwip/memp.h>
+#include <lwip/stats.h>
 #include <tun2socks/SocksUdpGwClient.h>
+#include <tun2socks/DnsCache.h>
+#include <tun2socks/TrafficRecords.h>
+#include <tun2socks/ModifiedUtf8.h>
 
 #ifndef BADVPN_USE_WINAPI
 #include <base/BLog_syslog.h>
@@ -123,6 +128,10 @@ struct {
     int tun_fd;
     int tun_mtu;
     int set_signal;
+    int dns_cache_size;
+    int tcp_wnd;
+    int tcp_snd_buf;
+    int max_tcp_clients;
     // ==== PSIPHON ====
 } options;
 
@@ -135,7 +144,6 @@ struct tcp_client {
     BAddr remote_addr;
     struct tcp_pcb *pcb;
     int client_closed;
-    uint8_t buf[TCP_WND];
     int buf_used;
     char *socks_username;
     BSocksClient socks_client;
@@ -148,6 +156,11 @@ struct tcp_client {
     int socks_recv_buf_sent;
     int socks_recv_waiting;
     int socks_recv_tcp_pending;
+    // PSIPHON: bytes from and to the app not yet added to traffic_records
+    uint64_t traffic_up;
+    uint64_t traffic_down;
+    // PSIPHON: TCP_WND is chosen at runtime, the buffer is allocated with the client
+    uint8_t buf[];
 };
 
 // IP address of netif
@@ -214,6 +227,30 @@ LinkedList1 tcp_clients;
 // number of clients
 int num_clients;
 
+// ==== PSIPHON ====
+// most clients at once and clients refused over max_tcp_clients, since the start of the run
+int num_clients_high_water;
+int num_refused_clients;
+// ==== PSIPHON ====
+
+// ==== PSIPHON ====
+// cache of transparent DNS responses, if enabled
+DnsCache dns_cache;
+int have_dns_cache;
+uint8_t dns_cache_response_buf[DNSCACHE_MAX_RESPONSE_SIZE];
+// ==== PSIPHON ====
+
+// ==== PSIPHON ====
+// per-connection byte counts for Java, initialized by the first run and kept for the
+// life of the process, since Java may take records at any time
+TrafficRecords traffic_records;
+int have_traffic_records;
+pthread_once_t traffic_records_once = PTHREAD_ONCE_INIT;
+
+// timer adding the traffic records of active connections
+BTimer traffic_timer;
+// ==== PSIPHON ====
+
 // ==== PSIPHON ====
 static void run (void);
 static void init_arguments (const char* program_name);
@@ -228,6 +265,10 @@ static void signal_handler (void *unused);
 static BAddr baddr_from_lwip (int is_ipv6, const ipX_addr_t *ipx_addr, uint16_t port_hostorder);
 static void lwip_init_job_hadler (void *unused);
 static void tcp_timer_handler (void *unused);
+static void traffic_records_init (void);
+static void traffic_timer_handler (void *unused);
+static void client_add_traffic_record (struct tcp_client *client, int closed);
+static int udpgw_client_handler_traffic (void *unused, BAddr local_addr, BAddr remote_addr, uint64_t bytes_sent, uint64_t bytes_received, int closed);
 static void device_error_handler (void *unused);
 static void device_read_handler_send (void *unused, uint8_t *data, int data_len);
 static int process_device_udp_packet (uint8_t *data, int data_len);
@@ -255,16 +296,95 @@ static void client_socks_recv_handler_done (struct tcp_client *client, int data_
 static int client_socks_recv_send_out (struct tcp_client *client);
 static err_t client_sent_func (void *arg, struct tcp_pcb *tpcb, u16_t len);
 static void udpgw_client_handler_received (void *unused, BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len);
+static void device_send_udp_packet (BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len);
 
 
 //==== PSIPHON ====
 
 #ifdef PSIPHON
+#include <errno.h>
+#include <pthread.h>
+#include <time.h>
+
 int g_terminate = 0;
 
 static JavaVM *g_vm = NULL;
 static jclass g_logClass = NULL;
 static jmethodID g_logMethod = NULL;
+static jclass g_stringClass = NULL;
+
+// Minimum level of the lines passed to Java, applied as the channel loglevel of each run.
+// Lines above it are not formatted and only counted in blog_global.suppressed.
+static int g_log_level = BLOG_WARNING;
+
+// Log lines are queued in a fixed-size ring and handed to Java by a separate flusher
+// thread, one String[] upcall per LOG_FLUSH_LINES lines or LOG_FLUSH_INTERVAL_MS after
+// the first queued line, so the tun2socks event loop never waits on JNI. The flusher
+// sleeps without a timeout while the ring is empty. Lines that arrive while the ring
+// is full are dropped and counted.
+#define LOG_RING_SIZE 128
+#define LOG_LINE_MAX 512
+#define LOG_FLUSH_LINES 32
+#define LOG_FLUSH_INTERVAL_MS 250
+
+static struct {
+    pthread_mutex_t mutex;
+    pthread_cond_t cond;
+    pthread_t thread;
+    int thread_started;
+    int quit;
+    char lines[LOG_RING_SIZE][LOG_LINE_MAX];
+    int start;
+    int count;
+    // dropped lines not yet reported to Java
+    int dropped_pending;
+    // totals since the library was loaded
+    unsigned long long dropped;
+    unsigned long long flushed_lines;
+    unsigned long long flushed_batches;
+} log_ring = {
+    .mutex = PTHREAD_MUTEX_INITIALIZER
+};
+
+// flusher thread only
+static char log_batch[LOG_RING_SIZE + 1][LOG_LINE_MAX];
+
+static void * log_flush_thread (void *unused);
+
+// The flush deadline is on CLOCK_MONOTONIC so that a wall clock change can't stall or
+// spin the flusher. 32-bit Android before API 21 has no pthread_condattr_setclock, but
+// bionic has a monotonic variant of pthread_cond_timedwait there.
+#if defined(__ANDROID__) && __ANDROID_API__ < 21
+#define LOG_COND_MONOTONIC_NP 1
+#endif
+
+static int log_cond_init (void)
+{
+#ifdef LOG_COND_MONOTONIC_NP
+    return pthread_cond_init(&log_ring.cond, NULL);
+#else
+    pthread_condattr_t attr;
+    if (pthread_condattr_init(&attr) != 0) {
+        return -1;
+    }
+    int res = pthread_condattr_setclock(&attr, CLOCK_MONOTONIC);
+    if (res == 0) {
+        res = pthread_cond_init(&log_ring.cond, &attr);
+    }
+    pthread_condattr_destroy(&attr);
+    return res;
+#endif
+}
+
+// Returns ETIMEDOUT once the deadline, from CLOCK_MONOTONIC, has passed
+static int log_cond_timedwait (const struct timespec *deadline)
+{
+#ifdef LOG_COND_MONOTONIC_NP
+    return pthread_cond_timedwait_monotonic_np(&log_ring.cond, &log_ring.mutex, deadline);
+#else
+    return pthread_cond_timedwait(&log_ring.cond, &log_ring.mutex, deadline);
+#endif
+}
 
 static void runTun2SocksNative(
         JNIEnv *env,
@@ -276,7 +396,11 @@ static void runTun2SocksNative(
         jstring vpn_ipv6_address,
         jstring socks_server_address,
         jstring udpgw_server_address,
-        jint udpgw_transparent_dns);
+        jint udpgw_transparent_dns,
+        jint dns_cache_size,
+        jint tcp_wnd,
+        jint tcp_snd_buf,
+        jint max_tcp_clients);
 
 static void terminateTun2SocksNative(
         JNIEnv *env,
@@ -288,6 +412,27 @@ static void initTun2socksLoggerNative(
         jstring className,
         jstring methodName);
 
+static jlongArray getDnsCacheStatsNative(
+        JNIEnv *env,
+        jclass cls);
+
+static jlongArray getLwipStatsNative(
+        JNIEnv *env,
+        jclass cls);
+
+static void setLogLevelNative(
+        JNIEnv *env,
+        jclass cls,
+        jint level);
+
+static jlongArray getTrafficRecordsNative(
+        JNIEnv *env,
+        jclass cls);
+
+static jlongArray getLogStatsNative(
+        JNIEnv *env,
+        jclass cls);
+
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     g_vm = vm;
     JNIEnv *env;
@@ -300,10 +445,19 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
         return JNI_ERR;
     }
 
+    if (log_cond_init() != 0) {
+        return JNI_ERR;
+    }
+
     static JNINativeMethod method_table[] = {
-        {"runTun2Socks","(IILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;I)V", (void *) runTun2SocksNative},
+        {"runTun2Socks","(IILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;IIIII)V", (void *) runTun2SocksNative},
         {"terminateTun2Socks", "()V", (void *) terminateTun2SocksNative},
-        {"initTun2socksLogger", "(Ljava/lang/String;Ljava/lang/String;)V", (void *) initTun2socksLoggerNative}
+        {"initTun2socksLogger", "(Ljava/lang/String;Ljava/lang/String;)V", (void *) initTun2socksLoggerNative},
+        {"getDnsCacheStats", "()[J", (void *) getDnsCacheStatsNative},
+        {"getLwipStats", "()[J", (void *) getLwipStatsNative},
+        {"setLogLevel", "(I)V", (void *) setLogLevelNative},
+        {"getLogStats", "()[J", (void *) getLogStatsNative},
+        {"getTrafficRecords", "()[J", (void *) getTrafficRecordsNative}
     };
 
     jint method_count = sizeof(method_table) / sizeof(method_table[0]);
@@ -316,6 +470,16 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
 }
 
 JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
+    // Stop the log flusher before releasing the references it uses
+    pthread_mutex_lock(&log_ring.mutex);
+    int thread_started = log_ring.thread_started;
+    log_ring.quit = 1;
+    pthread_cond_signal(&log_ring.cond);
+    pthread_mutex_unlock(&log_ring.mutex);
+    if (thread_started) {
+        pthread_join(log_ring.thread, NULL);
+    }
+
     JNIEnv *env;
     if ((*g_vm)->GetEnv(g_vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
         if ((*g_vm)->AttachCurrentThread(g_vm, &env, NULL) != 0) {
@@ -329,6 +493,10 @@ JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
         g_logClass = NULL;
     }
     g_logMethod = NULL;
+    if (g_stringClass != NULL) {
+        (*env)->DeleteGlobalRef(env, g_stringClass);
+        g_stringClass = NULL;
+    }
 
     if ((*g_vm)->GetEnv(g_vm, (void **) &env, JNI_VERSION_1_6) == JNI_EDETACHED) {
         (*g_vm)->DetachCurrentThread(g_vm);
@@ -357,44 +525,156 @@ JNIEXPORT void JNICALL initTun2socksLoggerNative(JNIEnv *env, jclass cls, jstrin
         return; // Failed to create global reference to class
     }
 
-    g_logMethod = (*env)->GetStaticMethodID(env, g_logClass, methodNameStr, "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
+    g_logMethod = (*env)->GetStaticMethodID(env, g_logClass, methodNameStr, "([Ljava/lang/String;)V");
     if (g_logMethod == NULL) {
         // Failed to find method
         (*env)->DeleteGlobalRef(env, g_logClass);
         g_logClass = NULL;
+        (*env)->ReleaseStringUTFChars(env, className, classNameStr);
+        (*env)->ReleaseStringUTFChars(env, methodName, methodNameStr);
+        return;
     }
 
     (*env)->ReleaseStringUTFChars(env, className, classNameStr);
     (*env)->ReleaseStringUTFChars(env, methodName, methodNameStr);
+
+    jclass localStringClass = (*env)->FindClass(env, "java/lang/String");
+    if (localStringClass == NULL) {
+        return;
+    }
+    g_stringClass = (*env)->NewGlobalRef(env, localStringClass);
+    (*env)->DeleteLocalRef(env, localStringClass);
+    if (g_stringClass == NULL) {
+        return;
+    }
+
+    pthread_mutex_lock(&log_ring.mutex);
+    if (!log_ring.thread_started) {
+        log_ring.quit = 0;
+        log_ring.thread_started = !pthread_create(&log_ring.thread, NULL, log_flush_thread, NULL);
+    }
+    pthread_mutex_unlock(&log_ring.mutex);
 }
 
+// Called by BLog on the tun2socks thread for lines that pass the level filter.
+// Only copies the line into the ring, it never calls into Java.
 void PsiphonLog(const char *levelStr, const char *channelStr, const char *msgStr) {
-    if (g_logClass == NULL || g_logMethod == NULL) {
-        return; // Cache is not initialized
+    pthread_mutex_lock(&log_ring.mutex);
+
+    if (!log_ring.thread_started) {
+        // No Java logger, e.g. in examples/tun2socks_bench.c
+        pthread_mutex_unlock(&log_ring.mutex);
+        return;
     }
 
-    JNIEnv *env;
-    if ((*g_vm)->GetEnv(g_vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
-        if ((*g_vm)->AttachCurrentThread(g_vm, &env, NULL) != 0) {
-            return;
+    if (log_ring.count == LOG_RING_SIZE) {
+        log_ring.dropped++;
+        log_ring.dropped_pending++;
+        pthread_mutex_unlock(&log_ring.mutex);
+        return;
+    }
+
+    char *line = log_ring.lines[(log_ring.start + log_ring.count) % LOG_RING_SIZE];
+    snprintf(line, LOG_LINE_MAX, "%s(%s): %s", levelStr, channelStr, msgStr);
+    // the line goes to NewStringUTF, which rejects a sequence cut by the truncation
+    ModifiedUtf8_Sanitize(line);
+    log_ring.count++;
+
+    // The first line wakes the flusher to start the interval, a full batch ends it early
+    if (log_ring.count == 1 || log_ring.count == LOG_FLUSH_LINES) {
+        pthread_cond_signal(&log_ring.cond);
+    }
+
+    pthread_mutex_unlock(&log_ring.mutex);
+}
+
+// Hands the queued lines to the Java logger as one String[]
+static void log_flush_batch (JNIEnv *env, int num_lines)
+{
+    jobjectArray array = (*env)->NewObjectArray(env, num_lines, g_stringClass, NULL);
+    if (array == NULL) {
+        (*env)->ExceptionClear(env);
+        return;
+    }
+
+    for (int i = 0; i < num_lines; i++) {
+        jstring line = (*env)->NewStringUTF(env, log_batch[i]);
+        if (line == NULL) {
+            (*env)->ExceptionClear(env);
+            continue;
         }
+        (*env)->SetObjectArrayElement(env, array, i, line);
+        (*env)->DeleteLocalRef(env, line);
     }
 
-    jstring level = (*env)->NewStringUTF(env, levelStr);
-    jstring channel = (*env)->NewStringUTF(env, channelStr);
-    jstring msg = (*env)->NewStringUTF(env, msgStr);
+    (*env)->CallStaticVoidMethod(env, g_logClass, g_logMethod, array);
+    if ((*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionClear(env);
+    }
+
+    (*env)->DeleteLocalRef(env, array);
+}
+
+static void * log_flush_thread (void *unused)
+{
+    JNIEnv *env;
+    if ((*g_vm)->AttachCurrentThreadAsDaemon(g_vm, &env, NULL) != 0) {
+        pthread_mutex_lock(&log_ring.mutex);
+        log_ring.thread_started = 0;
+        pthread_mutex_unlock(&log_ring.mutex);
+        return NULL;
+    }
 
-    (*env)->CallStaticVoidMethod(env, g_logClass, g_logMethod, level, channel, msg);
+    pthread_mutex_lock(&log_ring.mutex);
 
-    // Clean up local references
-    (*env)->DeleteLocalRef(env, level);
-    (*env)->DeleteLocalRef(env, channel);
-    (*env)->DeleteLocalRef(env, msg);
+    while (!log_ring.quit) {
+        if (log_ring.count == 0 && log_ring.dropped_pending == 0) {
+            // Nothing to flush, don't wake up until a line is queued
+            pthread_cond_wait(&log_ring.cond, &log_ring.mutex);
+            continue;
+        }
 
-    // Detach the thread if it was attached
-    if ((*g_vm)->GetEnv(g_vm, (void **) &env, JNI_VERSION_1_6) == JNI_EDETACHED) {
-        (*g_vm)->DetachCurrentThread(g_vm);
+        // Give the batch until the interval ends to fill up
+        struct timespec deadline;
+        clock_gettime(CLOCK_MONOTONIC, &deadline);
+        deadline.tv_nsec += LOG_FLUSH_INTERVAL_MS * 1000000L;
+        if (deadline.tv_nsec >= 1000000000L) {
+            deadline.tv_sec++;
+            deadline.tv_nsec -= 1000000000L;
+        }
+        while (!log_ring.quit && log_ring.count < LOG_FLUSH_LINES) {
+            if (log_cond_timedwait(&deadline) == ETIMEDOUT) {
+                break;
+            }
+        }
+        if (log_ring.quit) {
+            break;
+        }
+
+        // Copy the lines out so the ring is only locked for the copy, not for the upcall
+        int num_lines = 0;
+        while (log_ring.count > 0) {
+            memcpy(log_batch[num_lines++], log_ring.lines[log_ring.start], LOG_LINE_MAX);
+            log_ring.start = (log_ring.start + 1) % LOG_RING_SIZE;
+            log_ring.count--;
+        }
+        if (log_ring.dropped_pending > 0) {
+            snprintf(log_batch[num_lines++], LOG_LINE_MAX, "WARNING(tun2socks): log queue full, dropped %d lines", log_ring.dropped_pending);
+            log_ring.dropped_pending = 0;
+        }
+        log_ring.flushed_lines += num_lines;
+        log_ring.flushed_batches++;
+
+        pthread_mutex_unlock(&log_ring.mutex);
+        log_flush_batch(env, num_lines);
+        pthread_mutex_lock(&log_ring.mutex);
     }
+
+    log_ring.thread_started = 0;
+    pthread_mutex_unlock(&log_ring.mutex);
+
+    (*g_vm)->DetachCurrentThread(g_vm);
+    return NULL;
 }
 
 void runTun2SocksNative(
@@ -407,7 +687,11 @@ void runTun2SocksNative(
         jstring vpn_ipv6_address,
         jstring socks_server_address,
         jstring udpgw_server_address,
-        jint udpgw_transparent_dns) {
+        jint udpgw_transparent_dns,
+        jint dns_cache_size,
+        jint tcp_wnd,
+        jint tcp_snd_buf,
+        jint max_tcp_clients) {
     const char *vpnIpAddressStr = (*env)->GetStringUTFChars(env, vpn_ipv4_address, 0);
     const char *vpnNetMaskStr = (*env)->GetStringUTFChars(env, vpn_ipv4_netmask, 0);
     const char *vpnIpv6AddressStr = vpn_ipv6_address ?
@@ -415,38 +699,218 @@ void runTun2SocksNative(
     const char *socksServerAddressStr = (*env)->GetStringUTFChars(env, socks_server_address, 0);
     const char *udpgwServerAddressStr = (*env)->GetStringUTFChars(env, udpgw_server_address, 0);
 
+    struct tun2socks_params params;
+    params.tun_fd = vpn_interface_file_descriptor;
+    params.tun_mtu = vpn_interface_mtu;
+    params.netif_ipaddr = vpnIpAddressStr;
+    params.netif_netmask = vpnNetMaskStr;
+    params.netif_ip6addr = vpnIpv6AddressStr;
+    params.socks_server_addr = socksServerAddressStr;
+    params.udpgw_remote_server_addr = udpgwServerAddressStr;
+    params.udpgw_transparent_dns = udpgw_transparent_dns;
+    params.dns_cache_size = dns_cache_size;
+    params.tcp_wnd = tcp_wnd;
+    params.tcp_snd_buf = tcp_snd_buf;
+    params.max_tcp_clients = max_tcp_clients;
+    params.loglevel = __sync_fetch_and_add(&g_log_level, 0);
+
+    tun2socks_run(&params);
+
+    (*env)->ReleaseStringUTFChars(env, vpn_ipv4_address, vpnIpAddressStr);
+    (*env)->ReleaseStringUTFChars(env, vpn_ipv4_netmask, vpnNetMaskStr);
+    if (vpnIpv6AddressStr) {
+        (*env)->ReleaseStringUTFChars(env, vpn_ipv6_address, vpnIpv6AddressStr);
+    }
+    (*env)->ReleaseStringUTFChars(env, socks_server_address, socksServerAddressStr);
+    (*env)->ReleaseStringUTFChars(env, udpgw_server_address, udpgwServerAddressStr);
+}
+
+void terminateTun2SocksNative(
+        JNIEnv *env,
+        jclass cls) {
+    tun2socks_terminate();
+}
+
+void tun2socks_run (const struct tun2socks_params *params)
+{
     init_arguments("Psiphon tun2socks");
 
-    options.tun_fd = vpn_interface_file_descriptor;
-    options.tun_mtu = vpn_interface_mtu;
-    options.netif_ipaddr = (char *) vpnIpAddressStr;
-    options.netif_netmask = (char *) vpnNetMaskStr;
-    options.netif_ip6addr = (char *) vpnIpv6AddressStr;
-    options.socks_server_addr = (char *) socksServerAddressStr;
-    options.udpgw_remote_server_addr = (char *) udpgwServerAddressStr;
-    options.udpgw_transparent_dns = udpgw_transparent_dns;
+    options.tun_fd = params->tun_fd;
+    options.tun_mtu = params->tun_mtu;
+    options.netif_ipaddr = (char *) params->netif_ipaddr;
+    options.netif_netmask = (char *) params->netif_netmask;
+    options.netif_ip6addr = (char *) params->netif_ip6addr;
+    options.socks_server_addr = (char *) params->socks_server_addr;
+    options.udpgw_remote_server_addr = (char *) params->udpgw_remote_server_addr;
+    options.udpgw_transparent_dns = params->udpgw_transparent_dns;
+    options.dns_cache_size = params->dns_cache_size;
+    options.tcp_wnd = params->tcp_wnd;
+    options.tcp_snd_buf = params->tcp_snd_buf;
+    options.max_tcp_clients = params->max_tcp_clients;
     options.set_signal = 0;
-    options.loglevel = 2;
+    options.loglevel = params->loglevel;
 
     BLog_InitPsiphon();
 
     __sync_bool_compare_and_swap(&g_terminate, 1, 0);
 
     run();
+}
 
-    (*env)->ReleaseStringUTFChars(env, vpn_ipv4_address, vpnIpAddressStr);
-    (*env)->ReleaseStringUTFChars(env, vpn_ipv4_netmask, vpnNetMaskStr);
-    if (vpnIpv6AddressStr) {
-        (*env)->ReleaseStringUTFChars(env, vpn_ipv6_address, vpnIpv6AddressStr);
+void tun2socks_terminate (void)
+{
+    __sync_bool_compare_and_swap(&g_terminate, 0, 1);
+}
+
+// Sets the minimum level of tun2socks log lines passed to Java, see BLOG_ERROR..BLOG_DEBUG
+// in base/BLog.h, 0 disables logging. Takes effect on the next run.
+void setLogLevelNative(
+        JNIEnv *env,
+        jclass cls,
+        jint level) {
+    if (level < 0) {
+        level = 0;
     }
-    (*env)->ReleaseStringUTFChars(env, socks_server_address, socksServerAddressStr);
-    (*env)->ReleaseStringUTFChars(env, udpgw_server_address, udpgwServerAddressStr);
+    if (level > BLOG_DEBUG) {
+        level = BLOG_DEBUG;
+    }
+    __sync_lock_test_and_set(&g_log_level, level);
 }
 
-void terminateTun2SocksNative(
+// Returns the log counters: lines suppressed by the level filter in the running or last
+// tun2socks run, and since the library was loaded, lines dropped because the queue was full,
+// lines passed to Java and batches passed to Java
+jlongArray getLogStatsNative(
         JNIEnv *env,
         jclass cls) {
-    __sync_bool_compare_and_swap(&g_terminate, 0, 1);
+    jlong values[4];
+    values[0] = blog_global.suppressed;
+    pthread_mutex_lock(&log_ring.mutex);
+    values[1] = log_ring.dropped;
+    values[2] = log_ring.flushed_lines;
+    values[3] = log_ring.flushed_batches;
+    pthread_mutex_unlock(&log_ring.mutex);
+
+    jlongArray result = (*env)->NewLongArray(env, 4);
+    if (result != NULL) {
+        (*env)->SetLongArrayRegion(env, result, 0, 4, values);
+    }
+    return result;
+}
+
+// Stores an address as a 128 bit big-endian number in two longs, IPv4 addresses in the second one
+static void put_traffic_record_addr (jlong *out, BAddr addr)
+{
+    const uint8_t *bytes;
+    int len;
+    if (addr.type == BADDR_TYPE_IPV6) {
+        bytes = addr.ipv6.ip;
+        len = 16;
+    } else {
+        bytes = (const uint8_t *) &addr.ipv4.ip;
+        len = 4;
+    }
+
+    uint64_t value[2] = {0, 0};
+    for (int i = 0; i < len; i++) {
+        int word = (16 - len + i) / 8;
+        value[word] = (value[word] << 8) | bytes[i];
+    }
+    out[0] = value[0];
+    out[1] = value[1];
+}
+
+// Takes the queued per-connection traffic records. The first long is the number of final
+// records dropped because the queue was full, followed by TRAFFIC_RECORD_LONGS longs per
+// record, see Tun2SocksJniLoader.getTrafficRecords()
+#define TRAFFIC_RECORD_LONGS 10
+jlongArray getTrafficRecordsNative(
+        JNIEnv *env,
+        jclass cls) {
+    pthread_once(&traffic_records_once, traffic_records_init);
+    if (!have_traffic_records) {
+        return (*env)->NewLongArray(env, 1);
+    }
+
+    TrafficRecord *records = malloc(TRAFFIC_RECORDS_CAPACITY * sizeof(records[0]));
+    if (records == NULL) {
+        return NULL;
+    }
+    int num_records = TrafficRecords_Take(&traffic_records, records, TRAFFIC_RECORDS_CAPACITY);
+
+    int length = 1 + num_records * TRAFFIC_RECORD_LONGS;
+    jlong *values = malloc(length * sizeof(values[0]));
+    if (values == NULL) {
+        free(records);
+        return NULL;
+    }
+
+    values[0] = TrafficRecords_GetDropped(&traffic_records);
+    for (int i = 0; i < num_records; i++) {
+        const TrafficRecord *record = &records[i];
+        jlong *out = values + 1 + i * TRAFFIC_RECORD_LONGS;
+        out[0] = record->protocol;
+        out[1] = (record->closed ? 1 : 0) | (record->app_addr.type == BADDR_TYPE_IPV6 ? 2 : 0);
+        out[2] = ntoh16(record->app_addr.type == BADDR_TYPE_IPV6 ? record->app_addr.ipv6.port : record->app_addr.ipv4.port);
+        out[3] = ntoh16(record->dest_addr.type == BADDR_TYPE_IPV6 ? record->dest_addr.ipv6.port : record->dest_addr.ipv4.port);
+        put_traffic_record_addr(out + 4, record->app_addr);
+        put_traffic_record_addr(out + 6, record->dest_addr);
+        out[8] = record->bytes_up;
+        out[9] = record->bytes_down;
+    }
+    free(records);
+
+    jlongArray result = (*env)->NewLongArray(env, length);
+    if (result != NULL) {
+        (*env)->SetLongArrayRegion(env, result, 0, length, values);
+    }
+    free(values);
+    return result;
+}
+
+// Returns the DNS cache counters of the running or last tun2socks run:
+// hits, misses, insertions, evictions, oversized
+jlongArray getDnsCacheStatsNative(
+        JNIEnv *env,
+        jclass cls) {
+    DnsCacheStats stats;
+    DnsCache_GetStats(&dns_cache, &stats);
+
+    jlong values[5] = {stats.hits, stats.misses, stats.insertions, stats.evictions, stats.oversized};
+    jlongArray result = (*env)->NewLongArray(env, 5);
+    if (result != NULL) {
+        (*env)->SetLongArrayRegion(env, result, 0, 5, values);
+    }
+    return result;
+}
+
+// Returns the TCP buffer settings and lwip high-water marks of the running or last
+// tun2socks run: TCP window, TCP send buffer, max TCP clients, most TCP clients at once,
+// refused TCP clients, most TCP PCBs, most TCP segments, most pbufs, pool allocation failures
+jlongArray getLwipStatsNative(
+        JNIEnv *env,
+        jclass cls) {
+    jlong alloc_failures = 0;
+    for (int i = 0; i < MEMP_MAX; i++) {
+        alloc_failures += lwip_stats.memp[i].err;
+    }
+
+    jlong values[9] = {
+        lwip_tcp_wnd,
+        lwip_tcp_snd_buf,
+        options.max_tcp_clients,
+        num_clients_high_water,
+        num_refused_clients,
+        lwip_stats.memp[MEMP_TCP_PCB].max,
+        lwip_stats.memp[MEMP_TCP_SEG].max,
+        lwip_stats.memp[MEMP_PBUF].max,
+        alloc_failures
+    };
+    jlongArray result = (*env)->NewLongArray(env, 9);
+    if (result != NULL) {
+        (*env)->SetLongArrayRegion(env, result, 0, 9, values);
+    }
+    return result;
 }
 
 // from tcp_helper.c
@@ -559,6 +1023,22 @@ void run()
     
     // set not quitting
     quitting = 0;
+
+    // PSIPHON
+    have_dns_cache = 0;
+
+    // PSIPHON
+    // set the TCP buffer sizes before lwip is initialized, clamped to the bounds
+    // that init.c checks for compile-time values
+    lwip_tcp_wnd = bmax_int(TCP_MSS, bmin_int(options.tcp_wnd, 0xffff));
+    lwip_tcp_snd_buf = bmax_int(2 * TCP_MSS, bmin_int(options.tcp_snd_buf, 0xffff));
+    if (options.max_tcp_clients <= 0) {
+        // no limit, lwip pools are malloc'd
+        options.max_tcp_clients = INT_MAX;
+    }
+    num_clients_high_water = 0;
+    num_refused_clients = 0;
+    BLog(BLOG_INFO, "TCP window %d, send buffer %d, max clients %d", lwip_tcp_wnd, lwip_tcp_snd_buf, options.max_tcp_clients);
     
     // PSIPHON
     if (options.set_signal) {
@@ -624,6 +1104,19 @@ void run()
             BLog(BLOG_ERROR, "SocksUdpGwClient_Init failed");
             goto fail4a;
         }
+
+        // PSIPHON
+        SocksUdpGwClient_SetTrafficHandler(&udpgw_client, udpgw_client_handler_traffic, NULL);
+
+        // PSIPHON
+        // init DNS cache, DNS still works without it
+        if (options.udpgw_transparent_dns && options.dns_cache_size > 0) {
+            if (DnsCache_Init(&dns_cache, options.dns_cache_size)) {
+                have_dns_cache = 1;
+            } else {
+                BLog(BLOG_WARNING, "DnsCache_Init failed");
+            }
+        }
     }
     
     // init lwip init job
@@ -641,6 +1134,12 @@ void run()
     BTimer_Init(&tcp_timer, TCP_TMR_INTERVAL, tcp_timer_handler, NULL);
     BReactor_SetTimer(&ss, &tcp_timer);
     
+    // PSIPHON
+    // init traffic timer
+    pthread_once(&traffic_records_once, traffic_records_init);
+    BTimer_Init(&traffic_timer, TRAFFIC_REPORT_INTERVAL, traffic_timer_handler, NULL);
+    BReactor_SetTimer(&ss, &traffic_timer);
+    
     // set no netif
     have_netif = 0;
     
@@ -696,10 +1195,16 @@ void run()
     // ==== PSIPHON ====
     
 
+    BReactor_RemoveTimer(&ss, &traffic_timer);
     BReactor_RemoveTimer(&ss, &tcp_timer);
     BFree(device_write_buf);
 fail5:
     BPending_Free(&lwip_init_job);
+    // PSIPHON
+    if (have_dns_cache) {
+        DnsCache_Free(&dns_cache);
+        have_dns_cache = 0;
+    }
     if (options.udpgw_remote_server_addr) {
         SocksUdpGwClient_Free(&udpgw_client);
     }
@@ -803,6 +1308,10 @@ void init_arguments (const char* program_name)
 
     options.tun_fd = 0;
     options.set_signal = 1;
+    options.dns_cache_size = 0;
+    options.tcp_wnd = 4 * TCP_MSS;
+    options.tcp_snd_buf = 16384;
+    options.max_tcp_clients = MEMP_NUM_TCP_PCB;
 }
 
 //==== PSIPHON ====
@@ -1258,6 +1767,33 @@ void tcp_timer_handler (void *unused)
     return;
 }
 
+// PSIPHON
+void traffic_records_init (void)
+{
+    have_traffic_records = TrafficRecords_Init(&traffic_records, TRAFFIC_RECORDS_CAPACITY);
+}
+
+// PSIPHON
+// Adds a record for each connection that moved data since its previous record. Counts
+// that don't fit in traffic_records stay with their connection until the next tick.
+void traffic_timer_handler (void *unused)
+{
+    ASSERT(!quitting)
+    
+    BReactor_SetTimer(&ss, &traffic_timer);
+    
+    for (LinkedList1Node *node = LinkedList1_GetFirst(&tcp_clients); node; node = LinkedList1Node_Next(node)) {
+        struct tcp_client *client = UPPER_OBJECT(node, struct tcp_client, list_node);
+        if (client->traffic_up > 0 || client->traffic_down > 0) {
+            client_add_traffic_record(client, 0);
+        }
+    }
+    
+    if (options.udpgw_remote_server_addr) {
+        SocksUdpGwClient_ReportTraffic(&udpgw_client);
+    }
+}
+
 void device_error_handler (void *unused)
 {
     ASSERT(!quitting)
@@ -1414,6 +1950,18 @@ int process_device_udp_packet (uint8_t *data, int data_len)
         goto fail;
     }
     
+    // PSIPHON
+    // answer from the DNS cache without a round trip through the tunnel
+    if (is_dns && have_dns_cache) {
+        int response_len = DnsCache_Lookup(&dns_cache, data, data_len, btime_gettime(),
+                                           dns_cache_response_buf, sizeof(dns_cache_response_buf));
+        if (response_len > 0) {
+            BLog(BLOG_DEBUG, "UDP: DNS answered from cache");
+            device_send_udp_packet(local_addr, remote_addr, dns_cache_response_buf, response_len);
+            return 1;
+        }
+    }
+    
     // submit packet to udpgw
     SocksUdpGwClient_SubmitPacket(&udpgw_client, local_addr, remote_addr, is_dns, data, data_len);
     
@@ -1533,8 +2081,17 @@ err_t listener_accept_func (void *arg, struct tcp_pcb *newpcb, err_t err)
     struct tcp_pcb *this_listener = (PCB_ISIPV6(newpcb) ? listener_ip6 : listener);
     tcp_accepted(this_listener);
     
+    // PSIPHON
+    // refuse clients over the limit, lwip pools are malloc'd and don't limit them
+    if (num_clients >= options.max_tcp_clients) {
+        BLog(BLOG_WARNING, "listener accept: too many clients");
+        num_refused_clients++;
+        goto fail0;
+    }
+    
     // allocate client structure
-    struct tcp_client *client = (struct tcp_client *)malloc(sizeof(*client));
+    // PSIPHON: with the receive buffer
+    struct tcp_client *client = (struct tcp_client *)malloc(sizeof(*client) + TCP_WND);
     if (!client) {
         BLog(BLOG_ERROR, "listener accept: malloc failed");
         goto fail0;
@@ -1584,6 +2141,11 @@ err_t listener_accept_func (void *arg, struct tcp_pcb *newpcb, err_t err)
     ASSERT(num_clients >= 0)
     num_clients++;
     
+    // PSIPHON
+    if (num_clients > num_clients_high_water) {
+        num_clients_high_water = num_clients;
+    }
+    
     // set pcb
     client->pcb = newpcb;
     
@@ -1604,6 +2166,10 @@ err_t listener_accept_func (void *arg, struct tcp_pcb *newpcb, err_t err)
     // setup buffer
     client->buf_used = 0;
     
+    // PSIPHON
+    client->traffic_up = 0;
+    client->traffic_down = 0;
+    
     // set SOCKS not up, not closed
     client->socks_up = 0;
     client->socks_closed = 0;
@@ -1759,6 +2325,9 @@ void client_dealloc (struct tcp_client *client)
     // remove client entry
     LinkedList1_Remove(&tcp_clients, &client->list_node);
     
+    // PSIPHON
+    client_add_traffic_record(client, 1);
+    
     // kill dead var
     DEAD_KILL(client->dead);
     
@@ -1767,6 +2336,28 @@ void client_dealloc (struct tcp_client *client)
     free(client);
 }
 
+// PSIPHON
+// lwip's local address is the destination the app connected to, its remote address is the app
+void client_add_traffic_record (struct tcp_client *client, int closed)
+{
+    if (!have_traffic_records) {
+        return;
+    }
+    
+    TrafficRecord record;
+    record.protocol = TRAFFICRECORDS_PROTOCOL_TCP;
+    record.closed = closed;
+    record.app_addr = client->remote_addr;
+    record.dest_addr = client->local_addr;
+    record.bytes_up = client->traffic_up;
+    record.bytes_down = client->traffic_down;
+    
+    if (TrafficRecords_Add(&traffic_records, &record)) {
+        client->traffic_up = 0;
+        client->traffic_down = 0;
+    }
+}
+
 void client_err_func (void *arg, err_t err)
 {
     struct tcp_client *client = (struct tcp_client *)arg;
@@ -1794,7 +2385,7 @@ err_t client_recv_func (void *arg, struct tcp_pcb *tpcb, struct pbuf *p, err_t e
     ASSERT(p->tot_len > 0)
     
     // check if we have enough buffer
-    if (p->tot_len > sizeof(client->buf) - client->buf_used) {
+    if (p->tot_len > TCP_WND - client->buf_used) {
         client_log(client, BLOG_ERROR, "no buffer for data !?!");
         return ERR_MEM;
     }
@@ -1802,6 +2393,8 @@ err_t client_recv_func (void *arg, struct tcp_pcb *tpcb, struct pbuf *p, err_t e
     // copy data to buffer
     ASSERT_EXECUTE(pbuf_copy_partial(p, client->buf + client->buf_used, p->tot_len, 0) == p->tot_len)
     client->buf_used += p->tot_len;
+    // PSIPHON
+    client->traffic_up += p->tot_len;
     
     // if there was nothing in the buffer before, and SOCKS is up, start send data
     if (client->buf_used == p->tot_len && client->socks_up) {
@@ -1989,6 +2582,8 @@ int client_socks_recv_send_out (struct tcp_client *client)
         
         client->socks_recv_buf_sent += to_write;
         client->socks_recv_tcp_pending += to_write;
+        // PSIPHON
+        client->traffic_down += to_write;
     } while (client->socks_recv_buf_sent < client->socks_recv_buf_used);
     
     // start sending now
@@ -2074,6 +2669,24 @@ err_t client_sent_func (void *arg, struct tcp_pcb *tpcb, u16_t len)
     return ERR_OK;
 }
 
+// PSIPHON
+int udpgw_client_handler_traffic (void *unused, BAddr local_addr, BAddr remote_addr, uint64_t bytes_sent, uint64_t bytes_received, int closed)
+{
+    if (!have_traffic_records) {
+        return 1;
+    }
+    
+    TrafficRecord record;
+    record.protocol = TRAFFICRECORDS_PROTOCOL_UDP;
+    record.closed = closed;
+    record.app_addr = local_addr;
+    record.dest_addr = remote_addr;
+    record.bytes_up = bytes_sent;
+    record.bytes_down = bytes_received;
+    
+    return TrafficRecords_Add(&traffic_records, &record);
+}
+
 void udpgw_client_handler_received (void *unused, BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len)
 {
     ASSERT(options.udpgw_remote_server_addr)
@@ -2081,6 +2694,19 @@ void udpgw_client_handler_received (void *unused, BAddr local_addr, BAddr remote
     ASSERT(local_addr.type == remote_addr.type)
     ASSERT(data_len >= 0)
     
+    // PSIPHON
+    // cache responses to transparent DNS queries, which are the IPv4 packets sent to our netif address port 53
+    if (have_dns_cache && remote_addr.type == BADDR_TYPE_IPV4 &&
+        remote_addr.ipv4.ip == netif_ipaddr.ipv4 && remote_addr.ipv4.port == hton16(53)
+    ) {
+        DnsCache_Store(&dns_cache, data, data_len, btime_gettime());
+    }
+    
+    device_send_udp_packet(local_addr, remote_addr, data, data_len);
+}
+
+void device_send_udp_packet (BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len)
+{
     int packet_length = 0;
     
     switch (local_addr.type) {
@@ -42,5 +42,43 @@
 // udpgw keepalive sending interval
 #define UDPGW_KEEPALIVE_TIME 10000
 
+// PSIPHON
+// interval of the per-connection traffic records, in milliseconds
+#define TRAFFIC_REPORT_INTERVAL 1000
+
+// PSIPHON
+// maximum number of traffic records waiting to be taken by Java
+#define TRAFFIC_RECORDS_CAPACITY 2048
+
 // option to override the destination addresses to give the SOCKS server
 //#define OVERRIDE_DEST_ADDR "10.111.0.2:2000"
+
+// ==== PSIPHON ====
+#ifdef PSIPHON
+
+// settings of a tun2socks run, see runTun2Socks in Tun2SocksJniLoader.java
+struct tun2socks_params {
+    int tun_fd;
+    int tun_mtu;
+    const char *netif_ipaddr;
+    const char *netif_netmask;
+    const char *netif_ip6addr; // NULL disables IPv6 routing
+    const char *socks_server_addr;
+    const char *udpgw_remote_server_addr;
+    int udpgw_transparent_dns;
+    int dns_cache_size; // 0 disables the DNS cache
+    int tcp_wnd;
+    int tcp_snd_buf;
+    int max_tcp_clients; // 0 for no limit
+    int loglevel; // channel loglevel, 0-5, see BLOG_ERROR..BLOG_DEBUG in base/BLog.h
+};
+
+// runs tun2socks on the calling thread until tun2socks_terminate is called,
+// used by the JNI entry point and by examples/tun2socks_bench.c
+void tun2socks_run (const struct tun2socks_params *params);
+
+// makes tun2socks_run return, may be called from any thread
+void tun2socks_terminate (void);
+
+#endif
+// ==== PSIPHON ====
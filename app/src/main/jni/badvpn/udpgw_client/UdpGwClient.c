@@ -53,6 +53,7 @@ static void connection_free (struct UdpGwClient_connection *con);
 static void connection_first_job_handler (struct UdpGwClient_connection *con);
 static void connection_send (struct UdpGwClient_connection *con, uint8_t flags, const uint8_t *data, int data_len);
 static struct UdpGwClient_connection * reuse_connection (UdpGwClient *o, struct UdpGwClient_conaddr conaddr);
+static void connection_report_closed (struct UdpGwClient_connection *con);
 
 static int uint16_comparator (void *unused, uint16_t *v1, uint16_t *v2)
 {
@@ -164,6 +165,9 @@ static void recv_interface_handler_send (UdpGwClient *o, uint8_t *data, int data
     LinkedList1_Remove(&o->connections_list, &con->connections_list_node);
     LinkedList1_Append(&o->connections_list, &con->connections_list_node);
     
+    // PSIPHON
+    con->bytes_received += data_len;
+    
     // pass packet to user
     o->handler_received(o->user, con->conaddr.local_addr, con->conaddr.remote_addr, data, data_len);
     return;
@@ -260,6 +264,10 @@ static void connection_init (UdpGwClient *o, struct UdpGwClient_conaddr conaddr,
     con->first_data = data;
     con->first_data_len = data_len;
     
+    // PSIPHON
+    con->bytes_sent = data_len;
+    con->bytes_received = 0;
+    
     // allocate conid
     con->conid = find_unused_conid(o);
     
@@ -304,6 +312,9 @@ static void connection_free (struct UdpGwClient_connection *con)
     UdpGwClient *o = con->client;
     PacketPassFairQueueFlow_AssertFree(&con->send_qflow);
     
+    // PSIPHON
+    connection_report_closed(con);
+    
     // decrement number of connections
     o->num_connections--;
     
@@ -386,6 +397,15 @@ static void connection_send (struct UdpGwClient_connection *con, uint8_t flags,
     BufferWriter_EndPacket(con->send_if, out_pos);
 }
 
+static void connection_report_closed (struct UdpGwClient_connection *con)
+{
+    UdpGwClient *o = con->client;
+    
+    if (o->handler_traffic) {
+        o->handler_traffic(o->traffic_user, con->conaddr.local_addr, con->conaddr.remote_addr, con->bytes_sent, con->bytes_received, 1);
+    }
+}
+
 static struct UdpGwClient_connection * reuse_connection (UdpGwClient *o, struct UdpGwClient_conaddr conaddr)
 {
     ASSERT(!find_connection_by_conaddr(o, conaddr))
@@ -394,6 +414,12 @@ static struct UdpGwClient_connection * reuse_connection (UdpGwClient *o, struct
     // get least recently used connection
     struct UdpGwClient_connection *con = UPPER_OBJECT(LinkedList1_GetFirst(&o->connections_list), struct UdpGwClient_connection, connections_list_node);
     
+    // PSIPHON
+    // the connection now carries another address pair
+    connection_report_closed(con);
+    con->bytes_sent = 0;
+    con->bytes_received = 0;
+    
     // remove from connections tree by conaddr
     BAVL_Remove(&o->connections_tree_by_conaddr, &con->connections_tree_by_conaddr_node);
     
@@ -426,6 +452,10 @@ int UdpGwClient_Init (UdpGwClient *o, int udp_mtu, int max_connections, int send
     o->handler_servererror = handler_servererror;
     o->handler_received = handler_received;
     
+    // PSIPHON
+    o->handler_traffic = NULL;
+    o->traffic_user = NULL;
+    
     // limit max connections to number of conid's
     if (o->max_connections > UINT16_MAX + 1) {
         o->max_connections = UINT16_MAX + 1;
@@ -556,6 +586,9 @@ void UdpGwClient_SubmitPacket (UdpGwClient *o, BAddr local_addr, BAddr remote_ad
         LinkedList1_Remove(&o->connections_list, &con->connections_list_node);
         LinkedList1_Append(&o->connections_list, &con->connections_list_node);
         
+        // PSIPHON
+        con->bytes_sent += data_len;
+        
         // send packet to existing connection
         connection_send(con, flags, data, data_len);
     }
@@ -602,3 +635,33 @@ void UdpGwClient_DisconnectServer (UdpGwClient *o)
     // set have no server
     o->have_server = 0;
 }
+
+// PSIPHON
+void UdpGwClient_SetTrafficHandler (UdpGwClient *o, UdpGwClient_handler_traffic handler_traffic, void *user)
+{
+    DebugObject_Access(&o->d_obj);
+    
+    o->handler_traffic = handler_traffic;
+    o->traffic_user = user;
+}
+
+// PSIPHON
+void UdpGwClient_ReportTraffic (UdpGwClient *o)
+{
+    DebugObject_Access(&o->d_obj);
+    
+    if (!o->handler_traffic) {
+        return;
+    }
+    
+    for (LinkedList1Node *node = LinkedList1_GetFirst(&o->connections_list); node; node = LinkedList1Node_Next(node)) {
+        struct UdpGwClient_connection *con = UPPER_OBJECT(node, struct UdpGwClient_connection, connections_list_node);
+        if (con->bytes_sent == 0 && con->bytes_received == 0) {
+            continue;
+        }
+        if (o->handler_traffic(o->traffic_user, con->conaddr.local_addr, con->conaddr.remote_addr, con->bytes_sent, con->bytes_received, 0)) {
+            con->bytes_sent = 0;
+            con->bytes_received = 0;
+        }
+    }
+}
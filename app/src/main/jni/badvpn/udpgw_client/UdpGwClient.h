@@ -48,6 +48,11 @@
 
 typedef void (*UdpGwClient_handler_servererror) (void *user);
 typedef void (*UdpGwClient_handler_received) (void *user, BAddr local_addr, BAddr remote_addr, const uint8_t *data, int data_len);
+// PSIPHON
+// Reports the bytes a connection moved since its previous report. closed is set when the
+// connection is freed or reused for another address pair. Returns 1 if the report was
+// taken; otherwise the counts are kept and reported again with the next ones.
+typedef int (*UdpGwClient_handler_traffic) (void *user, BAddr local_addr, BAddr remote_addr, uint64_t bytes_sent, uint64_t bytes_received, int closed);
 
 B_START_PACKED
 struct UdpGwClient__keepalive_packet {
@@ -83,6 +88,9 @@ typedef struct {
     PacketStreamSender send_sender;
     PacketProtoDecoder recv_decoder;
     PacketPassInterface recv_if;
+    // PSIPHON
+    UdpGwClient_handler_traffic handler_traffic;
+    void *traffic_user;
     DebugObject d_obj;
 } UdpGwClient;
 
@@ -105,6 +113,10 @@ struct UdpGwClient_connection {
     BAVLNode connections_tree_by_conaddr_node;
     BAVLNode connections_tree_by_conid_node;
     LinkedList1Node connections_list_node;
+    // PSIPHON
+    // bytes not yet reported to handler_traffic
+    uint64_t bytes_sent;
+    uint64_t bytes_received;
 };
 
 int UdpGwClient_Init (UdpGwClient *o, int udp_mtu, int max_connections, int send_buffer_size, btime_t keepalive_time, BReactor *reactor, void *user,
@@ -115,4 +127,8 @@ void UdpGwClient_SubmitPacket (UdpGwClient *o, BAddr local_addr, BAddr remote_ad
 int UdpGwClient_ConnectServer (UdpGwClient *o, StreamPassInterface *send_if, StreamRecvInterface *recv_if) WARN_UNUSED;
 void UdpGwClient_DisconnectServer (UdpGwClient *o);
 
+// PSIPHON
+void UdpGwClient_SetTrafficHandler (UdpGwClient *o, UdpGwClient_handler_traffic handler_traffic, void *user);
+void UdpGwClient_ReportTraffic (UdpGwClient *o);
+
 #endif
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package android.os;
+
+// Stands in for the android.jar Process in local unit tests, whose methods only throw. The pid
+// can be changed to act as a forked child process.
+public class Process
+{
+    public static final int DEFAULT_PID = 1000;
+
+    public static volatile int pid = DEFAULT_PID;
+
+    public static int myPid()
+    {
+        return pid;
+    }
+}
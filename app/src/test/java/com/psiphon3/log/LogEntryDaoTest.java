@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Runs the status log paging queries of LogEntryDao on SQLite with the schema of LogEntry.
+public class LogEntryDaoTest {
+    private static final int PAGE_SIZE = 3;
+
+    private Connection connection;
+    // _ID of the status logs, newest first
+    private final List<Integer> statusLogIds = new ArrayList<>();
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS `log` (" +
+                    "`_ID` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "`message` TEXT NOT NULL, " +
+                    "`args` BLOB, " +
+                    "`sensitivity` INTEGER NOT NULL, " +
+                    "`is_diagnostic` INTEGER NOT NULL, " +
+                    "`priority` INTEGER NOT NULL, " +
+                    "`timestamp` INTEGER NOT NULL)");
+            statement.execute("CREATE INDEX IF NOT EXISTS `index_log_timestamp` ON `log` (`timestamp`)");
+            statement.execute("CREATE INDEX IF NOT EXISTS `index_log_is_diagnostic_timestamp` ON `log` (`is_diagnostic`, `timestamp`)");
+        }
+
+        // Runs of logs with equal timestamps, interleaved with diagnostic logs, and a timestamp
+        // that goes back as after a clock change so that _ID and timestamp orders differ
+        long[] timestamps = {100, 100, 100, 100, 100, 200, 200, 150, 150, 150, 300, 300};
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO log " +
+                "(message, sensitivity, is_diagnostic, priority, timestamp) VALUES ('msg', 0, ?, 4, ?)")) {
+            for (int i = 0; i < timestamps.length; i++) {
+                insert.setBoolean(1, i % 4 == 1);
+                insert.setLong(2, timestamps[i]);
+                insert.executeUpdate();
+            }
+        }
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "SELECT _ID FROM log WHERE is_diagnostic = 0 ORDER BY timestamp DESC, _ID DESC")) {
+            while (resultSet.next()) {
+                statusLogIds.add(resultSet.getInt(1));
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void olderPagesVisitEachStatusLogOnce() throws SQLException {
+        List<long[]> page = query(LogEntryDao.NEWEST_STATUS_LOGS_QUERY, PAGE_SIZE);
+        List<Integer> ids = new ArrayList<>();
+        while (!page.isEmpty()) {
+            for (long[] row : page) {
+                ids.add((int) row[0]);
+            }
+            long[] last = page.get(page.size() - 1);
+            page = query(LogEntryDao.STATUS_LOGS_OLDER_THAN_QUERY, last[1], last[0], PAGE_SIZE);
+        }
+        assertEquals(statusLogIds, ids);
+    }
+
+    @Test
+    public void newerPagesVisitEachStatusLogOnce() throws SQLException {
+        List<Integer> expected = new ArrayList<>(statusLogIds);
+        Collections.reverse(expected);
+
+        // Starts just below the oldest log, as an empty key would
+        List<long[]> page = query(LogEntryDao.STATUS_LOGS_NEWER_THAN_QUERY, Long.MIN_VALUE, 0, PAGE_SIZE);
+        List<Integer> ids = new ArrayList<>();
+        while (!page.isEmpty()) {
+            for (long[] row : page) {
+                ids.add((int) row[0]);
+            }
+            long[] last = page.get(page.size() - 1);
+            page = query(LogEntryDao.STATUS_LOGS_NEWER_THAN_QUERY, last[1], last[0], PAGE_SIZE);
+        }
+        assertEquals(expected, ids);
+    }
+
+    @Test
+    public void keyBreaksTiesByIdAndIsExcluded() throws SQLException {
+        // The status logs at timestamp 100 are _ID 1, 3, 4 and 5
+        List<long[]> older = query(LogEntryDao.STATUS_LOGS_OLDER_THAN_QUERY, 100, 4, 10);
+        assertEquals(2, older.size());
+        assertEquals(3, older.get(0)[0]);
+        assertEquals(1, older.get(1)[0]);
+
+        List<long[]> newer = query(LogEntryDao.STATUS_LOGS_NEWER_THAN_QUERY, 100, 3, 2);
+        assertEquals(2, newer.size());
+        assertEquals(4, newer.get(0)[0]);
+        assertEquals(5, newer.get(1)[0]);
+    }
+
+    @Test
+    public void pagesSeekTheIndexRange() throws SQLException {
+        assertSeeksRange(LogEntryDao.STATUS_LOGS_OLDER_THAN_QUERY, "timestamp<");
+        assertSeeksRange(LogEntryDao.STATUS_LOGS_NEWER_THAN_QUERY, "timestamp>");
+    }
+
+    // The plan must search index_log_is_diagnostic_timestamp on both columns, not only on
+    // is_diagnostic, and walk it in order rather than sorting the rows
+    private void assertSeeksRange(String sql, String range) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        try (PreparedStatement statement = connection.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            statement.setLong(1, 100);
+            statement.setInt(2, 3);
+            statement.setInt(3, PAGE_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    plan.append(resultSet.getString("detail")).append('\n');
+                }
+            }
+        }
+        String detail = plan.toString();
+        assertTrue(detail, detail.contains("USING INDEX index_log_is_diagnostic_timestamp (is_diagnostic=? AND " + range));
+        assertFalse(detail, detail.contains("TEMP B-TREE"));
+    }
+
+    // Named parameters are numbered in order of first use: :timestamp, :id, then :limit
+    private List<long[]> query(String sql, long timestamp, long id, int limit) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setLong(1, timestamp);
+            statement.setLong(2, id);
+            statement.setInt(3, limit);
+            return rows(statement);
+        }
+    }
+
+    private List<long[]> query(String sql, int limit) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setInt(1, limit);
+            return rows(statement);
+        }
+    }
+
+    // Returns the _ID and timestamp of each row
+    private static List<long[]> rows(PreparedStatement statement) throws SQLException {
+        List<long[]> rows = new ArrayList<>();
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                rows.add(new long[]{resultSet.getLong("_ID"), resultSet.getLong("timestamp")});
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Exercises AuthenticatedDataPackage.readPackage(), which holds the parsing and signing of
+// extractAndVerifyData() without the Android Base64 and logging calls around it.
+public class AuthenticatedDataPackageTest {
+    private static KeyPair keyPair;
+    private static byte[] data;
+    private static String base64Data;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+
+        // Large enough for the signed characters to span several chunks
+        data = new byte[100 * 1024 + 1];
+        new Random(1).nextBytes(data);
+        base64Data = Base64.getEncoder().encodeToString(data);
+    }
+
+    private static String sign(String signedData) throws Exception {
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(signedData.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(signer.sign());
+    }
+
+    private static String dataPackage(String dataJson, String signature) {
+        return "{\"data\":" + dataJson + ",\"signingPublicKeyDigest\":\"digest\",\"signature\":\"" + signature + "\"}";
+    }
+
+    private static boolean verify(String dataPackage, boolean dataIsBase64, ByteArrayOutputStream destination)
+            throws Exception {
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(keyPair.getPublic());
+        AuthenticatedDataPackage.PackageValues values = AuthenticatedDataPackage.readPackage(
+                new ByteArrayInputStream(dataPackage.getBytes(StandardCharsets.UTF_8)),
+                dataIsBase64, verifier, destination);
+        assertTrue(values.dataValueRead);
+        assertEquals("digest", values.signingPublicKeyDigest);
+        return verifier.verify(Base64.getDecoder().decode(values.signature));
+    }
+
+    @Test
+    public void verifiesBase64Data() throws Exception {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        assertTrue(verify(dataPackage("\"" + base64Data + "\"", sign(base64Data)), true, destination));
+        assertArrayEquals(data, destination.toByteArray());
+    }
+
+    @Test
+    public void verifiesLineWrappedBase64Data() throws Exception {
+        // The signature is on the unwrapped data, line breaks are skipped like the decoder does
+        String wrapped = new String(Base64.getMimeEncoder().encode(data), StandardCharsets.US_ASCII)
+                .replace("\r\n", "\\n").replace("/", "\\/");
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        assertTrue(verify(dataPackage("\"" + wrapped + "\"", sign(base64Data)), true, destination));
+        assertArrayEquals(data, destination.toByteArray());
+    }
+
+    @Test
+    public void rejectsTamperedBase64Data() throws Exception {
+        char[] tampered = base64Data.toCharArray();
+        tampered[1000] = tampered[1000] == 'A' ? 'B' : 'A';
+        assertFalse(verify(dataPackage("\"" + new String(tampered) + "\"", sign(base64Data)), true,
+                new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void rejectsSignatureOfOtherData() throws Exception {
+        assertFalse(verify(dataPackage("\"" + base64Data + "\"", sign("AAAA")), true,
+                new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void ignoresNestedDataKeys() throws Exception {
+        String dataPackage = "{\"other\":{\"data\":\"AAAA\",\"list\":[\"data\",{\"data\":\"BBBB\"}]},"
+                + dataPackage("\"" + base64Data + "\"", sign(base64Data)).substring(1);
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        assertTrue(verify(dataPackage, true, destination));
+        assertArrayEquals(data, destination.toByteArray());
+    }
+
+    @Test
+    public void rejectsDataKeyTheStreamCantSee() throws Exception {
+        // The parser reads this key as "data" but the raw value isn't signed, the package
+        // must not verify as if the value had been signed
+        String dataPackage = "{\"\\u0064ata\":\"" + base64Data + "\",\"signingPublicKeyDigest\":\"digest\","
+                + "\"signature\":\"" + sign("") + "\"}";
+        try {
+            verify(dataPackage, true, new ByteArrayOutputStream());
+            fail();
+        } catch (AuthenticatedDataPackage.AuthenticatedDataPackageException expected) {
+        }
+    }
+
+    @Test
+    public void verifiesStringData() throws Exception {
+        String text = "{\\\"entries\\\":[]}";
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        assertTrue(verify(dataPackage("\"" + text + "\"", sign("{\"entries\":[]}")), false, destination));
+        assertEquals("{\"entries\":[]}", destination.toString("UTF-8"));
+    }
+
+    @Test
+    public void streamSignsRawValueWhileParserDecodes() throws Exception {
+        // The verifier is only fed by the stream, so a passing verification means the raw
+        // Base64 characters were signed, not a re-encoding of the decoded data
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(keyPair.getPublic());
+        AuthenticatedDataPackage.SigningInputStream stream = new AuthenticatedDataPackage.SigningInputStream(
+                new ByteArrayInputStream(("{\"n\":1,\"data\":\"" + base64Data + "\",\"e\":[]}")
+                        .getBytes(StandardCharsets.UTF_8)), verifier);
+        JsonParser parser = new JsonFactory().createParser(stream);
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        while (parser.nextToken() != null) {
+            if (parser.getCurrentToken() == JsonToken.VALUE_STRING && "data".equals(parser.getCurrentName())) {
+                parser.readBinaryValue(destination);
+            }
+        }
+        assertTrue(stream.finishSigning());
+        assertEquals(1, stream.getSignedValueCount());
+        assertArrayEquals(data, destination.toByteArray());
+        assertTrue(verifier.verify(Base64.getDecoder().decode(sign(base64Data))));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.schildbach.wallet.util;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Locale;
+
+import static org.junit.Assert.assertNotNull;
+
+// Compares small request throughput, the case served from the per-thread buffer, with the
+// platform provider. Not part of the unit tests since it only reports machine dependent timings,
+// remove the @Ignore to run it.
+@Ignore("benchmark")
+public class LinuxSecureRandomBenchmark
+{
+    private static final int REQUEST_SIZE = 16;
+    private static final int WARMUP_REQUESTS = 100000;
+    private static final int REQUESTS = 1000000;
+
+    private static SecureRandom linuxSecureRandom;
+    private static SecureRandom platformSecureRandom;
+
+    @BeforeClass
+    public static void setUp() throws Exception
+    {
+        new LinuxSecureRandom();
+        linuxSecureRandom = SecureRandom.getInstance("LinuxSecureRandom");
+
+        // The first SecureRandom of the platform
+        for (Provider provider : Security.getProviders())
+        {
+            if (provider.getName().equals("LinuxSecureRandom"))
+            {
+                continue;
+            }
+            for (Provider.Service service : provider.getServices())
+            {
+                if (platformSecureRandom == null && service.getType().equals("SecureRandom"))
+                {
+                    platformSecureRandom = SecureRandom.getInstance(service.getAlgorithm(), provider);
+                }
+            }
+        }
+        assertNotNull(platformSecureRandom);
+    }
+
+    @Test
+    public void smallRequestThroughput()
+    {
+        long linuxNanos = timeRequests(linuxSecureRandom);
+        long platformNanos = timeRequests(platformSecureRandom);
+        System.out.println(String.format(Locale.US,
+                "%d byte nextBytes: LinuxSecureRandom %.1f ns/op, platform %s %.1f ns/op",
+                REQUEST_SIZE,
+                (double) linuxNanos / REQUESTS,
+                platformSecureRandom.getAlgorithm(),
+                (double) platformNanos / REQUESTS));
+    }
+
+    private static long timeRequests(SecureRandom random)
+    {
+        byte[] bytes = new byte[REQUEST_SIZE];
+        for (int i = 0; i < WARMUP_REQUESTS; i++)
+        {
+            random.nextBytes(bytes);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++)
+        {
+            random.nextBytes(bytes);
+        }
+        return System.nanoTime() - start;
+    }
+}
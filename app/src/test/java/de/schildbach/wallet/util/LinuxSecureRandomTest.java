@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2026, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package de.schildbach.wallet.util;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class LinuxSecureRandomTest
+{
+    private static SecureRandom linuxSecureRandom;
+
+    @BeforeClass
+    public static void setUp() throws Exception
+    {
+        new LinuxSecureRandom();
+        linuxSecureRandom = SecureRandom.getInstance("LinuxSecureRandom");
+        assertEquals("LinuxSecureRandom", new SecureRandom().getProvider().getName());
+    }
+
+    @After
+    public void restorePid()
+    {
+        android.os.Process.pid = android.os.Process.DEFAULT_PID;
+    }
+
+    @Test
+    public void nextBytesFillsRequestsOfAllSizes()
+    {
+        int[] sizes = {16, 17, LinuxSecureRandom.POOL_SIZE - 1, LinuxSecureRandom.POOL_SIZE,
+                3 * LinuxSecureRandom.POOL_SIZE + 7};
+        for (int size : sizes)
+        {
+            byte[] first = new byte[size];
+            byte[] second = new byte[size];
+            linuxSecureRandom.nextBytes(first);
+            linuxSecureRandom.nextBytes(second);
+            assertFalse("all zero, size " + size, Arrays.equals(first, new byte[size]));
+            assertFalse("repeated, size " + size, Arrays.equals(first, second));
+        }
+        linuxSecureRandom.nextBytes(new byte[0]);
+    }
+
+    @Test
+    public void requestsAcrossRefillsDontRepeat()
+    {
+        // Walks the per-thread buffer through several refills at an odd stride
+        byte[] previous = new byte[24];
+        byte[] bytes = new byte[24];
+        for (int i = 0; i < 4 * LinuxSecureRandom.POOL_SIZE / bytes.length; i++)
+        {
+            linuxSecureRandom.nextBytes(bytes);
+            assertFalse(Arrays.equals(bytes, previous));
+            System.arraycopy(bytes, 0, previous, 0, bytes.length);
+        }
+    }
+
+    @Test
+    public void servedBytesAreZeroedInTheBuffer()
+    {
+        LinuxSecureRandom.Pool pool = emptyPool();
+
+        byte[] bytes = new byte[100];
+        linuxSecureRandom.nextBytes(bytes);
+
+        assertEquals(bytes.length, pool.position);
+        assertArrayEquals(new byte[bytes.length], Arrays.copyOfRange(pool.buffer, 0, bytes.length));
+        // The rest of the buffer is still to be served
+        assertFalse(Arrays.equals(new byte[LinuxSecureRandom.POOL_SIZE - bytes.length],
+                Arrays.copyOfRange(pool.buffer, bytes.length, LinuxSecureRandom.POOL_SIZE)));
+    }
+
+    @Test
+    public void forkedChildDiscardsTheParentBuffer()
+    {
+        LinuxSecureRandom.Pool pool = emptyPool();
+        linuxSecureRandom.nextBytes(new byte[16]);
+        byte[] parentNext = Arrays.copyOfRange(pool.buffer, 16, 32);
+
+        // As seen by the child after a fork, the buffer was filled in another process
+        android.os.Process.pid = android.os.Process.DEFAULT_PID + 1;
+        byte[] childBytes = new byte[16];
+        linuxSecureRandom.nextBytes(childBytes);
+
+        assertFalse(Arrays.equals(parentNext, childBytes));
+        assertEquals(android.os.Process.pid, pool.pid);
+        // Refilled from the kernel, not served from what was left of the parent buffer
+        assertEquals(16, pool.position);
+    }
+
+    @Test
+    public void shortReadsAreRetried()
+    {
+        byte[] source = new byte[20];
+        for (int i = 0; i < source.length; i++)
+        {
+            source[i] = (byte) (i + 1);
+        }
+        // Returns at most 3 bytes per read, as a read interrupted by a signal may
+        InputStream in = new ByteArrayInputStream(source)
+        {
+            @Override
+            public synchronized int read(byte[] b, int off, int len)
+            {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+
+        byte[] bytes = new byte[source.length + 2];
+        LinuxSecureRandom.readFully(in, bytes, 2, source.length);
+
+        assertEquals(0, bytes[0]);
+        assertEquals(0, bytes[1]);
+        assertArrayEquals(source, Arrays.copyOfRange(bytes, 2, bytes.length));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void endOfStreamFails()
+    {
+        LinuxSecureRandom.readFully(new ByteArrayInputStream(new byte[4]), new byte[8], 0, 8);
+    }
+
+    @Test
+    public void generateSeed()
+    {
+        byte[] seed = linuxSecureRandom.generateSeed(32);
+        assertEquals(32, seed.length);
+        assertFalse(Arrays.equals(seed, new byte[32]));
+    }
+
+    @Test
+    public void survivesInterruptedReader() throws Exception
+    {
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try
+            {
+                Thread.currentThread().interrupt();
+                // Large enough to bypass the buffer and read from the kernel while interrupted
+                linuxSecureRandom.nextBytes(new byte[2 * LinuxSecureRandom.POOL_SIZE]);
+                linuxSecureRandom.nextBytes(new byte[16]);
+            }
+            catch (Throwable e)
+            {
+                error.set(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNull(error.get());
+
+        // Other threads must still be served
+        byte[] bytes = new byte[2 * LinuxSecureRandom.POOL_SIZE];
+        linuxSecureRandom.nextBytes(bytes);
+        assertFalse(Arrays.equals(bytes, new byte[bytes.length]));
+    }
+
+    // Returns the buffer of this thread with everything served, so the next request refills it
+    private static LinuxSecureRandom.Pool emptyPool()
+    {
+        linuxSecureRandom.nextBytes(new byte[1]);
+        LinuxSecureRandom.Pool pool = LinuxSecureRandom.pools.get();
+        assertEquals(android.os.Process.pid, pool.pid);
+        pool.position = LinuxSecureRandom.POOL_SIZE;
+        return pool;
+    }
+}
@@ -10,6 +10,7 @@ import android.os.Looper;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -47,6 +48,120 @@ public class ChangedListenerTest extends TrayProviderTestCase {
         assertEquals(2, changed.size());
     }
 
+    public void testLocalChangeDeliveredWithoutQuery() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ArrayList<TrayItem> changed = new ArrayList<>();
+        final OnTrayPreferenceChangeListener listener = new OnTrayPreferenceChangeListener() {
+
+            @Override
+            public void onTrayPreferenceChanged(final Collection<TrayItem> items) {
+                changed.addAll(items);
+                latch.countDown();
+            }
+        };
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testLocalChange", TrayStorage.Type.USER);
+        storage.registerOnTrayPreferenceChangeListener(listener);
+
+        storage.put("some", "value");
+        final Uri uri = new TrayUri(getProviderMockContext()).builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule("testLocalChange")
+                .setKey("some")
+                .build();
+        assertEquals(1, storage.mObserver.mPendingChanges.size());
+        assertTrue(storage.mObserver.mPendingChanges.containsKey(uri));
+
+        // the ContentObserver does not work in a ProviderTestCase2, see checkChangeListener()
+        storage.mObserver.onChange(false, uri);
+
+        latch.await(3000, TimeUnit.MILLISECONDS);
+        assertEquals(1, changed.size());
+        assertEquals("some", changed.get(0).key());
+        assertEquals("value", changed.get(0).value());
+        assertEquals(0, storage.mObserver.mPendingChanges.size());
+
+        storage.unregisterOnTrayPreferenceChangeListener(listener);
+    }
+
+    public void testBackToBackLocalChangesDeliveredInOrder() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final ArrayList<TrayItem> changed = new ArrayList<>();
+        final OnTrayPreferenceChangeListener listener = new OnTrayPreferenceChangeListener() {
+
+            @Override
+            public void onTrayPreferenceChanged(final Collection<TrayItem> items) {
+                changed.addAll(items);
+                latch.countDown();
+            }
+        };
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testBackToBack", TrayStorage.Type.USER);
+        storage.registerOnTrayPreferenceChangeListener(listener);
+
+        storage.put("some", "A");
+        storage.put("some", "B");
+        final Uri uri = new TrayUri(getProviderMockContext()).builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule("testBackToBack")
+                .setKey("some")
+                .build();
+        assertEquals(2, storage.mObserver.mPendingChanges.get(uri).size());
+
+        // one notification per write, see checkChangeListener() why they are sent manually
+        storage.mObserver.onChange(false, uri);
+        storage.mObserver.onChange(false, uri);
+
+        latch.await(3000, TimeUnit.MILLISECONDS);
+        assertEquals(2, changed.size());
+        assertEquals("A", changed.get(0).value());
+        assertEquals("B", changed.get(1).value());
+        assertEquals(0, storage.mObserver.mPendingChanges.size());
+
+        storage.unregisterOnTrayPreferenceChangeListener(listener);
+    }
+
+    public void testNotificationBeforeLocalWriteReturnedQueries() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ArrayList<TrayItem> changed = new ArrayList<>();
+        final OnTrayPreferenceChangeListener listener = new OnTrayPreferenceChangeListener() {
+
+            @Override
+            public void onTrayPreferenceChanged(final Collection<TrayItem> items) {
+                changed.addAll(items);
+                latch.countDown();
+            }
+        };
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testEarlyNotification", TrayStorage.Type.USER);
+        // written before the listener is registered, so there is no pending change for it
+        storage.put("some", "saved");
+        storage.registerOnTrayPreferenceChangeListener(listener);
+
+        final Uri uri = new TrayUri(getProviderMockContext()).builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule("testEarlyNotification")
+                .setKey("some")
+                .build();
+        final TrayContentObserver observer = storage.mObserver;
+        final TrayContentObserver.PendingChange change = observer.beginLocalChange(uri);
+
+        // the notification of the write arrives before the write returned
+        observer.onChange(false, uri);
+
+        latch.await(3000, TimeUnit.MILLISECONDS);
+        assertEquals(1, changed.size());
+        assertEquals("saved", changed.get(0).value());
+        assertEquals(0, observer.mPendingChanges.size());
+
+        // the items of the write are not kept for a later notification
+        observer.onLocalChange(change, Collections.singletonList(
+                new TrayItem("testEarlyNotification", "some", null, "unsaved", null, null)));
+        assertEquals(0, observer.mPendingChanges.size());
+
+        storage.unregisterOnTrayPreferenceChangeListener(listener);
+    }
+
     public void testListenerRegisteredFromLooperThread() throws Exception {
         checkChangeListener(true, null);
     }
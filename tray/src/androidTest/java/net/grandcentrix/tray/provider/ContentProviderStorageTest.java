@@ -22,7 +22,11 @@ import net.grandcentrix.tray.core.TrayItem;
 import net.grandcentrix.tray.core.TrayRuntimeException;
 import net.grandcentrix.tray.core.TrayStorage;
 
+import android.net.Uri;
+
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by pascalwelsch on 11/21/14.
@@ -106,6 +110,107 @@ public class ContentProviderStorageTest extends TrayProviderTestCase {
 
     }
 
+    public void testCachedGet() throws Exception {
+        final ContentProviderStorage uncached = new ContentProviderStorage(
+                getProviderMockContext(), "testCached", TrayStorage.Type.USER);
+        uncached.put(TEST_KEY, TEST_STRING);
+        uncached.setVersion(2);
+
+        final ContentProviderStorage cached = new ContentProviderStorage(
+                getProviderMockContext(), "testCached", TrayStorage.Type.USER, true);
+        final TrayItem item = cached.get(TEST_KEY);
+        assertNotNull(item);
+        assertEquals(TEST_STRING, item.value());
+        assertNull(cached.get(TEST_KEY2));
+        assertEquals(2, cached.getVersion());
+
+        final ContentProviderStorage otherModule = new ContentProviderStorage(
+                getProviderMockContext(), "testCachedOther", TrayStorage.Type.USER, true);
+        assertNull(otherModule.get(TEST_KEY));
+        assertEquals(0, otherModule.getVersion());
+    }
+
+    public void testCachedUndefined() throws Exception {
+        try {
+            new ContentProviderStorage(getProviderMockContext(), "testCached",
+                    TrayStorage.Type.UNDEFINED, true);
+            fail();
+        } catch (TrayRuntimeException e) {
+            assertTrue(e.getMessage().contains("UNDEFINED"));
+        }
+    }
+
+    public void testCachedWriteThrough() throws Exception {
+        final ContentProviderStorage cached1 = new ContentProviderStorage(
+                getProviderMockContext(), "testCached", TrayStorage.Type.USER, true);
+        final ContentProviderStorage cached2 = new ContentProviderStorage(
+                getProviderMockContext(), "testCached", TrayStorage.Type.USER, true);
+        final ContentProviderStorage uncached = new ContentProviderStorage(
+                getProviderMockContext(), "testCached", TrayStorage.Type.USER);
+
+        cached1.put(TEST_KEY, TEST_STRING);
+        assertEquals(TEST_STRING, cached2.get(TEST_KEY).value());
+        assertEquals(TEST_STRING, uncached.get(TEST_KEY).value());
+
+        cached2.put(TEST_KEY, TEST_STRING2);
+        assertEquals(TEST_STRING2, cached1.get(TEST_KEY).value());
+        assertEquals(TEST_STRING2, uncached.get(TEST_KEY).value());
+
+        cached1.remove(TEST_KEY);
+        assertNull(cached2.get(TEST_KEY));
+        assertNull(uncached.get(TEST_KEY));
+
+        cached1.put(TEST_KEY, TEST_STRING);
+        cached1.put(TEST_KEY2, TEST_STRING2);
+        cached2.clear();
+        assertNull(cached1.get(TEST_KEY));
+        assertNull(cached1.get(TEST_KEY2));
+        assertUserDatabaseSize(0);
+
+        cached1.put(TEST_KEY, "migrationKey", TEST_STRING);
+        assertEquals(TEST_STRING, cached2.get(TEST_KEY).value());
+        assertEquals("migrationKey", cached2.get(TEST_KEY).migratedKey());
+
+        cached1.setVersion(3);
+        assertEquals(3, cached2.getVersion());
+        assertEquals(3, uncached.getVersion());
+        cached2.wipe();
+        assertEquals(0, cached1.getVersion());
+        assertNull(cached1.get(TEST_KEY));
+    }
+
+    public void testCachedChangeNotifications() throws Exception {
+        final ContentProviderStorage cached = new ContentProviderStorage(
+                getProviderMockContext(), "testCachedNotify", TrayStorage.Type.USER, true);
+        final ContentProviderStorage uncached = new ContentProviderStorage(
+                getProviderMockContext(), "testCachedNotify", TrayStorage.Type.USER);
+        final TrayModuleCache cache = TrayModuleCache.getInstance(getProviderMockContext(),
+                "testCachedNotify", TrayStorage.Type.USER);
+        final Uri uri = new TrayUri(getProviderMockContext()).builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule("testCachedNotify")
+                .setKey(TEST_KEY)
+                .build();
+
+        // the notification of the own put keeps the written item
+        cached.put(TEST_KEY, TEST_STRING);
+        cache.mObserver.onChange(false, uri);
+        assertEquals(TEST_STRING, ((TrayItem) cache.mItems.get(TEST_KEY)).value());
+
+        // a put of someone else drops the item, the next read loads it
+        uncached.put(TEST_KEY, TEST_STRING2);
+        cache.mObserver.onChange(false, uri);
+        assertFalse(cache.mItems.containsKey(TEST_KEY));
+        assertEquals(TEST_STRING2, cached.get(TEST_KEY).value());
+
+        // a put of someone else before the notification of the own put arrived
+        cached.put(TEST_KEY, TEST_STRING);
+        uncached.put(TEST_KEY, TEST_STRING2);
+        cache.mObserver.onChange(false, uri);
+        cache.mObserver.onChange(false, uri);
+        assertEquals(TEST_STRING2, cached.get(TEST_KEY).value());
+    }
+
     public void testDeviceAndUserWithSameName() throws Exception {
         final ContentProviderStorage userStorage = new ContentProviderStorage(
                 getProviderMockContext(), "sameName", TrayStorage.Type.USER);
@@ -255,6 +360,29 @@ public class ContentProviderStorageTest extends TrayProviderTestCase {
         assertEquals("foo", item.value());
     }
 
+    public void testPutAll() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testPutAll", TrayStorage.Type.USER);
+        storage.put(TEST_KEY, "old");
+
+        final Map<String, Object> data = new HashMap<>();
+        data.put(TEST_KEY, TEST_STRING);
+        data.put(TEST_KEY2, 42);
+        final Map<String, String> migrationKeys = new HashMap<>();
+        migrationKeys.put(TEST_KEY2, "oldKey");
+        storage.putAll(data, migrationKeys);
+
+        assertUserDatabaseSize(2);
+        assertEquals(TEST_STRING, storage.get(TEST_KEY).value());
+        assertNull(storage.get(TEST_KEY).migratedKey());
+        assertEquals("42", storage.get(TEST_KEY2).value());
+        assertEquals("oldKey", storage.get(TEST_KEY2).migratedKey());
+
+        // nothing to save is allowed for every type
+        new ContentProviderStorage(getProviderMockContext(), "testPutAll",
+                TrayStorage.Type.UNDEFINED).putAll(new HashMap<String, Object>(), null);
+    }
+
     public void testPutDevice() throws Exception {
         final ContentProviderStorage storage = new ContentProviderStorage(getProviderMockContext(),
                 "testPut_Device", TrayStorage.Type.DEVICE);
@@ -450,6 +578,16 @@ public class ContentProviderStorageTest extends TrayProviderTestCase {
             assertTrue(e.getMessage().contains("UNDEFINED"));
         }
 
+        // putAll
+        try {
+            final HashMap<String, Object> data = new HashMap<>();
+            data.put(TEST_KEY2, TEST_STRING);
+            storage.putAll(data, null);
+            fail();
+        } catch (TrayRuntimeException e) {
+            assertTrue(e.getMessage().contains("UNDEFINED"));
+        }
+
         // setVersion
         try {
             storage.setVersion(10);
@@ -16,6 +16,7 @@
 
 package net.grandcentrix.tray.provider;
 
+import net.grandcentrix.tray.core.TrayItem;
 import net.grandcentrix.tray.core.TrayStorage;
 
 import android.content.ContentValues;
@@ -24,6 +25,8 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 
+import java.util.List;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
@@ -44,6 +47,58 @@ public class TrayProviderTest extends TrayProviderTestCase {
         return provider;
     }
 
+    public void testBulkInsert() throws Exception {
+        final Uri moduleUri = mTrayUri.builder().setModule("module").build();
+        final ContentValues[] values = new ContentValues[3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(TrayContract.Preferences.Columns.KEY, "key" + i);
+            values[i].put(TrayContract.Preferences.Columns.VALUE, "value" + i);
+        }
+        assertEquals(3, getProviderMockContext().getContentResolver()
+                .bulkInsert(moduleUri, values));
+        assertUserDatabaseSize(3);
+
+        // existing items get updated
+        values[0].put(TrayContract.Preferences.Columns.VALUE, "updated");
+        assertEquals(3, getProviderMockContext().getContentResolver()
+                .bulkInsert(moduleUri, values));
+        assertUserDatabaseSize(3);
+        final List<TrayItem> items = mProviderHelper
+                .queryProvider(mTrayUri.builder().setModule("module").setKey("key0").build());
+        assertEquals(1, items.size());
+        assertEquals("updated", items.get(0).value());
+
+        final Uri[] notWorkingUris = {
+                mTrayUri.get(),
+                mTrayUri.builder().setModule("module").setKey("key").build(),
+                mTrayUri.getInternal(),
+                Uri.withAppendedPath(Uri.parse("content://" + MockProvider.AUTHORITY),
+                        "something")
+        };
+        for (Uri badUri : notWorkingUris) {
+            try {
+                getProviderMockContext().getContentResolver().bulkInsert(badUri, values);
+                fail("bulk inserted Uri: " + badUri);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("not supported"));
+            }
+        }
+
+        // a missing key rolls back the whole batch
+        final ContentValues withoutKey = new ContentValues();
+        withoutKey.put(TrayContract.Preferences.Columns.VALUE, "value");
+        try {
+            getProviderMockContext().getContentResolver().bulkInsert(
+                    mTrayUri.builder().setModule("other").build(),
+                    new ContentValues[]{values[0], withoutKey});
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("key"));
+        }
+        assertUserDatabaseSize(3);
+    }
+
     public void testDelete() throws Exception {
 
         final Uri[] workingUris = {
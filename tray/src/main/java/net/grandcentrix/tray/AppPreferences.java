@@ -17,6 +17,7 @@
 package net.grandcentrix.tray;
 
 import net.grandcentrix.tray.core.PreferenceAccessor;
+import net.grandcentrix.tray.core.TrayStorage;
 
 import android.content.Context;
 
@@ -32,12 +33,15 @@ import android.content.Context;
  * single module. Extend the {@link TrayPreferences} and gain the functionality to remove all
  * data of a single module. This could help keeping the saved data as small as possible across app
  * upgrades.
+ * <p>
+ * Reads are served from a per process snapshot of the module which is updated by the writes of
+ * this process and invalidated by the changes of other processes.
  */
 public class AppPreferences extends TrayPreferences {
 
     private static final int VERSION = 1;
 
     public AppPreferences(final Context context) {
-        super(context, context.getPackageName(), VERSION);
+        super(context, context.getPackageName(), VERSION, TrayStorage.Type.USER, true);
     }
 }
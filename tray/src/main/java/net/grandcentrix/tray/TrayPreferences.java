@@ -40,7 +40,18 @@ public class TrayPreferences extends AbstractTrayPreference<ContentProviderStora
 
     public TrayPreferences(@NonNull final Context context, @NonNull final String module,
             final int version, final TrayStorage.Type type) {
-        super(new ContentProviderStorage(context, module, type), version);
+        this(context, module, version, type, false);
+    }
+
+    /**
+     * @param cached true to read the preferences from a per process snapshot of the module
+     *               instead of querying the {@link android.content.ContentProvider} for every
+     *               read. See {@link ContentProviderStorage#ContentProviderStorage(Context, String,
+     *               TrayStorage.Type, boolean)}
+     */
+    protected TrayPreferences(@NonNull final Context context, @NonNull final String module,
+            final int version, final TrayStorage.Type type, final boolean cached) {
+        super(new ContentProviderStorage(context, module, type, cached), version);
     }
 
     public TrayPreferences(@NonNull final Context context, @NonNull final String module,
@@ -20,6 +20,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.util.Collection;
+import java.util.Map;
 
 /**
  * basic functionality for every storage implementation
@@ -82,6 +83,15 @@ public interface PreferenceStorage<T> {
      */
     void put(@NonNull final String key, @Nullable final Object data);
 
+    /**
+     * stores multiple data items at once. Same as calling {@link #put(String, String, Object)}
+     * for every entry but implementations may save all items in a single transaction.
+     *
+     * @param data          what to save by key
+     * @param migrationKeys where the data came from by key, may be null or not contain all keys
+     */
+    void putAll(@NonNull final Map<String, ?> data, @Nullable final Map<String, String> migrationKeys);
+
     /**
      * removes the item with the given key
      *
@@ -19,7 +19,12 @@ package net.grandcentrix.tray.core;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static net.grandcentrix.tray.core.TrayLog.v;
 import static net.grandcentrix.tray.core.TrayLog.w;
@@ -82,6 +87,9 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
      */
     @SafeVarargs
     public final void migrate(Migration<T>... migrations) {
+        final Map<String, Object> migratedData = new LinkedHashMap<>();
+        final Map<String, String> migrationKeys = new HashMap<>();
+        final List<Migration<T>> migrated = new ArrayList<>();
         for (Migration<T> migration : migrations) {
 
             if (!migration.shouldMigrate()) {
@@ -101,13 +109,23 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
             }
             final String key = migration.getTrayKey();
             final String migrationKey = migration.getPreviousKey();
-            // save into tray
-            getStorage().put(key, migrationKey, data);
-            v("migrated '" + migrationKey + "'='" + data + "' into " + this +
+            migratedData.put(key, data);
+            migrationKeys.put(key, migrationKey);
+            migrated.add(migration);
+            v("migrating '" + migrationKey + "'='" + data + "' into " + this +
                     " (now: '" + key + "'='" + data + "')");
+        }
+
+        if (migrated.isEmpty()) {
+            return;
+        }
 
-            // return the saved data.
-            final T item = getStorage().get(key);
+        // save all migrated data into tray at once
+        getStorage().putAll(migratedData, migrationKeys);
+
+        // return the saved data.
+        for (Migration<T> migration : migrated) {
+            final T item = getStorage().get(migration.getTrayKey());
             migration.onPostMigrate(item);
         }
     }
@@ -142,6 +160,29 @@ public abstract class Preferences<T, S extends PreferenceStorage<T>>
         v("put '" + key + "=" + value + "' into " + this);
     }
 
+    /**
+     * saves multiple values at once which saves them in a single transaction when supported by
+     * the storage
+     *
+     * @param values values by key. Only {@link String}, {@link Integer}, {@link Long}, {@link
+     *               Float}, {@link Boolean} and <code>null</code> values are supported
+     * @throws IllegalArgumentException for values of an unsupported data type
+     */
+    public void putAll(@NonNull final Map<String, ?> values) {
+        for (final Map.Entry<String, ?> entry : values.entrySet()) {
+            if (!isDataTypeSupported(entry.getValue())) {
+                throw new IllegalArgumentException("could not put '" + entry.getKey()
+                        + "' into " + this + " because the data type "
+                        + entry.getValue().getClass().getSimpleName() + " is invalid");
+            }
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        getStorage().putAll(values, null);
+        v("put " + values.size() + " items into " + this);
+    }
+
     public void remove(@NonNull final String key) {
         mStorage.remove(key);
         v("removed key '" + key + "' from " + this);
@@ -19,6 +19,9 @@ package net.grandcentrix.tray.core;
 import net.grandcentrix.tray.TrayPreferences;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Map;
 
 /**
  * Created by pascalwelsch on 11/20/14.
@@ -88,6 +91,19 @@ public abstract class TrayStorage implements PreferenceStorage<TrayItem> {
         return mType;
     }
 
+    /**
+     * saves the items one by one. Override to save them in a single transaction.
+     */
+    @Override
+    public void putAll(@NonNull final Map<String, ?> data,
+            @Nullable final Map<String, String> migrationKeys) {
+        for (final Map.Entry<String, ?> entry : data.entrySet()) {
+            final String migrationKey = migrationKeys == null
+                    ? null : migrationKeys.get(entry.getKey());
+            put(entry.getKey(), migrationKey, entry.getValue());
+        }
+    }
+
     /**
      * registers a listener which gets called when a tray preference is changed, added, or removed.
      * This may be called even if a preference is set to its existing value.
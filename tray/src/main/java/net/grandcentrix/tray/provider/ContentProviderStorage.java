@@ -25,7 +25,6 @@ import net.grandcentrix.tray.core.TrayStorage;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
@@ -35,11 +34,14 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.WeakHashMap;
 
 /**
@@ -57,56 +59,19 @@ import java.util.WeakHashMap;
 public class ContentProviderStorage extends TrayStorage {
 
     /**
-     * Forwards changes of this storage to the registered listeners
+     * a registered listener and the handler of the thread it was registered on, null if the
+     * thread has no looper
      */
-    @VisibleForTesting
-    class TrayContentObserver extends ContentObserver {
-
-        /**
-         * Creates a content observer.
-         *
-         * @param handler The handler to run {@link #onChange} on, or null if none.
-         */
-        public TrayContentObserver(@NonNull final Handler handler) {
-            super(handler);
-        }
+    private static class ListenerEntry {
 
-        @Override
-        public void onChange(final boolean selfChange) {
-            onChange(selfChange, null);
-        }
+        final Handler handler;
 
-        @Override
-        public void onChange(final boolean selfChange, Uri uri) {
-            if (uri == null) {
-                // for sdk version 15 and below we cannot detect which exact data was changed. This will
-                // return all data for this module
-                uri = mTrayUri.builder().setModule(getModuleName()).build();
-            }
+        final WeakReference<OnTrayPreferenceChangeListener> listener;
 
-            // query only the changed items
-            final List<TrayItem> trayItems = mProviderHelper.queryProvider(uri);
-
-            // clone to get around ConcurrentModificationException
-            final Set<Map.Entry<OnTrayPreferenceChangeListener, Handler>> entries
-                    = new HashSet<>(mListeners.entrySet());
-
-            // notify all registered listeners
-            for (final Map.Entry<OnTrayPreferenceChangeListener, Handler> entry : entries) {
-                final OnTrayPreferenceChangeListener listener = entry.getKey();
-                final Handler handler = entry.getValue();
-                if (handler != null) {
-                    // call the listener on the thread where the listener was registered
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            listener.onTrayPreferenceChanged(trayItems);
-                        }
-                    });
-                } else {
-                    listener.onTrayPreferenceChanged(trayItems);
-                }
-            }
+        ListenerEntry(@NonNull final OnTrayPreferenceChangeListener listener,
+                @Nullable final Handler handler) {
+            this.listener = new WeakReference<>(listener);
+            this.handler = handler;
         }
     }
 
@@ -119,38 +84,80 @@ public class ContentProviderStorage extends TrayStorage {
     WeakHashMap<OnTrayPreferenceChangeListener, Handler> mListeners = new WeakHashMap<>();
 
     /**
-     * observes data changes for this storage
+     * snapshot of {@link #mListeners} iterated when notifying the listeners, replaced whenever a
+     * listener gets registered or unregistered
+     */
+    private volatile ListenerEntry[] mListenerEntries = new ListenerEntry[0];
+
+    /**
+     * observes data changes for this storage, shared with the other storages of this module.
+     * Only set when listeners are registered
      */
     @VisibleForTesting
     TrayContentObserver mObserver;
 
     /**
-     * the looper thread which runs the {@link #mObserver}. Only started when listeners registered
+     * the looper thread which runs the {@link #mObserver}, shared by all observers of this
+     * process. Only set when listeners are registered
      */
     @VisibleForTesting
     HandlerThread mObserverThread;
 
     private final Context mContext;
 
-    private final TrayProviderHelper mProviderHelper;
+    /**
+     * shared snapshot of this module, null for uncached storages
+     */
+    @Nullable
+    private final TrayModuleCache mCache;
+
+    /**
+     * the uri of this module and type, observed for changes
+     */
+    private final Uri mModuleUri;
 
-    private volatile boolean mRegisteredContentObserver = false;
+    private final TrayProviderHelper mProviderHelper;
 
     private final TrayUri mTrayUri;
 
     public ContentProviderStorage(@NonNull final Context context, @NonNull final String module,
             @NonNull final Type type) {
+        this(context, module, type, false);
+    }
+
+    /**
+     * @param cached true to read the data from a per process snapshot of the module shared by all
+     *               cached storages of this module. The snapshot is updated by the writes of the
+     *               cached storages and invalidated by changes of the {@link TrayContentProvider}
+     *               from other processes or uncached storages. Not supported for {@link
+     *               Type#UNDEFINED}.
+     */
+    public ContentProviderStorage(@NonNull final Context context, @NonNull final String module,
+            @NonNull final Type type, final boolean cached) {
         super(module, type);
+        if (cached && type == Type.UNDEFINED) {
+            throw new TrayRuntimeException(
+                    "caching a storage with type UNDEFINED is not supported.");
+        }
         mContext = context.getApplicationContext();
         mTrayUri = new TrayUri(mContext);
         mProviderHelper = new TrayProviderHelper(mContext);
+        mModuleUri = mTrayUri.builder()
+                .setType(getType())
+                .setModule(getModuleName())
+                .build();
+        mCache = cached ? TrayModuleCache.getInstance(mContext, module, type) : null;
     }
 
     @Override
     public void annex(final TrayStorage oldStorage) {
+        final Map<String, String> data = new HashMap<>();
+        final Map<String, String> migrationKeys = new HashMap<>();
         for (final TrayItem trayItem : oldStorage.getAll()) {
-            put(trayItem);
+            data.put(trayItem.key(), trayItem.value());
+            migrationKeys.put(trayItem.key(), trayItem.migratedKey());
         }
+        putAll(data, migrationKeys);
         oldStorage.wipe();
     }
 
@@ -161,11 +168,17 @@ public class ContentProviderStorage extends TrayStorage {
                 .setType(getType())
                 .build();
         mContext.getContentResolver().delete(uri, null, null);
+        if (mCache != null) {
+            mCache.clear();
+        }
     }
 
     @Override
     @Nullable
     public TrayItem get(@NonNull final String key) {
+        if (mCache != null) {
+            return mCache.get(key);
+        }
         final Uri uri = mTrayUri.builder()
                 .setType(getType())
                 .setModule(getModuleName())
@@ -205,6 +218,9 @@ public class ContentProviderStorage extends TrayStorage {
 
     @Override
     public int getVersion() {
+        if (mCache != null) {
+            return mCache.getVersion();
+        }
         final Uri internalUri = mTrayUri.builder()
                 .setInternal(true)
                 .setType(getType())
@@ -254,7 +270,94 @@ public class ContentProviderStorage extends TrayStorage {
                 .setModule(getModuleName())
                 .setKey(key)
                 .build();
-        mProviderHelper.persist(uri, value, migrationKey);
+        // data put with a migration key may not be saved, let the observer query the saved item
+        final TrayContentObserver observer = migrationKey == null
+                ? TrayContentObserver.getRegistered(mContext, mModuleUri) : null;
+        final TrayContentObserver.PendingChange change = observer != null
+                ? observer.beginLocalChange(uri) : null;
+        final int generation = mCache != null ? mCache.beginPut(uri) : 0;
+        final boolean saved = mProviderHelper.persist(uri, value, migrationKey);
+        if (change != null) {
+            if (saved) {
+                observer.onLocalChange(change,
+                        Collections.singletonList(createLocalItem(key, value)));
+            } else {
+                observer.onLocalChangeFailed(uri, change);
+            }
+        }
+        if (mCache != null) {
+            if (!saved) {
+                mCache.onPutFailed(uri);
+            }
+            if (saved && migrationKey == null) {
+                mCache.put(key, value, generation);
+            } else {
+                // let the cache load the saved item (if any) including the migration key
+                mCache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * saves all items in a single transaction of the {@link TrayContentProvider} with a single
+     * change notification for this module
+     */
+    @Override
+    public void putAll(@NonNull final Map<String, ?> data,
+            @Nullable final Map<String, String> migrationKeys) {
+        if (data.isEmpty()) {
+            return;
+        }
+        if (getType() == Type.UNDEFINED) {
+            throw new TrayRuntimeException(
+                    "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
+        }
+
+        final Map<String, String> values = new HashMap<>(data.size());
+        for (final Map.Entry<String, ?> entry : data.entrySet()) {
+            final Object value = entry.getValue();
+            values.put(entry.getKey(), value == null ? null : String.valueOf(value));
+        }
+
+        boolean hasMigrationKeys = false;
+        if (migrationKeys != null) {
+            for (final String migrationKey : migrationKeys.values()) {
+                hasMigrationKeys |= migrationKey != null;
+            }
+        }
+        // data put with a migration key may not be saved, let the observer query the saved items
+        final TrayContentObserver observer = hasMigrationKeys
+                ? null : TrayContentObserver.getRegistered(mContext, mModuleUri);
+        final TrayContentObserver.PendingChange change = observer != null
+                ? observer.beginLocalChange(mModuleUri) : null;
+        final int generation = mCache != null ? mCache.beginPut(mModuleUri) : 0;
+        final int saved = mProviderHelper.persist(mModuleUri, values, migrationKeys);
+        if (change != null) {
+            if (saved == values.size()) {
+                final List<TrayItem> items = new ArrayList<>(values.size());
+                for (final Map.Entry<String, String> entry : values.entrySet()) {
+                    items.add(createLocalItem(entry.getKey(), entry.getValue()));
+                }
+                observer.onLocalChange(change, items);
+            } else {
+                // nothing or only some items saved, let the observer query the saved items
+                observer.onLocalChangeFailed(mModuleUri, change);
+            }
+        }
+        if (mCache != null) {
+            if (saved == 0) {
+                mCache.onPutFailed(mModuleUri);
+            }
+            for (final Map.Entry<String, String> entry : values.entrySet()) {
+                final String key = entry.getKey();
+                if (saved == values.size()
+                        && (migrationKeys == null || migrationKeys.get(key) == null)) {
+                    mCache.put(key, entry.getValue(), generation);
+                } else {
+                    mCache.invalidate(key);
+                }
+            }
+        }
     }
 
     /**
@@ -262,8 +365,8 @@ public class ContentProviderStorage extends TrayStorage {
      * the {@link TrayContentProvider} was detected
      * <p>
      * sdk version 15 is only partially supported. the listener will provide all data for this
-     * module and not only the changed ones because {@link ContentObserver#onChange(boolean, Uri)}
-     * was introduced in sdk version 16
+     * module and not only the changed ones because {@link
+     * android.database.ContentObserver#onChange(boolean, Uri)} was introduced in sdk version 16
      */
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     public synchronized void registerOnTrayPreferenceChangeListener(
@@ -282,38 +385,13 @@ public class ContentProviderStorage extends TrayStorage {
         }
         //noinspection ConstantConditions
         mListeners.put(listener, handler);
+        updateListenerEntries();
 
-        final Collection<OnTrayPreferenceChangeListener> listeners = mListeners.keySet();
-
-        if (listeners.size() == 1) {
-
-            // registering a TrayContentObserver requires a LooperThread
-            mObserverThread = new HandlerThread("observer") {
-                @Override
-                protected void onLooperPrepared() {
-                    super.onLooperPrepared();
-                    mObserver = new TrayContentObserver(new Handler(getLooper()));
-
-                    // register observer
-                    final Uri observingUri = mTrayUri.builder()
-                            .setType(getType())
-                            .setModule(getModuleName())
-                            .build();
-                    mContext.getContentResolver()
-                            .registerContentObserver(observingUri, true, mObserver);
-                    mRegisteredContentObserver = true;
-                }
-            };
-            mObserverThread.start();
-
-            // wait synchronously until the mObserverThread registered the mObserver
-            // cannot use Thread.join(); because the Looper of the HandlerThread runs forever until killed
-            while (true) {
-                if (mRegisteredContentObserver) {
-                    mRegisteredContentObserver = false;
-                    break;
-                }
-            }
+        if (mObserver == null) {
+            // all observers run on a shared looper thread, registering doesn't need to wait for it
+            mObserver = TrayContentObserver.getInstance(mContext, mModuleUri);
+            mObserverThread = TrayContentObserver.getObserverThread();
+            mObserver.addStorage(this);
         }
     }
 
@@ -330,6 +408,9 @@ public class ContentProviderStorage extends TrayStorage {
                 .setKey(key)
                 .build();
         mContext.getContentResolver().delete(uri, null, null);
+        if (mCache != null) {
+            mCache.remove(key);
+        }
     }
 
     @Override
@@ -344,26 +425,53 @@ public class ContentProviderStorage extends TrayStorage {
                 .setModule(getModuleName())
                 .setKey(VERSION)
                 .build();
-        mProviderHelper.persist(uri, String.valueOf(version));
+        final boolean saved = mProviderHelper.persist(uri, String.valueOf(version));
+        if (mCache != null && saved) {
+            mCache.setVersion(version);
+        }
     }
 
-    public void unregisterOnTrayPreferenceChangeListener(
+    public synchronized void unregisterOnTrayPreferenceChangeListener(
             @NonNull final OnTrayPreferenceChangeListener listener) {
         // noinspection ConstantConditions
         if (listener == null) {
             return;
         }
         mListeners.remove(listener);
+        updateListenerEntries();
 
-        if (mListeners.size() == 0) {
-            mContext.getContentResolver().unregisterContentObserver(mObserver);
-            // cleanup
+        if (mListeners.size() == 0 && mObserver != null) {
+            mObserver.removeStorage(this);
+            // cleanup, the shared observer thread keeps running
             mObserver = null;
-            mObserverThread.quit();
             mObserverThread = null;
         }
     }
 
+    /**
+     * calls the registered listeners, each on the thread it was registered on if that thread has
+     * a looper
+     */
+    void notifyListeners(@NonNull final Collection<TrayItem> trayItems) {
+        for (final ListenerEntry entry : mListenerEntries) {
+            final OnTrayPreferenceChangeListener listener = entry.listener.get();
+            if (listener == null) {
+                continue;
+            }
+            if (entry.handler != null) {
+                // call the listener on the thread where the listener was registered
+                entry.handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onTrayPreferenceChanged(trayItems);
+                    }
+                });
+            } else {
+                listener.onTrayPreferenceChanged(trayItems);
+            }
+        }
+    }
+
     /**
      * clear the data inside the preference and all evidence this preference has ever existed
      * <p>
@@ -379,7 +487,26 @@ public class ContentProviderStorage extends TrayStorage {
                 .setModule(getModuleName())
                 .build();
         mContext.getContentResolver().delete(uri, null, null);
+        if (mCache != null) {
+            mCache.wipe();
+        }
     }
 
+    /**
+     * @return the item as it will be saved by this storage. The creation date of an updated item
+     * is not known without a query and is reported as now.
+     */
+    private TrayItem createLocalItem(@NonNull final String key, @Nullable final String value) {
+        final Date now = new Date();
+        return new TrayItem(getModuleName(), key, null, value, now, now);
+    }
 
+    private void updateListenerEntries() {
+        final List<ListenerEntry> entries = new ArrayList<>(mListeners.size());
+        for (final Map.Entry<OnTrayPreferenceChangeListener, Handler> entry
+                : mListeners.entrySet()) {
+            entries.add(new ListenerEntry(entry.getKey(), entry.getValue()));
+        }
+        mListenerEntries = entries.toArray(new ListenerEntry[entries.size()]);
+    }
 }
@@ -16,10 +16,14 @@
 
 package net.grandcentrix.tray.provider;
 
+import net.grandcentrix.tray.core.TrayLog;
+
 import android.content.ContentValues;
 import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.text.TextUtils;
@@ -27,6 +31,7 @@ import android.text.TextUtils;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 /**
  * A helper for interactions with a {@link android.database.sqlite.SQLiteDatabase} when using the
@@ -36,6 +41,12 @@ import java.util.List;
  */
 public class SqliteHelper {
 
+    /**
+     * <code>INSERT ... ON CONFLICT DO UPDATE</code> requires SQLite 3.24 which ships with Android
+     * 11 (API 30)
+     */
+    private static final int UPSERT_MIN_SDK_INT = 30;
+
     /**
      * combines selection a and selection b to (a) AND (b). handles all cases if a or b are
      * <code>null</code> or <code>""</code>
@@ -170,6 +181,89 @@ public class SqliteHelper {
         }
     }
 
+    /**
+     * Inserts the values or updates the already inserted item. Uses a single <code>INSERT ... ON
+     * CONFLICT(...) DO UPDATE</code> statement when the SQLite version supports it. Older versions
+     * try to update the item first and insert the values when nothing was updated, both in one
+     * transaction. Unlike {@link #insertOrUpdate} there is no additional count query.
+     *
+     * @param sqlDb                  database to work with. has to be writable
+     * @param table                  the table to insert
+     * @param selection              selection to detect a already inserted item, matching the
+     *                               conflictColumns. Only used when UPSERT is not supported
+     * @param selectionArgs          the selectionArgs for the param selection
+     * @param values                 the values to insert
+     * @param conflictColumns        the columns of the UNIQUE constraint detecting an already
+     *                               inserted item
+     * @param excludeFieldsForUpdate contentValues keys which should not be updated
+     * @return 1 for insert, 0 for update and -1 if something goes wrong. A single UPSERT
+     * statement doesn't report if it inserted or updated the item and returns 1
+     */
+    public static int upsert(@Nullable SQLiteDatabase sqlDb, String table,
+            @Nullable String selection, String[] selectionArgs, @NonNull final ContentValues values,
+            @NonNull final String[] conflictColumns,
+            @Nullable final String[] excludeFieldsForUpdate) {
+        if (sqlDb == null) {
+            return -1;
+        }
+
+        if (Build.VERSION.SDK_INT >= UPSERT_MIN_SDK_INT) {
+            final List<String> notUpdated = new ArrayList<>(Arrays.asList(conflictColumns));
+            if (excludeFieldsForUpdate != null) {
+                notUpdated.addAll(Arrays.asList(excludeFieldsForUpdate));
+            }
+
+            final Set<String> columns = values.keySet();
+            final Object[] bindArgs = new Object[columns.size()];
+            final List<String> placeholders = new ArrayList<>(columns.size());
+            final List<String> updates = new ArrayList<>(columns.size());
+            int i = 0;
+            for (String column : columns) {
+                bindArgs[i++] = values.get(column);
+                placeholders.add("?");
+                if (!notUpdated.contains(column)) {
+                    updates.add(column + " = excluded." + column);
+                }
+            }
+
+            final String sql = "INSERT INTO " + table
+                    + " (" + TextUtils.join(", ", columns) + ")"
+                    + " VALUES (" + TextUtils.join(", ", placeholders) + ")"
+                    + " ON CONFLICT(" + TextUtils.join(", ", conflictColumns) + ") DO "
+                    + (updates.isEmpty() ? "NOTHING" : "UPDATE SET " + TextUtils.join(", ", updates));
+            try {
+                sqlDb.execSQL(sql, bindArgs);
+            } catch (SQLException e) {
+                TrayLog.w("upsert into " + table + " failed: " + e.getMessage());
+                return -1;
+            }
+            return 1;
+        }
+
+        final ContentValues updateValues = new ContentValues(values);
+        if (excludeFieldsForUpdate != null) {
+            for (String excludeField : excludeFieldsForUpdate) {
+                updateValues.remove(excludeField);
+            }
+        }
+
+        sqlDb.beginTransaction();
+        try {
+            final int result;
+            if (sqlDb.update(table, updateValues, selection, selectionArgs) > 0) {
+                // success, updated
+                result = 0;
+            } else {
+                // insert, item doesn't exist
+                result = sqlDb.insert(table, null, values) == -1 ? -1 : 1;
+            }
+            sqlDb.setTransactionSuccessful();
+            return result;
+        } finally {
+            sqlDb.endTransaction();
+        }
+    }
+
     // From https://android.googlesource.com/platform/frameworks/base/+/master/core/java/android/database/DatabaseUtils.java
     /**
      * Query the table for the number of rows in the table.
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayItem;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Forwards changes of a module to the listeners of all {@link ContentProviderStorage}s observing
+ * this module in this process.
+ * <p>
+ * All observers run on a single looper thread shared by the process which is started with the
+ * first registered listener. Changes written by the storages of this process are delivered with
+ * the written items, only changes from other processes require a query of the changed items.
+ * <p>
+ * Each local write gets a {@link PendingChange} in a queue per uri before it starts, in the
+ * order of the writes, and each change notification of the uri takes the oldest one. The items
+ * of a write are only delivered once the write succeeded, a notification arriving before that
+ * queries the items instead.
+ */
+class TrayContentObserver extends ContentObserver {
+
+    /**
+     * a write of a storage of this process waiting for its change notification
+     */
+    static final class PendingChange {
+
+        /**
+         * the written items, null until the write succeeded
+         */
+        private List<TrayItem> mItems;
+
+        /**
+         * true once a change notification took this change, the items aren't needed anymore
+         */
+        private boolean mConsumed;
+    }
+
+    /**
+     * the looper thread running all observers of this process
+     */
+    private static HandlerThread sObserverThread;
+
+    /**
+     * observers by application context and observed uri. The observers are never released, they
+     * reference the application context which lives as long as the process anyway
+     */
+    private static final Map<Context, Map<Uri, TrayContentObserver>> sObservers = new HashMap<>();
+
+    private final Context mContext;
+
+    private final Uri mObservingUri;
+
+    /**
+     * writes of the storages of this process by the uri their change gets notified for, oldest
+     * first. A change is removed when its notification arrives or its write fails, empty queues
+     * are removed. Guarded by itself
+     */
+    @VisibleForTesting
+    final Map<Uri, Queue<PendingChange>> mPendingChanges = new HashMap<>();
+
+    private final TrayProviderHelper mProviderHelper;
+
+    /**
+     * storages with registered listeners, copy on write
+     */
+    private volatile ContentProviderStorage[] mStorages = new ContentProviderStorage[0];
+
+    private TrayContentObserver(@NonNull final Context context, @NonNull final Uri observingUri) {
+        super(new Handler(getObserverThread().getLooper()));
+        mContext = context;
+        mObservingUri = observingUri;
+        mProviderHelper = new TrayProviderHelper(context);
+    }
+
+    /**
+     * @return the observer of the uri, creates the observer if it doesn't exist yet
+     */
+    @NonNull
+    static TrayContentObserver getInstance(@NonNull final Context context,
+            @NonNull final Uri observingUri) {
+        final Context applicationContext = context.getApplicationContext();
+        synchronized (sObservers) {
+            Map<Uri, TrayContentObserver> observers = sObservers.get(applicationContext);
+            if (observers == null) {
+                observers = new HashMap<>();
+                sObservers.put(applicationContext, observers);
+            }
+            TrayContentObserver observer = observers.get(observingUri);
+            if (observer == null) {
+                observer = new TrayContentObserver(applicationContext, observingUri);
+                observers.put(observingUri, observer);
+            }
+            return observer;
+        }
+    }
+
+    /**
+     * @return the observer of the uri if a storage registered listeners for it, null otherwise
+     */
+    @Nullable
+    static TrayContentObserver getRegistered(@NonNull final Context context,
+            @NonNull final Uri observingUri) {
+        synchronized (sObservers) {
+            final Map<Uri, TrayContentObserver> observers
+                    = sObservers.get(context.getApplicationContext());
+            final TrayContentObserver observer
+                    = observers == null ? null : observers.get(observingUri);
+            return observer != null && observer.mStorages.length > 0 ? observer : null;
+        }
+    }
+
+    /**
+     * @return the looper thread of all observers, started on first call. {@link
+     * HandlerThread#getLooper()} blocks until the looper is prepared.
+     */
+    @NonNull
+    static synchronized HandlerThread getObserverThread() {
+        if (sObserverThread == null) {
+            sObserverThread = new HandlerThread("TrayObserver");
+            sObserverThread.start();
+        }
+        return sObserverThread;
+    }
+
+    /**
+     * starts forwarding changes to the listeners of the storage. Registers this observer on
+     * first call.
+     */
+    synchronized void addStorage(@NonNull final ContentProviderStorage storage) {
+        final ContentProviderStorage[] storages = mStorages;
+        if (Arrays.asList(storages).contains(storage)) {
+            return;
+        }
+        final ContentProviderStorage[] newStorages
+                = Arrays.copyOf(storages, storages.length + 1);
+        newStorages[storages.length] = storage;
+        mStorages = newStorages;
+        if (storages.length == 0) {
+            mContext.getContentResolver().registerContentObserver(mObservingUri, true, this);
+        }
+    }
+
+    /**
+     * called by a storage of this process before writing items, so the change notification of
+     * the write can be matched to it whether it arrives before or after the write returns
+     *
+     * @param uri the uri the change will be notified for
+     * @return the change to pass to {@link #onLocalChange(PendingChange, List)} or {@link
+     * #onLocalChangeFailed(Uri, PendingChange)} once the write returned
+     */
+    @NonNull
+    PendingChange beginLocalChange(@NonNull final Uri uri) {
+        final PendingChange change = new PendingChange();
+        synchronized (mPendingChanges) {
+            Queue<PendingChange> changes = mPendingChanges.get(uri);
+            if (changes == null) {
+                changes = new ArrayDeque<>();
+                mPendingChanges.put(uri, changes);
+            }
+            changes.add(change);
+        }
+        return change;
+    }
+
+    /**
+     * called by a storage of this process after the items of the change were written, so the
+     * change notification can be delivered without querying the written items
+     */
+    void onLocalChange(@NonNull final PendingChange change, @NonNull final List<TrayItem> items) {
+        synchronized (mPendingChanges) {
+            if (!change.mConsumed) {
+                change.mItems = Collections.unmodifiableList(items);
+            }
+        }
+    }
+
+    /**
+     * called by a storage of this process if writing the items of the change failed and no
+     * change will be notified
+     */
+    void onLocalChangeFailed(@NonNull final Uri uri, @NonNull final PendingChange change) {
+        synchronized (mPendingChanges) {
+            final Queue<PendingChange> changes = mPendingChanges.get(uri);
+            if (changes != null && changes.remove(change) && changes.isEmpty()) {
+                mPendingChanges.remove(uri);
+            }
+        }
+    }
+
+    @Override
+    public void onChange(final boolean selfChange) {
+        onChange(selfChange, null);
+    }
+
+    @Override
+    public void onChange(final boolean selfChange, Uri uri) {
+        List<TrayItem> trayItems = null;
+        synchronized (mPendingChanges) {
+            if (uri == null) {
+                // for sdk version 15 and below we cannot detect which exact data was changed. This will
+                // return all data for this module
+                uri = mObservingUri;
+                consumeAll();
+            } else {
+                final Queue<PendingChange> changes = mPendingChanges.get(uri);
+                final PendingChange change = changes == null ? null : changes.poll();
+                if (change != null) {
+                    if (changes.isEmpty()) {
+                        mPendingChanges.remove(uri);
+                    }
+                    // still null if the write didn't return yet
+                    trayItems = change.mItems;
+                    change.mConsumed = true;
+                }
+            }
+        }
+
+        if (trayItems == null) {
+            // changed by another process or the write didn't return yet, query only the changed
+            // items
+            trayItems = mProviderHelper.queryProvider(uri);
+        }
+
+        // notify the listeners of all storages
+        for (final ContentProviderStorage storage : mStorages) {
+            storage.notifyListeners(trayItems);
+        }
+    }
+
+    /**
+     * drops all pending changes, their notifications will query the changed items
+     */
+    private void consumeAll() {
+        for (final Queue<PendingChange> changes : mPendingChanges.values()) {
+            for (final PendingChange change : changes) {
+                change.mConsumed = true;
+                change.mItems = null;
+            }
+        }
+        mPendingChanges.clear();
+    }
+
+    /**
+     * stops forwarding changes to the listeners of the storage. Unregisters this observer when
+     * no storage is left.
+     */
+    synchronized void removeStorage(@NonNull final ContentProviderStorage storage) {
+        final ContentProviderStorage[] storages = mStorages;
+        final int index = Arrays.asList(storages).indexOf(storage);
+        if (index < 0) {
+            return;
+        }
+        final ContentProviderStorage[] newStorages = new ContentProviderStorage[storages.length - 1];
+        System.arraycopy(storages, 0, newStorages, 0, index);
+        System.arraycopy(storages, index + 1, newStorages, index, storages.length - index - 1);
+        mStorages = newStorages;
+        if (newStorages.length == 0) {
+            mContext.getContentResolver().unregisterContentObserver(this);
+            synchronized (mPendingChanges) {
+                consumeAll();
+            }
+        }
+    }
+}
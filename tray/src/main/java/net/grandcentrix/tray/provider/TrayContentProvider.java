@@ -43,6 +43,9 @@ import java.util.Date;
  * TrayContract.Preferences.Columns#MODULE} overrides the already
  * existing data. So <code>insert</code> works as <code>insertOrUpdate</code>.
  * <p>
+ * Multiple items of a module can be saved in a single transaction with {@link #bulkInsert(Uri,
+ * ContentValues[])} which notifies the module uri once.
+ * <p>
  * Created by jannisveerkamp on 16.09.14.
  */
 public class TrayContentProvider extends ContentProvider {
@@ -61,6 +64,18 @@ public class TrayContentProvider extends ContentProvider {
 
     private static UriMatcher sURIMatcher;
 
+    private static final String[] CONFLICT_COLUMNS = {
+            TrayContract.Preferences.Columns.MODULE,
+            TrayContract.Preferences.Columns.KEY
+    };
+
+    private static final String[] EXCLUDE_FOR_UPDATE = {
+            TrayContract.Preferences.Columns.CREATED
+    };
+
+    private static final String PREF_SELECTION = TrayContract.Preferences.Columns.MODULE + " = ?"
+            + " AND " + TrayContract.Preferences.Columns.KEY + " = ?";
+
     TrayDBHelper mDeviceDbHelper;
 
     TrayDBHelper mUserDbHelper;
@@ -166,18 +181,13 @@ public class TrayContentProvider extends ContentProvider {
                 throw new IllegalArgumentException("Insert is not supported for Uri: " + uri);
         }
 
-        final String prefSelection =
-                TrayContract.Preferences.Columns.MODULE + " = ?"
-                        + "AND " + TrayContract.Preferences.Columns.KEY + " = ?";
         final String[] prefSelectionArgs = {
                 values.getAsString(TrayContract.Preferences.Columns.MODULE),
                 values.getAsString(TrayContract.Preferences.Columns.KEY)
         };
 
-        final String[] excludeForUpdate = {TrayContract.Preferences.Columns.CREATED};
-
         final int status = insertOrUpdate(getWritableDatabase(uri), getTable(uri),
-                prefSelection, prefSelectionArgs, values, excludeForUpdate);
+                PREF_SELECTION, prefSelectionArgs, values, EXCLUDE_FOR_UPDATE);
 
         if (status >= 0) {
             getContext().getContentResolver().notifyChange(uri, null);
@@ -194,12 +204,74 @@ public class TrayContentProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * saves multiple items of the module defined by the uri in a single transaction. Every
+     * ContentValues requires a {@link TrayContract.Preferences.Columns#KEY}. Notifies the module
+     * uri once when at least one item was saved.
+     *
+     * @return the number of saved items
+     */
+    @Override
+    public int bulkInsert(@NonNull final Uri uri, @NonNull final ContentValues[] values) {
+        final int match = sURIMatcher.match(uri);
+        switch (match) {
+            case MODULE_PREFERENCE:
+            case INTERNAL_MODULE_PREFERENCE:
+                break;
+
+            default:
+                throw new IllegalArgumentException("Bulk insert is not supported for Uri: " + uri);
+        }
+
+        final SQLiteDatabase writableDatabase = getWritableDatabase(uri);
+        if (writableDatabase == null) {
+            TrayLog.w("Couldn't update or insert data. Uri: " + uri);
+            return 0;
+        }
+
+        final long date = new Date().getTime();
+        final String module = uri.getPathSegments().get(1);
+        final String table = getTable(uri);
+        int saved = 0;
+
+        writableDatabase.beginTransaction();
+        try {
+            for (final ContentValues value : values) {
+                final String key = value.getAsString(TrayContract.Preferences.Columns.KEY);
+                if (key == null) {
+                    throw new IllegalArgumentException(
+                            "Bulk insert requires a key for every item. Uri: " + uri);
+                }
+                final ContentValues item = new ContentValues(value);
+                item.put(TrayContract.Preferences.Columns.CREATED, date);
+                item.put(TrayContract.Preferences.Columns.UPDATED, date);
+                item.put(TrayContract.Preferences.Columns.MODULE, module);
+
+                final int status = insertOrUpdate(writableDatabase, table, PREF_SELECTION,
+                        new String[]{module, key}, item, EXCLUDE_FOR_UPDATE);
+                if (status >= 0) {
+                    saved++;
+                } else {
+                    TrayLog.w("Couldn't update or insert data. Uri: " + uri + ", key: " + key);
+                }
+            }
+            writableDatabase.setTransactionSuccessful();
+        } finally {
+            writableDatabase.endTransaction();
+        }
+
+        if (saved > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return saved;
+    }
+
     public int insertOrUpdate(final SQLiteDatabase writableDatabase, final String table,
             final String prefSelection, final String[] prefSelectionArgs,
             final ContentValues values, final String[] excludeForUpdate) {
         return SqliteHelper
-                .insertOrUpdate(writableDatabase, table, prefSelection, prefSelectionArgs, values,
-                        excludeForUpdate);
+                .upsert(writableDatabase, table, prefSelection, prefSelectionArgs, values,
+                        CONFLICT_COLUMNS, excludeForUpdate);
     }
 
     @Override
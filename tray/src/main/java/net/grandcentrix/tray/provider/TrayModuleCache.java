@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayStorage;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per process snapshot of the items and the version of a single module, shared by all cached
+ * {@link ContentProviderStorage} instances of that module.
+ * <p>
+ * Items are read from the {@link TrayContentProvider} on first access and kept up to date by the
+ * writes of the cached storages (write-through). Writes from other processes or uncached storages
+ * are picked up from the change notifications of the {@link TrayContentProvider}: a change of a
+ * single item drops this item, a change of the whole module drops the snapshot. Dropped items are
+ * loaded again on next access. The notifications of the write-through puts are skipped.
+ */
+class TrayModuleCache {
+
+    /**
+     * marks an item known to be not saved, which saves the query for missing keys as well
+     */
+    private static final Object MISSING = new Object();
+
+    /**
+     * caches by application context and module. The caches are never released, they observe the
+     * provider as long as the process lives. There is a single application context per process,
+     * only tests using isolated contexts create more than one set of caches.
+     */
+    private static final Map<Context, Map<String, TrayModuleCache>> sCaches = new HashMap<>();
+
+    /**
+     * cached items of this module by key, either a {@link TrayItem} or {@link #MISSING}
+     */
+    @VisibleForTesting
+    final ConcurrentHashMap<String, Object> mItems = new ConcurrentHashMap<>();
+
+    /**
+     * incremented for every change notification which isn't caused by a write-through put. Items
+     * loaded or written while a change was reported may be outdated and are not cached
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /**
+     * number of write-through puts by the uri their change gets notified for, counted until the
+     * notification arrives or the put fails. Guarded by itself
+     */
+    private final Map<Uri, Integer> mPendingPuts = new HashMap<>();
+
+    /**
+     * cached version of this module, null when not loaded
+     */
+    @VisibleForTesting
+    final AtomicReference<Integer> mVersion = new AtomicReference<>();
+
+    @VisibleForTesting
+    final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(final boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(final boolean selfChange, final Uri uri) {
+            onModuleChanged(uri);
+        }
+    };
+
+    private final ContentObserver mInternalObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(final boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(final boolean selfChange, final Uri uri) {
+            // only the version is saved in the internal preferences
+            mVersion.set(null);
+        }
+    };
+
+    /**
+     * uncached storage reading the data from the {@link TrayContentProvider}
+     */
+    private final ContentProviderStorage mSource;
+
+    private TrayModuleCache(@NonNull final Context context, @NonNull final String module,
+            @NonNull final TrayStorage.Type type) {
+        mSource = new ContentProviderStorage(context, module, type);
+
+        final TrayUri trayUri = new TrayUri(context);
+        final Uri moduleUri = trayUri.builder()
+                .setModule(module)
+                .build();
+        final Uri internalModuleUri = trayUri.builder()
+                .setInternal(true)
+                .setModule(module)
+                .build();
+        context.getContentResolver().registerContentObserver(moduleUri, true, mObserver);
+        context.getContentResolver()
+                .registerContentObserver(internalModuleUri, true, mInternalObserver);
+    }
+
+    /**
+     * @return the cache of the module shared by all storages in this process using the same
+     * application context
+     */
+    @NonNull
+    static TrayModuleCache getInstance(@NonNull final Context context,
+            @NonNull final String module, @NonNull final TrayStorage.Type type) {
+        final Context applicationContext = context.getApplicationContext();
+        synchronized (sCaches) {
+            Map<String, TrayModuleCache> caches = sCaches.get(applicationContext);
+            if (caches == null) {
+                caches = new HashMap<>();
+                sCaches.put(applicationContext, caches);
+            }
+            final String cacheKey = type.name() + "/" + module;
+            TrayModuleCache cache = caches.get(cacheKey);
+            if (cache == null) {
+                cache = new TrayModuleCache(applicationContext, module, type);
+                caches.put(cacheKey, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * called before a put to the uri of an item or the module is sent to the provider. The change
+     * notification of the put doesn't drop the cached items.
+     *
+     * @return the generation to pass to {@link #put(String, String, int)}
+     * @see #onPutFailed(Uri)
+     */
+    int beginPut(@NonNull final Uri uri) {
+        synchronized (mPendingPuts) {
+            final Integer pending = mPendingPuts.get(uri);
+            mPendingPuts.put(uri, pending == null ? 1 : pending + 1);
+        }
+        return mGeneration.get();
+    }
+
+    /**
+     * drops all cached items
+     */
+    void clear() {
+        mItems.clear();
+    }
+
+    /**
+     * @return the cached item, loads the item from the {@link TrayContentProvider} if it isn't
+     * cached yet
+     */
+    @Nullable
+    TrayItem get(@NonNull final String key) {
+        Object item = mItems.get(key);
+        if (item == null) {
+            final int generation = mGeneration.get();
+            final TrayItem loaded = mSource.get(key);
+            if (generation != mGeneration.get()) {
+                return loaded;
+            }
+            // don't replace an item written while loading
+            final Object previous = mItems.putIfAbsent(key, loaded == null ? MISSING : loaded);
+            item = previous != null ? previous : loaded;
+        }
+        return item == MISSING ? null : (TrayItem) item;
+    }
+
+    /**
+     * @return the cached version, loads the version from the {@link TrayContentProvider} if it
+     * isn't cached yet
+     */
+    int getVersion() {
+        final Integer version = mVersion.get();
+        if (version != null) {
+            return version;
+        }
+        final int loaded = mSource.getVersion();
+        // don't replace a version written while loading
+        mVersion.compareAndSet(null, loaded);
+        return loaded;
+    }
+
+    /**
+     * drops the cached item. The item gets reloaded on next access
+     */
+    void invalidate(@NonNull final String key) {
+        mItems.remove(key);
+    }
+
+    /**
+     * called when a put started with {@link #beginPut(Uri)} saved nothing, the provider doesn't
+     * notify a change then
+     */
+    void onPutFailed(@NonNull final Uri uri) {
+        consumePendingPut(uri);
+    }
+
+    /**
+     * write-through of a successfully saved value
+     *
+     * @param generation returned by {@link #beginPut(Uri)} before the value was saved
+     */
+    void put(@NonNull final String key, @Nullable final String value, final int generation) {
+        if (generation != mGeneration.get()) {
+            // changed by someone else while saving, the saved value may already be outdated
+            mItems.remove(key);
+            return;
+        }
+        final Object cached = mItems.get(key);
+        final Date now = new Date();
+        final Date created = cached instanceof TrayItem ? ((TrayItem) cached).created() : now;
+        mItems.put(key, new TrayItem(mSource.getModuleName(), key, null, value, created, now));
+    }
+
+    /**
+     * write-through of a removed item
+     */
+    void remove(@NonNull final String key) {
+        mItems.put(key, MISSING);
+    }
+
+    /**
+     * write-through of a successfully saved version
+     */
+    void setVersion(final int version) {
+        mVersion.set(version);
+    }
+
+    /**
+     * write-through of a wipe which also deleted the version
+     */
+    void wipe() {
+        mItems.clear();
+        mVersion.set(null);
+    }
+
+    /**
+     * @return true when a put to the uri was pending
+     */
+    private boolean consumePendingPut(@Nullable final Uri uri) {
+        if (uri == null) {
+            return false;
+        }
+        synchronized (mPendingPuts) {
+            final Integer pending = mPendingPuts.get(uri);
+            if (pending == null) {
+                return false;
+            }
+            if (pending == 1) {
+                mPendingPuts.remove(uri);
+            } else {
+                mPendingPuts.put(uri, pending - 1);
+            }
+            return true;
+        }
+    }
+
+    private void onModuleChanged(@Nullable final Uri uri) {
+        if (consumePendingPut(uri)) {
+            // a write-through put updates the cached items itself. When someone else changed the
+            // uri while the put was pending, the notification of the put drops the items instead
+            return;
+        }
+        mGeneration.incrementAndGet();
+        final List<String> pathSegments = uri == null ? null : uri.getPathSegments();
+        if (pathSegments == null || pathSegments.size() < 3) {
+            // the whole module or all modules changed, sdk version 15 and below don't report the
+            // changed uri at all
+            mItems.clear();
+            return;
+        }
+
+        // the changed item gets loaded on next access
+        mItems.remove(pathSegments.get(2));
+    }
+}
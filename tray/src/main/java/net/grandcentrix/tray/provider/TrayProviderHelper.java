@@ -29,6 +29,7 @@ import androidx.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Helper for accessing the {@link TrayContentProvider}
@@ -116,16 +117,43 @@ public class TrayProviderHelper {
         persist(uri, value, previousKey);
     }
 
-    public void persist(@NonNull final Uri uri, @Nullable String value) {
-        persist(uri, value, null);
+    public boolean persist(@NonNull final Uri uri, @Nullable String value) {
+        return persist(uri, value, null);
     }
 
-    public void persist(@NonNull final Uri uri, @Nullable String value,
+    /**
+     * @return true when the value was saved, false when the save failed
+     */
+    public boolean persist(@NonNull final Uri uri, @Nullable String value,
             @Nullable final String previousKey) {
         ContentValues values = new ContentValues();
         values.put(TrayContract.Preferences.Columns.VALUE, value);
         values.put(TrayContract.Preferences.Columns.MIGRATED_KEY, previousKey);
-        mContext.getContentResolver().insert(uri, values);
+        return mContext.getContentResolver().insert(uri, values) != null;
+    }
+
+    /**
+     * saves multiple values of a module in a single transaction of the {@link
+     * TrayContentProvider}, resulting in a single change notification for the module.
+     *
+     * @param moduleUri    uri of the module, see {@link TrayUri.Builder#setModule(String)}
+     * @param values       data to save by key
+     * @param previousKeys keys used before migration by key, may be null or not contain all keys
+     * @return the number of saved values
+     */
+    public int persist(@NonNull final Uri moduleUri, @NonNull final Map<String, String> values,
+            @Nullable final Map<String, String> previousKeys) {
+        final ContentValues[] items = new ContentValues[values.size()];
+        int i = 0;
+        for (final Map.Entry<String, String> entry : values.entrySet()) {
+            final ContentValues item = new ContentValues();
+            item.put(TrayContract.Preferences.Columns.KEY, entry.getKey());
+            item.put(TrayContract.Preferences.Columns.VALUE, entry.getValue());
+            item.put(TrayContract.Preferences.Columns.MIGRATED_KEY,
+                    previousKeys == null ? null : previousKeys.get(entry.getKey()));
+            items[i++] = item;
+        }
+        return mContext.getContentResolver().bulkInsert(moduleUri, items);
     }
 
     /**